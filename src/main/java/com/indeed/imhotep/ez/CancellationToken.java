@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Lets a query be cancelled from another thread. The thread executing the query polls the token in its loops and
+ * stops with a QueryCancelledException, while the resources registered with the token, like the Imhotep session,
+ * are closed right away on cancel so the daemons free their memory without waiting for the poll.
+ * The token can also carry a deadline after which the polls fail with an UncheckedTimeoutException.
+ */
+public final class CancellationToken {
+    private static final Logger log = Logger.getLogger(CancellationToken.class);
+
+    private volatile String reason = null;  // set once cancelled
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile String timeoutMessage = null;
+    private final List<Closeable> resources = Lists.newArrayList();
+
+    /**
+     * Cancels the query and closes the registered resources. Only the first call has an effect.
+     */
+    public void cancel(String reason) {
+        final List<Closeable> toClose;
+        synchronized (this) {
+            if (this.reason != null) {
+                return;
+            }
+            this.reason = reason;
+            toClose = Lists.newArrayList(resources);
+            resources.clear();
+        }
+        for (Closeable resource : toClose) {
+            Closeables2.closeQuietly(resource, log);
+        }
+    }
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    @Nullable
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Makes the polls fail with an UncheckedTimeoutException with the given message after the given time.
+     */
+    public void setDeadline(long deadlineMillis, String timeoutMessage) {
+        this.timeoutMessage = timeoutMessage;
+        this.deadline = deadlineMillis;
+    }
+
+    /**
+     * Registers the resource to be closed when the query is cancelled. It is closed immediately if the query has
+     * already been cancelled.
+     */
+    public void closeOnCancel(Closeable resource) {
+        synchronized (this) {
+            if (reason == null) {
+                resources.add(resource);
+                return;
+            }
+        }
+        Closeables2.closeQuietly(resource, log);
+    }
+
+    /**
+     * Unregisters a resource that was closed by its owner so that the token doesn't hold on to it or close it again.
+     */
+    public synchronized void forget(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    /**
+     * Unregisters all resources. Called when the query completes so that cancelling it afterwards has no effect on
+     * them.
+     */
+    public synchronized void forgetAll() {
+        resources.clear();
+    }
+
+    /**
+     * Throws if the query was cancelled or ran past its deadline. Meant to be called periodically by the thread
+     * executing the query.
+     */
+    public void throwIfCancelled() {
+        final String reason = this.reason;
+        if (reason != null) {
+            throw new QueryCancelledException(reason);
+        }
+        if (deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline) {
+            throw new UncheckedTimeoutException(timeoutMessage);
+        }
+    }
+
+    /**
+     * Returns the exception to throw in place of the given failure: a QueryCancelledException if the failure is
+     * the consequence of cancelling the query, such as reading from a session that got closed, or the failure itself.
+     */
+    public RuntimeException translate(RuntimeException failure) {
+        final String reason = this.reason;
+        if (reason != null && !(failure instanceof QueryCancelledException)) {
+            return new QueryCancelledException(reason, failure);
+        }
+        return failure;
+    }
+}
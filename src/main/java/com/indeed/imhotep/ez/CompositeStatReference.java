@@ -20,6 +20,8 @@
 public class CompositeStatReference implements StatReference {
     StatReference ref1;
     StatReference ref2;
+    // values of ref2 for the rows of a block
+    private double[] ref2Values = new double[0];
 
     public CompositeStatReference(StatReference ref1, StatReference ref2) {
         this.ref1 = ref1;
@@ -42,6 +44,18 @@ public class CompositeStatReference implements StatReference {
         return applyComposite(ref1.getValue(stats), ref2.getValue(stats));
     }
 
+    @Override
+    public void getValues(long[][] stats, int count, double[] values) {
+        if (ref2Values.length < count) {
+            ref2Values = new double[count];
+        }
+        ref1.getValues(stats, count, values);
+        ref2.getValues(stats, count, ref2Values);
+        for (int i = 0; i < count; i++) {
+            values[i] = applyComposite(values[i], ref2Values[i]);
+        }
+    }
+
     private static double applyComposite(double val1, double val2) {
         return val1 / val2;
     }
@@ -16,7 +16,6 @@
 import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.indeed.util.core.Pair;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.serialization.Stringifier;
 import com.indeed.flamdex.query.Query;
@@ -27,6 +26,7 @@ import com.indeed.imhotep.TermCount;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.api.RawFTGSIterator;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TIntObjectIterator;
 import gnu.trove.TLongArrayList;
@@ -38,14 +38,11 @@ import java.io.Closeable;
 import java.text.DecimalFormat;
 import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.indeed.imhotep.ez.Field.IntField;
 import static com.indeed.imhotep.ez.Field.StringField;
@@ -68,6 +65,8 @@ import static com.indeed.imhotep.ez.Stats.requireValid;
 public class EZImhotepSession implements Closeable {
     private static final Logger log = Logger.getLogger(EZImhotepSession.class);
     public static int GROUP_LIMIT = 1000000;    // 1 mil
+    // the shared term counter is updated once per this many terms + 1 to keep the FTGS loops cheap
+    static final int FTGS_TERM_COUNT_INTERVAL = 1023;
 
     private final ImhotepSession session;
     private final Deque<StatReference> statStack = new ArrayDeque<StatReference>();
@@ -75,6 +74,10 @@ public class EZImhotepSession implements Closeable {
     private int stackDepth = 0;
     private int numGroups = 2;
     private boolean closed = false;
+    // terms iterated by the FTGS loops of this session, can be shared to report the progress of a query
+    private AtomicLong ftgsTermCounter = new AtomicLong();
+    // polled by the FTGS loops so that a cancelled query stops iterating
+    private CancellationToken cancellationToken = new CancellationToken();
 
     public EZImhotepSession(ImhotepSession session) {
         this.session = session;
@@ -134,6 +137,25 @@ public class EZImhotepSession implements Closeable {
         return numGroups;
     }
 
+    /**
+     * Makes the FTGS loops of the session add the number of iterated terms to the given counter.
+     */
+    public void setFtgsTermCounter(AtomicLong ftgsTermCounter) {
+        this.ftgsTermCounter = ftgsTermCounter;
+    }
+
+    public long getFtgsTermCount() {
+        return ftgsTermCounter.get();
+    }
+
+    /**
+     * Makes the FTGS loops of the session stop with a QueryCancelledException once the token is cancelled.
+     * The loops poll the token at the same interval as they update the term counter.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
     public double[] getGroupStats(StatReference statReference) {
         return statReference.getGroupStats();
     }
@@ -155,7 +177,7 @@ public class EZImhotepSession implements Closeable {
         throw new UnsupportedOperationException("Sorry, this isn't actually possible yet");
     }
 
-    public void ftgsIterate(List<Field> fields, FTGSCallback callback) {
+    private FTGSIterator getFTGSIterator(List<Field> fields) {
         final List<String> intFields = Lists.newArrayList();
         final List<String> stringFields = Lists.newArrayList();
         for (Field field : fields) {
@@ -166,15 +188,25 @@ public class EZImhotepSession implements Closeable {
             }
         }
 
-        final FTGSIterator ftgsIterator = session.getFTGSIterator(
+        cancellationToken.throwIfCancelled();
+        return session.getFTGSIterator(
                 intFields.toArray(new String[intFields.size()]),
                 stringFields.toArray(new String[stringFields.size()])
         );
+    }
+
+    public void ftgsIterate(List<Field> fields, FTGSCallback callback) {
+        final FTGSIterator ftgsIterator = getFTGSIterator(fields);
+        long terms = 0;
         try {
             while (ftgsIterator.nextField()) {
                 final String field = ftgsIterator.fieldName();
                 if (ftgsIterator.fieldIsIntType()) {
                     while (ftgsIterator.nextTerm()) {
+                        if ((++terms & FTGS_TERM_COUNT_INTERVAL) == 0) {
+                            ftgsTermCounter.addAndGet(FTGS_TERM_COUNT_INTERVAL + 1);
+                            cancellationToken.throwIfCancelled();
+                        }
                         final long term = ftgsIterator.termIntVal();
 
                         while (ftgsIterator.nextGroup()) {
@@ -185,6 +217,10 @@ public class EZImhotepSession implements Closeable {
                     }
                 } else {
                     while (ftgsIterator.nextTerm()) {
+                        if ((++terms & FTGS_TERM_COUNT_INTERVAL) == 0) {
+                            ftgsTermCounter.addAndGet(FTGS_TERM_COUNT_INTERVAL + 1);
+                            cancellationToken.throwIfCancelled();
+                        }
                         final String term = ftgsIterator.termStringVal();
                         while (ftgsIterator.nextGroup()) {
                             final int group = ftgsIterator.group();
@@ -194,29 +230,117 @@ public class EZImhotepSession implements Closeable {
                     }
                 }
             }
+        } catch (RuntimeException e) {
+            // reading from a session closed by cancel fails in the iterator
+            throw cancellationToken.translate(e);
         } finally {
+            ftgsTermCounter.addAndGet(terms & FTGS_TERM_COUNT_INTERVAL);
             Closeables2.closeQuietly(ftgsIterator, log);
         }
     }
 
-    public <E> Iterator<E> ftgsGetIterator(List<Field> fields, final FTGSIteratingCallback<E> callback) {
-        final List<String> intFields = Lists.newArrayList();
-        final List<String> stringFields = Lists.newArrayList();
-        for (Field field : fields) {
-            if (field.isIntField()) {
-                intFields.add(field.fieldName);
-            } else {
-                stringFields.add(field.fieldName);
+    /**
+     * Iterates like ftgsIterate(List, FTGSCallback) but hands the tuples to the callback in blocks of up to
+     * the callback's batch size. A block never spans two fields.
+     */
+    public void ftgsIterate(List<Field> fields, FTGSBatchCallback callback) {
+        final FTGSIterator ftgsIterator = getFTGSIterator(fields);
+        final int batchSize = callback.groups.length;
+        final int[] groups = callback.groups;
+        long terms = 0;
+        try {
+            while (ftgsIterator.nextField()) {
+                final String field = ftgsIterator.fieldName();
+                int count = 0;
+                if (ftgsIterator.fieldIsIntType()) {
+                    final long[] intTerms = callback.intTerms;
+                    while (ftgsIterator.nextTerm()) {
+                        if ((++terms & FTGS_TERM_COUNT_INTERVAL) == 0) {
+                            ftgsTermCounter.addAndGet(FTGS_TERM_COUNT_INTERVAL + 1);
+                            cancellationToken.throwIfCancelled();
+                        }
+                        final long term = ftgsIterator.termIntVal();
+
+                        while (ftgsIterator.nextGroup()) {
+                            intTerms[count] = term;
+                            groups[count] = ftgsIterator.group();
+                            callback.readStats(ftgsIterator, count);
+                            if (++count == batchSize) {
+                                callback.intTermGroups(field, intTerms, groups, callback.stats, count);
+                                count = 0;
+                            }
+                        }
+                    }
+                    if (count > 0) {
+                        callback.intTermGroups(field, intTerms, groups, callback.stats, count);
+                    }
+                } else {
+                    final Utf8Term[] stringTerms = callback.stringTerms;
+                    final Utf8Term[] termPool = callback.termPool;
+                    // the raw iterator gives access to the UTF-8 bytes without decoding the term
+                    final RawFTGSIterator rawIterator = ftgsIterator instanceof RawFTGSIterator ? (RawFTGSIterator) ftgsIterator : null;
+                    int nextTermSlot = 0;
+                    while (ftgsIterator.nextTerm()) {
+                        if ((++terms & FTGS_TERM_COUNT_INTERVAL) == 0) {
+                            ftgsTermCounter.addAndGet(FTGS_TERM_COUNT_INTERVAL + 1);
+                            cancellationToken.throwIfCancelled();
+                        }
+                        // the term is only read for its first group so terms without groups are never copied
+                        Utf8Term term = null;
+                        int termSlot = 0;
+                        while (ftgsIterator.nextGroup()) {
+                            if (count == batchSize) {
+                                // flushed once the next row is known so a term continuing into the next block keeps
+                                // its instance, moved to the first slot of the block
+                                callback.stringTermGroups(field, stringTerms, groups, callback.stats, count);
+                                count = 0;
+                                nextTermSlot = 0;
+                                if (term != null) {
+                                    termPool[termSlot] = termPool[0];
+                                    termPool[0] = term;
+                                    termSlot = 0;
+                                    nextTermSlot = 1;
+                                }
+                            }
+                            if (term == null) {
+                                if (count == 0 && termPool[nextTermSlot] == stringTerms[batchSize - 1]) {
+                                    // the instance of the previous block's last term can't start the block with another term
+                                    nextTermSlot++;
+                                }
+                                termSlot = nextTermSlot++;
+                                term = termPool[termSlot];
+                                if (rawIterator != null) {
+                                    term.set(rawIterator.termStringBytes(), rawIterator.termStringLength());
+                                } else {
+                                    term.set(ftgsIterator.termStringVal());
+                                }
+                            }
+                            stringTerms[count] = term;
+                            groups[count] = ftgsIterator.group();
+                            callback.readStats(ftgsIterator, count);
+                            count++;
+                        }
+                    }
+                    if (count > 0) {
+                        callback.stringTermGroups(field, stringTerms, groups, callback.stats, count);
+                    }
+                    Arrays.fill(stringTerms, null);
+                }
             }
+        } catch (RuntimeException e) {
+            // reading from a session closed by cancel fails in the iterator
+            throw cancellationToken.translate(e);
+        } finally {
+            ftgsTermCounter.addAndGet(terms & FTGS_TERM_COUNT_INTERVAL);
+            Closeables2.closeQuietly(ftgsIterator, log);
         }
+    }
 
-        final FTGSIterator ftgsIterator = session.getFTGSIterator(
-                intFields.toArray(new String[intFields.size()]),
-                stringFields.toArray(new String[stringFields.size()])
-        );
+    public <E> Iterator<E> ftgsGetIterator(List<Field> fields, final FTGSIteratingCallback<E> callback) {
+        final FTGSIterator ftgsIterator = getFTGSIterator(fields);
 
         // TODO: make sure ftgsIterator gets closed
-        return new FTGSCallbackIterator<E>(callback, ftgsIterator);
+        return new FTGSCallbackIterator<E>(callback, ftgsIterator, ftgsTermCounter, cancellationToken);
     }
 
     public void filter(IntField field, Predicate<Long> predicate) throws ImhotepOutOfMemoryException {
@@ -259,7 +383,7 @@ public class EZImhotepSession implements Closeable {
         }
     }
 
-    public void filter(StringField field, Predicate<String> predicate) throws ImhotepOutOfMemoryException {
+    public void filter(StringField field, Predicate<Utf8Term> predicate) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
             System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
         }
@@ -269,7 +393,7 @@ public class EZImhotepSession implements Closeable {
         }
     }
 
-    public void filterNegation(StringField field, Predicate<String> predicate) throws ImhotepOutOfMemoryException {
+    public void filterNegation(StringField field, Predicate<Utf8Term> predicate) throws ImhotepOutOfMemoryException {
         if (numGroups > 2) {
             System.err.println("WARNING: performing a term filter with more than one group. Consider filtering before regrouping.");
         }
@@ -339,19 +463,27 @@ public class EZImhotepSession implements Closeable {
         }
     }
 
-    public static Map<Integer, GroupKey> newGroupKeys() {
-        final Map<Integer, GroupKey> ret = Maps.newHashMap();
-        ret.put(1, GroupKey.empty());
-        return ret;
+    public static GroupKeyTable newGroupKeys() {
+        return GroupKeyTable.root();
     }
 
-    public @Nullable Map<Integer, GroupKey> explodeEachGroup(IntField field, long[] terms, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    private static GroupKeyTable emptyGroupKeys(@Nullable GroupKeyTable groupKeys) {
+        return (groupKeys != null ? groupKeys : GroupKeyTable.root()).newLevel(0).build();
+    }
+
+    public @Nullable GroupKeyTable explodeEachGroup(IntField field, long[] terms, @Nullable GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         if(terms.length == 0) {
-            return Maps.newHashMap();
+            return emptyGroupKeys(groupKeys);
         }
         checkGroupLimitWithFactor(terms.length);
         final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups-1];
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
+        final GroupKeyTable.Builder ret = groupKeys == null ? null : groupKeys.newLevel((numGroups-1) * terms.length);
+        if (ret != null) {
+            // every group is exploded by the same terms so term i is stored once at index i
+            for (long term : terms) {
+                ret.addTerm(term);
+            }
+        }
         int positiveGroup = 1;
         for (int group = 1; group < numGroups; group++) {
             final RegroupCondition[] conditions = new RegroupCondition[terms.length];
@@ -360,24 +492,30 @@ public class EZImhotepSession implements Closeable {
                 final long term = terms[i];
                 final int newGroup = positiveGroup++;
                 positiveGroups[i] = newGroup;
-                if (groupKeys != null) {
-                    ret.put(newGroup, groupKeys.get(group).add(term));
+                if (ret != null) {
+                    ret.add(newGroup, group, i);
                 }
                 conditions[i] = new RegroupCondition(field.getFieldName(), true, term, null, false);
             }
             rules[group - 1] = new GroupMultiRemapRule(group, 0, positiveGroups, conditions);
         }
         numGroups = session.regroup(rules, true);
-        return ret;
+        return ret == null ? null : ret.build();
     }
 
-    public @Nullable Map<Integer, GroupKey> explodeEachGroup(StringField field, String[] terms, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public @Nullable GroupKeyTable explodeEachGroup(StringField field, String[] terms, @Nullable GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         if(terms.length == 0) {
-            return Maps.newHashMap();
+            return emptyGroupKeys(groupKeys);
         }
         checkGroupLimitWithFactor(terms.length);
         final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[numGroups-1];
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
+        final GroupKeyTable.Builder ret = groupKeys == null ? null : groupKeys.newLevel((numGroups-1) * terms.length);
+        if (ret != null) {
+            // every group is exploded by the same terms so term i is stored once at index i
+            for (String term : terms) {
+                ret.addTerm(term);
+            }
+        }
         int positiveGroup = 1;
         for (int group = 1; group < numGroups; group++) {
             final RegroupCondition[] conditions = new RegroupCondition[terms.length];
@@ -386,15 +524,15 @@ public class EZImhotepSession implements Closeable {
                 final String term = terms[i];
                 final int newGroup = positiveGroup++;
                 positiveGroups[i] = newGroup;
-                if (groupKeys != null) {
-                    ret.put(newGroup, groupKeys.get(group).add(term));
+                if (ret != null) {
+                    ret.add(newGroup, group, i);
                 }
                 conditions[i] = new RegroupCondition(field.getFieldName(), false, 0, term, false);
             }
             rules[group - 1] = new GroupMultiRemapRule(group, 0, positiveGroups, conditions);
         }
         numGroups = session.regroup(rules, true);
-        return ret;
+        return ret == null ? null : ret.build();
     }
 
     private void checkGroupLimitWithFactor(int factor) {
@@ -410,8 +548,8 @@ public class EZImhotepSession implements Closeable {
         }
     }
 
-    public @Nullable Map<Integer, GroupKey> splitAll(Field field, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
+    public @Nullable GroupKeyTable splitAll(Field field, @Nullable GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
+        final GroupKeyTable.Builder ret;
         if (field.isIntField()) {
             final IntField intField = (IntField) field;
             final TIntObjectHashMap<TLongArrayList> termListsMap = getIntGroupTerms(intField);
@@ -423,6 +561,7 @@ public class EZImhotepSession implements Closeable {
                 newGroupCount += list.size();
             }
             checkGroupLimit(newGroupCount);
+            ret = groupKeys == null ? null : groupKeys.newLevel(newGroupCount);
 
             final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
             int ruleIndex = 0;
@@ -431,7 +570,7 @@ public class EZImhotepSession implements Closeable {
                 final TLongArrayList termList = termListsMap.get(group);
                 if (termList != null) {
                     final long[] nativeArray = termList.toNativeArray();
-                    positiveGroup = getIntRemapRules(field, groupKeys, ret, rules, ruleIndex, positiveGroup, group, nativeArray);
+                    positiveGroup = getIntRemapRules(field, ret, rules, ruleIndex, positiveGroup, group, nativeArray);
                     ruleIndex++;
                 }
             }
@@ -447,6 +586,7 @@ public class EZImhotepSession implements Closeable {
                 newGroupCount += list.size();
             }
             checkGroupLimit(newGroupCount);
+            ret = groupKeys == null ? null : groupKeys.newLevel(newGroupCount);
 
             final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
             int ruleIndex = 0;
@@ -454,16 +594,16 @@ public class EZImhotepSession implements Closeable {
             for (int group = 1; group < numGroups; group++) {
                 final List<String> termList = termListsMap.get(group);
                 if (termList != null) {
-                    positiveGroup = getStringRemapRules(field, groupKeys, ret, rules, ruleIndex, positiveGroup, group, termList);
+                    positiveGroup = getStringRemapRules(field, ret, rules, ruleIndex, positiveGroup, group, termList);
                     ruleIndex++;
                 }
             }
             numGroups = session.regroup(rules, true);
         }
-        return ret;
+        return ret == null ? null : ret.build();
     }
 
-    public @Nullable Map<Integer, GroupKey> splitAllExplode(Field field, @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public @Nullable GroupKeyTable splitAllExplode(Field field, @Nullable GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         if (field.isIntField()) {
             final IntField intField = (IntField) field;
             final TLongArrayList terms = intFieldTerms(intField, session, null);
@@ -475,84 +615,57 @@ public class EZImhotepSession implements Closeable {
         }
     }
 
-    private void checkGroupLimitForTerms(TIntObjectHashMap<Collection> groupToTerms) {
-        int newNumGroups = 0;
-        TIntObjectIterator<Collection> iterator = groupToTerms.iterator();
-        while(iterator.hasNext()) {
-            iterator.advance();
-            Collection termsForGroup = iterator.value();
-            newNumGroups += termsForGroup.size();
-        }
-        checkGroupLimit(newNumGroups);
-    }
-
-    @SuppressWarnings("unchecked")
-    public @Nullable Map<Integer, GroupKey> splitAllTopK(Field field, @Nullable Map<Integer, GroupKey> groupKeys, int topK, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = groupKeys == null ? null : Maps.<Integer, GroupKey>newHashMap();
-        if (field.isIntField()) {
-            final IntField intField = (IntField) field;
-            final TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>> termListsMap = getIntGroupTermsTopK(intField, topK, stat, bottom);
-            checkGroupLimitForTerms((TIntObjectHashMap<Collection>)(Object) termListsMap);
-            final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
-            int ruleIndex = 0;
-            int positiveGroup = 1;
-            for (int group = 1; group < numGroups; group++) {
-                final PriorityQueue<Pair<Double, Long>> termList = termListsMap.get(group);
-                if (termList != null) {
-                    final long[] nativeArray = new long[termList.size()];
-                    int index = nativeArray.length-1;
-                    while (!termList.isEmpty()) {
-                        nativeArray[index--] = termList.remove().getSecond();
-                    }
-                    positiveGroup = getIntRemapRules(field, groupKeys, ret, rules, ruleIndex, positiveGroup, group, nativeArray);
-                    ruleIndex++;
-                }
+    public @Nullable GroupKeyTable splitAllTopK(Field field, @Nullable GroupKeyTable groupKeys, int topK, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
+        final TopKHeaps termHeaps = getGroupTermsTopK(field, topK, stat, bottom);
+        checkGroupLimit(termHeaps.size());
+        final GroupKeyTable.Builder ret = groupKeys == null ? null : groupKeys.newLevel(termHeaps.size());
+        final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termHeaps.getGroupCount()];
+        int ruleIndex = 0;
+        int positiveGroup = 1;
+        for (int group = 1; group < numGroups; group++) {
+            final TopKHeaps.Heap terms = termHeaps.remove(group);
+            if (terms == null) {
+                continue;
             }
-            numGroups = session.regroup(rules, true);
-        } else {
-            final StringField stringField = (StringField) field;
-            final TIntObjectHashMap<PriorityQueue<Pair<Double, String>>> termListsMap = getStringGroupTermsTopK(stringField, topK, stat, bottom);
-            checkGroupLimitForTerms((TIntObjectHashMap<Collection>)(Object)termListsMap);
-            final GroupMultiRemapRule[] rules = new GroupMultiRemapRule[termListsMap.size()];
-            int ruleIndex = 0;
-            int positiveGroup = 1;
-            for (int group = 1; group < numGroups; group++) {
-                final PriorityQueue<Pair<Double, String>> terms = termListsMap.get(group);
-                if (terms != null) {
-                    final String[] termsArray = new String[terms.size()];
-                    int index = termsArray.length-1;
-                    while (!terms.isEmpty()) {
-                        termsArray[index--] = terms.remove().getSecond();
-                    }
-                    positiveGroup = getStringRemapRules(field, groupKeys, ret, rules, ruleIndex, positiveGroup, group, Arrays.asList(termsArray));
-                    ruleIndex++;
+            final int[] slots = terms.drain();
+            if (field.isIntField()) {
+                final long[] nativeArray = new long[slots.length];
+                for (int i = 0; i < slots.length; i++) {
+                    nativeArray[i] = terms.getIntTerm(slots[i]);
                 }
+                positiveGroup = getIntRemapRules(field, ret, rules, ruleIndex, positiveGroup, group, nativeArray);
+            } else {
+                final String[] termsArray = new String[slots.length];
+                for (int i = 0; i < slots.length; i++) {
+                    termsArray[i] = terms.getStringTerm(slots[i]);
+                }
+                positiveGroup = getStringRemapRules(field, ret, rules, ruleIndex, positiveGroup, group, Arrays.asList(termsArray));
             }
-            numGroups = session.regroup(rules, true);
+            ruleIndex++;
         }
-        return ret;
+        numGroups = session.regroup(rules, true);
+        return ret == null ? null : ret.build();
     }
 
-    private int getStringRemapRules(final Field field, final @Nullable Map<Integer, GroupKey> groupKeys, Map<Integer, GroupKey> newGroupKeys, final GroupMultiRemapRule[] rules, final int ruleIndex, int positiveGroup, final int group, final List<String> termList) {
+    private int getStringRemapRules(final Field field, final @Nullable GroupKeyTable.Builder newGroupKeys, final GroupMultiRemapRule[] rules, final int ruleIndex, int positiveGroup, final int group, final List<String> termList) {
         final RegroupCondition[] conditions = new RegroupCondition[termList.size()];
         final int[] positiveGroups = new int[termList.size()];
-        positiveGroup = getStringRegroupConditions(field, groupKeys, newGroupKeys, positiveGroup, group, termList, conditions, positiveGroups);
+        positiveGroup = getStringRegroupConditions(field, newGroupKeys, positiveGroup, group, termList, conditions, positiveGroups);
         rules[ruleIndex] = new GroupMultiRemapRule(group, 0, positiveGroups, conditions);
         return positiveGroup;
     }
 
-    private int getIntRemapRules(final Field field, final @Nullable Map<Integer, GroupKey> groupKeys, final Map<Integer, GroupKey> newGroupKeys, final GroupMultiRemapRule[] rules, final int ruleIndex, int positiveGroup, final int group, final long[] nativeArray) {
+    private int getIntRemapRules(final Field field, final @Nullable GroupKeyTable.Builder newGroupKeys, final GroupMultiRemapRule[] rules, final int ruleIndex, int positiveGroup, final int group, final long[] nativeArray) {
         final RegroupCondition[] conditions = new RegroupCondition[nativeArray.length];
         final int[] positiveGroups = new int[nativeArray.length];
-        positiveGroup = getIntRegroupConditions(field, groupKeys, newGroupKeys, positiveGroup, group, conditions, positiveGroups, nativeArray);
+        positiveGroup = getIntRegroupConditions(field, newGroupKeys, positiveGroup, group, conditions, positiveGroups, nativeArray);
         rules[ruleIndex] = new GroupMultiRemapRule(group, 0, positiveGroups, conditions);
         return positiveGroup;
     }
 
     private int getStringRegroupConditions(
             final Field field,
-            final @Nullable Map<Integer, GroupKey> groupKeys,
-            final Map<Integer, GroupKey> newGroupKeys,
+            final @Nullable GroupKeyTable.Builder newGroupKeys,
             int positiveGroup,
             final int group,
             final List<String> termList,
@@ -563,8 +676,8 @@ public class EZImhotepSession implements Closeable {
             final String term = termList.get(i);
             conditions[i] = new RegroupCondition(field.getFieldName(), false, 0, term, false);
             final int newGroup = positiveGroup++;
-            if (groupKeys != null) {
-                newGroupKeys.put(newGroup, groupKeys.get(group).add(term));
+            if (newGroupKeys != null) {
+                newGroupKeys.add(newGroup, group, newGroupKeys.addTerm(term));
             }
             positiveGroups[i] = newGroup;
         }
@@ -573,8 +686,7 @@ public class EZImhotepSession implements Closeable {
 
     private int getIntRegroupConditions(
             final Field field,
-            final @Nullable Map<Integer, GroupKey> groupKeys,
-            final Map<Integer, GroupKey> newGroupKeys,
+            final @Nullable GroupKeyTable.Builder newGroupKeys,
             int positiveGroup,
             final int group,
             final RegroupCondition[] conditions,
@@ -585,67 +697,67 @@ public class EZImhotepSession implements Closeable {
             final long term = nativeArray[i];
             conditions[i] = new RegroupCondition(field.getFieldName(), true, term, null, false);
             final int newGroup = positiveGroup++;
-            if (groupKeys != null) {
-                newGroupKeys.put(newGroup, groupKeys.get(group).add(term));
+            if (newGroupKeys != null) {
+                newGroupKeys.add(newGroup, group, newGroupKeys.addTerm(term));
             }
             positiveGroups[i] = newGroup;
         }
         return positiveGroup;
     }
 
-    public Map<Integer, GroupKey> metricRegroup(SingleStatReference statRef, long min, long max, long intervalSize,
-                                                boolean noGutters, Stringifier<Long> stringifier,
-                                                @Nullable Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = Maps.newHashMap();
+    public GroupKeyTable metricRegroup(SingleStatReference statRef, long min, long max, long intervalSize,
+                                       boolean noGutters, Stringifier<Long> stringifier,
+                                       @Nullable GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         final int gutterBuckets = noGutters ? 0 : 2;
         final int numBuckets = (int)((max-min-1)/intervalSize + 1 + gutterBuckets);
+        final GroupKeyTable.Builder ret = (groupKeys != null ? groupKeys : GroupKeyTable.root()).newLevel((numGroups-1) * numBuckets);
+        // bucket -> index of its term, the same for every parent group
+        final int[] bucketTerms = new int[numBuckets + 1];
+        int bucket = 1;
+        for (long i = min; i < max; i += intervalSize, bucket++) {
+            bucketTerms[bucket] = ret.addTerm(String.format("[%s, %s)", stringifier.toString(i), stringifier.toString(i + intervalSize)));
+        }
+        if(!noGutters) {
+            bucketTerms[numBuckets - 1] = ret.addTerm(String.format("< %s", stringifier.toString(min)));
+            bucketTerms[numBuckets] = ret.addTerm(String.format(">= %s", stringifier.toString(max)));
+        }
         for (int group = 1; group < numGroups; group++) {
-            int bucket = 1;
-            int newGroupOffset = (group - 1) * numBuckets;
-            final GroupKey<String> groupKey = groupKeys != null ? groupKeys.get(group) : GroupKey.empty();
-            for (long i = min; i < max; i += intervalSize, bucket++) {
-                final String bucketString = String.format("[%s, %s)", stringifier.toString(i), stringifier.toString(i + intervalSize));
-                ret.put(newGroupOffset + bucket, groupKey.add(bucketString));
-            }
-
-            if(!noGutters) {
-                ret.put(newGroupOffset + numBuckets - 1, groupKey.add(String.format("< %s", stringifier.toString(min))));
-                ret.put(newGroupOffset + numBuckets, groupKey.add(String.format(">= %s", stringifier.toString(max))));
+            final int newGroupOffset = (group - 1) * numBuckets;
+            final int parentGroup = groupKeys != null ? group : 1;
+            for (bucket = 1; bucket <= numBuckets; bucket++) {
+                ret.add(newGroupOffset + bucket, parentGroup, bucketTerms[bucket]);
             }
         }
-        final int newExpectedNumberOfGroups = (numGroups-1) * numBuckets;
         numGroups = session.metricRegroup(statRef.depth, min, max, intervalSize, noGutters);
         // Delete the keys for trailing groups that don't exist on the server
-        for (int group = numGroups; group <= newExpectedNumberOfGroups; group++) {
-            ret.remove(group);
-        }
-        return ret;
+        ret.truncate(numGroups - 1);
+        return ret.build();
     }
 
-    public Map<Integer, GroupKey> metricRegroup2D(SingleStatReference xStat, long xMin, long xMax, long xIntervalSize,
+    public GroupKeyTable metricRegroup2D(SingleStatReference xStat, long xMin, long xMax, long xIntervalSize,
                                    SingleStatReference yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException {
-        final Map<Integer, GroupKey> ret = Maps.newTreeMap();
         numGroups = session.metricRegroup2D(xStat.depth, xMin, xMax, xIntervalSize, yStat.depth, yMin, yMax, yIntervalSize);
         final int xBuckets = (int)(((xMax - 1) - xMin) / xIntervalSize + 3);
         final int yBuckets = (int)(((yMax - 1) - yMin) / yIntervalSize + 3);
         final int numBuckets = xBuckets * yBuckets;
-        ret.put(1, GroupKey.singleton(String.format("< %d, < %d", xMin, yMin)));
-        ret.put(numBuckets, GroupKey.singleton(String.format(">= %d, >= %d", xMax, yMax)));
-        ret.put(xBuckets, GroupKey.singleton(String.format(">= %d, < %d", xMax, yMin)));
-        ret.put((yBuckets-1)*xBuckets+1, GroupKey.singleton(String.format("< %d, >= %d", xMin, yMax)));
+        final GroupKeyTable.Builder ret = GroupKeyTable.root().newLevel(numBuckets);
+        ret.add(1, 1, ret.addTerm(String.format("< %d, < %d", xMin, yMin)));
+        ret.add(numBuckets, 1, ret.addTerm(String.format(">= %d, >= %d", xMax, yMax)));
+        ret.add(xBuckets, 1, ret.addTerm(String.format(">= %d, < %d", xMax, yMin)));
+        ret.add((yBuckets-1)*xBuckets+1, 1, ret.addTerm(String.format("< %d, >= %d", xMin, yMax)));
         {
             int index = 2;
             for (long x = xMin; x < xMax; x+=xIntervalSize) {
-                ret.put(index, GroupKey.singleton(String.format("[%d, %d), < %d", x, x+xIntervalSize, yMin)));
-                ret.put(index+(yBuckets-1)*xBuckets, GroupKey.singleton(String.format("[%d, %d), >= %d", x, x+xIntervalSize, yMax)));
+                ret.add(index, 1, ret.addTerm(String.format("[%d, %d), < %d", x, x+xIntervalSize, yMin)));
+                ret.add(index+(yBuckets-1)*xBuckets, 1, ret.addTerm(String.format("[%d, %d), >= %d", x, x+xIntervalSize, yMax)));
                 index++;
             }
         }
         {
             int index = 1;
             for (long y = yMin; y < yMax; y+=yIntervalSize) {
-                ret.put(index*xBuckets+1, GroupKey.singleton(String.format("< %d, [%d, %d)", xMin, y, y+yIntervalSize)));
-                ret.put((index+1)*xBuckets, GroupKey.singleton(String.format(">= %d, [%d, %d)", xMax, y, y+yIntervalSize)));
+                ret.add(index*xBuckets+1, 1, ret.addTerm(String.format("< %d, [%d, %d)", xMin, y, y+yIntervalSize)));
+                ret.add((index+1)*xBuckets, 1, ret.addTerm(String.format(">= %d, [%d, %d)", xMax, y, y+yIntervalSize)));
                 index++;
             }
         }
@@ -656,14 +768,12 @@ public class EZImhotepSession implements Closeable {
                 for (int yBucket = 1; yBucket < yBuckets-1; yBucket++) {
                     final long yStart = (yBucket-1)*yIntervalSize;
                     final long yEnd = yStart+yIntervalSize;
-                    ret.put(yBucket*xBuckets+xBucket, GroupKey.singleton(String.format("[%d, %d), [%d, %d)", xStart, xEnd, yStart, yEnd)));
+                    ret.add(yBucket*xBuckets+xBucket, 1, ret.addTerm(String.format("[%d, %d), [%d, %d)", xStart, xEnd, yStart, yEnd)));
                 }
             }
         }
-        for (int group = numGroups; group <= numBuckets; group++) {
-            ret.remove(group);
-        }
-        return ret;
+        ret.truncate(numGroups - 1);
+        return ret.build();
     }
 
     public Map<String, Long> topTerms(StringField field, int k) {
@@ -722,129 +832,98 @@ public class EZImhotepSession implements Closeable {
 
     private static final class GetGroupTermsCallbackTopK extends FTGSCallback {
 
-        final TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>> intTermListsMap = new TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>>();
-        final TIntObjectHashMap<PriorityQueue<Pair<Double, String>>> stringTermListsMap = new TIntObjectHashMap<PriorityQueue<Pair<Double, String>>>();
-        final Comparator<Pair> halfPairComparator;
+        final TopKHeaps termHeaps;
         private final StatReference count;
-        private final int k;
-        private final boolean isBottom;
 
         public GetGroupTermsCallbackTopK(final int numStats, StatReference count, int k, boolean isBottom) {
             super(numStats);
             this.count = count;
-            this.k = k;
-            this.isBottom = isBottom;
-            final Comparator<Pair> baseComparator = new Pair.HalfPairComparator();
-            halfPairComparator = isBottom ? Collections.reverseOrder(baseComparator) : baseComparator;
+            this.termHeaps = new TopKHeaps(k, 0, isBottom);
         }
 
         public void intTermGroup(final String field, final long term, int group) {
-            PriorityQueue<Pair<Double, Long>> terms = intTermListsMap.get(group);
-            if (terms == null) {
-                terms = new PriorityQueue<Pair<Double, Long>>(10, halfPairComparator);
-                intTermListsMap.put(group, terms);
-            }
-            final Double count = getStat(this.count);
-            if (terms.size() < k) {
-                terms.add(Pair.of(count, term));
-            } else {
-                final Double headCount = terms.peek().getFirst();
-                if ((!isBottom && count > headCount) ||
-                        (isBottom && count < headCount)) {
-                    terms.remove();
-                    terms.add(Pair.of(count, term));
-                }
+            final TopKHeaps.Heap terms = termHeaps.getOrCreate(group);
+            final int slot = terms.offer(getStat(this.count));
+            if (slot >= 0) {
+                terms.setIntTerm(slot, term);
             }
         }
 
         public void stringTermGroup(final String field, final String term, int group) {
-            PriorityQueue<Pair<Double, String>> terms = stringTermListsMap.get(group);
-            if (terms == null) {
-                terms = new PriorityQueue<Pair<Double, String>>(10, halfPairComparator);
-                stringTermListsMap.put(group, terms);
-            }
-            final Double count = getStat(this.count);
-            if (terms.size() < k) {
-                terms.add(Pair.of(count, term));
-            } else {
-                final Double headCount = terms.peek().getFirst();
-                if ((!isBottom && count > headCount) ||
-                        (isBottom && count < headCount)) {
-                    terms.remove();
-                    terms.add(Pair.of(count, term));
-                }
+            final TopKHeaps.Heap terms = termHeaps.getOrCreate(group);
+            final int slot = terms.offer(getStat(this.count));
+            if (slot >= 0) {
+                terms.setStringTerm(slot, term);
             }
         }
     }
 
-    private TIntObjectHashMap<PriorityQueue<Pair<Double, String>>> getStringGroupTermsTopK(StringField field, int k, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
-        final StatReference statRef = pushStat(stat);
-        final GetGroupTermsCallbackTopK callback = new GetGroupTermsCallbackTopK(stackDepth, statRef, k, bottom);
-        ftgsIterate(Arrays.asList((Field)field), callback);
-        popStat();
-        return callback.stringTermListsMap;
-    }
-
-    private TIntObjectHashMap<PriorityQueue<Pair<Double, Long>>> getIntGroupTermsTopK(IntField field, int k, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
+    private TopKHeaps getGroupTermsTopK(Field field, int k, Stat stat, boolean bottom) throws ImhotepOutOfMemoryException {
         final StatReference statRef = pushStat(stat);
         final GetGroupTermsCallbackTopK callback = new GetGroupTermsCallbackTopK(stackDepth, statRef, k, bottom);
-        ftgsIterate(Arrays.asList((Field)field), callback);
+        ftgsIterate(Arrays.asList(field), callback);
         popStat();
-        return callback.intTermListsMap;
+        return callback.termHeaps;
     }
 
     public static void filter(StringField field, String[] terms, ImhotepSession session) throws ImhotepOutOfMemoryException {
         new EZImhotepSession(session).filter(field, terms);
     }
 
-    private static final class FieldTermsCallback extends FTGSCallback {
+    // reads no stats and only decodes the string terms that pass the predicate
+    private static final class FieldTermsCallback extends FTGSBatchCallback {
 
         final TLongArrayList intTerms = new TLongArrayList();
         final List<String> stringTerms = Lists.newArrayList();
         private final Predicate<Long> predicateInt;
-        private final Predicate<String> predicateString;
+        private final Predicate<Utf8Term> predicateString;
 
         private long lastIntTerm = Long.MIN_VALUE;
-        private String lastStringTerm = null;
+        private Utf8Term lastStringTerm = null;
         private boolean firstIteration = true;
 
-        public FieldTermsCallback(final int numStats, @Nullable Predicate<Long> predicateInt, @Nullable Predicate<String> predicateString) {
-            super(numStats);
+        public FieldTermsCallback(@Nullable Predicate<Long> predicateInt, @Nullable Predicate<Utf8Term> predicateString) {
+            super(0);
 
             this.predicateInt = predicateInt;
             this.predicateString = predicateString;
         }
 
-        public void intTermGroup(final String field, final long term, int group) {
-            // expecting incoming terms to be in sorted order
-            if(firstIteration || term != lastIntTerm) {
-                firstIteration = false;
-                lastIntTerm = term;
-                if(predicateInt == null || predicateInt.apply(term)) {
-                    intTerms.add(term);
+        protected void intTermGroups(final String field, final long[] terms, final int[] groups, final long[][] stats, final int count) {
+            for (int i = 0; i < count; i++) {
+                final long term = terms[i];
+                // expecting incoming terms to be in sorted order
+                if(firstIteration || term != lastIntTerm) {
+                    firstIteration = false;
+                    lastIntTerm = term;
+                    if(predicateInt == null || predicateInt.apply(term)) {
+                        intTerms.add(term);
+                    }
                 }
             }
         }
 
-        public void stringTermGroup(final String field, final String term, int group) {
-            // expecting incoming terms to be in sorted order
-            if(firstIteration || !term.equals(lastStringTerm)) {
-                firstIteration = false;
-                lastStringTerm = term;
-                if(predicateString == null || predicateString.apply(term)) {
-                    stringTerms.add(term);
+        protected void stringTermGroups(final String field, final Utf8Term[] terms, final int[] groups, final long[][] stats, final int count) {
+            for (int i = 0; i < count; i++) {
+                final Utf8Term term = terms[i];
+                // the rows of a term share the instance
+                if(term != lastStringTerm) {
+                    lastStringTerm = term;
+                    if(predicateString == null || predicateString.apply(term)) {
+                        stringTerms.add(term.toString());
+                    }
                 }
             }
         }
     }
     public TLongArrayList intFieldTerms(IntField field, ImhotepSession session, @Nullable Predicate<Long> filterPredicate) throws ImhotepOutOfMemoryException {
-        final FieldTermsCallback callback = new FieldTermsCallback(stackDepth, filterPredicate, null);
+        final FieldTermsCallback callback = new FieldTermsCallback(filterPredicate, null);
         new EZImhotepSession(session).ftgsIterate(Arrays.asList((Field)field), callback);
         return callback.intTerms;
     }
 
-    public List<String> stringFieldTerms(StringField field, ImhotepSession session, @Nullable Predicate<String> filterPredicate) throws ImhotepOutOfMemoryException {
-        final FieldTermsCallback callback = new FieldTermsCallback(stackDepth, null, filterPredicate);
+    public List<String> stringFieldTerms(StringField field, ImhotepSession session, @Nullable Predicate<Utf8Term> filterPredicate) throws ImhotepOutOfMemoryException {
+        final FieldTermsCallback callback = new FieldTermsCallback(null, filterPredicate);
         new EZImhotepSession(session).ftgsIterate(Arrays.asList((Field)field), callback);
         return callback.stringTerms;
     }
@@ -866,6 +945,74 @@ public class EZImhotepSession implements Closeable {
         protected abstract void stringTermGroup(String field, String term, int group);
     }
 
+    /**
+     * Receives the FTGS tuples in blocks held in columnar buffers instead of one call per (term, group) tuple.
+     * Row i of a block is the tuple (terms[i], groups[i]) with stats[s][i] the value of stat s on the stack.
+     * The buffers are reused for the next block so callbacks must copy out what they keep.
+     * String terms are passed as their UTF-8 bytes. Consecutive rows of a field, including the last row of the
+     * previous block, have the same term exactly when they share the Utf8Term instance.
+     * Callbacks that don't read stats should pass 0 stats so FTGS doesn't copy them at all.
+     */
+    public static abstract class FTGSBatchCallback {
+        public static final int DEFAULT_BATCH_SIZE = 1024;
+
+        final long[] intTerms;
+        final Utf8Term[] stringTerms;
+        // one more than a block can hold as the instance of the previous block's last term is skipped
+        final Utf8Term[] termPool;
+        final int[] groups;
+        // stat -> value per row
+        final long[][] stats;
+        // stats of a single tuple as FTGS returns them
+        private final long[] tupleStats;
+
+        public FTGSBatchCallback(int numStats) {
+            this(numStats, DEFAULT_BATCH_SIZE);
+        }
+
+        public FTGSBatchCallback(int numStats, int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batch size has to be positive: " + batchSize);
+            }
+            intTerms = new long[batchSize];
+            stringTerms = new Utf8Term[batchSize];
+            termPool = new Utf8Term[batchSize + 1];
+            for (int i = 0; i < termPool.length; i++) {
+                termPool[i] = new Utf8Term();
+            }
+            groups = new int[batchSize];
+            stats = new long[numStats][batchSize];
+            tupleStats = new long[numStats];
+        }
+
+        public final int getBatchSize() {
+            return groups.length;
+        }
+
+        final void readStats(FTGSIterator ftgsIterator, int row) {
+            final long[] tupleStats = this.tupleStats;
+            if (tupleStats.length == 0) {
+                return;
+            }
+            ftgsIterator.groupStats(tupleStats);
+            final long[][] stats = this.stats;
+            for (int i = 0; i < tupleStats.length; i++) {
+                stats[i][row] = tupleStats[i];
+            }
+        }
+
+        /**
+         * Writes the value of the referenced stat for the first count rows of the block into values.
+         */
+        protected final void getStats(StatReference ref, long[][] stats, int count, double[] values) {
+            requireValid(ref);
+            ref.getValues(stats, count, values);
+        }
+
+        protected abstract void intTermGroups(String field, long[] terms, int[] groups, long[][] stats, int count);
+        protected abstract void stringTermGroups(String field, Utf8Term[] terms, int[] groups, long[][] stats, int count);
+    }
+
     public static abstract class FTGSIteratingCallback <E> {
 
         final long[] stats;
@@ -895,7 +1042,8 @@ public class EZImhotepSession implements Closeable {
     }
 
     @Override
-    public void close() {
+    // synchronized as the session is also closed from the thread cancelling the query
+    public synchronized void close() {
         if (!closed) {
             session.close();
             closed = true;
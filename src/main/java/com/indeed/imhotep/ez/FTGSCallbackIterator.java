@@ -17,6 +17,8 @@ import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.PeekingIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Allows iterating over return values of the provided callback which is being run on each field/term/group tuple.
  * @author vladimir
@@ -34,15 +36,34 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
 
     private final EZImhotepSession.FTGSIteratingCallback<E> callback;
     private final FTGSIterator ftgsIterator;
+    private final AtomicLong ftgsTermCounter;
+    private final CancellationToken cancellationToken;
+    // terms iterated but not added to the counter yet
+    private int pendingTerms = 0;
 
     public FTGSCallbackIterator(EZImhotepSession.FTGSIteratingCallback<E> callback, FTGSIterator ftgsIterator) {
+        this(callback, ftgsIterator, new AtomicLong(), new CancellationToken());
+    }
+
+    public FTGSCallbackIterator(EZImhotepSession.FTGSIteratingCallback<E> callback, FTGSIterator ftgsIterator,
+                                AtomicLong ftgsTermCounter, CancellationToken cancellationToken) {
         this.callback = callback;
         this.ftgsIterator = ftgsIterator;
+        this.ftgsTermCounter = ftgsTermCounter;
+        this.cancellationToken = cancellationToken;
     }
 
-
     @Override
     protected E computeNext() {
+        try {
+            return computeNextTuple();
+        } catch (RuntimeException e) {
+            // reading from a session closed by cancel fails in the iterator
+            throw cancellationToken.translate(e);
+        }
+    }
+
+    private E computeNextTuple() {
         while (!fieldOver || ftgsIterator.nextField()) {
             if(fieldOver) {
                 field = ftgsIterator.fieldName();
@@ -51,6 +72,11 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
             }
             while (!termOver || ftgsIterator.nextTerm()) {
                 if(termOver) {
+                    if(++pendingTerms > EZImhotepSession.FTGS_TERM_COUNT_INTERVAL) {
+                        ftgsTermCounter.addAndGet(pendingTerms);
+                        pendingTerms = 0;
+                        cancellationToken.throwIfCancelled();
+                    }
                     if(isIntField) {
                         termInt = ftgsIterator.termIntVal();
                     } else {
@@ -71,6 +97,8 @@ public class FTGSCallbackIterator<E> extends AbstractIterator<E> implements Peek
             }
             fieldOver = true;
         }
+        ftgsTermCounter.addAndGet(pendingTerms);
+        pendingTerms = 0;
         return endOfData();
     }
 }
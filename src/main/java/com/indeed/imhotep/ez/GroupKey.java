@@ -17,19 +17,20 @@ import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import org.apache.log4j.Logger;
 
-import javax.annotation.Nullable;
 import java.util.Iterator;
 
 /**
+ * Immutable key backed by an array of terms. tail() shares the array and add() copies it, which is cheap as keys
+ * are only as long as the number of groupings. Large sets of keys should be kept in a {@link GroupKeyTable}.
  * @author jplaisance
  */
 public final class GroupKey<E> implements Iterable<E> {
     private static final Logger log = Logger.getLogger(GroupKey.class);
 
-    private final @Nullable List<E> front;
-    private final @Nullable List<E> back;
+    private final Object[] elements;
+    private final int offset;
 
-    private static final GroupKey EMPTY = new GroupKey(null, null);
+    private static final GroupKey EMPTY = new GroupKey(new Object[0], 0);
 
     public static <E> GroupKey<E> empty() {
         return EMPTY;
@@ -39,85 +40,62 @@ public final class GroupKey<E> implements Iterable<E> {
         return EMPTY.add(e);
     }
 
-    private GroupKey(final @Nullable List<E> front, final @Nullable List<E> back) {
-        this.front = front;
-        this.back = back;
+    /**
+     * Wraps the array without copying it. The caller must not modify it afterwards.
+     */
+    static <E> GroupKey<E> fromArray(final Object[] elements) {
+        return new GroupKey<E>(elements, 0);
+    }
+
+    private GroupKey(final Object[] elements, final int offset) {
+        this.elements = elements;
+        this.offset = offset;
     }
 
     public Iterator<E> iterator() {
         return new AbstractIterator<E>() {
-            GroupKey<E> current = GroupKey.this;
+            int index = offset;
 
+            @SuppressWarnings("unchecked")
             protected E computeNext() {
-                if (current.isEmpty()) return endOfData();
-                final E ret = current.head();
-                current = current.tail();
-                return ret;
+                if (index == elements.length) return endOfData();
+                return (E) elements[index++];
             }
         };
     }
 
-    private static final class List<E> {
-        private final E head;
-
-        private final List<E> tail;
-
-        private List(final E head, final @Nullable List<E> tail) {
-            this.head = head;
-            this.tail = tail;
-        }
-
-        public boolean equals(final Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            final List list = (List) o;
-
-            if (head != null ? !head.equals(list.head) : list.head != null) return false;
-            if (tail != null ? !tail.equals(list.tail) : list.tail != null) return false;
-
-            return true;
-        }
-
-        public int hashCode() {
-            int result = head != null ? head.hashCode() : 0;
-            result = 31 * result + (tail != null ? tail.hashCode() : 0);
-            return result;
-        }
-    }
-
+    @SuppressWarnings("unchecked")
     public E head() {
-        if (front == null) {
-            if (back == null) throw new IllegalStateException("empty key has no head");
-            List<E> ptr = back;
-            while (ptr.tail != null) {
-                ptr = ptr.tail;
-            }
-            return ptr.head;
-        }
-        return front.head;
+        if (isEmpty()) throw new IllegalStateException("empty key has no head");
+        return (E) elements[offset];
     }
 
     public GroupKey<E> tail() {
-        if (front == null) {
-            if (back == null) throw new IllegalStateException("empty key has no tail");
-            List<E> reversed = null;
-            List<E> current = back;
-            while (current.tail != null) {
-                reversed = new List<E>(current.head, reversed);
-                current = current.tail;
-            }
-            return new GroupKey<E>(reversed, null);
-        }
-        return new GroupKey<E>(front.tail, back);
+        if (isEmpty()) throw new IllegalStateException("empty key has no tail");
+        return new GroupKey<E>(elements, offset + 1);
     }
 
     public GroupKey<E> add(E e) {
-        return new GroupKey<E>(front, new List<E>(e, back));
+        final int size = size();
+        final Object[] newElements = new Object[size + 1];
+        System.arraycopy(elements, offset, newElements, 0, size);
+        newElements[size] = e;
+        return new GroupKey<E>(newElements, 0);
+    }
+
+    public int size() {
+        return elements.length - offset;
     }
 
     public boolean isEmpty() {
-        return front == null && back == null;
+        return offset == elements.length;
+    }
+
+    /**
+     * Writes the terms of the key into dest starting at index 0. dest must hold at least size() elements.
+     */
+    public void copyTo(final Object[] dest) {
+        System.arraycopy(elements, offset, dest, 0, size());
     }
 
     public String toString() {
@@ -130,15 +108,20 @@ public final class GroupKey<E> implements Iterable<E> {
 
         final GroupKey groupKey = (GroupKey) o;
 
-        if (back != null ? !back.equals(groupKey.back) : groupKey.back != null) return false;
-        if (front != null ? !front.equals(groupKey.front) : groupKey.front != null) return false;
-
+        if (size() != groupKey.size()) return false;
+        for (int i = 0; i < size(); i++) {
+            final Object a = elements[offset + i];
+            final Object b = groupKey.elements[groupKey.offset + i];
+            if (a != null ? !a.equals(b) : b != null) return false;
+        }
         return true;
     }
 
     public int hashCode() {
-        int result = front != null ? front.hashCode() : 0;
-        result = 31 * result + (back != null ? back.hashCode() : 0);
+        int result = 1;
+        for (int i = offset; i < elements.length; i++) {
+            result = 31 * result + (elements[i] != null ? elements[i].hashCode() : 0);
+        }
         return result;
     }
 }
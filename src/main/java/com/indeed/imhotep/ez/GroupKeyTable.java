@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Columnar dictionary of the group keys produced by a chain of regroups.
+ * Each regroup adds a level holding the terms used at that level once and, per group id, an index into those
+ * terms and a pointer to the parent group id in the previous level. The key of a group is recovered by walking
+ * the parent pointers so nothing is allocated per group beyond two ints.
+ * Group ids are dense and start at 1 as in the Imhotep session.
+ */
+public final class GroupKeyTable {
+    private static final int[] ROOT_INDEXES = new int[] {0, 0};
+    private static final GroupKeyTable ROOT = new GroupKeyTable(null, new Object[0], ROOT_INDEXES, ROOT_INDEXES, 1);
+
+    private final @Nullable GroupKeyTable parent;
+    private final Object[] terms;
+    // group id -> group id in the parent level, 0 if the group has no key
+    private final int[] parentGroups;
+    // group id -> index into terms
+    private final int[] termIndexes;
+    private final int size;
+    private final int depth;
+
+    private GroupKeyTable(@Nullable GroupKeyTable parent, Object[] terms, int[] parentGroups, int[] termIndexes, int size) {
+        this.parent = parent;
+        this.terms = terms;
+        this.parentGroups = parentGroups;
+        this.termIndexes = termIndexes;
+        this.size = size;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+    }
+
+    /**
+     * Returns the table of an ungrouped session: a single group 1 with the empty key.
+     */
+    public static GroupKeyTable root() {
+        return ROOT;
+    }
+
+    /**
+     * Returns the highest group id in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of terms in each key.
+     */
+    public int depth() {
+        return depth;
+    }
+
+    public boolean contains(int group) {
+        return group >= 1 && group <= size && (parent == null || parentGroups[group] != 0);
+    }
+
+    /**
+     * Writes the terms of the group's key into dest starting at index 0. dest must hold at least depth() elements.
+     */
+    public void copyKey(int group, Object[] dest) {
+        GroupKeyTable table = this;
+        while (table.parent != null) {
+            dest[table.depth - 1] = table.terms[table.termIndexes[group]];
+            group = table.parentGroups[group];
+            table = table.parent;
+        }
+    }
+
+    /**
+     * Materializes the key of the group or returns null if the group has no key.
+     */
+    public @Nullable GroupKey get(int group) {
+        if (!contains(group)) {
+            return null;
+        }
+        final Object[] key = new Object[depth];
+        copyKey(group, key);
+        return GroupKey.fromArray(key);
+    }
+
+    /**
+     * Starts a new level whose keys extend the keys of this table by one term.
+     */
+    public Builder newLevel(int expectedGroups) {
+        return new Builder(this, expectedGroups);
+    }
+
+    public static final class Builder {
+        private final GroupKeyTable parent;
+        private Object[] terms = new Object[16];
+        private int termCount = 0;
+        private int[] parentGroups;
+        private int[] termIndexes;
+        private int size = 0;
+
+        private Builder(GroupKeyTable parent, int expectedGroups) {
+            this.parent = parent;
+            parentGroups = new int[expectedGroups + 1];
+            termIndexes = new int[expectedGroups + 1];
+        }
+
+        /**
+         * Adds a term to the level's term array and returns its index.
+         * Terms shared by many groups should be added once and referenced by index.
+         */
+        public int addTerm(Object term) {
+            if (termCount == terms.length) {
+                terms = Arrays.copyOf(terms, termCount * 2);
+            }
+            terms[termCount] = term;
+            return termCount++;
+        }
+
+        /**
+         * Sets the key of the new group to the key of parentGroup extended with the term at termIndex.
+         */
+        public void add(int group, int parentGroup, int termIndex) {
+            if (!parent.contains(parentGroup)) {
+                throw new IllegalArgumentException("group " + parentGroup + " has no key");
+            }
+            if (group >= parentGroups.length) {
+                final int newLength = Math.max(group + 1, parentGroups.length * 2);
+                parentGroups = Arrays.copyOf(parentGroups, newLength);
+                termIndexes = Arrays.copyOf(termIndexes, newLength);
+            }
+            parentGroups[group] = parentGroup;
+            termIndexes[group] = termIndex;
+            size = Math.max(size, group);
+        }
+
+        /**
+         * Drops the keys of all groups above maxGroup.
+         */
+        public void truncate(int maxGroup) {
+            if (maxGroup < size) {
+                Arrays.fill(parentGroups, Math.max(maxGroup + 1, 0), size + 1, 0);
+                size = Math.max(maxGroup, 0);
+            }
+        }
+
+        public GroupKeyTable build() {
+            if (parentGroups.length > size + 1) {
+                parentGroups = Arrays.copyOf(parentGroups, size + 1);
+                termIndexes = Arrays.copyOf(termIndexes, size + 1);
+            }
+            return new GroupKeyTable(parent, Arrays.copyOf(terms, termCount), parentGroups, termIndexes, size);
+        }
+    }
+}
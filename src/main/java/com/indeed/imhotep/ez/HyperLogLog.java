@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct hashes added to it.
+ * Sketches with the same precision can be merged, so the distinct count of a union (e.g. of several time ranges)
+ * can be estimated from the sketches of its parts. A sketch takes 2^precision bytes and has a relative standard
+ * error of about 1.04 / sqrt(2^precision).
+ */
+public final class HyperLogLog {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+    public static final int DEFAULT_PRECISION = 10;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision has to be between " + MIN_PRECISION + " and " + MAX_PRECISION + ": " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    private HyperLogLog(int precision, byte[] registers) {
+        this.precision = precision;
+        this.registers = registers;
+    }
+
+    public static long hash(long term) {
+        return HASH_FUNCTION.hashLong(term).asLong();
+    }
+
+    public static long hash(String term) {
+        return HASH_FUNCTION.hashString(term, Charsets.UTF_8).asLong();
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of the term, equal to hash(term.toString()).
+     */
+    public static long hash(Utf8Term term) {
+        return HASH_FUNCTION.hashBytes(term.getBytes(), 0, term.getByteLength()).asLong();
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Adds a 64 bit hash as returned by one of the hash() methods.
+     */
+    public void add(long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        // the guard bit caps the rank for hashes whose remaining bits are all 0
+        final long remaining = (hash << precision) | (1L << (precision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Folds the other sketch into this one. Both sketches must have the same precision.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Can't merge sketches of precision " + precision + " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long cardinality() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate for small cardinalities
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(estimate);
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16: return 0.673;
+            case 32: return 0.697;
+            case 64: return 0.709;
+            default: return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Serializes the sketch as its precision followed by its registers.
+     */
+    public byte[] toBytes() {
+        final byte[] ret = new byte[registers.length + 1];
+        ret[0] = (byte) precision;
+        System.arraycopy(registers, 0, ret, 1, registers.length);
+        return ret;
+    }
+
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        final int precision = bytes.length > 0 ? bytes[0] : -1;
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION || bytes.length != (1 << precision) + 1) {
+            throw new IllegalArgumentException("Not a serialized HyperLogLog sketch");
+        }
+        return new HyperLogLog(precision, Arrays.copyOfRange(bytes, 1, bytes.length));
+    }
+}
@@ -53,6 +53,14 @@ public class SingleStatReference implements StatReference {
         return (double)stats[depth];
     }
 
+    @Override
+    public void getValues(long[][] stats, int count, double[] values) {
+        final long[] column = stats[depth];
+        for (int i = 0; i < count; i++) {
+            values[i] = column[i];
+        }
+    }
+
     @Override
     public boolean isValid() {
         return valid;
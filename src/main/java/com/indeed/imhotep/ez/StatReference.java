@@ -23,4 +23,10 @@ public interface StatReference {
     public void invalidate();
 
     public double getValue(long[] stats);
+
+    /**
+     * Computes the value for each of the first count rows of columnar stats where stats[depth][row] is the value
+     * of the stat at that stack depth.
+     */
+    public void getValues(long[][] stats, int count, double[] values);
 }
@@ -29,6 +29,31 @@ import java.util.List;
 public class Stats {
     public static abstract class Stat {
         protected abstract List<String> pushes(EZImhotepSession session);
+
+        /**
+         * Returns whether the group sums of the stat over disjoint sets of documents add up to its group sum over
+         * their union. This holds for all per document metrics.
+         */
+        public boolean isAdditive() {
+            return true;
+        }
+
+        /**
+         * Returns whether toString() identifies the values of the stat regardless of the session state so that
+         * its group stats can be cached across sessions over the same documents.
+         */
+        public boolean isCacheable() {
+            return true;
+        }
+    }
+
+    private static boolean allCacheable(Iterable<Stat> stats) {
+        for (Stat stat : stats) {
+            if (!stat.isCacheable()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public static class IntFieldStat extends Stat {
@@ -69,6 +94,10 @@ public class Stats {
                 return "invalid dynamic metric stat";
             }
         }
+        @Override
+        public boolean isCacheable() {
+            return false;
+        }
         public DynamicMetricStat of(DynamicMetric metric) {
             return new DynamicMetricStat(metric);
         }
@@ -128,6 +157,11 @@ public class Stats {
             sb.append(')');
             return sb.toString();
         }
+
+        @Override
+        public boolean isCacheable() {
+            return allCacheable(stats);
+        }
     }
 
     static class AggregateBinOpStat extends Stat {
@@ -146,10 +180,23 @@ public class Stats {
             return Lists.newArrayList(Iterables.concat(statLeft.pushes(session), statRight.pushes(session)));
         }
 
+        /**
+         * The ratio is taken of the group sums so it can't be summed across document sets.
+         */
+        @Override
+        public boolean isAdditive() {
+            return false;
+        }
+
         @Override
         public String toString() {
             return "(" + statLeft.toString() + ") " + op + " (" + statRight.toString() + ")";
         }
+
+        @Override
+        public boolean isCacheable() {
+            return statLeft.isCacheable() && statRight.isCacheable();
+        }
     }
 
     static class ConstantStat extends Stat {
@@ -188,6 +235,10 @@ public class Stats {
         public String toString() {
             return "exp("+stat.toString()+", " + scaleFactor + ")";
         }
+        @Override
+        public boolean isCacheable() {
+            return stat.isCacheable();
+        }
     }
 
     static class HasIntStat extends Stat {
@@ -255,6 +306,10 @@ public class Stats {
         public String toString() {
             return "ref:"+ref.toString();
         }
+        @Override
+        public boolean isCacheable() {
+            return false;
+        }
     }
     static class CountStat extends Stat {
         CountStat() {
@@ -280,6 +335,14 @@ public class Stats {
             ret.add("cached()");
             return ret;
         }
+        @Override
+        public String toString() {
+            return "cached(" + stat.toString() + ")";
+        }
+        @Override
+        public boolean isCacheable() {
+            return stat.isCacheable();
+        }
     }
 
     public static class AbsoluteValueStat extends Stat {
@@ -293,6 +356,14 @@ public class Stats {
             ret.add("abs()");
             return ret;
         }
+        @Override
+        public String toString() {
+            return "abs(" + stat.toString() + ")";
+        }
+        @Override
+        public boolean isCacheable() {
+            return stat.isCacheable();
+        }
     }
 
     public static class FloatScaleStat extends Stat {
@@ -309,6 +380,10 @@ public class Stats {
         protected List<String> pushes(EZImhotepSession session) {
             return Lists.newArrayList("floatscale "+fieldName+" * "+mult+" + "+add);
         }
+        @Override
+        public String toString() {
+            return "floatscale:" + fieldName + "*" + mult + "+" + add;
+        }
     }
 
     public static class MultiplyShiftRight extends Stat {
@@ -328,6 +403,14 @@ public class Stats {
             ret.add("mulshr " + shift);
             return ret;
         }
+        @Override
+        public String toString() {
+            return "mulshr(" + shift + ", " + stat1.toString() + ", " + stat2.toString() + ")";
+        }
+        @Override
+        public boolean isCacheable() {
+            return stat1.isCacheable() && stat2.isCacheable();
+        }
     }
 
     public static class ShiftLeftDivide extends Stat {
@@ -347,5 +430,13 @@ public class Stats {
             ret.add("shldiv " + shift);
             return ret;
         }
+        @Override
+        public String toString() {
+            return "shldiv(" + shift + ", " + stat1.toString() + ", " + stat2.toString() + ")";
+        }
+        @Override
+        public boolean isCacheable() {
+            return stat1.isCacheable() && stat2.isCacheable();
+        }
     }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Merging t-digest estimating quantiles of a weighted stream of values with bounded memory.
+ * Values are buffered and periodically folded into at most a few times compression centroids, with smaller
+ * centroids near the tails so extreme quantiles stay accurate. Digests can be merged and serialized, so the
+ * quantiles of a union can be estimated from the digests of its parts.
+ */
+public final class TDigest {
+    public static final double DEFAULT_COMPRESSION = 100;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final double compression;
+    private final int maxBuffer;
+
+    // centroids ordered by mean, a point centroid holds a single distinct value
+    private double[] means;
+    private double[] weights;
+    private boolean[] points;
+    private int centroidCount = 0;
+
+    private double[] bufferMeans;
+    private double[] bufferWeights;
+    private boolean[] bufferPoints;
+    private int bufferCount = 0;
+
+    private double totalWeight = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest(double compression) {
+        if (compression < 10) {
+            throw new IllegalArgumentException("compression has to be at least 10: " + compression);
+        }
+        this.compression = compression;
+        this.maxBuffer = (int) (2 * compression);
+        means = new double[INITIAL_CAPACITY];
+        weights = new double[INITIAL_CAPACITY];
+        points = new boolean[INITIAL_CAPACITY];
+        bufferMeans = new double[INITIAL_CAPACITY];
+        bufferWeights = new double[INITIAL_CAPACITY];
+        bufferPoints = new boolean[INITIAL_CAPACITY];
+    }
+
+    public double getCompression() {
+        return compression;
+    }
+
+    public double getTotalWeight() {
+        return totalWeight;
+    }
+
+    public void add(double value, double weight) {
+        add(value, weight, true);
+    }
+
+    private void add(double value, double weight, boolean point) {
+        if (weight <= 0) {
+            return;
+        }
+        if (bufferCount == bufferMeans.length) {
+            if (bufferCount >= maxBuffer) {
+                compress();
+            } else {
+                bufferMeans = Arrays.copyOf(bufferMeans, Math.min(maxBuffer, bufferCount * 2));
+                bufferWeights = Arrays.copyOf(bufferWeights, bufferMeans.length);
+                bufferPoints = Arrays.copyOf(bufferPoints, bufferMeans.length);
+            }
+        }
+        bufferMeans[bufferCount] = value;
+        bufferWeights[bufferCount] = weight;
+        bufferPoints[bufferCount] = point;
+        bufferCount++;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Folds the other digest into this one.
+     */
+    public void merge(TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.centroidCount; i++) {
+            add(other.means[i], other.weights[i], other.points[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the estimated value at quantile q in [0, 1] or NaN if nothing was added.
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile has to be between 0 and 1: " + q);
+        }
+        compress();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        }
+        if (centroidCount == 1) {
+            return means[0];
+        }
+        final double target = q * totalWeight;
+        // centroid i covers its weight around its mean: a point centroid returns its value for all of it, otherwise
+        // values are interpolated between the means of neighbouring centroids
+        double start = 0;
+        for (int i = 0; i < centroidCount; i++) {
+            final double end = start + weights[i];
+            if (target < end || i == centroidCount - 1) {
+                if (points[i]) {
+                    return means[i];
+                }
+                final double center = start + weights[i] / 2;
+                if (target < center) {
+                    if (i == 0) {
+                        return interpolate(min, means[0], target / (weights[0] / 2));
+                    }
+                    final double previous = points[i - 1] ? start : start - weights[i - 1] / 2;
+                    return interpolate(means[i - 1], means[i], (target - previous) / (center - previous));
+                }
+                if (i == centroidCount - 1) {
+                    return interpolate(means[i], max, Math.min(1, (target - center) / (weights[i] / 2)));
+                }
+                final double next = points[i + 1] ? end : end + weights[i + 1] / 2;
+                return interpolate(means[i], means[i + 1], (target - center) / (next - center));
+            }
+            start = end;
+        }
+        throw new IllegalStateException();
+    }
+
+    private static double interpolate(double from, double to, double fraction) {
+        return from + (to - from) * fraction;
+    }
+
+    private void compress() {
+        if (bufferCount == 0) {
+            return;
+        }
+        sort(0, bufferCount - 1);
+
+        // merge the sorted centroids and buffer, then greedily combine neighbours while they stay under the size
+        // limit 4 * totalWeight * q * (1 - q) / compression
+        final int total = centroidCount + bufferCount;
+        double[] newMeans = new double[Math.max(INITIAL_CAPACITY, Math.min(total, (int) (2 * compression) + 1))];
+        double[] newWeights = new double[newMeans.length];
+        boolean[] newPoints = new boolean[newMeans.length];
+        int count = 0;
+        double weightSoFar = 0;
+        int i = 0;
+        int j = 0;
+        while (i < centroidCount || j < bufferCount) {
+            final double mean;
+            final double weight;
+            final boolean point;
+            if (j >= bufferCount || (i < centroidCount && means[i] <= bufferMeans[j])) {
+                mean = means[i];
+                weight = weights[i];
+                point = points[i];
+                i++;
+            } else {
+                mean = bufferMeans[j];
+                weight = bufferWeights[j];
+                point = bufferPoints[j];
+                j++;
+            }
+            if (count > 0) {
+                final double proposed = newWeights[count - 1] + weight;
+                final double q = (weightSoFar + proposed / 2) / totalWeight;
+                final boolean samePoint = point && newPoints[count - 1] && mean == newMeans[count - 1];
+                if (samePoint || proposed <= 4 * totalWeight * q * (1 - q) / compression) {
+                    newPoints[count - 1] = samePoint;
+                    newMeans[count - 1] += (mean - newMeans[count - 1]) * weight / proposed;
+                    newWeights[count - 1] = proposed;
+                    continue;
+                }
+                weightSoFar += newWeights[count - 1];
+            }
+            if (count == newMeans.length) {
+                newMeans = Arrays.copyOf(newMeans, count * 2);
+                newWeights = Arrays.copyOf(newWeights, count * 2);
+                newPoints = Arrays.copyOf(newPoints, count * 2);
+            }
+            newMeans[count] = mean;
+            newWeights[count] = weight;
+            newPoints[count] = point;
+            count++;
+        }
+        means = newMeans;
+        weights = newWeights;
+        points = newPoints;
+        centroidCount = count;
+        bufferCount = 0;
+    }
+
+    /**
+     * Sorts the buffer by mean.
+     */
+    private void sort(int from, int to) {
+        while (from < to) {
+            final double pivot = bufferMeans[(from + to) >>> 1];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (bufferMeans[i] < pivot) i++;
+                while (bufferMeans[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller half to bound the stack depth
+            if (j - from < to - i) {
+                sort(from, j);
+                from = i;
+            } else {
+                sort(i, to);
+                to = j;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        final double mean = bufferMeans[i];
+        bufferMeans[i] = bufferMeans[j];
+        bufferMeans[j] = mean;
+        final double weight = bufferWeights[i];
+        bufferWeights[i] = bufferWeights[j];
+        bufferWeights[j] = weight;
+        final boolean point = bufferPoints[i];
+        bufferPoints[i] = bufferPoints[j];
+        bufferPoints[j] = point;
+    }
+
+    public byte[] toBytes() {
+        compress();
+        final ByteBuffer buffer = ByteBuffer.allocate(8 * 3 + 4 + 17 * centroidCount);
+        buffer.putDouble(compression);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        buffer.putInt(centroidCount);
+        for (int i = 0; i < centroidCount; i++) {
+            buffer.putDouble(means[i]);
+            buffer.putDouble(weights[i]);
+            buffer.put((byte) (points[i] ? 1 : 0));
+        }
+        return buffer.array();
+    }
+
+    public static TDigest fromBytes(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final TDigest ret = new TDigest(buffer.getDouble());
+        final double min = buffer.getDouble();
+        final double max = buffer.getDouble();
+        final int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() != 17 * count) {
+            throw new IllegalArgumentException("Not a serialized TDigest");
+        }
+        ret.means = new double[Math.max(INITIAL_CAPACITY, count)];
+        ret.weights = new double[ret.means.length];
+        ret.points = new boolean[ret.means.length];
+        for (int i = 0; i < count; i++) {
+            ret.means[i] = buffer.getDouble();
+            ret.weights[i] = buffer.getDouble();
+            ret.points[i] = buffer.get() != 0;
+            ret.totalWeight += ret.weights[i];
+        }
+        ret.centroidCount = count;
+        ret.min = min;
+        ret.max = max;
+        return ret;
+    }
+}
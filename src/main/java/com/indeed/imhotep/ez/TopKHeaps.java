@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Bounded per-group heaps of (score, term, stats) tuples backed by flat primitive arrays.
+ * The heap itself only orders slot indices by score, so a term and its stats are written once when
+ * the term makes the cut and never move afterwards.
+ * Groups are expected to be dense small positive ints as returned by FTGS.
+ */
+public final class TopKHeaps {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int k;
+    private final int numStats;
+    private final boolean isBottom;
+
+    private Heap[] groupHeaps = new Heap[16];
+    private int groupCount = 0;
+    private int size = 0;
+
+    public TopKHeaps(final int k, final int numStats, final boolean isBottom) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k has to be positive: " + k);
+        }
+        this.k = k;
+        this.numStats = numStats;
+        this.isBottom = isBottom;
+    }
+
+    /**
+     * Returns the heap for the group, creating an empty one if the group hasn't been seen yet.
+     */
+    public Heap getOrCreate(final int group) {
+        if (group >= groupHeaps.length) {
+            groupHeaps = Arrays.copyOf(groupHeaps, Math.max(group + 1, groupHeaps.length * 2));
+        }
+        Heap heap = groupHeaps[group];
+        if (heap == null) {
+            heap = new Heap(Math.min(k, INITIAL_CAPACITY));
+            groupHeaps[group] = heap;
+            groupCount++;
+        }
+        return heap;
+    }
+
+    /**
+     * Returns the heap for the group or null if no terms were offered for it.
+     */
+    @Nullable
+    public Heap get(final int group) {
+        return group < groupHeaps.length ? groupHeaps[group] : null;
+    }
+
+    /**
+     * Detaches the heap of the group so that its memory can be reclaimed once the caller is done with it.
+     */
+    @Nullable
+    public Heap remove(final int group) {
+        final Heap heap = get(group);
+        if (heap != null) {
+            groupHeaps[group] = null;
+            groupCount--;
+            size -= heap.size;
+            heap.detached = true;
+        }
+        return heap;
+    }
+
+    /**
+     * Returns the number of groups that currently have a heap.
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Returns the total number of terms held across all heaps.
+     */
+    public int size() {
+        return size;
+    }
+
+    public final class Heap {
+        // heap of slot indices ordered so that the worst score is at the root
+        private int[] heap;
+        private double[] scores;
+        private long[] intTerms;
+        private String[] stringTerms;
+        private double[] stats;
+        private int size = 0;
+        private boolean detached = false;
+
+        private Heap(final int capacity) {
+            heap = new int[capacity];
+            scores = new double[capacity];
+            stats = new double[capacity * numStats];
+        }
+
+        /**
+         * Offers a term with the given score.
+         * Returns the slot the term and its stats have to be written into or -1 if the term didn't make the cut.
+         */
+        public int offer(final double score) {
+            if (size < k) {
+                if (size == heap.length) {
+                    grow();
+                }
+                final int slot = size;
+                scores[slot] = score;
+                heap[size] = slot;
+                siftUp(size);
+                size++;
+                if (!detached) {
+                    TopKHeaps.this.size++;
+                }
+                return slot;
+            }
+            final int root = heap[0];
+            final double rootScore = scores[root];
+            if ((!isBottom && score > rootScore) || (isBottom && score < rootScore)) {
+                scores[root] = score;
+                siftDown(0);
+                return root;
+            }
+            return -1;
+        }
+
+        public void setIntTerm(final int slot, final long term) {
+            if (intTerms == null) {
+                intTerms = new long[heap.length];
+            }
+            intTerms[slot] = term;
+        }
+
+        public void setStringTerm(final int slot, final String term) {
+            if (stringTerms == null) {
+                stringTerms = new String[heap.length];
+            }
+            stringTerms[slot] = term;
+        }
+
+        public void setStat(final int slot, final int statIndex, final double value) {
+            stats[slot * numStats + statIndex] = value;
+        }
+
+        public long getIntTerm(final int slot) {
+            return intTerms[slot];
+        }
+
+        public String getStringTerm(final int slot) {
+            return stringTerms[slot];
+        }
+
+        /**
+         * Returns the term in the slot boxed if it is an int term.
+         */
+        public Object getTerm(final int slot) {
+            return intTerms != null ? (Object) intTerms[slot] : stringTerms[slot];
+        }
+
+        public double getScore(final int slot) {
+            return scores[slot];
+        }
+
+        /**
+         * Returns a copy of the stats stored for the slot.
+         */
+        public double[] getStats(final int slot) {
+            return Arrays.copyOfRange(stats, slot * numStats, (slot + 1) * numStats);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Empties the heap and returns the slots of the held terms ordered from the best to the worst score.
+         * Slot contents stay readable until the next offer().
+         */
+        public int[] drain() {
+            final int[] ret = new int[size];
+            if (!detached) {
+                TopKHeaps.this.size -= size;
+            }
+            while (size > 0) {
+                ret[size - 1] = heap[0];
+                size--;
+                heap[0] = heap[size];
+                siftDown(0);
+            }
+            return ret;
+        }
+
+        private void grow() {
+            final int capacity = Math.min(k, heap.length * 2);
+            heap = Arrays.copyOf(heap, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            stats = Arrays.copyOf(stats, capacity * numStats);
+            if (intTerms != null) {
+                intTerms = Arrays.copyOf(intTerms, capacity);
+            }
+            if (stringTerms != null) {
+                stringTerms = Arrays.copyOf(stringTerms, capacity);
+            }
+        }
+
+        private boolean isWorse(final int slotA, final int slotB) {
+            final int cmp = Double.compare(scores[slotA], scores[slotB]);
+            return isBottom ? cmp > 0 : cmp < 0;
+        }
+
+        private void siftUp(int pos) {
+            final int slot = heap[pos];
+            while (pos > 0) {
+                final int parent = (pos - 1) >>> 1;
+                if (!isWorse(slot, heap[parent])) {
+                    break;
+                }
+                heap[pos] = heap[parent];
+                pos = parent;
+            }
+            heap[pos] = slot;
+        }
+
+        private void siftDown(int pos) {
+            if (size == 0) {
+                return;
+            }
+            final int slot = heap[pos];
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && isWorse(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!isWorse(heap[child], slot)) {
+                    break;
+                }
+                heap[pos] = heap[child];
+                pos = child;
+            }
+            heap[pos] = slot;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * String term held as its UTF-8 bytes as FTGS returns them. The String is only decoded when asked for and then
+ * kept, so terms that are only counted, hashed or matched never allocate one.
+ * As a CharSequence, pure ASCII terms are read straight from the bytes, e.g. by a regex Matcher. Other terms are
+ * decoded on first access.
+ * Instances handed to FTGS callbacks are reused for later terms so callbacks must call toString() or copy() to
+ * keep a term.
+ */
+public final class Utf8Term implements CharSequence {
+    private static final int UNKNOWN = -1;
+    private static final int NON_ASCII = 0;
+    private static final int ASCII = 1;
+
+    private byte[] bytes;
+    private int byteLength = 0;
+    private String string = null;
+    private int ascii = UNKNOWN;
+
+    public Utf8Term() {
+        bytes = new byte[16];
+    }
+
+    private Utf8Term(byte[] bytes, int byteLength, String string) {
+        this.bytes = bytes;
+        this.byteLength = byteLength;
+        this.string = string;
+    }
+
+    public static Utf8Term of(String term) {
+        final byte[] bytes = term.getBytes(Charsets.UTF_8);
+        return new Utf8Term(bytes, bytes.length, term);
+    }
+
+    /**
+     * Sets the term to the first length bytes of src, which are copied.
+     */
+    public void set(byte[] src, int length) {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        System.arraycopy(src, 0, bytes, 0, length);
+        byteLength = length;
+        string = null;
+        ascii = UNKNOWN;
+    }
+
+    public void set(String term) {
+        final byte[] encoded = term.getBytes(Charsets.UTF_8);
+        set(encoded, encoded.length);
+        string = term;
+    }
+
+    /**
+     * Returns the backing array. Only the first getByteLength() bytes belong to the term.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getByteLength() {
+        return byteLength;
+    }
+
+    /**
+     * Returns an independent copy that isn't affected by later changes to this term.
+     */
+    public Utf8Term copy() {
+        return new Utf8Term(Arrays.copyOf(bytes, byteLength), byteLength, string);
+    }
+
+    public boolean isAscii() {
+        if (ascii == UNKNOWN) {
+            ascii = ASCII;
+            for (int i = 0; i < byteLength; i++) {
+                if (bytes[i] < 0) {
+                    ascii = NON_ASCII;
+                    break;
+                }
+            }
+        }
+        return ascii == ASCII;
+    }
+
+    @Override
+    public int length() {
+        return isAscii() ? byteLength : toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (isAscii()) {
+            if (index < 0 || index >= byteLength) {
+                throw new IndexOutOfBoundsException("index " + index + " out of range for length " + byteLength);
+            }
+            return (char) bytes[index];
+        }
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) {
+            string = new String(bytes, 0, byteLength, Charsets.UTF_8);
+        }
+        return string;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Utf8Term)) {
+            return false;
+        }
+        final Utf8Term other = (Utf8Term) o;
+        if (byteLength != other.byteLength) {
+            return false;
+        }
+        for (int i = 0; i < byteLength; i++) {
+            if (bytes[i] != other.bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < byteLength; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+}
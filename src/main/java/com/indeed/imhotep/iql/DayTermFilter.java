@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.GroupKeyTable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drops the rows of a query executed by day whose terms don't occur on the day of the row.
+ * The exploding field groupings give every group all the terms of the field, so when the days are grouped in one
+ * session each day gets the terms of all the days, while executing the day on its own only gives it its terms.
+ * A term occurs on a day if the group it creates on that day has documents, which takes the document count of
+ * each group: after the regroup of each grouping but the last one it is passed to addGroups(), for the last
+ * grouping it is the last stat of the rows passed to filter().
+ * Not thread safe.
+ */
+final class DayTermFilter {
+    // per grouping: day term -> terms of the grouping that occur on that day
+    private final List<Map<Object, Set<Object>>> levelTerms = Lists.newArrayList();
+
+    DayTermFilter(int numGroupings) {
+        for (int i = 0; i < numGroupings; i++) {
+            levelTerms.add(Maps.<Object, Set<Object>>newHashMap());
+        }
+    }
+
+    /**
+     * Records the terms of the last level of groupKeys that occur on the day of their group.
+     * @param counts document count of each group as returned by EZImhotepSession.getGroupStats()
+     */
+    void addGroups(GroupKeyTable groupKeys, double[] counts) {
+        final Object[] key = new Object[groupKeys.depth()];
+        for (int group = 1; group < counts.length && group <= groupKeys.size(); group++) {
+            if (counts[group] > 0 && groupKeys.contains(group)) {
+                groupKeys.copyKey(group, key);
+                addTerm(key, key.length);
+            }
+        }
+    }
+
+    /**
+     * Returns the rows whose terms all occur on the day of the row, in the order of rows. The last stat of each row
+     * is its document count, which is removed from the returned rows.
+     */
+    List<GroupStats> filter(Iterator<GroupStats> rows) {
+        // the terms of the last grouping are known once all rows have been seen
+        final List<GroupStats> all = Lists.newArrayList();
+        while (rows.hasNext()) {
+            final GroupStats row = rows.next();
+            if (row.stats[row.stats.length - 1] > 0) {
+                final Object[] key = new Object[row.getKeyLength()];
+                row.copyKey(key);
+                addTerm(key, key.length);
+            }
+            all.add(row);
+        }
+        final List<GroupStats> ret = Lists.newArrayList();
+        for (GroupStats row : all) {
+            final Object[] key = new Object[row.getKeyLength()];
+            row.copyKey(key);
+            if (occurs(key)) {
+                ret.add(new GroupStats(row.groupKeys, row.group, row.term, Arrays.copyOf(row.stats, row.stats.length - 1)));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Records that the last term of key occurs on the day that is its first term.
+     */
+    private void addTerm(Object[] key, int length) {
+        final Map<Object, Set<Object>> dayTerms = levelTerms.get(length - 2);
+        Set<Object> terms = dayTerms.get(key[0]);
+        if (terms == null) {
+            terms = Sets.newHashSet();
+            dayTerms.put(key[0], terms);
+        }
+        terms.add(key[length - 1]);
+    }
+
+    private boolean occurs(Object[] key) {
+        for (int level = 0; level < levelTerms.size(); level++) {
+            final Set<Object> terms = levelTerms.get(level).get(key[0]);
+            if (terms == null || !terms.contains(key[level + 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
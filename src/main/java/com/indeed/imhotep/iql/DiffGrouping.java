@@ -3,13 +3,12 @@ package com.indeed.imhotep.iql;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
 import com.indeed.imhotep.ez.Stats;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author vladimir
@@ -45,12 +44,12 @@ public class DiffGrouping extends Grouping {
     }
 
     @Override
-    public Map<Integer, GroupKey> regroup(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public GroupKeyTable regroup(EZImhotepSession session, GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         throw new UnsupportedOperationException();  // This should always be rewritten in the IQLTranslator so that it never gets invoked
     }
 
     @Override
-    public Iterator<GroupStats> getGroupStats(EZImhotepSession session, Map<Integer, GroupKey> groupKeys, List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
+    public Iterator<GroupStats> getGroupStats(EZImhotepSession session, GroupKeyTable groupKeys, List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
         throw new UnsupportedOperationException();  // This should always be rewritten in the IQLTranslator so that it never gets invoked
     }
 }
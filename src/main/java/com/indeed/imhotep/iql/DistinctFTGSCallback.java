@@ -13,43 +13,149 @@
  */
  package com.indeed.imhotep.iql;
 
+import com.google.common.collect.Maps;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
-import gnu.trove.TIntIntHashMap;
+import com.indeed.imhotep.ez.Field;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import com.indeed.imhotep.ez.HyperLogLog;
+import com.indeed.imhotep.ez.Utf8Term;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
+ * Counts distinct terms per group for any number of fields in a single FTGS pass.
+ * Fields can be counted exactly or approximated with a mergeable HyperLogLog sketch per group.
+ * No stats are read so FTGS doesn't copy any and string terms are hashed from their UTF-8 bytes without being decoded.
  * @author vladimir
  */
 
-public class DistinctFTGSCallback extends EZImhotepSession.FTGSCallback {
-    private final TIntIntHashMap groupToCounts;
+public class DistinctFTGSCallback extends EZImhotepSession.FTGSBatchCallback {
+    // field name -> term counts indexed by group number
+    private final Map<String, int[]> intFieldCounts = Maps.newHashMap();
+    private final Map<String, int[]> stringFieldCounts = Maps.newHashMap();
+    // field name -> sketches indexed by group number, created when a group sees its first term
+    private final Map<String, HyperLogLog[]> intFieldSketches = Maps.newHashMap();
+    private final Map<String, HyperLogLog[]> stringFieldSketches = Maps.newHashMap();
 
-    public DistinctFTGSCallback(int numStats, Map<Integer, GroupKey> groupKeys) {
-        super(numStats);
+    // FTGS walks fields in order so the arrays of the current field are cached
+    private String currentField = null;
+    private int[] currentCounts = null;
+    private HyperLogLog[] currentSketches = null;
+    // and terms in order so each term is hashed once for all its groups
+    private boolean hashValid = false;
+    private long currentIntTerm;
+    private Utf8Term currentStringTerm = null;
+    private long currentHash;
 
-        groupToCounts  = new TIntIntHashMap(groupKeys.size());
+    public DistinctFTGSCallback(GroupKeyTable groupKeys, List<Field> fields) {
+        this(groupKeys, fields, Collections.<Field>emptyList());
     }
 
-    @Override
-    protected void intTermGroup(String field, long term, int group) {
-        incrementGroupCounts(group);
+    public DistinctFTGSCallback(GroupKeyTable groupKeys, List<Field> fields, List<Field> approximateFields) {
+        super(0);
+
+        for (Field field : fields) {
+            final Map<String, int[]> fieldCounts = field.isIntField() ? intFieldCounts : stringFieldCounts;
+            if (!fieldCounts.containsKey(field.getFieldName())) {
+                fieldCounts.put(field.getFieldName(), new int[groupKeys.size() + 1]);
+            }
+        }
+        for (Field field : approximateFields) {
+            final Map<String, HyperLogLog[]> fieldSketches = field.isIntField() ? intFieldSketches : stringFieldSketches;
+            if (!fieldSketches.containsKey(field.getFieldName())) {
+                fieldSketches.put(field.getFieldName(), new HyperLogLog[groupKeys.size() + 1]);
+            }
+        }
     }
 
-    private void incrementGroupCounts(int group) {
-        groupToCounts.put(group, groupToCounts.get(group) + 1);
+    @Override
+    protected void intTermGroups(String field, long[] terms, int[] groups, long[][] stats, int count) {
+        if (field != currentField) {
+            selectField(field, intFieldCounts, intFieldSketches);
+        }
+        if (currentSketches == null) {
+            countExact(groups, count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            final long term = terms[i];
+            if (!hashValid || term != currentIntTerm) {
+                currentIntTerm = term;
+                currentHash = HyperLogLog.hash(term);
+                hashValid = true;
+            }
+            count(groups[i]);
+        }
     }
 
     @Override
-    protected void stringTermGroup(String field, String term, int group) {
-        incrementGroupCounts(group);
+    protected void stringTermGroups(String field, Utf8Term[] terms, int[] groups, long[][] stats, int count) {
+        if (field != currentField) {
+            selectField(field, stringFieldCounts, stringFieldSketches);
+        }
+        if (currentSketches == null) {
+            countExact(groups, count);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            final Utf8Term term = terms[i];
+            // the rows of a term share the instance
+            if (!hashValid || term != currentStringTerm) {
+                currentStringTerm = term;
+                currentHash = HyperLogLog.hash(term);
+                hashValid = true;
+            }
+            count(groups[i]);
+        }
+    }
+
+    private void countExact(int[] groups, int count) {
+        final int[] counts = currentCounts;
+        if (counts == null) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            final int group = groups[i];
+            if (group < counts.length) {
+                counts[group]++;
+            }
+        }
+    }
+
+    private void selectField(String field, Map<String, int[]> fieldCounts, Map<String, HyperLogLog[]> fieldSketches) {
+        currentField = field;
+        currentCounts = fieldCounts.get(field);
+        currentSketches = fieldSketches.get(field);
+        hashValid = false;
+    }
+
+    private void count(int group) {
+        if (currentCounts != null && group < currentCounts.length) {
+            currentCounts[group]++;
+        }
+        if (currentSketches != null && group < currentSketches.length) {
+            HyperLogLog sketch = currentSketches[group];
+            if (sketch == null) {
+                sketch = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+                currentSketches[group] = sketch;
+            }
+            sketch.add(currentHash);
+        }
+    }
+
+    /**
+     * Returns the field's term counts indexed by group number
+     */
+    public int[] getResults(Field field) {
+        return (field.isIntField() ? intFieldCounts : stringFieldCounts).get(field.getFieldName());
     }
 
     /**
-     * Returns map of group numbers to field term counts
+     * Returns the field's sketches indexed by group number. Groups without terms have no sketch.
      */
-    public TIntIntHashMap getResults() {
-        return groupToCounts;
+    public HyperLogLog[] getSketches(Field field) {
+        return (field.isIntField() ? intFieldSketches : stringFieldSketches).get(field.getFieldName());
     }
 }
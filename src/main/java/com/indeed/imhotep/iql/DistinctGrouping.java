@@ -14,18 +14,18 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import com.indeed.imhotep.ez.HyperLogLog;
 import com.indeed.imhotep.ez.StatReference;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIntHashMap;
-import gnu.trove.TIntObjectHashMap;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 /**
  * @author vladimir
@@ -35,10 +35,21 @@ public class DistinctGrouping extends Grouping {
     // Fields to get distinct term counts for and their positions in the stats list
     private final List<Field> fields = Lists.newArrayList();
     private final List<Integer> distinctProjectionPositions = Lists.newArrayList();
+    // whether the field at the same index is estimated with HyperLogLog instead of counted exactly
+    private final List<Boolean> approximate = Lists.newArrayList();
 
     public void addField(Field field, int projectionPosition) {
+        addField(field, projectionPosition, false);
+    }
+
+    public void addApproximateField(Field field, int projectionPosition) {
+        addField(field, projectionPosition, true);
+    }
+
+    private void addField(Field field, int projectionPosition, boolean isApproximate) {
         fields.add(field);
         distinctProjectionPositions.add(projectionPosition);
+        approximate.add(isApproximate);
     }
 
     public List<Field> getFields() {
@@ -46,94 +57,77 @@ public class DistinctGrouping extends Grouping {
     }
 
     @Override
-    public Map<Integer, GroupKey> regroup(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public GroupKeyTable regroup(EZImhotepSession session, GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         throw new UnsupportedOperationException("DistinctGrouping requires FTGS so always should go last in the list of groupings");
     }
 
-    public Iterator<GroupStats> getGroupStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
+    public Iterator<GroupStats> getGroupStats(final EZImhotepSession session, final GroupKeyTable groupKeys, final List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
         final int statCount = statRefs.size();
         final int groupCount = groupKeys.size();
         final List<GroupStats> result = Lists.newArrayList();
 
-        // list to set for use in lookups
-        final TIntHashSet distinctProjectionPositionsSet = new TIntHashSet(distinctProjectionPositions.size());
-        for(int pos : distinctProjectionPositions) {
-            distinctProjectionPositionsSet.add(pos);
+        // projection position -> index into fields or -1 for normal stats
+        final int[] projectionFields = new int[statCount + fields.size()];
+        Arrays.fill(projectionFields, -1);
+        for(int i = 0; i < distinctProjectionPositions.size(); i++) {
+            projectionFields[distinctProjectionPositions.get(i)] = i;
         }
 
         // TODO: don't auto-get group stats on each FTGS iteration
 
-        // map of groups -> projection positions -> values
-        TIntObjectHashMap<TIntIntHashMap> distinctData = getDistinctData(session, groupKeys);
-
+        // field index -> group -> distinct term count or sketch
+        final int[][] distinctData = new int[fields.size()][];
+        final HyperLogLog[][] distinctSketches = new HyperLogLog[fields.size()][];
+        getDistinctData(session, groupKeys, distinctData, distinctSketches);
 
         // get values for the normal stats
-        final TIntObjectHashMap<double[]> statsResults = (statCount > 0) ? getGroupStatsValues(session, statRefs, groupCount) : null;
+        final double[][] statGroupValues = new double[statCount][];
+        for (int i = 0; i < statCount; i++) {
+            statGroupValues[i] = session.getGroupStats(statRefs.get(i));
+        }
 
         // combine normal stats with distinct counts
         for (int groupNum = 1; groupNum <= groupCount; groupNum++) {
-            TIntIntHashMap groupDistinctData = distinctData.get(groupNum);
-            double[] statsVals = statsResults != null ? statsResults.get(groupNum) : null;
-
             double[] values = new double[statCount + fields.size()];
             for(int i = 0, statsValsIndex = 0; i < values.length; i++) {
-                if(distinctProjectionPositionsSet.contains(i)) {    // distinct value
-                    values[i] = groupDistinctData != null ? groupDistinctData.get(i) : 0;
-                } else if(statsVals != null && statsValsIndex < statsVals.length) {
-                    values[i] = statsVals[statsValsIndex++];    // normal stat value available
+                final int fieldIndex = projectionFields[i];
+                if(fieldIndex >= 0 && distinctSketches[fieldIndex] != null) {    // approximate distinct value
+                    final HyperLogLog sketch = distinctSketches[fieldIndex][groupNum];
+                    values[i] = sketch != null ? sketch.cardinality() : 0;
+                } else if(fieldIndex >= 0) {    // distinct value
+                    values[i] = distinctData[fieldIndex][groupNum];
+                } else if(statsValsIndex < statCount) {
+                    final double[] statValues = statGroupValues[statsValsIndex++];
+                    values[i] = groupNum < statValues.length ? statValues[groupNum] : 0;    // normal stat value available
                 } else {
                     values[i] = 0;  // normal stat not in stats array
                 }
             }
 
-            GroupKey groupKey = groupKeys.get(groupNum);
-            result.add(new GroupStats(groupKey, values));
+            result.add(new GroupStats(groupKeys, groupNum, values));
         }
 
         return result.iterator();
     }
 
-    private TIntObjectHashMap<TIntIntHashMap> getDistinctData(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) {
-        TIntObjectHashMap<TIntIntHashMap> distinctData = new TIntObjectHashMap<TIntIntHashMap>();
-
-        // get distinct data
+    private void getDistinctData(EZImhotepSession session, GroupKeyTable groupKeys, int[][] distinctData, HyperLogLog[][] distinctSketches) {
+        final Set<Field> exactFields = Sets.newLinkedHashSet();
+        final Set<Field> approximateFields = Sets.newLinkedHashSet();
         for(int i = 0; i < fields.size(); i++) {
-            final Field field = fields.get(i);
-            final int projectionPosition = distinctProjectionPositions.get(i);
-
-            final DistinctFTGSCallback callback = new DistinctFTGSCallback(session.getStackDepth(), groupKeys);
-            session.ftgsIterate(Lists.newArrayList(field), callback);
-            final TIntIntHashMap distinctResults = callback.getResults();
-            for(int groupNum : groupKeys.keySet()) {
-                final int distinctResult = distinctResults.get(groupNum);
-
-                TIntIntHashMap groupDistinctData = distinctData.get(groupNum);
-                if(groupDistinctData == null) {
-                    groupDistinctData = new TIntIntHashMap(distinctProjectionPositions.size());
-                    distinctData.put(groupNum, groupDistinctData);
-                }
-                groupDistinctData.put(projectionPosition, distinctResult);
-            }
+            (approximate.get(i) ? approximateFields : exactFields).add(fields.get(i));
         }
-        return distinctData;
-    }
 
-    private TIntObjectHashMap<double[]> getGroupStatsValues(EZImhotepSession session, List<StatReference> statRefs, int groupCount) {
-        final int statCount = statRefs.size();
-        final double[][] statGroupValues = new double[statCount][];
-        for (int i = 0; i < statCount; i++) {
-            statGroupValues[i] = session.getGroupStats(statRefs.get(i));
-        }
-        final TIntObjectHashMap<double[]> ret = new TIntObjectHashMap<double[]>(groupCount);
-        for (int group = 1; group <= groupCount; group++) {
-            final double[] groupStats = new double[statCount];
-            for (int statNum = 0; statNum < groupStats.length; statNum++) {
-                if(group < statGroupValues[statNum].length) {
-                    groupStats[statNum] = statGroupValues[statNum][group];
-                }
+        // get distinct data for all fields in one FTGS pass
+        final List<Field> uniqueFields = Lists.newArrayList(Sets.union(exactFields, approximateFields));
+        final DistinctFTGSCallback callback = new DistinctFTGSCallback(groupKeys,
+                Lists.newArrayList(exactFields), Lists.newArrayList(approximateFields));
+        session.ftgsIterate(uniqueFields, callback);
+        for(int i = 0; i < fields.size(); i++) {
+            if(approximate.get(i)) {
+                distinctSketches[i] = callback.getSketches(fields.get(i));
+            } else {
+                distinctData[i] = callback.getResults(fields.get(i));
             }
-            ret.put(group, groupStats);
         }
-        return ret;
     }
 }
@@ -17,7 +17,7 @@ import com.google.common.base.Preconditions;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
@@ -26,7 +26,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
 
@@ -84,7 +83,7 @@ public final class FieldGrouping extends Grouping {
         }
     }
 
-    public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public GroupKeyTable regroup(final EZImhotepSession session, final GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         if (topK > 0) {
             return Preconditions.checkNotNull(session.splitAllTopK(field, groupKeys, topK, sortStat, isBottom));
         } else if(noExplode) {
@@ -94,7 +93,7 @@ public final class FieldGrouping extends Grouping {
         }
     }
 
-    public Iterator<GroupStats> getGroupStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
+    public Iterator<GroupStats> getGroupStats(final EZImhotepSession session, final GroupKeyTable groupKeys, final List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
         if(groupKeys.isEmpty()) {   // we don't have any parent groups probably because all docs were filtered out
             return Collections.<GroupStats>emptyList().iterator();  // so no point doing FTGS
         }
@@ -103,7 +102,7 @@ public final class FieldGrouping extends Grouping {
             final StatReference countStat = session.pushStatGeneric(sortStat);
             final TopKGroupingFTGSCallback callback = new TopKGroupingFTGSCallback(session.getStackDepth(), topK, countStat, statRefs, groupKeys, isBottom);
             session.ftgsIterate(Arrays.asList(field), callback);
-            return callback.getResults().iterator();
+            return callback.getResults();
         } else if(noExplode) {
             final GroupingFTGSCallbackNoExplode callback = new GroupingFTGSCallbackNoExplode(session.getStackDepth(), statRefs, groupKeys);
             return session.ftgsGetIterator(Arrays.asList(field), callback);
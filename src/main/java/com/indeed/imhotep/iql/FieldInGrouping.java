@@ -19,13 +19,12 @@ import com.google.common.collect.Sets;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
 
@@ -48,7 +47,7 @@ public final class FieldInGrouping extends Grouping {
         this.terms = Lists.newArrayList(Sets.newLinkedHashSet(terms));
     }
 
-    public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public GroupKeyTable regroup(final EZImhotepSession session, final GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         if(field.isIntField()) {
             Field.IntField intField = (Field.IntField) field;
             long[] termsArray = new long[terms.size()];
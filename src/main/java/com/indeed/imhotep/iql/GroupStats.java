@@ -14,22 +14,52 @@
  package com.indeed.imhotep.iql;
 
 import com.indeed.imhotep.ez.GroupKey;
-import org.apache.log4j.Logger;
+import com.indeed.imhotep.ez.GroupKeyTable;
+
+import javax.annotation.Nullable;
 
 /**
+ * Stats of one result row. The key is the group's row in the GroupKeyTable optionally extended with the term
+ * the row was produced for by FTGS so that rows don't hold a materialized key of their own.
 * @author jplaisance
 */
 public final class GroupStats {
-    final GroupKey groupKey;
+    final GroupKeyTable groupKeys;
+    final int group;
+    final @Nullable Object term;
     final double[] stats;
 
-    public GroupStats(final GroupKey groupKey, final double[] stats) {
-        this.groupKey = groupKey;
+    public GroupStats(final GroupKeyTable groupKeys, final int group, final double[] stats) {
+        this(groupKeys, group, null, stats);
+    }
+
+    public GroupStats(final GroupKeyTable groupKeys, final int group, final @Nullable Object term, final double[] stats) {
+        this.groupKeys = groupKeys;
+        this.group = group;
+        this.term = term;
         this.stats = stats;
     }
 
     public GroupKey getGroupKey() {
-        return groupKey;
+        final GroupKey groupKey = groupKeys.get(group);
+        return term != null ? groupKey.add(term) : groupKey;
+    }
+
+    /**
+     * Returns the number of terms in the key.
+     */
+    public int getKeyLength() {
+        return groupKeys.depth() + (term != null ? 1 : 0);
+    }
+
+    /**
+     * Writes the terms of the key into dest starting at index 0. dest must hold at least getKeyLength() elements.
+     */
+    public void copyKey(final Object[] dest) {
+        groupKeys.copyKey(group, dest);
+        if (term != null) {
+            dest[groupKeys.depth()] = term;
+        }
     }
 
     public double[] getStats() {
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.primitives.Longs;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import org.apache.commons.codec.binary.Base64;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of the per group stat vectors returned by EZImhotepSession.getGroupStats() for a filtered session.
+ * Entries are keyed by a digest of the dataset, time range, filters and shard versions the session was created with
+ * and by the stat, so queries sharing the same FROM and WHERE clauses can reuse the stats computed by each other.
+ * Thread safe.
+ */
+public final class GroupStatsCache {
+    private static final byte[] VERSION_FOR_HASHING = {1};
+
+    private final int maxEntries;
+    private final Map<String, double[]> entries;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public GroupStatsCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String, double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the key identifying the documents selected by a session.
+     */
+    public static String getSessionKey(String dataset, DateTime start, DateTime end, String filterKey, List<ShardIdWithVersion> shards) {
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        }
+        sha1.update(VERSION_FOR_HASHING);
+        sha1.update(dataset.getBytes(Charsets.UTF_8));
+        sha1.update(Longs.toByteArray(start.getMillis()));
+        sha1.update(Longs.toByteArray(end.getMillis()));
+        sha1.update(filterKey.getBytes(Charsets.UTF_8));
+        for (ShardIdWithVersion shard : shards) {
+            sha1.update(shard.getShardId().getBytes(Charsets.UTF_8));
+            sha1.update(Longs.toByteArray(shard.getVersion()));
+        }
+        return Base64.encodeBase64URLSafeString(sha1.digest());
+    }
+
+    /**
+     * Returns the group stats of the stat or null if they aren't cached. The returned array must not be modified.
+     */
+    public synchronized @Nullable double[] get(String sessionKey, String statKey) {
+        final double[] groupStats = entries.get(sessionKey + ' ' + statKey);
+        if (groupStats != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return groupStats;
+    }
+
+    public synchronized void put(String sessionKey, String statKey, double[] groupStats) {
+        entries.put(sessionKey + ' ' + statKey, groupStats.clone());
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -16,13 +16,12 @@
 import com.google.common.collect.Lists;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author jplaisance
@@ -30,9 +29,9 @@ import java.util.Map;
 public abstract class Grouping {
     private static final Logger log = Logger.getLogger(Grouping.class);
 
-    public abstract Map<Integer, GroupKey> regroup(EZImhotepSession session, Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException;
+    public abstract GroupKeyTable regroup(EZImhotepSession session, GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException;
 
-    public Iterator<GroupStats> getGroupStats(EZImhotepSession session, Map<Integer, GroupKey> groupKeys, List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
+    public Iterator<GroupStats> getGroupStats(EZImhotepSession session, GroupKeyTable groupKeys, List<StatReference> statRefs, long timeoutTS) throws ImhotepOutOfMemoryException {
         groupKeys = regroup(session, groupKeys);
         final int statCount = statRefs.size();
         final double[][] statGroupValues = new double[statCount][];
@@ -46,11 +45,11 @@ public abstract class Grouping {
             for (int statNum = 0; statNum < groupStats.length; statNum++) {
                 groupStats[statNum] = statGroupValues[statNum][group];
             }
-            ret.add(new GroupStats(groupKeys.get(group), groupStats));
+            ret.add(new GroupStats(groupKeys, group, groupStats));
         }
         final double[] emptyGroupStats = new double[statCount];
         for(int group = groupCount; group < groupKeys.size()+1; group++) {
-            ret.add(new GroupStats(groupKeys.get(group), emptyGroupStats));
+            ret.add(new GroupStats(groupKeys, group, emptyGroupStats));
         }
         return ret.iterator();
     }
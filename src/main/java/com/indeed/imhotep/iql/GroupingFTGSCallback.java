@@ -14,11 +14,10 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
-import gnu.trove.TIntObjectHashMap;
+import com.indeed.imhotep.ez.Utf8Term;
 import org.apache.log4j.Logger;
 
 import java.text.DecimalFormat;
@@ -27,79 +26,126 @@ import java.util.*;
 /**
  * @author jplaisance
  */
-public final class GroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
+public final class GroupingFTGSCallback extends EZImhotepSession.FTGSBatchCallback {
     private static final Logger log = Logger.getLogger(GroupingFTGSCallbackNoExplode.class);
     private final List<StatReference> statRefs;
-    private final Map<Integer, GroupKey> groupKeys;
+    private final GroupKeyTable groupKeys;
     private final List<Object> allTerms = Lists.newArrayList();
-    private final TIntObjectHashMap<Map<Object, double[]>> groupToTermsStats = new TIntObjectHashMap<Map<Object, double[]>>();
+    // per group: indexes into allTerms of the terms seen in that group, in ascending order, and their stats
+    private final int[][] groupTermIndexes;
+    private final double[][] groupTermStats;
+    private final int[] groupTermCounts;
     private final int termLimit;
+    // values of the stats of the current block
+    private final double[][] statValues;
+    // last term added to allTerms, FTGS passes the terms in sorted order
+    private boolean hasLastTerm = false;
+    private long lastIntTerm;
+    private Utf8Term lastStringTerm = null;
 
-    public GroupingFTGSCallback(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
+    public GroupingFTGSCallback(int numStats, List<StatReference> statRefs, GroupKeyTable groupKeys) {
         super(numStats);
         this.statRefs = statRefs;
         this.groupKeys = groupKeys;
         termLimit = EZImhotepSession.GROUP_LIMIT / Math.max(groupKeys.size(), 1);
+        groupTermIndexes = new int[groupKeys.size() + 1][];
+        groupTermStats = new double[groupKeys.size() + 1][];
+        groupTermCounts = new int[groupKeys.size() + 1];
+        statValues = new double[statRefs.size()][getBatchSize()];
     }
 
-    protected void intTermGroup(final String field, final long term, final int group) {
-        termGroup(term, group);
+    protected void intTermGroups(final String field, final long[] terms, final int[] groups, final long[][] stats, final int count) {
+        computeStats(stats, count);
+        for (int i = 0; i < count; i++) {
+            final long term = terms[i];
+            if (!hasLastTerm || term != lastIntTerm) {
+                lastIntTerm = term;
+                addTerm(term);
+            }
+            termGroup(groups[i], i);
+        }
     }
 
-    protected void stringTermGroup(final String field, final String term, final int group) {
-        termGroup(term, group);
+    protected void stringTermGroups(final String field, final Utf8Term[] terms, final int[] groups, final long[][] stats, final int count) {
+        computeStats(stats, count);
+        for (int i = 0; i < count; i++) {
+            final Utf8Term term = terms[i];
+            // the rows of a term share the instance
+            if (!hasLastTerm || term != lastStringTerm) {
+                lastStringTerm = term;
+                addTerm(term.toString());
+            }
+            termGroup(groups[i], i);
+        }
     }
 
-    private void termGroup(Object term, int group) {
-        final int allTermsCount = allTerms.size();
-
-        if(allTermsCount == 0 || !allTerms.get(allTermsCount-1).equals(term)) {
-            allTerms.add(term); // got a new term. relying on terms being passed in sorted order
-            if(allTermsCount > termLimit) {
-                throw new IllegalArgumentException("Number of groups exceeds the limit " +
-                        new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
-                        ". Please simplify the query. " +
-                        "Try adding [] suffix to non-first groupings to disable addition of 0 rows. (e.g. 'group by country, lang[]')");
-            }
+    private void computeStats(final long[][] stats, final int count) {
+        for (int i = 0; i < statRefs.size(); i++) {
+            getStats(statRefs.get(i), stats, count, statValues[i]);
         }
-        Map<Object, double[]> groupTerms = groupToTermsStats.get(group);
-        if(groupTerms == null) {
-            groupTerms = Maps.newHashMap();
-            groupToTermsStats.put(group, groupTerms);
+    }
+
+    private void addTerm(Object term) {
+        final int allTermsCount = allTerms.size();
+        hasLastTerm = true;
+        allTerms.add(term); // got a new term. relying on terms being passed in sorted order
+        if(allTermsCount > termLimit) {
+            throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                    new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
+                    ". Please simplify the query. " +
+                    "Try adding [] suffix to non-first groupings to disable addition of 0 rows. (e.g. 'group by country, lang[]')");
         }
-        groupTerms.put(term, getStats());
     }
 
-    private double[] getStats() {
-        final double[] stats = new double[statRefs.size()];
-        for (int i = 0; i < statRefs.size(); i++) {
-            stats[i] = getStat(statRefs.get(i));
+    private void termGroup(int group, int row) {
+        if (group >= groupTermCounts.length) {
+            return; // group has no key so it is not part of the result
+        }
+        final int numStats = statRefs.size();
+        int[] termIndexes = groupTermIndexes[group];
+        final int count = groupTermCounts[group];
+        if (termIndexes == null) {
+            termIndexes = new int[4];
+            groupTermIndexes[group] = termIndexes;
+            groupTermStats[group] = new double[4 * numStats];
+        } else if (count == termIndexes.length) {
+            termIndexes = Arrays.copyOf(termIndexes, count * 2);
+            groupTermIndexes[group] = termIndexes;
+            groupTermStats[group] = Arrays.copyOf(groupTermStats[group], count * 2 * numStats);
+        }
+        termIndexes[count] = allTerms.size() - 1;
+        final double[] stats = groupTermStats[group];
+        for (int i = 0; i < numStats; i++) {
+            stats[count * numStats + i] = statValues[i][row];
         }
-        return stats;
+        groupTermCounts[group] = count + 1;
     }
 
     public List<GroupStats> getResults() {
         final List<GroupStats> ret = Lists.newArrayList();
+        final int numStats = statRefs.size();
         // warning: we are reusing the same array instance for all blank rows to save memory
-        final double[] emptyArray = new double[statRefs.size()];
+        final double[] emptyArray = new double[numStats];
 
         for (int group = 1; group <= groupKeys.size(); group++) {
-            final Map<Object, double[]> termsStats = groupToTermsStats.get(group);
-
-            if(termsStats == null) { // this grouping was skipped by FTGS, so assigning 0 stats to all terms
-                for(Object missingTerm : allTerms) {
-                    ret.add(new GroupStats(groupKeys.get(group).add(missingTerm), emptyArray));
-                }
-                continue;
-            }
-
-            for(Object term : allTerms) {
-                double[] stats = termsStats.get(term);
-                if(stats == null) {
+            // a group skipped by FTGS gets 0 stats for all terms
+            final int[] termIndexes = groupTermIndexes[group];
+            final double[] termStats = groupTermStats[group];
+            final int count = groupTermCounts[group];
+            int next = 0;
+            for (int termIndex = 0; termIndex < allTerms.size(); termIndex++) {
+                final double[] stats;
+                if (next < count && termIndexes[next] == termIndex) {
+                    stats = Arrays.copyOfRange(termStats, next * numStats, (next + 1) * numStats);
+                    next++;
+                } else {
                     stats = emptyArray;
                 }
-                ret.add(new GroupStats(groupKeys.get(group).add(term), stats));
+                ret.add(new GroupStats(groupKeys, group, allTerms.get(termIndex), stats));
             }
+            // release the group's stats as soon as its rows are built
+            groupTermIndexes[group] = null;
+            groupTermStats[group] = null;
         }
         return ret;
     }
@@ -14,20 +14,19 @@
  package com.indeed.imhotep.iql;
 
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
 
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author jplaisance
  */
 public final class GroupingFTGSCallbackNoExplode extends EZImhotepSession.FTGSIteratingCallback<GroupStats> {
     private final List<StatReference> statRefs;
-    private final Map<Integer, GroupKey> groupKeys;
+    private final GroupKeyTable groupKeys;
 
-    public GroupingFTGSCallbackNoExplode(int numStats, List<StatReference> statRefs, Map<Integer, GroupKey> groupKeys) {
+    public GroupingFTGSCallbackNoExplode(int numStats, List<StatReference> statRefs, GroupKeyTable groupKeys) {
         super(numStats);
         this.statRefs = statRefs;
         this.groupKeys = groupKeys;
@@ -46,6 +45,6 @@ public final class GroupingFTGSCallbackNoExplode extends EZImhotepSession.FTGSIt
         for (int i = 0; i < statRefs.size(); i++) {
             stats[i] = getStat(statRefs.get(i));
         }
-        return new GroupStats(groupKeys.get(group).add(term), stats);
+        return new GroupStats(groupKeys, group, term, stats);
     }
 }
\ No newline at end of file
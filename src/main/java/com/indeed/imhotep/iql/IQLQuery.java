@@ -17,6 +17,7 @@ import au.com.bytecode.opencsv.CSVWriter;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.UncheckedTimeoutException;
 import com.indeed.util.core.TreeTimer;
@@ -25,25 +26,34 @@ import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.ez.CancellationToken;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import com.indeed.imhotep.ez.QueryCancelledException;
+import com.indeed.imhotep.ez.SingleStatReference;
 import com.indeed.imhotep.ez.StatReference;
+import com.indeed.imhotep.iql.cache.RowOffsetIndex;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.threads.NamedThreadFactory;
+import com.indeed.util.serialization.Stringifier;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Duration;
 import org.joda.time.Interval;
 import org.joda.time.Period;
 import org.joda.time.format.PeriodFormat;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,10 +62,11 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.text.DecimalFormat;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
 
@@ -63,11 +74,22 @@ import static com.indeed.imhotep.ez.Stats.Stat;
  * @author jplaisance
  */
 public final class IQLQuery implements Closeable {
-    private static final int IN_MEMORY_ROW_LIMIT = 50000;
+    // memory the buffered rows of a single query can take before going to disk
+    // memory a sorted run can take before it is written to disk and merged
+    private static final int SORT_RUN_MEMORY_LIMIT = 32 * 1024 * 1024;
+    // rows drained from FTGS ahead of the writer: up to PIPELINE_RING_SIZE batches of PIPELINE_BATCH_ROWS rows
+    // or PIPELINE_BATCH_BYTES bytes each
+    private static final int PIPELINE_RING_SIZE = 8;
+    private static final int PIPELINE_BATCH_ROWS = 4096;
+    private static final long PIPELINE_BATCH_BYTES = 1024 * 1024;
+    // one thread per query writing results, the number of those is bounded by query admission
+    private static final ExecutorService rowProducerExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("IQL-Row-Producer", true));
     private static final Logger log = Logger.getLogger(IQLQuery.class);
     private static final Period executionTimeout = Period.minutes(6);
+    private static final long DAY_SECONDS = 24 * 60 * 60;
     public static final String TEMP_FILE_PREFIX = "iql_tmp";
     private static final String EVENT_SOURCE_END = "\n\n";
+    private static final byte[] EVENT_SOURCE_DATA_PREFIX = "data: ".getBytes(Charsets.UTF_8);
 
     private final List<Stat> stats;
     private final String dataset;
@@ -80,12 +102,27 @@ public final class IQLQuery implements Closeable {
     private final List<ShardIdWithVersion> shardVersionList;
     private final List<Interval> timeIntervalsMissingShards;
     private final ImhotepClient.SessionBuilder sessionBuilder;
+    private final ImhotepClient client;
+    private final String username;
+    private final String filterKey;
+    private @Nullable GroupStatsCache groupStatsCache;
+    private QueryProgress progress = new QueryProgress();
+    private CancellationToken cancellationToken = new CancellationToken();
+    // time the execution times out at, 0 to start the timeout when the execution starts
+    private long timeoutTS = 0;
     // session used for the current execution
     private EZImhotepSession session;
 
     public IQLQuery(ImhotepClient client, final List<Stat> stats, final String dataset, final DateTime start, final DateTime end,
                     final @Nonnull List<Condition> conditions, final @Nonnull List<Grouping> groupings, final int rowLimit,
-                    final String username, ImhotepMetadataCache metadata) {
+                    final String username, ImhotepMetadataCache metadata, final String filterKey) {
+        this(client, stats, dataset, start, end, conditions, groupings, rowLimit, username, metadata, filterKey, null);
+    }
+
+    private IQLQuery(ImhotepClient client, final List<Stat> stats, final String dataset, final DateTime start, final DateTime end,
+                     final @Nonnull List<Condition> conditions, final @Nonnull List<Grouping> groupings, final int rowLimit,
+                     final String username, ImhotepMetadataCache metadata, final String filterKey,
+                     @Nullable List<ShardIdWithVersion> shards) {
         this.stats = stats;
         this.dataset = dataset;
         this.start = start;
@@ -94,12 +131,129 @@ public final class IQLQuery implements Closeable {
         this.groupings = groupings;
         this.rowLimit = rowLimit;
         this.metadata = metadata;
+        this.client = client;
+        this.username = username;
+        this.filterKey = filterKey;
 
         sessionBuilder = client.sessionBuilder(dataset, start, end).username(username);
-        shardVersionList = sessionBuilder.getChosenShards();
+        if (shards != null) {
+            final List<String> shardIds = Lists.newArrayListWithCapacity(shards.size());
+            for (ShardIdWithVersion shard : shards) {
+                shardIds.add(shard.getShardId());
+            }
+            sessionBuilder.shardsOverride(shardIds);
+            shardVersionList = shards;
+        } else {
+            shardVersionList = sessionBuilder.getChosenShards();
+        }
         timeIntervalsMissingShards = sessionBuilder.getTimeIntervalsMissingShards();
     }
 
+    /**
+     * Returns the same query over a different time range.
+     */
+    public IQLQuery withTimeRange(DateTime start, DateTime end) {
+        return withTimeRange(start, end, null);
+    }
+
+    /**
+     * Returns the same query over a different time range that only reads the given shards, or all shards of the range
+     * if shards is null.
+     */
+    IQLQuery withTimeRange(DateTime start, DateTime end, @Nullable List<ShardIdWithVersion> shards) {
+        final IQLQuery query = new IQLQuery(client, stats, dataset, start, end, conditions, groupings, rowLimit, username, metadata, filterKey, shards);
+        query.setGroupStatsCache(groupStatsCache);
+        query.setProgress(progress);
+        query.setCancellationToken(cancellationToken);
+        query.setTimeoutTS(timeoutTS);
+        return query;
+    }
+
+    /**
+     * Sets the cache used to look up and store the stats of the filtered session so that totals and ungrouped
+     * queries with the same filters don't have to run against Imhotep again.
+     */
+    public void setGroupStatsCache(@Nullable GroupStatsCache groupStatsCache) {
+        this.groupStatsCache = groupStatsCache;
+    }
+
+    /**
+     * Sets the counters the execution reports its phase, groups, FTGS terms and written rows and bytes to.
+     */
+    public void setProgress(QueryProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Sets the token that cancels the execution. The Imhotep session of the execution is closed as soon as the
+     * token is cancelled and the execution stops with a QueryCancelledException at its next check.
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Sets the time the execution times out at so that a query executed in parts shares one timeout.
+     * By default the timeout starts when the execution does.
+     */
+    public void setTimeoutTS(long timeoutTS) {
+        this.timeoutTS = timeoutTS;
+    }
+
+    /**
+     * Returns the time an execution starting now times out at.
+     */
+    public static long newTimeoutTS() {
+        return System.currentTimeMillis() + executionTimeout.toStandardSeconds().getSeconds() * 1000;
+    }
+
+    /**
+     * Returns whether the rows of the query over a time range can be computed by adding up the rows of the query
+     * over disjoint parts of the range. This is the case when all stats are per document sums and all groupings
+     * are plain field groupings. Field groupings without top k explode every group with all the terms that are
+     * present, so the rows form the cross product of the terms of each grouping.
+     */
+    public boolean isAdditive() {
+        for (Stat stat : stats) {
+            if (!stat.isAdditive()) {
+                return false;
+            }
+        }
+        for (Grouping grouping : groupings) {
+            if (!(grouping instanceof FieldGrouping)) {
+                return false;
+            }
+            final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+            if (fieldGrouping.getTopK() > 0 || fieldGrouping.isNoExplode()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a rough estimate of the resources the query takes to execute, used to schedule queries.
+     * The cost is proportional to the data scanned, the number of shards or days in the range, and grows with each
+     * grouping by the number of groups it tends to create. Distinct and percentile add per group state.
+     */
+    public long estimateCost() {
+        final long days = Math.max(1, new Duration(start, end).getStandardDays());
+        long cost = Math.max(days, shardVersionList != null ? shardVersionList.size() : 0);
+        for (Grouping grouping : groupings) {
+            final int multiplier;
+            if (grouping instanceof FieldGrouping) {
+                final FieldGrouping fieldGrouping = (FieldGrouping) grouping;
+                multiplier = fieldGrouping.getTopK() > 0 || fieldGrouping.isNoExplode() ? 2 : 4;
+            } else if (grouping instanceof DistinctGrouping || grouping instanceof PercentileGrouping) {
+                multiplier = 4;
+            } else {
+                multiplier = 2;
+            }
+            cost = Math.min(cost * multiplier, Integer.MAX_VALUE);
+        }
+        return cost;
+    }
+
     /**
      * Not thread safe due to session reference caching for close().
      */
@@ -108,24 +262,33 @@ public final class IQLQuery implements Closeable {
         final PrintWriter out = progress ? new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(outputStream), Charsets.UTF_8)) : null;
 
         final TreeTimer timer = new TreeTimer();
-        timer.push("Imhotep session creation");
-        final ImhotepSession imhotepSession = sessionBuilder.build();
-        session = new EZImhotepSession(imhotepSession);
-        timer.pop();
-
-        final long timeoutTS = System.currentTimeMillis() + executionTimeout.toStandardSeconds().getSeconds() * 1000;
+        final String statsCacheKey = getStatsCacheKey();
+        final double[] cachedStats = statsCacheKey != null && (getTotals || groupings.isEmpty()) ? getCachedStats(statsCacheKey) : null;
+        final int steps = conditions.size() + (groupings.size() == 0 ? 1 : groupings.size()) - 1;
+        if (cachedStats != null && groupings.size() == 0) {
+            if(progress) {
+                // the client gets the same events as when the stats are computed
+                beginProgress(out, steps);
+                out.print(": Stats read from the group stats cache" + EVENT_SOURCE_END);
+                int count = 0;
+                for (int i = 0; i <= conditions.size(); i++) {
+                    count = updateProgress(true, out, count);
+                }
+            }
+            final List<GroupStats> result = Lists.newArrayList();
+            result.add(new GroupStats(GroupKeyTable.root(), 1, cachedStats));
+            return new ExecutionResult(result.iterator(), cachedStats, "Stats read from the group stats cache");
+        }
 
+        final long timeoutTS = startSession(timer);
         try {
-            final int steps = conditions.size() + (groupings.size() == 0 ? 1 : groupings.size()) - 1;
             int count = 0;
             if(progress) {
-                out.println(": Beginning IQL Query");
-                out.println("event: totalsteps");
-                out.print("data: " + steps + EVENT_SOURCE_END);
+                beginProgress(out, steps);
                 out.print(": Starting time filter" + EVENT_SOURCE_END);
                 out.flush();
             }
-            timer.push("Time filter");
+            startPhase(timer, "Time filter");
             timeFilter(session);
             timer.pop();
             if(progress) {
@@ -135,7 +298,7 @@ public final class IQLQuery implements Closeable {
 
             for (Condition condition : conditions) {
                 checkTimeout(timeoutTS);
-                timer.push("Filtering " + condition.getClass().getSimpleName());
+                startPhase(timer, "Filtering " + condition.getClass().getSimpleName());
                 condition.filter(session);
                 timer.pop();
                 count = updateProgress(progress, out, count);
@@ -145,53 +308,208 @@ public final class IQLQuery implements Closeable {
                 List<StatReference> statRefs = null;
                 double[] totals = new double[0];
                 if(getTotals) {
-                    timer.push("Pushing stats");
+                    startPhase(timer, "Pushing stats");
                     statRefs = pushStats(session);
                     timer.pop();
-                    timer.push("Getting totals");
-                    totals = getStats(statRefs);
+                    startPhase(timer, "Getting totals");
+                    totals = cachedStats != null ? cachedStats : getStats(statRefs, statsCacheKey);
                     timer.pop();
                 }
 
-                Map<Integer, GroupKey> groupKeys = EZImhotepSession.newGroupKeys();
+                GroupKeyTable groupKeys = EZImhotepSession.newGroupKeys();
                 // do Imhotep regroup on all except the last grouping
                 for (int i = 0; i < groupings.size()-1; i++) {
                     checkTimeout(timeoutTS);
-                    timer.push("Regroup " + (i + 1));
+                    startPhase(timer, "Regroup " + (i + 1));
                     groupKeys = groupings.get(i).regroup(session, groupKeys);
+                    this.progress.setGroupsCreated(groupKeys.size());
                     timer.pop();
                     count = updateProgress(progress, out, count);
                 }
                 checkTimeout(timeoutTS);
                 if(!getTotals) {
-                    timer.push("Pushing stats");
+                    startPhase(timer, "Pushing stats");
                     statRefs = pushStats(session);
                     timer.pop();
                 }
                 // do FTGS on the last grouping
-                timer.push("FTGS");
+                startPhase(timer, "FTGS");
                 final Iterator<GroupStats> groupStatsIterator = groupings.get(groupings.size() - 1).getGroupStats(session, groupKeys, statRefs, timeoutTS);
                 timer.pop();
                 updateProgress(progress, out, count);
                 return new ExecutionResult(groupStatsIterator, totals, timer.toString());
             } else {
-                timer.push("Pushing stats");
+                startPhase(timer, "Pushing stats");
                 final List<StatReference> statRefs = pushStats(session);
                 timer.pop();
-                timer.push("Getting stats");
-                final double[] stats = getStats(statRefs);
+                startPhase(timer, "Getting stats");
+                final double[] stats = getStats(statRefs, statsCacheKey);
                 timer.pop();
                 count = updateProgress(progress, out, count);
                 final List<GroupStats> result = Lists.newArrayList();
-                result.add(new GroupStats(GroupKey.<Comparable>empty(), stats));
+                result.add(new GroupStats(GroupKeyTable.root(), 1, stats));
                 return new ExecutionResult(result.iterator(), stats, timer.toString());
             }
         } catch (Throwable t) {
+            if (cancellationToken.isCancelled()) {
+                log.info("Query execution was cancelled: " + cancellationToken.getReason());
+                throw t instanceof RuntimeException ? cancellationToken.translate((RuntimeException) t) : new QueryCancelledException(cancellationToken.getReason(), t);
+            }
             log.error("Error while executing the query", t);
             throw Throwables.propagate(t);
         }
     }
 
+    /**
+     * Executes the query in one session with the documents grouped by day before the groupings of the query so that
+     * the partial results of several days are computed at once. The days are the whole days of the time zone of
+     * start, which has to have a fixed offset, with the first and the last clipped to the time range. Days that have
+     * none of the shards of the query get no rows, and each day only gets the rows of the terms that occur on it.
+     * The rows have the day they belong to prepended to their key and are in the order execute() returns them within
+     * each day. The totals are returned by day.
+     */
+    DailyExecutionResult executeByDay() throws ImhotepOutOfMemoryException {
+        if (!start.getZone().isFixed()) {
+            throw new IllegalStateException("Days of " + start.getZone() + " don't have a fixed length");
+        }
+        final DateTime firstDay = start.withTimeAtStartOfDay();
+        final long firstDaySeconds = firstDay.getMillis() / 1000;
+        final int numDays = (int) ((end.getMillis() / 1000 - firstDaySeconds + DAY_SECONDS - 1) / DAY_SECONDS);
+        final TreeTimer timer = new TreeTimer();
+        final long timeoutTS = startSession(timer);
+        try {
+            startPhase(timer, "Time filter");
+            timeFilter(session);
+            timer.pop();
+            for (Condition condition : conditions) {
+                checkTimeout(timeoutTS);
+                startPhase(timer, "Filtering " + condition.getClass().getSimpleName());
+                condition.filter(session);
+                timer.pop();
+            }
+
+            checkTimeout(timeoutTS);
+            startPhase(timer, "Regroup by day");
+            final SingleStatReference timeStat = session.pushStat(EZImhotepSession.intField(getTimeField()));
+            final DayStringifier dayStringifier = new DayStringifier(start.getZone());
+            GroupKeyTable groupKeys = session.metricRegroup(timeStat, firstDaySeconds, firstDaySeconds + numDays * DAY_SECONDS,
+                    DAY_SECONDS, true, dayStringifier, null);
+            session.popStat();
+            // the bucket terms metricRegroup creates
+            final Map<Object, DateTime> days = Maps.newHashMap();
+            for (int day = 0; day < numDays; day++) {
+                final long daySeconds = firstDaySeconds + day * DAY_SECONDS;
+                days.put(String.format("[%s, %s)", dayStringifier.toString(daySeconds), dayStringifier.toString(daySeconds + DAY_SECONDS)),
+                        firstDay.plusDays(day));
+            }
+            timer.pop();
+
+            startPhase(timer, "Pushing stats");
+            final List<StatReference> statRefs = pushStats(session);
+            timer.pop();
+            startPhase(timer, "Getting totals");
+            final Map<DateTime, double[]> dayTotals = Maps.newHashMap();
+            for (int day = 0; day < numDays; day++) {
+                dayTotals.put(firstDay.plusDays(day), new double[statRefs.size()]);
+            }
+            for (int i = 0; i < statRefs.size(); i++) {
+                final double[] groupStat = session.getGroupStats(statRefs.get(i));
+                for (int day = 0; day < numDays && day + 1 < groupStat.length; day++) {
+                    dayTotals.get(firstDay.plusDays(day))[i] = groupStat[day + 1];
+                }
+            }
+            timer.pop();
+
+            final Iterator<GroupStats> rows;
+            if (groupings.isEmpty()) {
+                final List<GroupStats> result = Lists.newArrayList();
+                for (int day = 0; day < numDays; day++) {
+                    if (groupKeys.contains(day + 1)) {
+                        result.add(new GroupStats(groupKeys, day + 1, dayTotals.get(firstDay.plusDays(day))));
+                    }
+                }
+                rows = result.iterator();
+            } else {
+                // the document counts tell which terms occur on each day
+                final DayTermFilter dayTermFilter = new DayTermFilter(groupings.size());
+                final StatReference countStat = session.pushStat(EZImhotepSession.counts());
+                for (int i = 0; i < groupings.size() - 1; i++) {
+                    checkTimeout(timeoutTS);
+                    startPhase(timer, "Regroup " + (i + 1));
+                    groupKeys = groupings.get(i).regroup(session, groupKeys);
+                    this.progress.setGroupsCreated(groupKeys.size());
+                    dayTermFilter.addGroups(groupKeys, session.getGroupStats(countStat));
+                    timer.pop();
+                }
+                checkTimeout(timeoutTS);
+                startPhase(timer, "FTGS");
+                final List<StatReference> statRefsWithCount = Lists.newArrayList(statRefs);
+                statRefsWithCount.add(countStat);
+                rows = dayTermFilter.filter(groupings.get(groupings.size() - 1).getGroupStats(session, groupKeys, statRefsWithCount, timeoutTS)).iterator();
+                timer.pop();
+            }
+            return new DailyExecutionResult(rows, days, dayTotals, timer.toString());
+        } catch (Throwable t) {
+            if (cancellationToken.isCancelled()) {
+                log.info("Query execution was cancelled: " + cancellationToken.getReason());
+                throw t instanceof RuntimeException ? cancellationToken.translate((RuntimeException) t) : new QueryCancelledException(cancellationToken.getReason(), t);
+            }
+            log.error("Error while executing the query", t);
+            throw Throwables.propagate(t);
+        }
+    }
+
+    /**
+     * Opens the Imhotep session of the execution and returns the time the execution times out at.
+     */
+    private long startSession(TreeTimer timer) {
+        cancellationToken.throwIfCancelled();
+        startPhase(timer, "Imhotep session creation");
+        final ImhotepSession imhotepSession = sessionBuilder.build();
+        session = new EZImhotepSession(imhotepSession);
+        session.setFtgsTermCounter(this.progress.getFtgsTermCounter());
+        session.setCancellationToken(cancellationToken);
+        cancellationToken.closeOnCancel(session);
+        timer.pop();
+
+        final long timeoutTS = this.timeoutTS > 0 ? this.timeoutTS : newTimeoutTS();
+        // lets the FTGS loops enforce the timeout while the rows are being iterated
+        cancellationToken.setDeadline(timeoutTS, getTimeoutMessage());
+        return timeoutTS;
+    }
+
+    /**
+     * Formats the bucket boundaries of the day regroup as the date of the day they start.
+     */
+    private static final class DayStringifier implements Stringifier<Long> {
+        private final DateTimeZone zone;
+
+        private DayStringifier(DateTimeZone zone) {
+            this.zone = zone;
+        }
+
+        @Override
+        public String toString(Long seconds) {
+            return new DateTime(seconds * 1000, zone).toLocalDate().toString();
+        }
+
+        @Override
+        public Long fromString(String s) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private void startPhase(TreeTimer timer, String phase) {
+        timer.push(phase);
+        progress.setPhase(phase);
+    }
+
+    private static void beginProgress(PrintWriter out, int steps) {
+        out.println(": Beginning IQL Query");
+        out.println("event: totalsteps");
+        out.print("data: " + steps + EVENT_SOURCE_END);
+    }
+
     private int updateProgress(boolean progress, PrintWriter out, int count) {
         count++;
         if(progress) {
@@ -202,15 +520,48 @@ public final class IQLQuery implements Closeable {
         return count;
     }
 
-    private double[] getStats(List<StatReference> statRefs) {
+    private double[] getStats(List<StatReference> statRefs, @Nullable String statsCacheKey) {
         final double[] stats = new double[statRefs.size()];
         for (int i = 0; i < statRefs.size(); i++) {
             final double[] groupStat = session.getGroupStats(statRefs.get(i));
+            if (statsCacheKey != null) {
+                groupStatsCache.put(statsCacheKey, this.stats.get(i).toString(), groupStat);
+            }
             stats[i] = groupStat.length > 1 ? groupStat[1] : 0;
         }
         return stats;
     }
 
+    /**
+     * Returns the key of the filtered session in the group stats cache or null if the stats can't be cached.
+     */
+    private @Nullable String getStatsCacheKey() {
+        if (groupStatsCache == null) {
+            return null;
+        }
+        for (Stat stat : stats) {
+            if (!stat.isCacheable()) {
+                return null;
+            }
+        }
+        return GroupStatsCache.getSessionKey(dataset, start, end, filterKey, shardVersionList);
+    }
+
+    /**
+     * Returns the stats of the filtered session if all of them are cached.
+     */
+    private @Nullable double[] getCachedStats(String statsCacheKey) {
+        final double[] ret = new double[stats.size()];
+        for (int i = 0; i < stats.size(); i++) {
+            final double[] groupStat = groupStatsCache.get(statsCacheKey, stats.get(i).toString());
+            if (groupStat == null) {
+                return null;
+            }
+            ret[i] = groupStat.length > 1 ? groupStat[1] : 0;
+        }
+        return ret;
+    }
+
     public static class ExecutionResult {
         private final Iterator<GroupStats> rows;
         private final double[] totals;
@@ -235,6 +586,52 @@ public final class IQLQuery implements Closeable {
         }
     }
 
+    /**
+     * Rows of a query executed by day with the totals of each day.
+     */
+    static final class DailyExecutionResult {
+        private final Iterator<GroupStats> rows;
+        private final Map<Object, DateTime> days;
+        private final Map<DateTime, double[]> totals;
+        private final String timings;
+
+        private DailyExecutionResult(Iterator<GroupStats> rows, Map<Object, DateTime> days, Map<DateTime, double[]> totals, String timings) {
+            this.rows = rows;
+            this.days = days;
+            this.totals = totals;
+            this.timings = timings;
+        }
+
+        /**
+         * Returns the rows with the term of the day they belong to first in their key.
+         */
+        Iterator<GroupStats> getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns the start of the day the first term of a row key stands for.
+         */
+        DateTime getDay(Object dayTerm) {
+            final DateTime day = days.get(dayTerm);
+            if (day == null) {
+                throw new IllegalStateException("Not a day of the execution: " + dayTerm);
+            }
+            return day;
+        }
+
+        /**
+         * Returns the totals of the day starting at day.
+         */
+        double[] getTotals(DateTime day) {
+            return totals.get(day);
+        }
+
+        String getTimings() {
+            return timings;
+        }
+    }
+
     private void timeFilter(EZImhotepSession session) throws ImhotepOutOfMemoryException {
         final Pair<Long, Long> shardsMinMax = getShardsMinMax(shardVersionList);
         final long min = shardsMinMax.getFirst();
@@ -246,15 +643,21 @@ public final class IQLQuery implements Closeable {
     }
 
     /**
-     * Throws UncheckedTimeoutException if current time is past the provided timeout timestamp.
+     * Throws UncheckedTimeoutException if current time is past the provided timeout timestamp and
+     * QueryCancelledException if the query was cancelled.
      * @param timeoutTS timestamp of when the query times out in milliseconds
      */
     public void checkTimeout(long timeoutTS) {
+        cancellationToken.throwIfCancelled();
         if(System.currentTimeMillis() > timeoutTS) {
-            throw new UncheckedTimeoutException("The query took longer than the allowed timeout of " + executionTimeout.toString(PeriodFormat.getDefault()));
+            throw new UncheckedTimeoutException(getTimeoutMessage());
         }
     }
 
+    private static String getTimeoutMessage() {
+        return "The query took longer than the allowed timeout of " + executionTimeout.toString(PeriodFormat.getDefault());
+    }
+
     /**
      * Returns minimum and maximum milliseconds covered by the list of shards
      */
@@ -288,137 +691,167 @@ public final class IQLQuery implements Closeable {
     }
 
     private boolean requiresSorting() {
-        // TODO: enable sorting
-//        if(groupings.size() > 0) {
-//            final Grouping lastGrouping = groupings.get(groupings.size() - 1);
-//            if(lastGrouping instanceof FieldGrouping && ((FieldGrouping)lastGrouping).isNoExplode()) {
-//                return true;    // currently we only have to sort when using non-exploded field grouping as the last grouping
-//            }
-//        }
+        if(groupings.size() > 0) {
+            final Grouping lastGrouping = groupings.get(groupings.size() - 1);
+            if(lastGrouping instanceof FieldGrouping && ((FieldGrouping)lastGrouping).isNoExplode()) {
+                return true;    // currently we only have to sort when using non-exploded field grouping as the last grouping
+            }
+        }
         return false;
     }
 
     public static class WriteResults {
         public final int rowsWritten;
-        public final File unsortedFile;
+        public final File cacheFile;
+        // all rows rendered in the requested format while they were sent and the RowOffsetIndex of the copy
+        public final File renderedFile;
+        public final File renderedIndexFile;
         public final Iterator<GroupStats> resultCacheIterator;
         public final long timeTaken;
+        private final boolean overflowedToDisk;
+
+        public WriteResults(int rowsWritten, File cacheFile, Iterator<GroupStats> resultCacheIterator, long timeTaken) {
+            this(rowsWritten, cacheFile, null, null, resultCacheIterator, timeTaken, cacheFile != null);
+        }
 
-        public WriteResults(int rowsWritten, File unsortedFile, Iterator<GroupStats> resultCacheIterator, long timeTaken) {
+        public WriteResults(int rowsWritten, File cacheFile, File renderedFile, File renderedIndexFile, Iterator<GroupStats> resultCacheIterator, long timeTaken, boolean overflowedToDisk) {
             this.rowsWritten = rowsWritten;
-            this.unsortedFile = unsortedFile;
+            this.cacheFile = cacheFile;
+            this.renderedFile = renderedFile;
+            this.renderedIndexFile = renderedIndexFile;
             this.resultCacheIterator = resultCacheIterator;
             this.timeTaken = timeTaken;
+            this.overflowedToDisk = overflowedToDisk;
         }
 
         public boolean didOverflowToDisk() {
-            return unsortedFile != null;
+            return overflowedToDisk;
         }
     }
 
+    /**
+     * Writes the rows to the client. Unless caching is disabled the rows are also encoded as a ResultArtifact into
+     * a temp file returned in WriteResults.cacheFile and rendered into WriteResults.renderedFile, which the caller
+     * has to upload and delete.
+     */
     @Nonnull
-    public WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, int groupingColumns, int selectColumns, boolean cacheDisabled) {
-        final long timeStarted = System.currentTimeMillis();
-        final boolean requiresSorting = requiresSorting();
-        if(cacheDisabled && !requiresSorting) { // just stream the rows out. don't have to worry about keeping a copy at all
-            final int rowsWritten = writeRowsToStream(rows, httpOutStream, csv, rowLimit, progress);
-            return new WriteResults(rowsWritten, null, null, System.currentTimeMillis() - timeStarted);
+    public WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, boolean cacheDisabled) {
+        try {
+            final File cacheFile = cacheDisabled ? null : File.createTempFile(TEMP_FILE_PREFIX, null);
+            return outputResults(rows, httpOutStream, csv, progress, rowLimit, cacheFile);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
         }
+    }
 
-        List<GroupStats> resultsCache = Lists.newArrayList();
-
-        int rowsLoaded = 0;
-        boolean cacheOverflow = false;
-        while(rows.hasNext()) {
-            resultsCache.add(rows.next());
-
-            if((++rowsLoaded) >= IN_MEMORY_ROW_LIMIT) {
-                cacheOverflow = true;
-                break;
+    /**
+     * Writes the rows to the client and, if cacheFile is not null, a result artifact into the file as they are written.
+     * The rows are then also rendered once for both the client and a copy of all rows in temp files returned in
+     * WriteResults. The files are deleted if the rows can't be written.
+     */
+    public WriteResults outputResults(Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit, @Nullable File cacheFile) {
+        final long timeStarted = System.currentTimeMillis();
+        this.progress.setPhase("Writing results");
+        rows = this.progress.countRows(rows);
+        httpOutStream = this.progress.countBytes(httpOutStream);
+        // grouped rows are produced lazily by FTGS which is drained on another thread while this one writes
+        final RowPipeline pipeline = groupings.isEmpty() ? null : new RowPipeline(rows, PIPELINE_RING_SIZE,
+                PIPELINE_BATCH_ROWS, PIPELINE_BATCH_BYTES, cancellationToken, rowProducerExecutor);
+        File renderedFile = null;
+        File renderedIndexFile = null;
+        boolean written = false;
+        try {
+            if (cacheFile != null) {
+                renderedFile = File.createTempFile(TEMP_FILE_PREFIX, null);
+                renderedIndexFile = File.createTempFile(TEMP_FILE_PREFIX, null);
+            }
+            final WriteResults writeResults = outputResults(pipeline != null ? pipeline.iterator() : rows, httpOutStream, csv, progress, rowLimit,
+                    cacheFile, renderedFile, renderedIndexFile, timeStarted);
+            written = true;
+            return writeResults;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            if (!written) {
+                deleteFile(cacheFile);
+                deleteFile(renderedFile);
+                deleteFile(renderedIndexFile);
             }
         }
+    }
 
-        // TODO: figure out the size of the resulting data for reporting or limiting?
-        if(!cacheOverflow) {
-            // results fit in memory. stream them out
-            // TODO: in memory sort if necessary? or just always defer to gnu sort?
-            final int rowsWritten = writeRowsToStream(resultsCache.iterator(), httpOutStream, csv, rowLimit, progress);
-            return new WriteResults(rowsWritten, null, resultsCache.iterator(), System.currentTimeMillis() - timeStarted);
-        } else {    // have to work with the files on the hard drive to avoid OOM
-            try {
-                final File unsortedFile = File.createTempFile(TEMP_FILE_PREFIX, null);
-                final FileOutputStream fileOutputStream = new FileOutputStream(unsortedFile);
-                final long started = System.currentTimeMillis();
-                int rowsWritten = 0;
-                // flush cache
-                rowsWritten += writeRowsToStream(resultsCache.iterator(), fileOutputStream, csv, Integer.MAX_VALUE, false);
-                //noinspection UnusedAssignment
-                resultsCache = null;    // let it be GC'd
-                // save the remaining rows to disk
-                rowsWritten += writeRowsToStream(rows, fileOutputStream, csv, Integer.MAX_VALUE, false);
-                fileOutputStream.close();
-                log.trace("Stored on disk to " + unsortedFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
-
-                final File sortedFile;
-                if(requiresSorting) { // do on disk sort with gnu sort
-                    sortedFile = sortFile(unsortedFile, groupingColumns, selectColumns);
-                } else {
-                    sortedFile = unsortedFile;
-                }
-
-                // send the results out to the client
-                copyStream(new FileInputStream(sortedFile), httpOutStream, rowLimit, progress);
+    private static void deleteFile(@Nullable File file) {
+        if (file != null && !file.delete() && file.exists()) {
+            log.info("Failed to delete: " + file.getPath());
+        }
+    }
 
-                return new WriteResults(rowsWritten, unsortedFile, null, System.currentTimeMillis() - timeStarted);
+    private WriteResults outputResults(final Iterator<GroupStats> rows, OutputStream httpOutStream, final boolean csv, final boolean progress, final int rowLimit,
+                                       @Nullable File cacheFile, @Nullable File renderedFile, @Nullable File renderedIndexFile, long timeStarted) {
+        if(!requiresSorting()) {
+            // rows go out as they are produced, to the client and into the cache file at the same time
+            try {
+                final int rowsWritten = cacheFile != null ?
+                        writeRowsToStreamAndFiles(rows, httpOutStream, cacheFile, renderedFile, renderedIndexFile, csv, rowLimit, progress) :
+                        writeRowsToStream(rows, httpOutStream, csv, rowLimit, progress);
+                return new WriteResults(rowsWritten, cacheFile, renderedFile, renderedIndexFile, null, System.currentTimeMillis() - timeStarted, false);
             } catch (IOException e) {
                 throw Throwables.propagate(e);
             }
         }
-    }
 
-    /**
-     * Sorts the given file by invoking gnu 'sort' command and returns a reference to the sorted copy.
-     * Expects inputFile to have ".tmp" in the name
-     */
-    private File sortFile(File inputFile, int groupingColumns, int selectColumns) {
+        // the sorter keeps the rows as binary records and writes sorted runs to disk once they outgrow its memory limit
+        final ResultSorter resultSorter = new ResultSorter(SORT_RUN_MEMORY_LIMIT);
         try {
-            final long started;
-            final File sortedFile;
-            started = System.currentTimeMillis();
-            sortedFile = new File(inputFile.getPath().replace(".tmp", ".sorted.tmp"));
-            final List<String> sortCmd = Lists.newArrayList("sort", "-o", sortedFile.getPath(), "-t", "\t");
-
-            // TODO: custom sorting orders
-            for(int i = 1; i <= groupingColumns; i++) {
-                sortCmd.add("-k" + i + "," + i);
-            }
-            for(int i = groupingColumns + 1; i <= groupingColumns + selectColumns; i++) {
-                sortCmd.add("-k" + i + "," + i + "n");
-            }
-            sortCmd.add(inputFile.getPath());
-            log.trace(IQLQuery.join(sortCmd, " "));
-
-            final Process sortProc = Runtime.getRuntime().exec(sortCmd.toArray(new String[sortCmd.size()]), null);
-            sortProc.waitFor();
-            log.trace("Sorted to: " + sortedFile.getPath() + " in " + (System.currentTimeMillis() - started) + "ms");
-            return sortedFile;
+            final long started = System.currentTimeMillis();
+            final Iterator<GroupStats> resultRows = resultSorter.sort(rows);
+            log.trace("Sorted the rows in " + (System.currentTimeMillis() - started) + "ms" +
+                    (resultSorter.didSpillToDisk() ? " with runs on disk" : ""));
+
+            final int rowsWritten = cacheFile != null ?
+                    writeRowsToStreamAndFiles(resultRows, httpOutStream, cacheFile, renderedFile, renderedIndexFile, csv, rowLimit, progress) :
+                    writeRowsToStream(resultRows, httpOutStream, csv, rowLimit, progress);
+            return new WriteResults(rowsWritten, cacheFile, renderedFile, renderedIndexFile, null, System.currentTimeMillis() - timeStarted, resultSorter.didSpillToDisk());
         } catch (IOException e) {
             throw Throwables.propagate(e);
-        } catch (InterruptedException e) {
-            throw Throwables.propagate(e);
+        } finally {
+            resultSorter.close();
         }
     }
 
-    private static String join(Collection items, String delimiter) {
-        final StringBuilder sb = new StringBuilder(items.size() * 7);
-
-        for (final Iterator it = items.iterator(); it.hasNext(); ) {
-            sb.append(it.next());
-            if (it.hasNext()) {
-                sb.append(delimiter);
+    /**
+     * Writes the rows to the client stream, a result artifact into the cache file and all rows rendered as for the
+     * client into the rendered file with its RowOffsetIndex. The files are closed even if writing fails.
+     */
+    private static int writeRowsToStreamAndFiles(final Iterator<GroupStats> rows, OutputStream clientStream, File cacheFile, File renderedFile,
+                                                 File renderedIndexFile, final boolean csv, final int rowLimit, final boolean progress) throws IOException {
+        final List<Closeable> files = Lists.newArrayList();
+        boolean written = false;
+        try {
+            final OutputStream cacheStream = new FileOutputStream(cacheFile);
+            files.add(cacheStream);
+            final OutputStream renderedStream = new BufferedOutputStream(new FileOutputStream(renderedFile));
+            files.add(renderedStream);
+            final OutputStream indexStream = new FileOutputStream(renderedIndexFile);
+            files.add(indexStream);
+            final ResultArtifact.Writer cacheWriter = new ResultArtifact.Writer(cacheStream);
+            final RowOffsetIndex.Writer index = new RowOffsetIndex.Writer(indexStream);
+            final int rowsWritten = writeRowsToStreams(rows, clientStream, cacheWriter, renderedStream, index, csv, rowLimit, progress);
+            cacheWriter.close();
+            renderedStream.close();
+            index.close();
+            written = true;
+            return rowsWritten;
+        } finally {
+            if (!written) {
+                for (Closeable file : files) {
+                    Closeables2.closeQuietly(file, log);
+                }
             }
         }
-        return sb.toString();
     }
 
     /**
@@ -474,69 +907,192 @@ public final class IQLQuery implements Closeable {
     }
 
     public static int writeRowsToStream(final Iterator<GroupStats> rows, OutputStream os, final boolean csv, final int rowLimit, final boolean progress) {
-        // TODO: how much precision do we want?
-        final DecimalFormat format = new DecimalFormat("#.#######");
-        final String tsvDelimiter = "\t";
-        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os), Charsets.UTF_8));
-
-        final CSVWriter csvWriter;
-        final List<String> csvFields;
-        if(csv) {
-            csvWriter = new CSVWriter(out);
-            csvFields = Lists.newArrayList();
-        } else {
-            csvWriter = null;
-            csvFields = null;
+        return writeRowsToStreams(rows, os, null, null, null, csv, rowLimit, progress);
+    }
+
+    /**
+     * Writes the rows to the client stream, up to rowLimit rows and with the event source framing if progress is
+     * requested, and adds all rows to the cache artifact if one is given. Rows past the limit are not formatted.
+     * Returns the number of rows written to the client stream. The client stream is flushed but not closed.
+     */
+    public static int writeRowsToStreams(final Iterator<GroupStats> rows, OutputStream clientStream, @Nullable ResultArtifact.Writer cacheWriter, final boolean csv, final int rowLimit, final boolean progress) {
+        return writeRowsToStreams(rows, clientStream, cacheWriter, null, null, csv, rowLimit, progress);
+    }
+
+    /**
+     * Same as above and also writes every row, formatted once for both, into the rendered copy without the event
+     * source framing and records its length in the index.
+     */
+    static int writeRowsToStreams(final Iterator<GroupStats> rows, OutputStream clientStream, @Nullable ResultArtifact.Writer cacheWriter,
+                                  @Nullable OutputStream renderedCopy, @Nullable RowOffsetIndex.Writer index, final boolean csv, final int rowLimit, final boolean progress) {
+        final RowWriter rowWriter = new RowWriter(clientStream, renderedCopy, index, csv, rowLimit, progress);
+        boolean rendering = true;
+        // reused across rows so that rendering a key doesn't allocate
+        Object[] keyBuffer = new Object[8];
+
+        try {
+            rowWriter.start();
+            while (rows.hasNext()) {
+                final GroupStats entry = rows.next();
+                if (entry == null) {
+                    continue;
+                }
+                final int keyLength = entry.getKeyLength();
+                if (keyBuffer.length < keyLength) {
+                    keyBuffer = new Object[keyLength];
+                }
+                entry.copyKey(keyBuffer);
+                if(cacheWriter != null) {
+                    cacheWriter.add(keyBuffer, keyLength, entry.stats);
+                }
+                if(rendering) {
+                    rendering = rowWriter.write(keyBuffer, keyLength, entry.stats);
+                }
+                if(!rendering && cacheWriter == null) {
+                    break;
+                }
+            }
+            return rowWriter.finish();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
         }
-        int rowsProcessed = 0;
+    }
 
-        if(progress) {
-            out.println("event: resultstream");
+    /**
+     * Renders the rows of a cached ResultArtifact to the client stream, up to rowLimit rows and with the event
+     * source framing if progress is requested.
+     * Input stream is closed; output stream is flushed but not closed when done.
+     */
+    public static int writeArtifactToStream(InputStream artifactStream, OutputStream clientStream, final boolean csv, final int rowLimit, final boolean progress) {
+        return writeArtifactToStream(artifactStream, clientStream, null, csv, rowLimit, progress);
+    }
+
+    /**
+     * Renders all rows of a cached ResultArtifact to the text copy that is cached next to it and records the offset
+     * of every row in the index so that the copy can be served by byte count.
+     * Input stream is closed; output stream is flushed but not closed when done.
+     */
+    public static int renderArtifact(InputStream artifactStream, OutputStream textStream, RowOffsetIndex.Writer index, final boolean csv) {
+        return writeArtifactToStream(artifactStream, textStream, index, csv, Integer.MAX_VALUE, false);
+    }
+
+    private static int writeArtifactToStream(InputStream artifactStream, OutputStream clientStream, @Nullable RowOffsetIndex.Writer index, final boolean csv, final int rowLimit, final boolean progress) {
+        final RowWriter rowWriter = new RowWriter(clientStream, null, index, csv, rowLimit, progress);
+        ResultArtifact.Reader reader = null;
+        try {
+            reader = new ResultArtifact.Reader(artifactStream);
+            rowWriter.start();
+            while (reader.next()) {
+                if (!rowWriter.write(reader.getKey(), reader.getKeyLength(), reader.getStats())) {
+                    break;
+                }
+            }
+            return rowWriter.finish();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            Closeables2.closeQuietly(reader != null ? reader : artifactStream, log);
         }
+    }
 
-        while (rows.hasNext()) {
-            final GroupStats entry = rows.next();
-            if (entry == null) {
-                continue;
+    /**
+     * Formats rows as TSV or CSV into a reusable buffer and copies them to the client stream up to the row limit and
+     * to the copy if one is given, recording the length of every row in the index if one is given.
+     */
+    private static final class RowWriter {
+        // TODO: how much precision do we want?
+        private final DecimalFormat format = new DecimalFormat("#.#######");
+        private final ByteArrayOutputStream rowBytes = new ByteArrayOutputStream(256);
+        private final PrintWriter out = new PrintWriter(new OutputStreamWriter(rowBytes, Charsets.UTF_8));
+        private final OutputStream client;
+        @Nullable
+        private final OutputStream copy;
+        @Nullable
+        private final RowOffsetIndex.Writer index;
+        private final boolean csv;
+        private final int rowLimit;
+        private final boolean progress;
+        private final CSVWriter csvWriter;
+        private final List<String> csvFields;
+        private int rowsWritten = 0;
+
+        private RowWriter(OutputStream clientStream, @Nullable OutputStream copy, @Nullable RowOffsetIndex.Writer index, boolean csv, int rowLimit, boolean progress) {
+            client = new BufferedOutputStream(clientStream);
+            this.copy = copy;
+            this.index = index;
+            this.csv = csv;
+            this.rowLimit = rowLimit;
+            this.progress = progress;
+            if(csv) {
+                csvWriter = new CSVWriter(out);
+                csvFields = Lists.newArrayList();
+            } else {
+                csvWriter = null;
+                csvFields = null;
             }
-            if (progress) {
-                out.print("data: ");
+        }
+
+        private void start() throws IOException {
+            if(progress) {
+                client.write("event: resultstream\n".getBytes(Charsets.UTF_8));
             }
+        }
+
+        /**
+         * Writes the row and returns false once the row limit is reached and there is no copy to write all rows to.
+         */
+        private boolean write(Object[] key, int keyLength, double[] stats) throws IOException {
             if(!csv) { // TSV
-                GroupKey current = entry.groupKey;
-                while (!current.isEmpty()) {
-                    out.print(current.head());
-                    current = current.tail();
-                    if (!current.isEmpty()) {
-                        out.print(tsvDelimiter);
+                for (int i = 0; i < keyLength; i++) {
+                    if (i > 0) {
+                        out.print('\t');
                     }
+                    out.print(key[i]);
                 }
-                for (double l : entry.stats) {
-                    out.print(tsvDelimiter);
+                for (double l : stats) {
+                    out.print('\t');
                     out.print(Double.isNaN(l) ? "NaN" : format.format(l));
                 }
                 out.println();
             } else {    // csv
-                GroupKey current = entry.groupKey;
-                while (!current.isEmpty()) {
-                    csvFields.add(current.head().toString());
-                    current = current.tail();
+                for (int i = 0; i < keyLength; i++) {
+                    csvFields.add(key[i].toString());
                 }
-                for (double l : entry.stats) {
+                for (double l : stats) {
                     csvFields.add(format.format(l));
                 }
                 csvWriter.writeNext(csvFields.toArray(new String[csvFields.size()]));
                 csvFields.clear();  // reused on next iteration
             }
-            if(++rowsProcessed >= rowLimit) {
-                break;   // reached the requested row limit
+            out.flush();
+
+            if (index != null) {
+                index.addRow(rowBytes.size());
+            }
+            if (rowsWritten < rowLimit) {
+                if (progress) {
+                    client.write(EVENT_SOURCE_DATA_PREFIX);
+                }
+                rowBytes.writeTo(client);
+                rowsWritten++;
+            }
+            if (copy != null) {
+                rowBytes.writeTo(copy);
             }
+            rowBytes.reset();
+            return rowsWritten < rowLimit || copy != null;
         }
-        if(progress) {
-            out.print("\nevent: complete\ndata: :)" + EVENT_SOURCE_END);
+
+        /**
+         * Ends the event stream if progress is requested and returns the number of rows written.
+         */
+        private int finish() throws IOException {
+            if(progress) {
+                client.write(("\nevent: complete\ndata: :)" + EVENT_SOURCE_END).getBytes(Charsets.UTF_8));
+            }
+            client.flush();
+            return rowsWritten;
         }
-        out.flush();
-        return rowsProcessed;
     }
 
     public List<ShardIdWithVersion> getShardVersionList() {
@@ -551,9 +1107,25 @@ public final class IQLQuery implements Closeable {
         return rowLimit;
     }
 
+    public DateTime getStart() {
+        return start;
+    }
+
+    public DateTime getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the number of terms in the key of each result row.
+     */
+    public int getKeyLength() {
+        return groupings.size();
+    }
+
     @Override
     public void close() throws IOException {
         if(session != null) {
+            cancellationToken.forget(session);
             Closeables2.closeQuietly(session, log);
         }
     }
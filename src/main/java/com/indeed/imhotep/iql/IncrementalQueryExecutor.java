@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.iql.cache.QueryCache;
+import com.indeed.util.core.TreeTimer;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Executes additive queries by day and caches the result of each day separately so that a query over a sliding
+ * range, e.g. the last 30 days, only has to run the days whose shards changed since it was last executed. The days
+ * that aren't cached are executed together in one session over their shards, grouped by day.
+ * The partial result of a day is keyed by the query without its time range and the names and versions of the day's
+ * shards so a rebuilt shard invalidates just its day.
+ */
+public final class IncrementalQueryExecutor {
+    private static final Logger log = Logger.getLogger(IncrementalQueryExecutor.class);
+
+    public static final String FILE_EXTENSION = ".partial";
+    private static final byte[] VERSION_FOR_HASHING = {1};
+
+    private final QueryCache queryCache;
+
+    public IncrementalQueryExecutor(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    /**
+     * Returns whether the query is additive and spans more than one day.
+     */
+    public boolean canExecute(IQLQuery query) {
+        return query.isAdditive() && getDays(query.getStart(), query.getEnd()).size() > 2;
+    }
+
+    /**
+     * Executes the query reading the partial result of the days that are cached and executing the others, which are
+     * then cached if cacheWrite is set. The whole execution has one timeout. The rows of the returned result are in
+     * the same order as the ones of IQLQuery.execute() and the totals are always computed.
+     * @param queryKey identifies the query without its time range
+     */
+    public IQLQuery.ExecutionResult execute(IQLQuery query, String queryKey, boolean cacheWrite) throws IOException {
+        final TreeTimer timer = new TreeTimer();
+        final PartialResultMerger merger = new PartialResultMerger(query.getKeyLength());
+        final List<DateTime> days = getDays(query.getStart(), query.getEnd());
+        final Map<DateTime, MissingDay> missingDays = Maps.newLinkedHashMap();
+        int cached = 0;
+        for (int i = 0; i < days.size() - 1; i++) {
+            final DateTime dayStart = days.get(i);
+            final DateTime dayEnd = days.get(i + 1);
+            final IQLQuery dayQuery = query.withTimeRange(dayStart, dayEnd);
+            try {
+                final List<ShardIdWithVersion> shards = dayQuery.getShardVersionList();
+                if (shards == null || shards.isEmpty()) {
+                    continue;
+                }
+                final String partialName = getPartialName(queryKey, dayStart, dayEnd, shards);
+                if (queryCache.isFileCached(partialName)) {
+                    timer.push("Reading " + dayStart.toLocalDate());
+                    readPartial(partialName, merger);
+                    timer.pop();
+                    cached++;
+                } else {
+                    missingDays.put(dayStart.withTimeAtStartOfDay(), new MissingDay(dayStart, dayEnd, shards, partialName));
+                }
+            } finally {
+                Closeables2.closeQuietly(dayQuery, log);
+            }
+        }
+        if (!missingDays.isEmpty()) {
+            // one timeout for all the sessions of the query
+            query.setTimeoutTS(IQLQuery.newTimeoutTS());
+            if (query.getStart().getZone().isFixed()) {
+                timer.push("Executing " + missingDays.size() + " days");
+                executeMissingDays(query, missingDays, merger, cacheWrite);
+                timer.pop();
+            } else {
+                // days differ in length so they can't be told apart with a metric regroup
+                for (MissingDay missingDay : missingDays.values()) {
+                    timer.push("Executing " + missingDay.start.toLocalDate());
+                    final IQLQuery dayQuery = query.withTimeRange(missingDay.start, missingDay.end);
+                    try {
+                        executePartial(dayQuery, missingDay.partialName, merger, cacheWrite);
+                    } finally {
+                        Closeables2.closeQuietly(dayQuery, log);
+                    }
+                    timer.pop();
+                }
+            }
+        }
+        log.debug("Incremental execution ran " + missingDays.size() + " days and read " + cached + " days from the cache");
+        return new IQLQuery.ExecutionResult(merger.getRows(), merger.getTotals(), timer.toString());
+    }
+
+    /**
+     * Executes the days in one session over the shards of those days only and adds the rows of each day to the
+     * merger and to its partial result.
+     */
+    private void executeMissingDays(IQLQuery query, Map<DateTime, MissingDay> missingDays, PartialResultMerger merger, boolean cacheWrite) throws IOException {
+        final List<MissingDay> dayList = Lists.newArrayList(missingDays.values());
+        // shards spanning midnight belong to two days
+        final Map<String, ShardIdWithVersion> shards = Maps.newLinkedHashMap();
+        for (MissingDay missingDay : dayList) {
+            for (ShardIdWithVersion shard : missingDay.shards) {
+                shards.put(shard.getShardId(), shard);
+            }
+        }
+        final IQLQuery daysQuery = query.withTimeRange(dayList.get(0).start, dayList.get(dayList.size() - 1).end,
+                Lists.newArrayList(shards.values()));
+        try {
+            final IQLQuery.DailyExecutionResult result;
+            try {
+                result = daysQuery.executeByDay();
+            } catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+            for (MissingDay missingDay : dayList) {
+                final double[] totals = result.getTotals(missingDay.start.withTimeAtStartOfDay());
+                merger.addTotals(totals);
+                if (cacheWrite) {
+                    missingDay.startPartial(totals);
+                }
+            }
+            final int keyLength = query.getKeyLength();
+            final Object[] dayKey = new Object[keyLength + 1];
+            final Object[] key = new Object[keyLength];
+            final Iterator<GroupStats> rows = result.getRows();
+            while (rows.hasNext()) {
+                final GroupStats row = rows.next();
+                row.copyKey(dayKey);
+                // rows of days in between that were read from the cache are dropped
+                final MissingDay missingDay = missingDays.get(result.getDay(dayKey[0]));
+                if (missingDay == null) {
+                    continue;
+                }
+                System.arraycopy(dayKey, 1, key, 0, keyLength);
+                merger.add(key, keyLength, row.stats);
+                missingDay.addRow(key, keyLength, row.stats);
+            }
+            for (MissingDay missingDay : dayList) {
+                missingDay.finishPartial(queryCache);
+            }
+        } finally {
+            for (MissingDay missingDay : dayList) {
+                missingDay.close();
+            }
+            Closeables2.closeQuietly(daysQuery, log);
+        }
+    }
+
+    private void readPartial(String partialName, PartialResultMerger merger) throws IOException {
+        final ResultArtifact.Reader reader = new ResultArtifact.Reader(new BufferedInputStream(queryCache.getInputStream(partialName)));
+        try {
+            // the first row holds the totals of the day
+            if (!reader.next()) {
+                throw new IOException("Partial result " + partialName + " is empty");
+            }
+            merger.addTotals(reader.getStats());
+            while (reader.next()) {
+                merger.add(reader.getKey(), reader.getKeyLength(), reader.getStats());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Executes a single day in its own session.
+     */
+    private void executePartial(IQLQuery dayQuery, String partialName, PartialResultMerger merger, boolean cacheWrite) throws IOException {
+        final IQLQuery.ExecutionResult result;
+        try {
+            result = dayQuery.execute(false, null, true);
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+        merger.addTotals(result.getTotals());
+        if (!cacheWrite) {
+            final Iterator<GroupStats> rows = result.getRows();
+            while (rows.hasNext()) {
+                merger.add(rows.next());
+            }
+            return;
+        }
+        final File tempFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, null);
+        try {
+            final ResultArtifact.Writer writer = new ResultArtifact.Writer(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                writer.add(new Object[0], 0, result.getTotals());
+                final Iterator<GroupStats> rows = result.getRows();
+                while (rows.hasNext()) {
+                    final GroupStats row = rows.next();
+                    merger.add(row);
+                    writer.add(row);
+                }
+            } finally {
+                writer.close();
+            }
+            try {
+                queryCache.writeFromFile(partialName, tempFile);
+            } catch (Exception e) {
+                log.warn("Failed to upload partial result " + partialName, e);
+            }
+        } finally {
+            if (!tempFile.delete()) {
+                log.info("Failed to delete temp file " + tempFile);
+            }
+        }
+    }
+
+    /**
+     * A day that isn't cached and the partial result written for it while it is executed.
+     */
+    private static final class MissingDay implements Closeable {
+        private final DateTime start;
+        private final DateTime end;
+        private final List<ShardIdWithVersion> shards;
+        private final String partialName;
+        private File tempFile = null;
+        private ResultArtifact.Writer writer = null;
+
+        private MissingDay(DateTime start, DateTime end, List<ShardIdWithVersion> shards, String partialName) {
+            this.start = start;
+            this.end = end;
+            this.shards = shards;
+            this.partialName = partialName;
+        }
+
+        private void startPartial(double[] totals) throws IOException {
+            tempFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, null);
+            writer = new ResultArtifact.Writer(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            // the first row holds the totals of the day
+            writer.add(new Object[0], 0, totals);
+        }
+
+        private void addRow(Object[] key, int keyLength, double[] stats) throws IOException {
+            if (writer != null) {
+                writer.add(key, keyLength, stats);
+            }
+        }
+
+        private void finishPartial(QueryCache queryCache) throws IOException {
+            if (writer == null) {
+                return;
+            }
+            writer.close();
+            writer = null;
+            try {
+                queryCache.writeFromFile(partialName, tempFile);
+            } catch (Exception e) {
+                log.warn("Failed to upload partial result " + partialName, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (writer != null) {
+                Closeables2.closeQuietly(writer, log);
+                writer = null;
+            }
+            if (tempFile != null && !tempFile.delete()) {
+                log.info("Failed to delete temp file " + tempFile);
+            }
+            tempFile = null;
+        }
+    }
+
+    /**
+     * Returns the day boundaries covering the range in the time zone of start, beginning with start and ending with end.
+     */
+    static List<DateTime> getDays(DateTime start, DateTime end) {
+        final List<DateTime> days = Lists.newArrayList();
+        days.add(start);
+        DateTime day = start.withTimeAtStartOfDay().plusDays(1);
+        while (day.isBefore(end)) {
+            days.add(day);
+            day = day.plusDays(1);
+        }
+        days.add(end);
+        return days;
+    }
+
+    private static String getPartialName(String queryKey, DateTime dayStart, DateTime dayEnd, List<ShardIdWithVersion> shards) {
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        }
+        sha1.update(VERSION_FOR_HASHING);
+        sha1.update(queryKey.getBytes(Charsets.UTF_8));
+        sha1.update(Longs.toByteArray(dayStart.getMillis()));
+        sha1.update(Longs.toByteArray(dayEnd.getMillis()));
+        for (ShardIdWithVersion shard : shards) {
+            sha1.update(shard.getShardId().getBytes(Charsets.UTF_8));
+            sha1.update(Longs.toByteArray(shard.getVersion()));
+        }
+        return Base64.encodeBase64URLSafeString(sha1.digest()) + FILE_EXTENSION;
+    }
+}
@@ -16,10 +16,9 @@
 import com.google.common.base.Function;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import org.apache.log4j.Logger;
 
-import java.util.Map;
 
 /**
  * @author jplaisance
@@ -35,7 +34,7 @@ public final class IntMapGrouping<A> extends Grouping {
         this.function = function;
     }
 
-    public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) {
+    public GroupKeyTable regroup(final EZImhotepSession session, final GroupKeyTable groupKeys) {
         throw new UnsupportedOperationException();
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import com.indeed.imhotep.ez.GroupKeyTable;
+
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Adds up the rows of an additive query executed over disjoint parts of its time range.
+ * The rows of such a query are the cross product of the terms present for each grouping, in term order, so the
+ * merged rows are the cross product of the union of the terms of each part with the stats summed. Keys that
+ * are missing from all parts get zero stats, same as when the whole range is executed at once. The cross product
+ * is held to EZImhotepSession.GROUP_LIMIT since every part can be within the limit while their union isn't.
+ * Not thread safe.
+ */
+final class PartialResultMerger {
+    private static final Comparator<Object> TERM_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            if (a instanceof Long && b instanceof Long) {
+                return ((Long) a).compareTo((Long) b);
+            }
+            return a.toString().compareTo(b.toString());
+        }
+    };
+
+    private final int keyLength;
+    private final List<TreeSet<Object>> levelTerms = Lists.newArrayList();
+    private final Map<List<Object>, double[]> sums = Maps.newHashMap();
+    private double[] totals = null;
+
+    PartialResultMerger(int keyLength) {
+        this.keyLength = keyLength;
+        for (int i = 0; i < keyLength; i++) {
+            levelTerms.add(Sets.newTreeSet(TERM_ORDER));
+        }
+    }
+
+    void addTotals(double[] partTotals) {
+        if (totals == null) {
+            totals = new double[partTotals.length];
+        }
+        addTo(totals, partTotals);
+    }
+
+    void add(GroupStats row) {
+        final Object[] key = new Object[row.getKeyLength()];
+        row.copyKey(key);
+        add(key, key.length, row.stats);
+    }
+
+    void add(Object[] key, int length, double[] stats) {
+        if (length != keyLength) {
+            throw new IllegalArgumentException("Expected a key of " + keyLength + " terms but got " + length);
+        }
+        final List<Object> keyList = Arrays.asList(Arrays.copyOf(key, length));
+        boolean newTerm = false;
+        for (int i = 0; i < length; i++) {
+            newTerm |= levelTerms.get(i).add(key[i]);
+        }
+        if (newTerm) {
+            checkRowCount();
+        }
+        final double[] sum = sums.get(keyList);
+        if (sum == null) {
+            sums.put(keyList, stats.clone());
+        } else {
+            addTo(sum, stats);
+        }
+    }
+
+    double[] getTotals() {
+        return totals != null ? totals : new double[0];
+    }
+
+    /**
+     * Returns the merged rows. The key prefixes are laid out in a GroupKeyTable the way the regroups of the query
+     * would have done it and the last term is the row's term. Expects the totals of every part to have been added.
+     */
+    Iterator<GroupStats> getRows() {
+        final double[] zeros = new double[getTotals().length];
+        if (keyLength == 0) {
+            final double[] stats = sums.get(Arrays.asList());
+            return Lists.newArrayList(new GroupStats(GroupKeyTable.root(), 1, stats != null ? stats : zeros)).iterator();
+        }
+        for (TreeSet<Object> terms : levelTerms) {
+            if (terms.isEmpty()) {
+                return Lists.<GroupStats>newArrayList().iterator();
+            }
+        }
+        GroupKeyTable table = GroupKeyTable.root();
+        for (int level = 0; level < keyLength - 1; level++) {
+            final TreeSet<Object> terms = levelTerms.get(level);
+            final GroupKeyTable.Builder builder = table.newLevel(table.size() * terms.size());
+            int group = 1;
+            for (int parent = 1; parent <= table.size(); parent++) {
+                for (Object term : terms) {
+                    builder.add(group++, parent, builder.addTerm(term));
+                }
+            }
+            table = builder.build();
+        }
+        final GroupKeyTable groupKeys = table;
+        final Object[] lastTerms = levelTerms.get(keyLength - 1).toArray();
+        return new AbstractIterator<GroupStats>() {
+            private final Object[] key = new Object[keyLength];
+            private int group = 1;
+            private int termIndex = 0;
+
+            @Override
+            protected GroupStats computeNext() {
+                if (termIndex == lastTerms.length) {
+                    termIndex = 0;
+                    group++;
+                }
+                if (group > groupKeys.size()) {
+                    return endOfData();
+                }
+                final Object term = lastTerms[termIndex++];
+                groupKeys.copyKey(group, key);
+                key[keyLength - 1] = term;
+                final double[] stats = sums.get(Arrays.asList(key));
+                return new GroupStats(groupKeys, group, term, stats != null ? stats : zeros);
+            }
+        };
+    }
+
+    private void checkRowCount() {
+        long rowCount = 1;
+        for (TreeSet<Object> terms : levelTerms) {
+            rowCount *= terms.size();
+            if (rowCount > EZImhotepSession.GROUP_LIMIT) {
+                throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                        new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
+                        ". Please simplify the query.");
+            }
+        }
+    }
+
+    private static void addTo(double[] sum, double[] values) {
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += values[i];
+        }
+    }
+}
@@ -14,31 +14,28 @@
  package com.indeed.imhotep.iql;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.EZImhotepSession.FTGSCallback;
+import com.indeed.imhotep.ez.EZImhotepSession.FTGSBatchCallback;
 import com.indeed.imhotep.ez.Field;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
 import com.indeed.imhotep.ez.Stats.Stat;
-import gnu.trove.TIntObjectHashMap;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
-import it.unimi.dsi.fastutil.doubles.DoubleList;
-import it.unimi.dsi.fastutil.ints.Int2LongMap;
-import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.longs.LongList;
+import com.indeed.imhotep.ez.TDigest;
+import com.indeed.imhotep.ez.Utf8Term;
 
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
+ * Computes all requested percentiles of all fields in a single FTGS pass.
+ * Exact percentiles walk each group's terms in ascending order, tracking the cumulative count against the sorted
+ * percentile thresholds. Approximate percentiles feed the terms into a mergeable t-digest per group instead.
  * @author jsgroth
  */
 public class PercentileGrouping extends Grouping {
@@ -47,195 +44,290 @@ public class PercentileGrouping extends Grouping {
     private final List<Field> fields = Lists.newArrayList();
     private final List<Double> percentiles = Lists.newArrayList();
     private final List<Integer> fieldProjectionPositions = Lists.newArrayList();
+    private final List<Boolean> approximate = Lists.newArrayList();
 
     public PercentileGrouping(final Stat countStat) {
         this.countStat = countStat;
     }
 
     public void addPercentileQuery(final Field field, final double percentile, final int fieldProjectionPosition) {
+        addPercentileQuery(field, percentile, fieldProjectionPosition, false);
+    }
+
+    public void addApproximatePercentileQuery(final Field field, final double percentile, final int fieldProjectionPosition) {
+        addPercentileQuery(field, percentile, fieldProjectionPosition, true);
+    }
+
+    private void addPercentileQuery(final Field field, final double percentile, final int fieldProjectionPosition, final boolean isApproximate) {
         fields.add(field);
         percentiles.add(percentile);
         fieldProjectionPositions.add(fieldProjectionPosition);
+        approximate.add(isApproximate);
     }
 
     @Override
-    public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public GroupKeyTable regroup(final EZImhotepSession session, final GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         throw new UnsupportedOperationException("Percentiles must be used as the last group");
     }
 
     @Override
-    public Iterator<GroupStats> getGroupStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final List<StatReference> statRefs, final long timeoutTS) throws ImhotepOutOfMemoryException {
+    public Iterator<GroupStats> getGroupStats(final EZImhotepSession session, final GroupKeyTable groupKeys, final List<StatReference> statRefs, final long timeoutTS) throws ImhotepOutOfMemoryException {
         final StatReference countStatRef = session.pushStat(countStat);
         final long[] counts = getCounts(countStatRef);
 
-        final Int2ObjectMap<Int2LongMap> groupToPositionToStats = getPercentileStats(session, groupKeys, countStatRef, counts);
+        // percentile query -> group -> value
+        final long[][] percentileValues = getPercentileStats(session, groupKeys, countStatRef, counts);
 
         final List<GroupStats> result = Lists.newArrayList();
 
         final int statCount = statRefs.size();
         final int groupCount = session.getNumGroups();
 
+        // projection position -> percentile query or -1 for normal stats
+        final int[] projectionQueries = new int[statCount + fields.size()];
+        Arrays.fill(projectionQueries, -1);
+        for (int i = 0; i < fieldProjectionPositions.size(); i++) {
+            projectionQueries[fieldProjectionPositions.get(i)] = i;
+        }
+
         // get values for the normal stats
-        final TIntObjectHashMap<double[]> statsResults = (statCount > 0) ? getGroupStatsValues(session, statRefs, groupCount) : null;
+        final double[][] statGroupValues = new double[statCount][];
+        for (int i = 0; i < statCount; i++) {
+            statGroupValues[i] = session.getGroupStats(statRefs.get(i));
+        }
 
-        // combine normal stats with distinct counts
+        // combine normal stats with percentiles
         for (int groupNum = 1; groupNum < groupCount; groupNum++) {
-            final Int2LongMap groupPercentileData = groupToPositionToStats.get(groupNum);
-            double[] statsVals = statsResults != null ? statsResults.get(groupNum) : null;
-
             double[] values = new double[statCount + fields.size()];
             for(int i = 0, statsValsIndex = 0; i < values.length; i++) {
-                if(groupPercentileData != null && groupPercentileData.containsKey(i)) {    // percentile value
-                    values[i] = groupPercentileData.get(i);
-                } else if(statsVals != null && statsValsIndex < statsVals.length) {
-                    values[i] = statsVals[statsValsIndex++];    // normal stat value available
+                final int query = projectionQueries[i];
+                if(query >= 0) {    // percentile value
+                    values[i] = groupNum < percentileValues[query].length ? percentileValues[query][groupNum] : 0;
+                } else if(statsValsIndex < statCount) {
+                    final double[] statValues = statGroupValues[statsValsIndex++];
+                    values[i] = groupNum < statValues.length ? statValues[groupNum] : 0;    // normal stat value available
                 } else {
                     values[i] = 0;  // normal stat not in stats array
                 }
             }
 
-            GroupKey groupKey = groupKeys.get(groupNum);
-            result.add(new GroupStats(groupKey, values));
+            result.add(new GroupStats(groupKeys, groupNum, values));
         }
 
         return result.iterator();
     }
 
-    private Int2ObjectMap<Int2LongMap> getPercentileStats(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys, final StatReference countStatRef, final long[] counts) {
-        final Set<Field> uniqueFields = Sets.newHashSet(fields);
+    private long[][] getPercentileStats(final EZImhotepSession session, final GroupKeyTable groupKeys, final StatReference countStatRef, final long[] counts) {
+        final int groupCount = groupKeys.size() + 1;
+
+        // field name -> percentile queries on it
+        final Map<String, List<Integer>> exactQueries = Maps.newLinkedHashMap();
+        final Map<String, List<Integer>> approximateQueries = Maps.newLinkedHashMap();
+        for (int i = 0; i < fields.size(); i++) {
+            final Map<String, List<Integer>> queries = approximate.get(i) ? approximateQueries : exactQueries;
+            final String fieldName = fields.get(i).getFieldName();
+            List<Integer> fieldQueries = queries.get(fieldName);
+            if (fieldQueries == null) {
+                fieldQueries = Lists.newArrayList();
+                queries.put(fieldName, fieldQueries);
+            }
+            fieldQueries.add(i);
+        }
 
-        final Int2ObjectMap<Int2LongMap> groupToPositionToStats = new Int2ObjectOpenHashMap<Int2LongMap>();
-        for (final int group : groupKeys.keySet()) {
-            groupToPositionToStats.put(group, new Int2LongOpenHashMap());
+        final PercentileFTGSCallback callback = new PercentileFTGSCallback(session.getStackDepth(), countStatRef);
+        final List<Field> ftgsFields = Lists.newArrayList();
+        for (final Map.Entry<String, List<Integer>> entry : exactQueries.entrySet()) {
+            callback.exactPercentiles.put(entry.getKey(), new ExactPercentiles(entry.getValue(), counts, groupCount));
+        }
+        for (final Map.Entry<String, List<Integer>> entry : approximateQueries.entrySet()) {
+            callback.approximatePercentiles.put(entry.getKey(), new ApproximatePercentiles(entry.getValue(), groupCount));
         }
+        for (final String fieldName : Sets.union(exactQueries.keySet(), approximateQueries.keySet())) {
+            // hack for ramses indexes, it's slower to iterate over a string field as an int field but it's better than
+            // doing a 2D metric regroup like ramhotep does. exact percentiles need the terms in numeric order anyway.
+            ftgsFields.add(Field.intField(fieldName));
+        }
+        session.ftgsIterate(ftgsFields, callback);
 
-        for (final Field f : uniqueFields) {
-            final List<Double> fieldPercentiles = Lists.newArrayList();
-            final List<Integer> projectionPositions = Lists.newArrayList();
+        final long[][] ret = new long[fields.size()][];
+        for (final ExactPercentiles fieldPercentiles : callback.exactPercentiles.values()) {
+            fieldPercentiles.finish(ret);
+        }
+        for (final ApproximatePercentiles fieldPercentiles : callback.approximatePercentiles.values()) {
+            fieldPercentiles.finish(ret);
+        }
 
-            for (int i = 0; i < fields.size(); ++i) {
-                if (f.equals(fields.get(i))) {
-                    fieldPercentiles.add(percentiles.get(i));
-                    projectionPositions.add(fieldProjectionPositions.get(i));
+        session.popStat();
+        return ret;
+    }
+
+    private static long[] getCounts(final StatReference countStatRef) {
+        final double[] doubleGroupStats = countStatRef.getGroupStats();
+        final long[] groupStats = new long[doubleGroupStats.length];
+        for (int i = 0; i < doubleGroupStats.length; ++i) {
+            groupStats[i] = Math.round(doubleGroupStats[i]);
+        }
+        return groupStats;
+    }
+
+    /**
+     * Exact percentiles of one field for all groups.
+     */
+    private final class ExactPercentiles {
+        // percentile queries ordered by ascending percentile
+        private final int[] queries;
+        private final double[] sortedPercentiles;
+        private final long[] counts;
+        // per group: cumulative count so far, next threshold to reach and last term seen
+        private final long[] prevCounts;
+        private final int[] nextThresholds;
+        private final long[] lastTerms;
+        // group * queries.length + threshold -> value
+        private final long[] values;
+        private final boolean[] assigned;
+
+        private ExactPercentiles(final List<Integer> fieldQueries, final long[] counts, final int groupCount) {
+            final Integer[] sorted = fieldQueries.toArray(new Integer[fieldQueries.size()]);
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer a, final Integer b) {
+                    return Double.compare(percentiles.get(a), percentiles.get(b));
                 }
+            });
+            queries = new int[sorted.length];
+            sortedPercentiles = new double[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                queries[i] = sorted[i];
+                sortedPercentiles[i] = percentiles.get(sorted[i]);
             }
+            this.counts = counts;
+            prevCounts = new long[groupCount];
+            nextThresholds = new int[groupCount];
+            lastTerms = new long[groupCount];
+            values = new long[groupCount * queries.length];
+            assigned = new boolean[values.length];
+        }
 
-            final Int2ObjectMap<DoubleList> percentileValues = new Int2ObjectOpenHashMap<DoubleList>();
-            for (final int group : groupKeys.keySet()) {
-                final DoubleList groupPercentileValues = new DoubleArrayList();
-                for (final double percentile : fieldPercentiles) {
-                    groupPercentileValues.add(percentile / 100 * counts[group]);
+        private void add(final long term, final int group, final long count) {
+            if (group >= prevCounts.length) {
+                return;
+            }
+            final long prevCount = prevCounts[group];
+            final long newCount = prevCount + count;
+            final long groupTotal = group < counts.length ? counts[group] : 0;
+            final int base = group * queries.length;
+            // thresholds only grow so each group passes every threshold once
+            int threshold = nextThresholds[group];
+            while (threshold < queries.length) {
+                final double percentileValue = sortedPercentiles[threshold] / 100 * groupTotal;
+                if (percentileValue > newCount) {
+                    break;
                 }
-                percentileValues.put(group, groupPercentileValues);
+                if (percentileValue > prevCount) {
+                    values[base + threshold] = term;
+                    assigned[base + threshold] = true;
+                }
+                threshold++;
             }
+            nextThresholds[group] = threshold;
+            prevCounts[group] = newCount;
+            lastTerms[group] = term;
+        }
 
-            final PercentileFTGSCallback callback = new PercentileFTGSCallback(session.getStackDepth(), countStatRef, percentileValues);
-            // hack for ramses indexes, it's slower to iterate over a string field as an int field but it's better than
-            // doing a 2D metric regroup like ramhotep does
-            final Field ftgsField = f.isIntField() ? f : Field.intField(f.getFieldName());
-            session.ftgsIterate(Arrays.asList(ftgsField), callback);
-
-            final Int2ObjectMap<LongList> groupToPercentileStats = callback.finalizeAndGetGroupToPercentileStats();
-            for (final int group : groupToPercentileStats.keySet()) {
-                final LongList percentileStats = groupToPercentileStats.get(group);
-                for (int i = 0; i < percentileStats.size(); ++i) {
-                    final int position = projectionPositions.get(i);
-                    groupToPositionToStats.get(group).put(position, percentileStats.getLong(i));
+        private void finish(final long[][] ret) {
+            final int groupCount = prevCounts.length;
+            for (int i = 0; i < queries.length; i++) {
+                final long[] queryValues = new long[groupCount];
+                for (int group = 1; group < groupCount; group++) {
+                    final int index = group * queries.length + i;
+                    queryValues[group] = assigned[index] ? values[index] : lastTerms[group];
                 }
+                ret[queries[i]] = queryValues;
             }
         }
-
-        session.popStat();
-        return groupToPositionToStats;
     }
 
-    private static TIntObjectHashMap<double[]> getGroupStatsValues(EZImhotepSession session, List<StatReference> statRefs, int groupCount) {
-        final int statCount = statRefs.size();
-        final double[][] statGroupValues = new double[statCount][];
-        for (int i = 0; i < statCount; i++) {
-            statGroupValues[i] = session.getGroupStats(statRefs.get(i));
+    /**
+     * Approximate percentiles of one field for all groups.
+     */
+    private final class ApproximatePercentiles {
+        private final int[] queries;
+        private final TDigest[] digests;
+
+        private ApproximatePercentiles(final List<Integer> fieldQueries, final int groupCount) {
+            queries = new int[fieldQueries.size()];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = fieldQueries.get(i);
+            }
+            digests = new TDigest[groupCount];
         }
-        final TIntObjectHashMap<double[]> ret = new TIntObjectHashMap<double[]>(groupCount);
-        for (int group = 1; group <= groupCount; group++) {
-            final double[] groupStats = new double[statCount];
-            for (int statNum = 0; statNum < groupStats.length; statNum++) {
-                if(group < statGroupValues[statNum].length) {
-                    groupStats[statNum] = statGroupValues[statNum][group];
-                }
+
+        private void add(final long term, final int group, final long count) {
+            if (group >= digests.length || count <= 0) {
+                return;
+            }
+            TDigest digest = digests[group];
+            if (digest == null) {
+                digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+                digests[group] = digest;
             }
-            ret.put(group, groupStats);
+            digest.add(term, count);
         }
-        return ret;
-    }
 
-    private static long[] getCounts(final StatReference countStatRef) {
-        final double[] doubleGroupStats = countStatRef.getGroupStats();
-        final long[] groupStats = new long[doubleGroupStats.length];
-        for (int i = 0; i < doubleGroupStats.length; ++i) {
-            groupStats[i] = Math.round(doubleGroupStats[i]);
+        private void finish(final long[][] ret) {
+            for (final int query : queries) {
+                final double percentile = percentiles.get(query);
+                final long[] queryValues = new long[digests.length];
+                for (int group = 1; group < digests.length; group++) {
+                    if (digests[group] != null) {
+                        queryValues[group] = Math.round(digests[group].quantile(percentile / 100));
+                    }
+                }
+                ret[query] = queryValues;
+            }
         }
-        return groupStats;
     }
 
-    private static class PercentileFTGSCallback extends FTGSCallback {
-        private final Int2ObjectMap<LongList> groupToPercentileStats;
-
+    private static class PercentileFTGSCallback extends FTGSBatchCallback {
         private final StatReference statRef;
-        private final Int2ObjectMap<DoubleList> percentileValues;
+        private final Map<String, ExactPercentiles> exactPercentiles = Maps.newHashMap();
+        private final Map<String, ApproximatePercentiles> approximatePercentiles = Maps.newHashMap();
 
-        private Int2LongMap groupToPrevCount = new Int2LongOpenHashMap();
-        private Int2LongMap groupToPrevTerm = new Int2LongOpenHashMap();
+        // FTGS walks fields in order so the engines of the current field are cached
+        private String currentField = null;
+        private ExactPercentiles currentExact = null;
+        private ApproximatePercentiles currentApproximate = null;
+        // values of the count stat for the current block
+        private final double[] counts = new double[getBatchSize()];
 
-        private PercentileFTGSCallback(final int numStats, final StatReference statRef, final Int2ObjectMap<DoubleList> percentileValues) {
+        private PercentileFTGSCallback(final int numStats, final StatReference statRef) {
             super(numStats);
 
             this.statRef = statRef;
-            this.percentileValues = percentileValues;
-
-            groupToPercentileStats = new Int2ObjectOpenHashMap<LongList>();
-            for (final int group : percentileValues.keySet()) {
-                final LongList stats = new LongArrayList();
-                for (int i = 0; i < percentileValues.get(group).size(); ++i) {
-                    stats.add(-1);
-                }
-                groupToPercentileStats.put(group, stats);
-            }
         }
 
         @Override
-        protected void intTermGroup(final String field, final long term, final int group) {
-            final long prevCount = groupToPrevCount.get(group);
-            final long countForTerm = Math.round(getStat(statRef));
-            final long newCount = prevCount + countForTerm;
-
-            final DoubleList groupPercentileValues = percentileValues.get(group);
-            for (int i = 0; i < groupPercentileValues.size(); ++i) {
-                final double percentileValue = groupPercentileValues.get(i);
-                if (percentileValue > prevCount && percentileValue <= newCount) {
-                    groupToPercentileStats.get(group).set(i, term);
+        protected void intTermGroups(final String field, final long[] terms, final int[] groups, final long[][] stats, final int count) {
+            if (field != currentField) {
+                currentField = field;
+                currentExact = exactPercentiles.get(field);
+                currentApproximate = approximatePercentiles.get(field);
+            }
+            getStats(statRef, stats, count, counts);
+            for (int i = 0; i < count; i++) {
+                final long countForTerm = Math.round(counts[i]);
+                if (currentExact != null) {
+                    currentExact.add(terms[i], groups[i], countForTerm);
+                }
+                if (currentApproximate != null) {
+                    currentApproximate.add(terms[i], groups[i], countForTerm);
                 }
             }
-
-            groupToPrevCount.put(group, newCount);
-            groupToPrevTerm.put(group, term);
         }
 
         @Override
-        protected void stringTermGroup(final String field, final String term, final int group) {
+        protected void stringTermGroups(final String field, final Utf8Term[] terms, final int[] groups, final long[][] stats, final int count) {
             throw new UnsupportedOperationException("Percentiles do not work with string fields");
         }
-
-        public Int2ObjectMap<LongList> finalizeAndGetGroupToPercentileStats() {
-            for (final int group : groupToPercentileStats.keySet()) {
-                final LongList stats = groupToPercentileStats.get(group);
-                for (int i = 0; i < stats.size(); ++i) {
-                    if (stats.getLong(i) == -1) {
-                        stats.set(i, groupToPrevTerm.get(i));
-                    }
-                }
-            }
-
-            return groupToPercentileStats;
-        }
     }
 }
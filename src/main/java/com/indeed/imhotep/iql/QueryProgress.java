@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.ForwardingIterator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of a query execution that can be read from other threads while the query runs.
+ * Each counter is only written by the thread executing the query so reading them never blocks the execution.
+ */
+public final class QueryProgress {
+    private volatile String phase = "Waiting";
+    private volatile long groupsCreated = 0;
+    private final AtomicLong rowsProduced = new AtomicLong();
+    private final AtomicLong bytesStreamed = new AtomicLong();
+    private final AtomicLong ftgsTermsSeen = new AtomicLong();
+
+    /**
+     * Returns the name of the TreeTimer phase the execution is in.
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public long getGroupsCreated() {
+        return groupsCreated;
+    }
+
+    public void setGroupsCreated(long groupsCreated) {
+        this.groupsCreated = groupsCreated;
+    }
+
+    public long getRowsProduced() {
+        return rowsProduced.get();
+    }
+
+    public long getBytesStreamed() {
+        return bytesStreamed.get();
+    }
+
+    public long getFtgsTermsSeen() {
+        return ftgsTermsSeen.get();
+    }
+
+    /**
+     * Returns the counter the FTGS loops of the session add the iterated terms to.
+     */
+    public AtomicLong getFtgsTermCounter() {
+        return ftgsTermsSeen;
+    }
+
+    /**
+     * Wraps the rows so that each row taken from the iterator is counted as produced.
+     */
+    public <T> Iterator<T> countRows(final Iterator<T> rows) {
+        return new ForwardingIterator<T>() {
+            @Override
+            protected Iterator<T> delegate() {
+                return rows;
+            }
+
+            @Override
+            public T next() {
+                final T row = super.next();
+                rowsProduced.incrementAndGet();
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Wraps the stream so that the bytes written to it are counted as streamed.
+     */
+    public OutputStream countBytes(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesStreamed.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesStreamed.addAndGet(len);
+            }
+        };
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Format independent binary encoding of result rows that is stored in the query cache. TSV and CSV are rendered
+ * from it when the result is served, so a cached result can be returned in any format.
+ * The artifact starts with a magic number and a version followed by the rows. A row is its key length, each key
+ * term as a type byte and either a long or a UTF-8 byte count and bytes, its stat count and the stats as doubles.
+ * Terms that are not longs are stored as their toString() which is how they are rendered.
+ */
+public final class ResultArtifact {
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final int MAGIC = 0x49514c52;    // IQLR
+    private static final byte VERSION = 1;
+    private static final byte INT_TERM = 0;
+    private static final byte STRING_TERM = 1;
+    private static final int BUFFER_SIZE = 65536;
+
+    private ResultArtifact() {
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        // reused across rows so that encoding a key doesn't allocate
+        private Object[] keyBuffer = new Object[8];
+        private int rowCount = 0;
+
+        public Writer(OutputStream outputStream) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(outputStream, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+
+        public void add(GroupStats row) throws IOException {
+            final int keyLength = row.getKeyLength();
+            if (keyBuffer.length < keyLength) {
+                keyBuffer = new Object[keyLength];
+            }
+            row.copyKey(keyBuffer);
+            add(keyBuffer, keyLength, row.stats);
+        }
+
+        public void addAll(Iterator<GroupStats> rows) throws IOException {
+            while (rows.hasNext()) {
+                final GroupStats row = rows.next();
+                if (row != null) {
+                    add(row);
+                }
+            }
+        }
+
+        public void add(Object[] key, int keyLength, double[] stats) throws IOException {
+            out.writeInt(keyLength);
+            for (int i = 0; i < keyLength; i++) {
+                final Object term = key[i];
+                if (term instanceof Long) {
+                    out.writeByte(INT_TERM);
+                    out.writeLong((Long) term);
+                } else {
+                    final byte[] bytes = String.valueOf(term).getBytes(Charsets.UTF_8);
+                    out.writeByte(STRING_TERM);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+            out.writeInt(stats.length);
+            for (double stat : stats) {
+                out.writeDouble(stat);
+            }
+            rowCount++;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Flushes the rows and closes the underlying stream.
+         */
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the rows of an artifact one at a time. The key and stats arrays are reused between rows.
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private Object[] key = new Object[8];
+        private int keyLength = 0;
+        private double[] stats = new double[0];
+
+        public Reader(InputStream inputStream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+            final int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("Not a result artifact: too short");
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not a result artifact: bad magic number " + Integer.toHexString(magic));
+            }
+            final byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported result artifact version " + version);
+            }
+        }
+
+        /**
+         * Reads the next row. Returns false at the end of the artifact.
+         */
+        public boolean next() throws IOException {
+            final int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            if (key.length < length) {
+                key = new Object[length];
+            }
+            for (int i = 0; i < length; i++) {
+                final byte type = in.readByte();
+                if (type == INT_TERM) {
+                    key[i] = in.readLong();
+                } else if (type == STRING_TERM) {
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    key[i] = new String(bytes, Charsets.UTF_8);
+                } else {
+                    throw new IOException("Unknown term type " + type);
+                }
+            }
+            Arrays.fill(key, length, keyLength > length ? keyLength : length, null);
+            keyLength = length;
+            final int numStats = in.readInt();
+            if (stats.length != numStats) {
+                stats = new double[numStats];
+            }
+            for (int i = 0; i < numStats; i++) {
+                stats[i] = in.readDouble();
+            }
+            return true;
+        }
+
+        public Object[] getKey() {
+            return key;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        public double[] getStats() {
+            return stats;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * External merge sort of result rows.
+ * Rows are encoded as binary records into an in-memory run which is sorted by record offsets. A run that outgrows
+ * its memory limit is written to a temp file and the run files are k-way merged from memory-mapped buffers
+ * with a heap of run indexes.
+ * Rows are ordered by their key columns, numbers before strings, and then by their stats, all in ascending order.
+ * The sort is stable.
+ * Not thread safe.
+ */
+public final class ResultSorter implements Closeable {
+    private static final Logger log = Logger.getLogger(ResultSorter.class);
+
+    private static final int INITIAL_RUN_SIZE = 64 * 1024;
+
+    private static final byte NO_TERM = 0;
+    private static final byte INT_TERM = 1;
+    private static final byte STRING_TERM = 2;
+
+    // record layout: table index, group, term type, term, stat count, stats
+    private static final int GROUP_OFFSET = 4;
+    private static final int TERM_TYPE_OFFSET = 8;
+    private static final int TERM_OFFSET = 9;
+
+    private final int runMemoryLimitBytes;
+
+    private final List<GroupKeyTable> groupKeyTables = Lists.newArrayList();
+    // table index -> group id -> position of the group when the table's keys are sorted
+    private final List<int[]> groupRanks = Lists.newArrayList();
+    private final List<File> runFiles = Lists.newArrayList();
+    private Object[] keyBufferA = new Object[8];
+    private Object[] keyBufferB = new Object[8];
+
+    private byte[] runBytes = new byte[INITIAL_RUN_SIZE];
+    private ByteBuffer run = ByteBuffer.wrap(runBytes);
+    private int runSize = 0;
+    private int[] recordOffsets = new int[1024];
+    private int recordCount = 0;
+    private boolean sorted = false;
+    private boolean closed = false;
+
+    /**
+     * @param runMemoryLimitBytes memory the in-memory run can take before it is written to disk
+     */
+    public ResultSorter(int runMemoryLimitBytes) {
+        this.runMemoryLimitBytes = runMemoryLimitBytes;
+    }
+
+    /**
+     * Consumes the rows and returns them sorted. The returned rows are valid until the sorter is closed.
+     */
+    public Iterator<GroupStats> sort(Iterator<GroupStats> rows) {
+        if (sorted) {
+            throw new IllegalStateException("sort() can only be called once");
+        }
+        sorted = true;
+        while (rows.hasNext()) {
+            final GroupStats row = rows.next();
+            if (row != null) {
+                add(row);
+            }
+        }
+        sortRun();
+        if (runFiles.isEmpty()) {
+            // everything fit in memory
+            return new AbstractIterator<GroupStats>() {
+                int index = 0;
+
+                @Override
+                protected GroupStats computeNext() {
+                    if (index == recordCount) {
+                        return endOfData();
+                    }
+                    return readRecord(run, recordOffsets[index++]);
+                }
+            };
+        }
+        if (recordCount > 0) {
+            writeRun();
+        }
+        runBytes = null;
+        run = null;
+        recordOffsets = null;
+        try {
+            return new MergeIterator(mapRuns());
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    public boolean didSpillToDisk() {
+        return !runFiles.isEmpty();
+    }
+
+    private void add(GroupStats row) {
+        final Object term = row.term;
+        final byte[] stringTerm = term != null && !(term instanceof Long) ? term.toString().getBytes(Charsets.UTF_8) : null;
+        final int termLength = term == null ? 0 : (stringTerm == null ? 8 : 4 + stringTerm.length);
+        final int recordLength = TERM_OFFSET + termLength + 4 + 8 * row.stats.length;
+
+        if (runSize + recordLength > runBytes.length) {
+            if (runSize > 0 && runSize + recordLength > runMemoryLimitBytes) {
+                sortRun();
+                writeRun();
+            }
+            if (runSize + recordLength > runBytes.length) {
+                int newLength = runBytes.length;
+                while (newLength < runSize + recordLength) {
+                    newLength *= 2;
+                }
+                // a single record larger than the limit still gets a run of its own
+                runBytes = Arrays.copyOf(runBytes, Math.max(Math.min(newLength, runMemoryLimitBytes), runSize + recordLength));
+                run = ByteBuffer.wrap(runBytes);
+            }
+        }
+        if (recordCount == recordOffsets.length) {
+            recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+        }
+        recordOffsets[recordCount++] = runSize;
+
+        int position = runSize;
+        run.putInt(position, getTableIndex(row.groupKeys));
+        run.putInt(position + GROUP_OFFSET, row.group);
+        position = TERM_OFFSET + runSize;
+        if (term == null) {
+            run.put(position - 1, NO_TERM);
+        } else if (stringTerm == null) {
+            run.put(position - 1, INT_TERM);
+            run.putLong(position, (Long) term);
+            position += 8;
+        } else {
+            run.put(position - 1, STRING_TERM);
+            run.putInt(position, stringTerm.length);
+            System.arraycopy(stringTerm, 0, runBytes, position + 4, stringTerm.length);
+            position += 4 + stringTerm.length;
+        }
+        run.putInt(position, row.stats.length);
+        position += 4;
+        for (double stat : row.stats) {
+            run.putDouble(position, stat);
+            position += 8;
+        }
+        runSize = position;
+    }
+
+    private int getTableIndex(GroupKeyTable groupKeys) {
+        for (int i = 0; i < groupKeyTables.size(); i++) {
+            if (groupKeyTables.get(i) == groupKeys) {
+                return i;
+            }
+        }
+        groupKeyTables.add(groupKeys);
+        groupRanks.add(rankGroups(groupKeys));
+        return groupKeyTables.size() - 1;
+    }
+
+    /**
+     * Returns the position of every group of the table in key order so that rows of the same table are compared
+     * by a single int instead of by their keys. Groups the table has no key for come after the others in group
+     * order so that every group has a distinct rank.
+     */
+    private int[] rankGroups(final GroupKeyTable groupKeys) {
+        final int[] groups = new int[groupKeys.size()];
+        int groupCount = 0;
+        for (int group = 1; group <= groupKeys.size(); group++) {
+            if (groupKeys.contains(group)) {
+                groups[groupCount++] = group;
+            }
+        }
+        mergeSort(groups, groupCount, new IntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return compareKeys(groupKeys, a, groupKeys, b);
+            }
+        });
+        final int[] ranks = new int[groupKeys.size() + 1];
+        Arrays.fill(ranks, -1);
+        for (int i = 0; i < groupCount; i++) {
+            ranks[groups[i]] = i;
+        }
+        int nextRank = groupCount;
+        for (int group = 0; group < ranks.length; group++) {
+            if (ranks[group] < 0) {
+                ranks[group] = nextRank++;
+            }
+        }
+        return ranks;
+    }
+
+    private void sortRun() {
+        mergeSort(recordOffsets, recordCount, new IntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return compareRecords(run, a, run, b);
+            }
+        });
+    }
+
+    private void writeRun() {
+        try {
+            final File runFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, null);
+            runFiles.add(runFile);
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(runFile), 65536);
+            try {
+                for (int i = 0; i < recordCount; i++) {
+                    final int offset = recordOffsets[i];
+                    out.write(runBytes, offset, recordLength(run, offset));
+                }
+            } finally {
+                out.close();
+            }
+            log.trace("Wrote sorted run of " + recordCount + " rows to " + runFile.getPath());
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        runSize = 0;
+        recordCount = 0;
+    }
+
+    private ByteBuffer[] mapRuns() throws IOException {
+        final ByteBuffer[] runs = new ByteBuffer[runFiles.size()];
+        for (int i = 0; i < runs.length; i++) {
+            final RandomAccessFile file = new RandomAccessFile(runFiles.get(i), "r");
+            try {
+                // the mapping stays valid after the file is closed
+                runs[i] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+        }
+        return runs;
+    }
+
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        int position = offset + TERM_OFFSET;
+        switch (buffer.get(offset + TERM_TYPE_OFFSET)) {
+            case INT_TERM:
+                position += 8;
+                break;
+            case STRING_TERM:
+                position += 4 + buffer.getInt(position);
+                break;
+        }
+        return position + 4 + 8 * buffer.getInt(position) - offset;
+    }
+
+    private GroupStats readRecord(ByteBuffer buffer, int offset) {
+        final GroupKeyTable groupKeys = groupKeyTables.get(buffer.getInt(offset));
+        final int group = buffer.getInt(offset + GROUP_OFFSET);
+        int position = offset + TERM_OFFSET;
+        final Object term;
+        switch (buffer.get(offset + TERM_TYPE_OFFSET)) {
+            case INT_TERM:
+                term = buffer.getLong(position);
+                position += 8;
+                break;
+            case STRING_TERM:
+                final byte[] bytes = new byte[buffer.getInt(position)];
+                final ByteBuffer duplicate = buffer.duplicate();
+                duplicate.position(position + 4);
+                duplicate.get(bytes);
+                term = new String(bytes, Charsets.UTF_8);
+                position += 4 + bytes.length;
+                break;
+            default:
+                term = null;
+        }
+        final double[] stats = new double[buffer.getInt(position)];
+        position += 4;
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = buffer.getDouble(position);
+            position += 8;
+        }
+        return new GroupStats(groupKeys, group, term, stats);
+    }
+
+    private int compareRecords(ByteBuffer a, int offsetA, ByteBuffer b, int offsetB) {
+        final int tableA = a.getInt(offsetA);
+        final int tableB = b.getInt(offsetB);
+        final int groupA = a.getInt(offsetA + GROUP_OFFSET);
+        final int groupB = b.getInt(offsetB + GROUP_OFFSET);
+        if (tableA == tableB) {
+            if (groupA != groupB) {
+                final int[] ranks = groupRanks.get(tableA);
+                return ranks[groupA] < ranks[groupB] ? -1 : 1;
+            }
+        } else {
+            final int cmp = compareKeys(groupKeyTables.get(tableA), groupA, groupKeyTables.get(tableB), groupB);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        final byte termTypeA = a.get(offsetA + TERM_TYPE_OFFSET);
+        final byte termTypeB = b.get(offsetB + TERM_TYPE_OFFSET);
+        if (termTypeA != termTypeB) {
+            return termTypeA < termTypeB ? -1 : 1;
+        }
+        int positionA = offsetA + TERM_OFFSET;
+        int positionB = offsetB + TERM_OFFSET;
+        if (termTypeA == INT_TERM) {
+            final long termA = a.getLong(positionA);
+            final long termB = b.getLong(positionB);
+            if (termA != termB) {
+                return termA < termB ? -1 : 1;
+            }
+            positionA += 8;
+            positionB += 8;
+        } else if (termTypeA == STRING_TERM) {
+            final int lengthA = a.getInt(positionA);
+            final int lengthB = b.getInt(positionB);
+            positionA += 4;
+            positionB += 4;
+            // unsigned byte order of UTF-8 is code point order
+            final int length = Math.min(lengthA, lengthB);
+            for (int i = 0; i < length; i++) {
+                final int byteA = a.get(positionA + i) & 0xFF;
+                final int byteB = b.get(positionB + i) & 0xFF;
+                if (byteA != byteB) {
+                    return byteA < byteB ? -1 : 1;
+                }
+            }
+            if (lengthA != lengthB) {
+                return lengthA < lengthB ? -1 : 1;
+            }
+            positionA += lengthA;
+            positionB += lengthB;
+        }
+        final int statCountA = a.getInt(positionA);
+        final int statCountB = b.getInt(positionB);
+        positionA += 4;
+        positionB += 4;
+        final int statCount = Math.min(statCountA, statCountB);
+        for (int i = 0; i < statCount; i++) {
+            final int cmp = Double.compare(a.getDouble(positionA + 8 * i), b.getDouble(positionB + 8 * i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return statCountA < statCountB ? -1 : (statCountA == statCountB ? 0 : 1);
+    }
+
+    private int compareKeys(GroupKeyTable tableA, int groupA, GroupKeyTable tableB, int groupB) {
+        final int depthA = tableA.depth();
+        final int depthB = tableB.depth();
+        if (keyBufferA.length < depthA) {
+            keyBufferA = new Object[depthA];
+        }
+        if (keyBufferB.length < depthB) {
+            keyBufferB = new Object[depthB];
+        }
+        tableA.copyKey(groupA, keyBufferA);
+        tableB.copyKey(groupB, keyBufferB);
+        final int depth = Math.min(depthA, depthB);
+        for (int i = 0; i < depth; i++) {
+            final int cmp = compareTerms(keyBufferA[i], keyBufferB[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return depthA < depthB ? -1 : (depthA == depthB ? 0 : 1);
+    }
+
+    private static int compareTerms(Object a, Object b) {
+        if (a instanceof Long && b instanceof Long) {
+            return ((Long) a).compareTo((Long) b);
+        } else if (a instanceof Long) {
+            return -1;
+        } else if (b instanceof Long) {
+            return 1;
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private interface IntComparator {
+        int compare(int a, int b);
+    }
+
+    private static void mergeSort(int[] values, int length, IntComparator comparator) {
+        if (length > 1) {
+            mergeSort(values, Arrays.copyOf(values, length), 0, length, comparator);
+        }
+    }
+
+    /**
+     * Sorts values[from, to) using tmp, which has to hold the same elements in that range, as scratch space.
+     */
+    private static void mergeSort(int[] values, int[] tmp, int from, int to, IntComparator comparator) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                final int value = values[i];
+                int j = i;
+                while (j > from && comparator.compare(values[j - 1], value) > 0) {
+                    values[j] = values[j - 1];
+                    j--;
+                }
+                values[j] = value;
+            }
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        // sort the halves into tmp and merge them back into values
+        mergeSort(tmp, values, from, middle, comparator);
+        mergeSort(tmp, values, middle, to, comparator);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && comparator.compare(tmp[left], tmp[right]) <= 0)) {
+                values[i] = tmp[left++];
+            } else {
+                values[i] = tmp[right++];
+            }
+        }
+    }
+
+    /**
+     * Merges the sorted runs with a binary heap of run indexes ordered by each run's current record.
+     * Ties go to the earlier run to keep the sort stable.
+     */
+    private final class MergeIterator extends AbstractIterator<GroupStats> {
+        private final ByteBuffer[] runs;
+        private final int[] positions;
+        private final int[] heap;
+        private int heapSize = 0;
+
+        private MergeIterator(ByteBuffer[] runs) {
+            this.runs = runs;
+            positions = new int[runs.length];
+            heap = new int[runs.length];
+            for (int i = 0; i < runs.length; i++) {
+                if (runs[i].limit() > 0) {
+                    heap[heapSize] = i;
+                    siftUp(heapSize++);
+                }
+            }
+        }
+
+        @Override
+        protected GroupStats computeNext() {
+            if (heapSize == 0) {
+                return endOfData();
+            }
+            final int top = heap[0];
+            final ByteBuffer buffer = runs[top];
+            final int offset = positions[top];
+            final GroupStats row = readRecord(buffer, offset);
+            positions[top] = offset + recordLength(buffer, offset);
+            if (positions[top] >= buffer.limit()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(0);
+            return row;
+        }
+
+        private boolean isLess(int runA, int runB) {
+            final int cmp = compareRecords(runs[runA], positions[runA], runs[runB], positions[runB]);
+            return cmp < 0 || (cmp == 0 && runA < runB);
+        }
+
+        private void siftUp(int index) {
+            final int run = heap[index];
+            while (index > 0) {
+                final int parent = (index - 1) >>> 1;
+                if (!isLess(run, heap[parent])) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                index = parent;
+            }
+            heap[index] = run;
+        }
+
+        private void siftDown(int index) {
+            if (heapSize == 0) {
+                return;
+            }
+            final int run = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && isLess(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!isLess(heap[child], run)) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = run;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (File runFile : runFiles) {
+            if (!runFile.delete()) {
+                log.info("Failed to delete: " + runFile.getPath());
+            }
+        }
+    }
+}
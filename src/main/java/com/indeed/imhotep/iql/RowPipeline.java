@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.indeed.imhotep.ez.CancellationToken;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains result rows on a producer thread into a bounded ring of primitive row batches which the consumer reads
+ * from, so that iterating FTGS on the Imhotep daemons overlaps with encoding and writing the rows to the client.
+ * A full ring blocks the producer and an empty ring blocks the consumer: a slow client throttles the producer
+ * without rows piling up in memory, which is bounded by the number of batches times the batch size limit.
+ * Failures of the producer, cancellation and timeouts included, are rethrown to the consumer. Closing the pipeline
+ * before the end stops the producer at its next batch.
+ */
+final class RowPipeline implements Closeable {
+    private static final Logger log = Logger.getLogger(RowPipeline.class);
+    private static final long POLL_MILLIS = 100;
+    private static final long PRODUCER_STOP_WAIT_MILLIS = 5000;
+    // marks the end of the rows in the ring
+    private static final RowBatch END = new RowBatch(0, 0);
+
+    private final Iterator<GroupStats> rows;
+    private final CancellationToken cancellationToken;
+    private final BlockingQueue<RowBatch> filledBatches;
+    private final BlockingQueue<RowBatch> freeBatches;
+    private final CountDownLatch producerDone = new CountDownLatch(1);
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+    private boolean iteratorCreated = false;
+
+    /**
+     * Starts draining the rows on the executor.
+     * @param ringSize number of filled batches the producer can get ahead of the consumer
+     * @param batchRows maximum number of rows in a batch
+     * @param batchBytes estimated size in bytes after which a batch is handed to the consumer
+     */
+    RowPipeline(Iterator<GroupStats> rows, int ringSize, int batchRows, long batchBytes, CancellationToken cancellationToken, Executor executor) {
+        this.rows = rows;
+        this.cancellationToken = cancellationToken;
+        filledBatches = new ArrayBlockingQueue<RowBatch>(ringSize + 1);
+        // one batch more each for the one being filled and the one being read
+        freeBatches = new ArrayBlockingQueue<RowBatch>(ringSize + 2);
+        for (int i = 0; i < ringSize + 2; i++) {
+            freeBatches.add(new RowBatch(batchRows, batchBytes));
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        });
+    }
+
+    private void produce() {
+        try {
+            RowBatch batch = takeFreeBatch();
+            while (batch != null && rows.hasNext()) {
+                final GroupStats row = rows.next();
+                if (row == null || batch.add(row)) {
+                    continue;
+                }
+                if (!publish(batch)) {
+                    return;
+                }
+                batch = takeFreeBatch();
+                if (batch != null) {
+                    batch.add(row);
+                }
+            }
+            if (batch != null && batch.size > 0 && !publish(batch)) {
+                return;
+            }
+            publish(END);
+        } catch (Throwable t) {
+            failure = t;
+            filledBatches.offer(END);
+        } finally {
+            producerDone.countDown();
+        }
+    }
+
+    /**
+     * Returns an empty batch or null if the pipeline got closed while waiting for the consumer.
+     */
+    private RowBatch takeFreeBatch() throws InterruptedException {
+        while (!closed) {
+            final RowBatch batch = freeBatches.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (batch != null) {
+                return batch;
+            }
+            cancellationToken.throwIfCancelled();
+        }
+        return null;
+    }
+
+    /**
+     * Hands the batch to the consumer and returns false if the pipeline got closed while waiting for room.
+     */
+    private boolean publish(RowBatch batch) throws InterruptedException {
+        cancellationToken.throwIfCancelled();
+        while (!closed) {
+            if (filledBatches.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            cancellationToken.throwIfCancelled();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next filled batch or null at the end of the rows.
+     */
+    private RowBatch takeFilledBatch() {
+        cancellationToken.throwIfCancelled();
+        try {
+            while (true) {
+                final RowBatch batch = filledBatches.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (batch == END || (batch == null && failure != null)) {
+                    rethrowFailure();
+                    return null;
+                }
+                if (batch != null) {
+                    return batch;
+                }
+                cancellationToken.throwIfCancelled();
+            }
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private void rethrowFailure() {
+        final Throwable failure = this.failure;
+        if (failure instanceof RuntimeException) {
+            throw cancellationToken.translate((RuntimeException) failure);
+        }
+        if (failure != null) {
+            throw Throwables.propagate(failure);
+        }
+    }
+
+    /**
+     * Returns the rows in the order the producer drained them. Can only be called once.
+     */
+    Iterator<GroupStats> iterator() {
+        if (iteratorCreated) {
+            throw new IllegalStateException("The rows of the pipeline can only be iterated once");
+        }
+        iteratorCreated = true;
+        return new AbstractIterator<GroupStats>() {
+            RowBatch batch = null;
+            int index = 0;
+
+            @Override
+            protected GroupStats computeNext() {
+                while (batch == null || index == batch.size) {
+                    if (batch != null) {
+                        batch.clear();
+                        freeBatches.offer(batch);
+                    }
+                    batch = takeFilledBatch();
+                    index = 0;
+                    if (batch == null) {
+                        return endOfData();
+                    }
+                }
+                return batch.get(index++);
+            }
+        };
+    }
+
+    /**
+     * Stops the producer and waits a bounded time for it to exit so that the session isn't used after this returns
+     * unless the producer is stuck reading from a daemon.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (!producerDone.await(PRODUCER_STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("Row producer didn't stop within " + PRODUCER_STOP_WAIT_MILLIS + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        filledBatches.clear();
+    }
+
+    /**
+     * Rows stored column by column: the key of each row as its group in a GroupKeyTable and its FTGS term, and
+     * the stats of all rows in one array.
+     */
+    static final class RowBatch {
+        // rough per row cost of the references and the GroupStats the consumer creates
+        private static final int ROW_OVERHEAD_BYTES = 48;
+
+        private final int maxRows;
+        private final long maxBytes;
+        private final GroupKeyTable[] groupKeys;
+        private final int[] groups;
+        private final Object[] terms;
+        private double[] stats = new double[0];
+        private int numStats = 0;
+        private int size = 0;
+        private long sizeInBytes = 0;
+
+        private RowBatch(int maxRows, long maxBytes) {
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+            groupKeys = new GroupKeyTable[maxRows];
+            groups = new int[maxRows];
+            terms = new Object[maxRows];
+        }
+
+        /**
+         * Adds the row and returns true or returns false if the batch is full.
+         */
+        boolean add(GroupStats row) {
+            if (size == maxRows || sizeInBytes >= maxBytes) {
+                return false;
+            }
+            if (size == 0) {
+                numStats = row.stats.length;
+            } else if (row.stats.length != numStats) {
+                return false;
+            }
+            if (stats.length < (size + 1) * numStats) {
+                stats = Arrays.copyOf(stats, Math.max((size + 1) * numStats, stats.length * 2));
+            }
+            groupKeys[size] = row.groupKeys;
+            groups[size] = row.group;
+            terms[size] = row.term;
+            System.arraycopy(row.stats, 0, stats, size * numStats, numStats);
+            sizeInBytes += ROW_OVERHEAD_BYTES + 8 * numStats + (row.term instanceof String ? 2 * ((String) row.term).length() : 0);
+            size++;
+            return true;
+        }
+
+        GroupStats get(int index) {
+            final double[] rowStats = Arrays.copyOfRange(stats, index * numStats, (index + 1) * numStats);
+            return new GroupStats(groupKeys[index], groups[index], terms[index], rowStats);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(groupKeys, 0, size, null);
+            Arrays.fill(terms, 0, size, null);
+            size = 0;
+            sizeInBytes = 0;
+        }
+    }
+}
@@ -16,12 +16,11 @@
 import com.indeed.util.serialization.Stringifier;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.SingleStatReference;
 import com.indeed.imhotep.ez.StatReference;
 import org.apache.log4j.Logger;
 
-import java.util.Map;
 
 import static com.indeed.imhotep.ez.Stats.Stat;
 
@@ -58,9 +57,9 @@ public final class StatRangeGrouping extends Grouping {
         }
     }
 
-    public Map<Integer, GroupKey> regroup(final EZImhotepSession session, final Map<Integer, GroupKey> groupKeys) throws ImhotepOutOfMemoryException {
+    public GroupKeyTable regroup(final EZImhotepSession session, final GroupKeyTable groupKeys) throws ImhotepOutOfMemoryException {
         final SingleStatReference statRef = session.pushStat(stat);
-        final Map<Integer, GroupKey> ret = session.metricRegroup(statRef, minValue, maxValue, intervalSize, noGutters, stringFormatter, groupKeys);
+        final GroupKeyTable ret = session.metricRegroup(statRef, minValue, maxValue, intervalSize, noGutters, stringFormatter, groupKeys);
         session.popStat();
         return ret;
     }
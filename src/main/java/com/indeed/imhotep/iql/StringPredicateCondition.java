@@ -17,6 +17,7 @@ import com.google.common.base.Predicate;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
+import com.indeed.imhotep.ez.Utf8Term;
 import org.apache.log4j.Logger;
 
 /**
@@ -26,10 +27,10 @@ public final class StringPredicateCondition implements Condition {
     private static final Logger log = Logger.getLogger(StringPredicateCondition.class);
 
     private final Field.StringField stringField;
-    private final Predicate<String> predicate;
+    private final Predicate<Utf8Term> predicate;
     private final boolean negation;
 
-    public StringPredicateCondition(final Field.StringField stringField, final Predicate<String> predicate, final boolean negation) {
+    public StringPredicateCondition(final Field.StringField stringField, final Predicate<Utf8Term> predicate, final boolean negation) {
         this.stringField = stringField;
         this.predicate = predicate;
         this.negation = negation;
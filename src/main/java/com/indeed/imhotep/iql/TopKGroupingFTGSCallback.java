@@ -13,101 +13,113 @@
  */
  package com.indeed.imhotep.iql;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.indeed.util.core.Pair;
+import com.google.common.collect.AbstractIterator;
 import com.indeed.imhotep.ez.EZImhotepSession;
-import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
 import com.indeed.imhotep.ez.StatReference;
+import com.indeed.imhotep.ez.TopKHeaps;
+import com.indeed.imhotep.ez.Utf8Term;
 import org.apache.log4j.Logger;
 
 import java.text.DecimalFormat;
-import java.util.*;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * @author jplaisance
  */
-public final class TopKGroupingFTGSCallback extends EZImhotepSession.FTGSCallback {
+public final class TopKGroupingFTGSCallback extends EZImhotepSession.FTGSBatchCallback {
     private static final Logger log = Logger.getLogger(TopKGroupingFTGSCallback.class);
 
-    private final Map<Integer, PriorityQueue<Pair<Double, GroupStats>>> groupToTopK = Maps.newHashMap();
-    private final Comparator<Pair> comparator;
-    private final int topK;
-    private final boolean isBottom;
+    private final TopKHeaps groupToTopK;
     private final StatReference countStat;
     private final List<StatReference> statRefs;
-    private final Map<Integer, GroupKey> groupKeys;
-    private int newGroupCount = 0;
+    private final GroupKeyTable groupKeys;
+    // values of the count stat and of the stats of the current block
+    private final double[] scores;
+    private final double[][] statValues;
 
     public TopKGroupingFTGSCallback(final int numStats, int topK, StatReference countStat, List<StatReference> statRefs,
-                                    Map<Integer, GroupKey> groupKeys, boolean isBottom) {
+                                    GroupKeyTable groupKeys, boolean isBottom) {
         super(numStats);
-        this.topK = topK;
-        this.isBottom = isBottom;
         this.countStat = countStat;
         this.statRefs = statRefs;
         this.groupKeys = groupKeys;
-        final Comparator<Pair> baseComparator = new Pair.HalfPairComparator();
-        this.comparator = isBottom ? Collections.reverseOrder(baseComparator) : baseComparator;
+        this.groupToTopK = new TopKHeaps(topK, statRefs.size(), isBottom);
+        this.scores = new double[getBatchSize()];
+        this.statValues = new double[statRefs.size()][getBatchSize()];
     }
 
-    protected void intTermGroup(final String field, final long term, final int group) {
-        termGroup(term, group);
+    protected void intTermGroups(final String field, final long[] terms, final int[] groups, final long[][] stats, final int count) {
+        computeStats(stats, count);
+        for (int i = 0; i < count; i++) {
+            final TopKHeaps.Heap topTerms = groupToTopK.getOrCreate(groups[i]);
+            final int slot = topTerms.offer(scores[i]);
+            if (slot >= 0) {
+                topTerms.setIntTerm(slot, terms[i]);
+                copyStats(topTerms, slot, i);
+            }
+        }
     }
 
-    protected void stringTermGroup(final String field, final String term, final int group) {
-        termGroup(term, group);
+    protected void stringTermGroups(final String field, final Utf8Term[] terms, final int[] groups, final long[][] stats, final int count) {
+        computeStats(stats, count);
+        for (int i = 0; i < count; i++) {
+            final TopKHeaps.Heap topTerms = groupToTopK.getOrCreate(groups[i]);
+            final int slot = topTerms.offer(scores[i]);
+            if (slot >= 0) {
+                // only the terms that make the cut are decoded
+                topTerms.setStringTerm(slot, terms[i].toString());
+                copyStats(topTerms, slot, i);
+            }
+        }
     }
 
-    private void termGroup(final Object term, final int group) {
-        PriorityQueue<Pair<Double, GroupStats>> topTerms = groupToTopK.get(group);
-        if (topTerms == null) {
-            topTerms = new PriorityQueue<Pair<Double, GroupStats>>(topK, comparator);
-            groupToTopK.put(group, topTerms);
+    private void computeStats(final long[][] stats, final int count) {
+        getStats(countStat, stats, count, scores);
+        for (int i = 0; i < statRefs.size(); i++) {
+            getStats(statRefs.get(i), stats, count, statValues[i]);
         }
-        final double count = getStat(countStat);
-        if (topTerms.size() < topK) {
-            topTerms.add(getStats(count, group, term));
+    }
 
-            if(++newGroupCount > EZImhotepSession.GROUP_LIMIT) {
-                throw new IllegalArgumentException("Number of groups exceeds the limit " +
-                        new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
-                        ". Please simplify the query.");
-            }
-        } else {
-            final Double headCount = topTerms.peek().getFirst();
-            if ((!isBottom && count > headCount) ||
-                    (isBottom && count < headCount)) {
-                topTerms.remove();
-                topTerms.add(getStats(count, group, term));
-            }
+    private void copyStats(final TopKHeaps.Heap topTerms, final int slot, final int row) {
+        for (int i = 0; i < statValues.length; i++) {
+            topTerms.setStat(slot, i, statValues[i][row]);
         }
-    }
 
-    private Pair<Double, GroupStats> getStats(double count, int group, Object term) {
-        final double[] stats = new double[statRefs.size()];
-        for (int i = 0; i < statRefs.size(); i++) {
-            stats[i] = getStat(statRefs.get(i));
+        if(groupToTopK.size() > EZImhotepSession.GROUP_LIMIT) {
+            throw new IllegalArgumentException("Number of groups exceeds the limit " +
+                    new DecimalFormat("###,###").format(EZImhotepSession.GROUP_LIMIT) +
+                    ". Please simplify the query.");
         }
-        return Pair.of(count, new GroupStats(groupKeys.get(group).add(term), stats));
     }
 
-    public List<GroupStats> getResults() {
-        final List<GroupStats> ret = Lists.newArrayList();
-        final ArrayDeque<Pair<Double, GroupStats>> stack = new ArrayDeque<Pair<Double, GroupStats>>();
-        for (int group = 1; group <= groupKeys.size(); group++) {
-            final PriorityQueue<Pair<Double, GroupStats>> pairs = groupToTopK.get(group);
-            if (pairs != null) {
-                while (!pairs.isEmpty()) {
-                    stack.push(pairs.remove());
-                }
-                while (!stack.isEmpty()) {
-                    ret.add(stack.remove().getSecond());
+    /**
+     * Lazily walks the groups in order and releases each group's heap as soon as its rows have been produced.
+     */
+    public Iterator<GroupStats> getResults() {
+        return new AbstractIterator<GroupStats>() {
+            private int group = 0;
+            private TopKHeaps.Heap topTerms = null;
+            private int[] slots = null;
+            private int slotIndex = 0;
+
+            protected GroupStats computeNext() {
+                while (slots == null || slotIndex >= slots.length) {
+                    if (++group > groupKeys.size()) {
+                        return endOfData();
+                    }
+                    topTerms = groupToTopK.remove(group);
+                    if (topTerms == null) { // TODO: do we want these empty rows?
+                        slots = null;
+                        return new GroupStats(groupKeys, group, "", new double[statRefs.size()]);
+                    }
+                    slots = topTerms.drain();
+                    slotIndex = 0;
                 }
-            } else {    // TODO: do we want these empty rows?
-                ret.add(new GroupStats(groupKeys.get(group).add(""), new double[statRefs.size()]));
+                final int slot = slots[slotIndex++];
+                return new GroupStats(groupKeys, group, topTerms.getTerm(slot), topTerms.getStats(slot));
             }
-        }
-        return ret;
+        };
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.io.Files;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * QueryCache that stores files gzip compressed in the backing cache and decompresses them while they are read.
+ * The gzip header identifies compressed files, so files written uncompressed before compression was enabled
+ * are still read as they are. Compressed files can also be read without decompressing with getGzipInputStream()
+ * to be sent to clients that accept the gzip content encoding.
+ */
+public class CompressingQueryCache implements QueryCache {
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final QueryCache delegate;
+
+    public CompressingQueryCache(QueryCache delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return delegate.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return delegate.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        return delegate.isFileCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(delegate.getInputStream(cachedFileName), BUFFER_SIZE);
+        try {
+            if (!isGzipped(in)) {
+                return in;
+            }
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    @Nullable
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(delegate.getInputStream(cachedFileName), BUFFER_SIZE);
+        boolean gzipped = false;
+        try {
+            gzipped = isGzipped(in);
+            return gzipped ? in : null;
+        } finally {
+            if (!gzipped) {
+                in.close();
+            }
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream(String cachedFileName) throws IOException {
+        final OutputStream out = delegate.getOutputStream(cachedFileName);
+        try {
+            return new FastGZIPOutputStream(out);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Compresses the file while streaming it to the backing cache, which doesn't buffer the whole file in memory
+     * for any of the cache backends.
+     */
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        final OutputStream out = getOutputStream(cachedFileName);
+        try {
+            Files.copy(localFile, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Files in the backing cache are compressed so they can't be handed out as they are.
+     */
+    @Override
+    @Nullable
+    public File getLocalFile(String cachedFileName) {
+        return null;
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        delegate.healthcheck();
+    }
+
+    private static boolean isGzipped(BufferedInputStream in) throws IOException {
+        in.mark(2);
+        final boolean gzipped = in.read() == GZIP_MAGIC_0 && in.read() == GZIP_MAGIC_1;
+        in.reset();
+        return gzipped;
+    }
+
+    /**
+     * Trades compression ratio for speed since results are written while the query is streamed to the client.
+     */
+    private static final class FastGZIPOutputStream extends GZIPOutputStream {
+        private FastGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
@@ -106,6 +106,11 @@ public class HDFSQueryCache implements QueryCache {
         return hdfs.open(f);
     }
 
+    @Override
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+        return null;
+    }
+
     @Override
     public OutputStream getOutputStream(String cachedFileName) throws IOException {
         if(!enabled) {
@@ -163,6 +168,11 @@ public class HDFSQueryCache implements QueryCache {
         cacheStream.close();
     }
 
+    @Override
+    public File getLocalFile(String cachedFileName) {
+        return null;
+    }
+
     private void makeSurePathExists(Path path) throws IOException {
         if(!hdfs.exists(path)) {
             hdfs.mkdirs(cachePath);
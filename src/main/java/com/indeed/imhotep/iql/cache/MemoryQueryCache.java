@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.io.Files;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * QueryCache that keeps small entries compressed in the heap in front of another cache.
+ * All files of a query, i.e. the result data and its .meta and .rows side-cars, are kept together under the
+ * query hash so that a hit doesn't touch the backing cache at all.
+ * Admission follows W-TinyLFU: new entries go through a small LRU window and only replace an entry of the main
+ * area if they have been requested more often recently, so a burst of one-off queries doesn't flush the
+ * popular ones. The main area is a segmented LRU whose protected segment holds entries that were hit again
+ * after admission.
+ */
+public class MemoryQueryCache implements QueryCache {
+    static final Logger log = Logger.getLogger(MemoryQueryCache.class);
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    // rough guess of the average compressed entry size to size the frequency sketch
+    private static final int EXPECTED_ENTRY_BYTES = 16 * 1024;
+
+    private final QueryCache delegate;
+    private final long maxEntryBytes;
+    private final long windowMaxBytes;
+    private final long mainMaxBytes;
+    private final long protectedMaxBytes;
+
+    // query hash -> entry, each in least recently used first order. guarded by this
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<String, Entry>();
+    private final FrequencySketch sketch;
+    private long windowBytes = 0;
+    private long probationBytes = 0;
+    private long protectedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param maxBytes total compressed bytes to hold
+     * @param maxEntryBytes largest uncompressed file that is kept
+     */
+    public MemoryQueryCache(QueryCache delegate, long maxBytes, long maxEntryBytes) {
+        this.delegate = delegate;
+        this.maxEntryBytes = maxEntryBytes;
+        windowMaxBytes = Math.max(maxBytes * WINDOW_PERCENT / 100, 1);
+        mainMaxBytes = maxBytes - windowMaxBytes;
+        protectedMaxBytes = mainMaxBytes * PROTECTED_PERCENT / 100;
+        sketch = new FrequencySketch((int) Math.min(maxBytes / EXPECTED_ENTRY_BYTES, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return delegate.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return delegate.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        return isHeld(fileName) || delegate.isFileCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        final byte[] compressed = lookup(cachedFileName);
+        if (compressed != null) {
+            hits.incrementAndGet();
+            return new InflaterInputStream(new ByteArrayInputStream(compressed));
+        }
+        misses.incrementAndGet();
+        return new CapturingInputStream(cachedFileName, delegate.getInputStream(cachedFileName));
+    }
+
+    /**
+     * Entries held in memory are deflated but not in the gzip format, so for them null is returned and the
+     * caller reads them from memory with getInputStream() instead of fetching the gzip copy from the backing cache.
+     */
+    @Override
+    @Nullable
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+        return isHeld(cachedFileName) ? null : delegate.getGzipInputStream(cachedFileName);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+        final OutputStream out = delegate.getOutputStream(cachedFileName);
+        return new OutputStream() {
+            private Capture capture = new Capture();
+            private boolean failed = false;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+                if (capture != null && !capture.write(b, off, len)) {
+                    capture = null;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    if (capture != null) {
+                        if (failed) {
+                            capture.abandon();
+                        } else {
+                            put(cachedFileName, capture);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        delegate.writeFromFile(cachedFileName, localFile);
+        if (localFile.length() <= maxEntryBytes) {
+            final Capture capture = new Capture();
+            final byte[] data = Files.toByteArray(localFile);
+            if (capture.write(data, 0, data.length)) {
+                put(cachedFileName, capture);
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    public File getLocalFile(String cachedFileName) {
+        return delegate.getLocalFile(cachedFileName);
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        delegate.healthcheck();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries dropped to make room for others, including new entries that lost admission.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of entries that left the window but were less popular than the entry they would have
+     * replaced.
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return window.size() + probation.size() + protectedEntries.size();
+    }
+
+    /**
+     * Returns the number of compressed bytes currently held.
+     */
+    public synchronized long getSizeInBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    /**
+     * Cache file names are the query hash followed by an extension, e.g. hash.tsv and hash.tsv.meta.
+     */
+    private static String getQueryHash(String fileName) {
+        final int dot = fileName.indexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+
+    private synchronized boolean isHeld(String cachedFileName) {
+        final Entry entry = find(getQueryHash(cachedFileName));
+        return entry != null && entry.files.containsKey(cachedFileName);
+    }
+
+    @Nullable
+    private synchronized Entry find(String queryHash) {
+        Entry entry = window.get(queryHash);
+        if (entry == null) {
+            entry = probation.get(queryHash);
+        }
+        if (entry == null) {
+            entry = protectedEntries.get(queryHash);
+        }
+        return entry;
+    }
+
+    @Nullable
+    private synchronized byte[] lookup(String cachedFileName) {
+        final String queryHash = getQueryHash(cachedFileName);
+        sketch.increment(queryHash);
+        final Entry entry = find(queryHash);
+        if (entry == null) {
+            return null;
+        }
+        final byte[] compressed = entry.files.get(cachedFileName);
+        if (compressed == null) {
+            return null;
+        }
+        if (entry.segment == Segment.WINDOW) {
+            window.put(queryHash, window.remove(queryHash));
+        } else if (entry.segment == Segment.PROTECTED) {
+            protectedEntries.put(queryHash, protectedEntries.remove(queryHash));
+        } else {
+            // hit again after admission, move to the protected segment
+            probation.remove(queryHash);
+            probationBytes -= entry.bytes;
+            entry.segment = Segment.PROTECTED;
+            protectedEntries.put(queryHash, entry);
+            protectedBytes += entry.bytes;
+            demoteProtected();
+        }
+        return compressed;
+    }
+
+    private synchronized void put(String cachedFileName, Capture capture) {
+        final byte[] compressed;
+        try {
+            compressed = capture.finish();
+        } catch (IOException e) {
+            log.warn("Failed to compress " + cachedFileName, e);
+            return;
+        }
+        final String queryHash = getQueryHash(cachedFileName);
+        Entry entry = find(queryHash);
+        if (entry == null) {
+            sketch.increment(queryHash);
+            entry = new Entry(queryHash);
+            window.put(queryHash, entry);
+        }
+        final byte[] previous = entry.files.put(cachedFileName, compressed);
+        final long delta = compressed.length - (previous != null ? previous.length : 0);
+        entry.bytes += delta;
+        switch (entry.segment) {
+            case WINDOW:
+                windowBytes += delta;
+                break;
+            case PROBATION:
+                probationBytes += delta;
+                break;
+            case PROTECTED:
+                protectedBytes += delta;
+                demoteProtected();
+                break;
+        }
+        while (windowBytes > windowMaxBytes && !window.isEmpty()) {
+            final Entry candidate = removeEldest(window);
+            windowBytes -= candidate.bytes;
+            admit(candidate);
+        }
+        while (probationBytes + protectedBytes > mainMaxBytes) {
+            evict(probation.isEmpty() ? protectedEntries : probation);
+        }
+    }
+
+    /**
+     * Moves an entry leaving the window into the main area if it is more popular than the entries it displaces.
+     */
+    private void admit(Entry candidate) {
+        if (candidate.bytes > mainMaxBytes) {
+            evictions.incrementAndGet();
+            return;
+        }
+        final int candidateFrequency = sketch.frequency(candidate.queryHash);
+        while (probationBytes + protectedBytes + candidate.bytes > mainMaxBytes) {
+            final LinkedHashMap<String, Entry> victims = probation.isEmpty() ? protectedEntries : probation;
+            final Entry victim = victims.values().iterator().next();
+            if (candidateFrequency <= sketch.frequency(victim.queryHash)) {
+                rejections.incrementAndGet();
+                evictions.incrementAndGet();
+                return;
+            }
+            evict(victims);
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.put(candidate.queryHash, candidate);
+        probationBytes += candidate.bytes;
+    }
+
+    private void evict(LinkedHashMap<String, Entry> segment) {
+        final Entry victim = removeEldest(segment);
+        if (victim.segment == Segment.PROBATION) {
+            probationBytes -= victim.bytes;
+        } else {
+            protectedBytes -= victim.bytes;
+        }
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Moves the least recently used protected entries back to probation until the protected segment fits.
+     */
+    private void demoteProtected() {
+        while (protectedBytes > protectedMaxBytes && !protectedEntries.isEmpty()) {
+            final Entry entry = removeEldest(protectedEntries);
+            protectedBytes -= entry.bytes;
+            entry.segment = Segment.PROBATION;
+            probation.put(entry.queryHash, entry);
+            probationBytes += entry.bytes;
+        }
+    }
+
+    private static Entry removeEldest(LinkedHashMap<String, Entry> segment) {
+        final Iterator<Entry> iterator = segment.values().iterator();
+        final Entry eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    private static enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Entry {
+        private final String queryHash;
+        // file name -> deflated contents
+        private final Map<String, byte[]> files = new HashMap<String, byte[]>(4);
+        private long bytes = 0;
+        private Segment segment = Segment.WINDOW;
+
+        private Entry(String queryHash) {
+            this.queryHash = queryHash;
+        }
+    }
+
+    /**
+     * Compresses data as it is written as long as it stays within the entry size limit.
+     */
+    private final class Capture {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+        private long size = 0;
+
+        /**
+         * Returns false and releases the buffer if the data is too large to be kept.
+         */
+        private boolean write(byte[] b, int off, int len) {
+            size += len;
+            if (size > maxEntryBytes) {
+                deflater.end();
+                return false;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                // ByteArrayOutputStream doesn't throw
+                throw new RuntimeException(e);
+            }
+            return true;
+        }
+
+        private byte[] finish() throws IOException {
+            try {
+                out.finish();
+                return bytes.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void abandon() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Keeps a copy of an entry read from the backing cache. Only entries that were read to the end are kept. If
+     * the reader stops early the copy is dropped and closing just closes the backing stream, which doesn't read
+     * the rest either when it is a TieredQueryCache promoting the entry to local disk.
+     */
+    private final class CapturingInputStream extends InputStream {
+        private final String cachedFileName;
+        private final InputStream in;
+        private Capture capture = new Capture();
+        private boolean complete = false;
+        private boolean closed = false;
+
+        private CapturingInputStream(String cachedFileName, InputStream in) {
+            this.cachedFileName = cachedFileName;
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read < 0) {
+                complete = true;
+            } else if (capture != null && !capture.write(b, off, read)) {
+                capture = null;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.close();
+            } finally {
+                if (capture != null) {
+                    if (complete) {
+                        put(cachedFileName, capture);
+                    } else {
+                        capture.abandon();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@
  */
  package com.indeed.imhotep.iql.cache;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,10 +39,19 @@ public interface QueryCache {
      */
     public InputStream getInputStream(String cachedFileName) throws IOException;
 
+    /**
+     * Returns the gzip compressed contents of the file if the cache stores it gzip compressed, null otherwise.
+     * Allows the data to be sent with the gzip content encoding without decompressing it.
+     * close() should be called when done.
+     */
+    @Nullable
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException;
+
     /**
      * Returns OutputStream that can be written to to store data in the cache.
      * close() on the OutputStream MUST be called when done.
-     * Note that for S3 cache this actually writes to a memory buffer first, so large data should be uploaded with writeFromFile().
+     * Note that for S3 cache the data is buffered in memory one part at a time and writes block while the upload
+     * falls behind.
      * @param cachedFileName Name of the file to upload to
      */
     public OutputStream getOutputStream(String cachedFileName) throws IOException;
@@ -53,6 +63,13 @@ public interface QueryCache {
      */
     public void writeFromFile(String cachedFileName, File localFile) throws IOException;
 
+    /**
+     * Returns the local file holding the cached data if this cache keeps it on local disk, null otherwise.
+     * Allows the data to be sent without copying it through the JVM.
+     */
+    @Nullable
+    public File getLocalFile(String cachedFileName);
+
     public void healthcheck() throws IOException;
 
 }
\ No newline at end of file
@@ -36,15 +36,55 @@ public class QueryCacheFactory {
             return new NoOpQueryCache();
         }
         cacheType = props.getProperty("query.cache.backend", String.class, "HDFS");
+        final QueryCache remoteCache;
         if ("HDFS".equals(cacheType)) {
-            return new HDFSQueryCache(props);
+            remoteCache = new HDFSQueryCache(props);
+        } else if ("S3".equals(cacheType)) {
+            remoteCache = new S3QueryCache(props);
+        } else {
+            throw new PropertyException("Unknown cache type (property: query.cache.backend): "
+                    + cacheType);
         }
-        if ("S3".equals(cacheType)) {
-            return new S3QueryCache(props);
+        return withMemoryTier(withLocalTier(withCompression(remoteCache, props), props), props);
+    }
+
+    /**
+     * Puts a compressed in-memory tier in front of the cache if it is given a size.
+     */
+    private static QueryCache withMemoryTier(QueryCache cache, PropertyResolver props) {
+        final long maxBytes = props.getProperty("query.cache.memory.size.mb", Long.class, 0L) * 1024 * 1024;
+        if (maxBytes <= 0 || !cache.isEnabled()) {
+            return cache;
+        }
+        final long maxEntryBytes = props.getProperty("query.cache.memory.entry.max.kb", Long.class, 1024L) * 1024;
+        return new MemoryQueryCache(cache, maxBytes, maxEntryBytes);
+    }
+
+    /**
+     * Stores files in the backend gzip compressed unless disabled in the config.
+     */
+    private static QueryCache withCompression(QueryCache remoteCache, PropertyResolver props) {
+        if (!props.getProperty("query.cache.compress", Boolean.class, true)) {
+            return remoteCache;
+        }
+        return new CompressingQueryCache(remoteCache);
+    }
+
+    /**
+     * Puts a local disk tier in front of the remote cache if a local cache dir is configured.
+     */
+    private static QueryCache withLocalTier(QueryCache remoteCache, PropertyResolver props) {
+        final String localDir = props.getProperty("query.cache.local.dir", String.class, "");
+        if (localDir.isEmpty() || !remoteCache.isEnabled()) {
+            return remoteCache;
+        }
+        final long maxLocalBytes = props.getProperty("query.cache.local.size.mb", Long.class, 1024L) * 1024 * 1024;
+        try {
+            return new TieredQueryCache(remoteCache, new File(localDir), maxLocalBytes);
+        } catch (Exception e) {
+            log.info("Failed to initialize the local query cache tier. Using the remote cache only.", e);
+            return remoteCache;
         }
-        
-        throw new PropertyException("Unknown cache type (property: query.cache.backend): "
-                + cacheType);
     }
     
     static class NoOpQueryCache implements QueryCache {
@@ -69,6 +109,11 @@ public class QueryCacheFactory {
             throw new IllegalStateException("Can't read data from cache as it is disabled");
         }
 
+        @Override
+        public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+            return null;
+        }
+
         @Override
         public OutputStream getOutputStream(String cachedFileName) throws IOException {
             throw new IllegalStateException("Can't send data to cache as it is disabled");
@@ -79,6 +124,11 @@ public class QueryCacheFactory {
             throw new IllegalStateException("Can't send data to cache as it is disabled");
         }
 
+        @Override
+        public File getLocalFile(String cachedFileName) {
+            return null;
+        }
+
         @Override
         public void healthcheck() throws IOException {
             throw new IllegalStateException("Cache is not available");
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Side-car of a cached result file with the byte offset of every row so that the first rows of a result can be
+ * served by byte count instead of by scanning for line ends.
+ * The index is a sequence of big-endian longs: the offset of each row followed by the length of the data.
+ */
+public final class RowOffsetIndex {
+    public static final String FILE_SUFFIX = ".rows";
+
+    private RowOffsetIndex() {
+    }
+
+    /**
+     * Records the rows as they are appended to the cached file.
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long offset = 0;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeLong(0);
+        }
+
+        public void addRow(int length) throws IOException {
+            offset += length;
+            out.writeLong(offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the offset where the row starts in the cached file, the file length if row is the number of rows
+     * or -1 if the file has fewer rows. The index stream is closed.
+     */
+    public static long readOffset(InputStream index, long row) throws IOException {
+        try {
+            ByteStreams.skipFully(index, row * 8);
+            return new DataInputStream(index).readLong();
+        } catch (EOFException e) {
+            return -1;
+        } finally {
+            index.close();
+        }
+    }
+}
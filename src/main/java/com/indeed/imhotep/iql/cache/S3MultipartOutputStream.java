@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads data to S3 as it is written using a multipart upload.
+ * Data is collected in fixed size part buffers and every full part is uploaded on the executor while the writer
+ * continues with the next one. At most maxPartsInFlight parts are uploading at a time, after that write() blocks
+ * until a part is done, so memory use is bounded by (maxPartsInFlight + 1) * partSize.
+ * Data smaller than a part is uploaded with a single put on close().
+ */
+class S3MultipartOutputStream extends OutputStream {
+    static final Logger log = Logger.getLogger(S3MultipartOutputStream.class);
+
+    /**
+     * S3 rejects parts other than the last one that are smaller than this.
+     */
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 client;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final ExecutorService executor;
+    private final Semaphore partsInFlight;
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private final List<Future<PartETag>> parts = Lists.newArrayList();
+
+    private byte[] buffer;
+    private int bufferSize = 0;
+    private String uploadId = null;
+    private volatile Throwable failure = null;
+    private boolean closed = false;
+
+    S3MultipartOutputStream(AmazonS3 client, String bucket, String key, int partSize, int maxPartsInFlight, ExecutorService executor) {
+        if (maxPartsInFlight <= 0) {
+            throw new IllegalArgumentException("maxPartsInFlight has to be positive: " + maxPartsInFlight);
+        }
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.executor = executor;
+        partsInFlight = new Semaphore(maxPartsInFlight);
+        buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (bufferSize == partSize) {
+                uploadPart(false);
+            }
+            final int n = Math.min(len, partSize - bufferSize);
+            System.arraycopy(b, off, buffer, bufferSize, n);
+            bufferSize += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (uploadId == null) {
+            // small enough to be sent in one request
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(bufferSize);
+            client.putObject(bucket, key, new ByteArrayInputStream(buffer, 0, bufferSize), metadata);
+            buffer = null;
+            return;
+        }
+        try {
+            uploadPart(true);
+            buffer = null;
+            final List<PartETag> partETags = Lists.newArrayListWithCapacity(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (ExecutionException e) {
+            abort();
+            throw new IOException("Failed to upload " + key, e.getCause());
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } catch (RuntimeException e) {
+            abort();
+            throw new IOException("Failed to upload " + key, e);
+        }
+    }
+
+    /**
+     * Hands the current buffer to the executor, waiting for a free upload slot first.
+     */
+    private void uploadPart(final boolean isLastPart) throws IOException {
+        if (failure != null) {
+            abort();
+            throw new IOException("Failed to upload " + key, failure);
+        }
+        try {
+            if (uploadId == null) {
+                uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+            }
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (RuntimeException e) {
+            abort();
+            throw new IOException("Failed to upload " + key, e);
+        }
+
+        final byte[] partBuffer = buffer;
+        final int partLength = bufferSize;
+        final int partNumber = parts.size() + 1;
+        parts.add(executor.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() {
+                try {
+                    final UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withPartSize(partLength)
+                            .withInputStream(new ByteArrayInputStream(partBuffer, 0, partLength))
+                            .withLastPart(isLastPart);
+                    return client.uploadPart(request).getPartETag();
+                } catch (RuntimeException e) {
+                    failure = e;
+                    throw e;
+                } finally {
+                    freeBuffers.offer(partBuffer);
+                    partsInFlight.release();
+                }
+            }
+        }));
+
+        if (!isLastPart) {
+            final byte[] free = freeBuffers.poll();
+            buffer = free != null ? free : new byte[partSize];
+            bufferSize = 0;
+        }
+    }
+
+    private void abort() {
+        closed = true;
+        buffer = null;
+        if (uploadId == null) {
+            return;
+        }
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException e) {
+            log.warn("Failed to abort the multipart upload of " + key, e);
+        }
+        uploadId = null;
+    }
+}
@@ -15,18 +15,18 @@
 
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Region;
 
+import com.indeed.util.core.threads.NamedThreadFactory;
 import org.apache.log4j.Logger;
 import org.springframework.core.env.PropertyResolver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author darren
@@ -38,6 +38,9 @@ public class S3QueryCache implements QueryCache {
     private boolean enabled;
     private AmazonS3Client client;
     private String bucket;
+    private int partSize;
+    private int maxPartsInFlight;
+    private ExecutorService uploadExecutor;
 
     public S3QueryCache(PropertyResolver props) {
         String awsRegion;
@@ -45,6 +48,11 @@ public class S3QueryCache implements QueryCache {
         enabled = true;
         try {
             bucket = props.getProperty("query.cache.s3.bucket", String.class);
+            partSize = Math.max(props.getProperty("query.cache.s3.part.size.mb", Integer.class, 8) * 1024 * 1024,
+                    S3MultipartOutputStream.MIN_PART_SIZE);
+            maxPartsInFlight = props.getProperty("query.cache.s3.parts.in.flight", Integer.class, 2);
+            uploadExecutor = Executors.newFixedThreadPool(props.getProperty("query.cache.s3.upload.threads", Integer.class, 8),
+                    new NamedThreadFactory("IQL-S3-Upload", true));
             client = new AmazonS3Client();
 
             boolean exists = client.doesBucketExist(bucket);
@@ -98,53 +106,18 @@ public class S3QueryCache implements QueryCache {
         return client.getObject(bucket, cachedFileName).getObjectContent();
     }
 
+    @Override
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+        return null;
+    }
+
     @Override
     public OutputStream getOutputStream(final String cachedFileName) throws IOException {
         if(!enabled) {
             throw new IllegalStateException("Can't send data to S3 cache as it is disabled");
         }
 
-        final ByteArrayOutputStream os = new ByteArrayOutputStream();
-        // Wrap the returned OutputStream so that we can write to buffer and do actual write on close()
-        return new OutputStream() {
-            private boolean closed = false;
-
-            @Override
-            public void write(byte[] b) throws IOException {
-                os.write(b);
-            }
-
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                os.write(b, off, len);
-            }
-
-            @Override
-            public void flush() throws IOException {
-                os.flush();
-            }
-
-            @Override
-            public void write(int b) throws IOException {
-                os.write(b);
-            }
-
-            @Override
-            public void close() throws IOException {
-                if(closed) {
-                    return;
-                }
-                closed = true;
-                os.close();
-
-                // do actual write
-                byte[] csvData = os.toByteArray();
-                ByteArrayInputStream is = new ByteArrayInputStream(csvData);
-                ObjectMetadata metadata = new ObjectMetadata();
-                metadata.setContentLength(csvData.length);
-                client.putObject(bucket, cachedFileName, is, metadata);
-            }
-        };
+        return new S3MultipartOutputStream(client, bucket, cachedFileName, partSize, maxPartsInFlight, uploadExecutor);
     }
 
     @Override
@@ -155,6 +128,11 @@ public class S3QueryCache implements QueryCache {
         client.putObject(bucket, cachedFileName, localFile);
     }
 
+    @Override
+    public File getLocalFile(String cachedFileName) {
+        return null;
+    }
+
     /**
      * Tries to see if the S3 is accessible by listing the files in the bucket
      * @throws IOException
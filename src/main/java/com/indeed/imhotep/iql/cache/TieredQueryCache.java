@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.io.Files;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * QueryCache that keeps recently used entries on local disk in front of a remote cache.
+ * Writes go through to both tiers and entries read to the end from the remote cache are copied to local disk as
+ * they are read, so repeated hits are served without a remote round trip. The local tier is bounded in bytes and evicts
+ * the least recently used entries.
+ */
+public class TieredQueryCache implements QueryCache {
+    static final Logger log = Logger.getLogger(TieredQueryCache.class);
+
+    private static final String TEMP_FILE_PREFIX = "iqlcache";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final QueryCache remote;
+    private final File localDir;
+    private final long maxLocalBytes;
+
+    // file name -> size in bytes, in access order
+    private final LinkedHashMap<String, Long> localEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long localBytes = 0;
+
+    public TieredQueryCache(QueryCache remote, File localDir, long maxLocalBytes) throws IOException {
+        this.remote = remote;
+        this.localDir = localDir;
+        this.maxLocalBytes = maxLocalBytes;
+
+        if (!localDir.isDirectory() && !localDir.mkdirs()) {
+            throw new IOException("Failed to create local cache dir " + localDir.getPath());
+        }
+        loadLocalEntries();
+    }
+
+    /**
+     * Picks up the entries left by a previous run, oldest first so that they are evicted first.
+     */
+    private void loadLocalEntries() {
+        final File[] files = localDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() == b.lastModified() ? 0 : 1);
+            }
+        });
+        synchronized (localEntries) {
+            for (File file : files) {
+                if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                    deleteLocalFile(file);  // unfinished write
+                } else if (file.isFile()) {
+                    localEntries.put(file.getName(), file.length());
+                    localBytes += file.length();
+                }
+            }
+            evict();
+        }
+        log.info("Local query cache has " + localEntries.size() + " entries taking " + localBytes + " bytes");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return remote.isEnabled();
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return remote.isEnabledInConfig();
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        return getLocalFile(fileName) != null || remote.isFileCached(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        final File localFile = getLocalFile(cachedFileName);
+        if (localFile != null) {
+            try {
+                return new FileInputStream(localFile);
+            } catch (FileNotFoundException e) {
+                removeLocalEntry(cachedFileName);   // evicted in the meantime
+            }
+        }
+        final InputStream remoteStream = remote.getInputStream(cachedFileName);
+        if (!isValidLocalName(cachedFileName)) {
+            return remoteStream;
+        }
+        return new PromotingInputStream(cachedFileName, remoteStream, createTempFile());
+    }
+
+    @Override
+    @Nullable
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+        // the local tier keeps files decompressed
+        return getLocalFile(cachedFileName) != null ? null : remote.getGzipInputStream(cachedFileName);
+    }
+
+    @Override
+    public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+        final OutputStream remoteStream = remote.getOutputStream(cachedFileName);
+        if (!isValidLocalName(cachedFileName)) {
+            return remoteStream;
+        }
+        final File tempFile = createTempFile();
+        final OutputStream localStream = tempFile != null ? new BufferedOutputStream(new FileOutputStream(tempFile)) : null;
+        return new OutputStream() {
+            private OutputStream local = localStream;
+            private boolean failed = false;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    remoteStream.write(b, off, len);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+                if (local != null) {
+                    try {
+                        local.write(b, off, len);
+                    } catch (IOException e) {
+                        log.warn("Failed to write local cache copy of " + cachedFileName, e);
+                        abandonTempFile(local, tempFile);
+                        local = null;
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                remoteStream.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    remoteStream.close();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    if (local != null) {
+                        if (failed) {
+                            abandonTempFile(local, tempFile);
+                        } else {
+                            commitTempFile(cachedFileName, local, tempFile);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        if (isValidLocalName(cachedFileName)) {
+            // the caller owns localFile so the local tier keeps a copy
+            final File tempFile = createTempFile();
+            if (tempFile != null) {
+                try {
+                    Files.copy(localFile, tempFile);
+                    commitTempFile(cachedFileName, null, tempFile);
+                } catch (IOException e) {
+                    log.warn("Failed to store local cache copy of " + cachedFileName, e);
+                    abandonTempFile(null, tempFile);
+                }
+            }
+        }
+        remote.writeFromFile(cachedFileName, localFile);
+    }
+
+    @Override
+    @Nullable
+    public File getLocalFile(String cachedFileName) {
+        synchronized (localEntries) {
+            // get() moves the entry to the most recently used end
+            if (localEntries.get(cachedFileName) == null) {
+                return null;
+            }
+        }
+        return new File(localDir, cachedFileName);
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+        remote.healthcheck();
+    }
+
+    /**
+     * Returns the number of bytes currently held by the local tier.
+     */
+    public long getLocalBytes() {
+        synchronized (localEntries) {
+            return localBytes;
+        }
+    }
+
+    /**
+     * Cache file names are hashes with an extension. Anything else, e.g. a name coming from a request path
+     * trying to leave the cache dir, is not stored locally.
+     */
+    private static boolean isValidLocalName(String fileName) {
+        return !fileName.isEmpty() && !fileName.startsWith(".") && fileName.indexOf('/') < 0 &&
+                fileName.indexOf('\\') < 0 && !fileName.endsWith(TEMP_FILE_SUFFIX);
+    }
+
+    @Nullable
+    private File createTempFile() {
+        try {
+            return File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, localDir);
+        } catch (IOException e) {
+            log.warn("Failed to create a temp file in the local cache dir", e);
+            return null;
+        }
+    }
+
+    private void commitTempFile(String cachedFileName, @Nullable OutputStream tempStream, File tempFile) {
+        try {
+            if (tempStream != null) {
+                tempStream.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to write local cache copy of " + cachedFileName, e);
+            deleteLocalFile(tempFile);
+            return;
+        }
+        final long size = tempFile.length();
+        if (size > maxLocalBytes) {
+            deleteLocalFile(tempFile);
+            return;
+        }
+        synchronized (localEntries) {
+            final File file = new File(localDir, cachedFileName);
+            if (!tempFile.renameTo(file)) {
+                log.warn("Failed to move " + tempFile.getPath() + " to " + file.getPath());
+                deleteLocalFile(tempFile);
+                return;
+            }
+            final Long previousSize = localEntries.put(cachedFileName, size);
+            localBytes += size - (previousSize != null ? previousSize : 0);
+            evict();
+        }
+    }
+
+    private static void abandonTempFile(@Nullable OutputStream tempStream, File tempFile) {
+        if (tempStream != null) {
+            try {
+                tempStream.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+        }
+        deleteLocalFile(tempFile);
+    }
+
+    private void removeLocalEntry(String cachedFileName) {
+        synchronized (localEntries) {
+            final Long size = localEntries.remove(cachedFileName);
+            if (size != null) {
+                localBytes -= size;
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the local tier fits its size limit.
+     * Streams that already have an evicted file open keep reading it.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> iterator = localEntries.entrySet().iterator();
+        while (localBytes > maxLocalBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            localBytes -= eldest.getValue();
+            deleteLocalFile(new File(localDir, eldest.getKey()));
+        }
+    }
+
+    private static void deleteLocalFile(File file) {
+        if (!file.delete() && file.exists()) {
+            log.info("Failed to delete: " + file.getPath());
+        }
+    }
+
+    /**
+     * Copies the remote entry to the local tier while it is read. Only entries that were read to the end and fit
+     * the local tier are kept. If the reader stops early, e.g. when only the first rows are sent, the copy is
+     * dropped since reading the rest of the remote stream on close would hold up the request closing it.
+     */
+    private final class PromotingInputStream extends InputStream {
+        private final String cachedFileName;
+        private final InputStream in;
+        private final File tempFile;
+        private OutputStream copy;
+        private long copiedBytes = 0;
+        private boolean complete = false;
+        private boolean closed = false;
+
+        private PromotingInputStream(String cachedFileName, InputStream in, @Nullable File tempFile) throws IOException {
+            this.cachedFileName = cachedFileName;
+            this.in = in;
+            this.tempFile = tempFile;
+            copy = tempFile != null ? new BufferedOutputStream(new FileOutputStream(tempFile)) : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read < 0) {
+                complete = true;
+            } else if (copy != null) {
+                copiedBytes += read;
+                try {
+                    if (copiedBytes > maxLocalBytes) {
+                        abandon();
+                    } else {
+                        copy.write(b, off, read);
+                    }
+                } catch (IOException e) {
+                    log.warn("Failed to write local cache copy of " + cachedFileName, e);
+                    abandon();
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        private void abandon() {
+            abandonTempFile(copy, tempFile);
+            copy = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.close();
+            } finally {
+                if (copy != null) {
+                    if (complete) {
+                        commitTempFile(cachedFileName, copy, tempFile);
+                    } else {
+                        abandon();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.ez.DynamicMetric;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.ez.Field;
+import com.indeed.imhotep.ez.Utf8Term;
 import com.indeed.imhotep.iql.Condition;
 import com.indeed.imhotep.iql.DistinctGrouping;
 import com.indeed.imhotep.iql.FieldGrouping;
@@ -134,14 +135,20 @@ public final class IQLTranslator {
             groupings.add(percentileGrouping);
         }
 
+        final int conditionCount = conditions.size();
         handleMultitermIn(conditions, groupings);
+        // the filtered session only depends on the WHERE clause unless IN conditions were folded into the groupings
+        String filterKey = parse.where != null ? parse.where.toString() : "";
+        if (conditions.size() != conditionCount) {
+            filterKey += " " + parse.groupBy;
+        }
 
         handleDiffGrouping(groupings, stats);
 
         optimizeGroupings(groupings);
 
         return new IQLQuery(client, stats, fromClause.getDataset(), fromClause.getStart(), fromClause.getEnd(),
-                conditions, groupings, parse.limit, username, metadata);
+                conditions, groupings, parse.limit, username, metadata, filterKey);
     }
 
     private static void ensureDistinctSelectDoesntMatchGroupings(List<Grouping> groupings, DistinctGrouping distinctGrouping) {
@@ -252,11 +259,13 @@ public final class IQLTranslator {
                 continue;
             }
             FunctionExpression functionProjection = (FunctionExpression) projection;
-            if (!functionProjection.function.equals("distinct")) {
+            final boolean isApproximate = functionProjection.function.equals("distinct_approx");
+            if (!functionProjection.function.equals("distinct") && !isApproximate) {
                 continue;
             }
             if(functionProjection.args.size() != 1) {
-                throw new IllegalArgumentException("distinct() takes a field name as an argument and returns distinct count of terms for the field");
+                throw new IllegalArgumentException(functionProjection.function + "() takes a field name as an argument and returns " +
+                        (isApproximate ? "an estimated " : "") + "distinct count of terms for the field");
             }
 
             String fieldName = getStr(functionProjection.args.get(0));
@@ -266,7 +275,11 @@ public final class IQLTranslator {
             if(distinctGrouping == null) {
                 distinctGrouping = new DistinctGrouping();
             }
-            distinctGrouping.addField(field, projectionNumber);
+            if(isApproximate) {
+                distinctGrouping.addApproximateField(field, projectionNumber);
+            } else {
+                distinctGrouping.addField(field, projectionNumber);
+            }
         }
         return distinctGrouping;
     }
@@ -280,12 +293,15 @@ public final class IQLTranslator {
                 continue;
             }
             FunctionExpression functionProjection = (FunctionExpression) projection;
-            if (!functionProjection.function.equals("percentile")) {
+            final boolean isApproximate = functionProjection.function.equals("percentile_approx");
+            if (!functionProjection.function.equals("percentile") && !isApproximate) {
                 continue;
             }
             if(functionProjection.args.size() != 2) {
                 throw new IllegalArgumentException(
-                        "percentile() takes a field name and a percentile and returns that percentile, e.g. percentile(tottime, 50)"
+                        functionProjection.function + "() takes a field name and a percentile and returns " +
+                                (isApproximate ? "an estimate of " : "") + "that percentile, e.g. " +
+                                functionProjection.function + "(tottime, 50)"
                 );
             }
 
@@ -301,7 +317,11 @@ public final class IQLTranslator {
             if(percentileGrouping == null) {
                 percentileGrouping = new PercentileGrouping(countStat);
             }
-            percentileGrouping.addPercentileQuery(field, percentile, projectionNumber);
+            if(isApproximate) {
+                percentileGrouping.addApproximatePercentileQuery(field, percentile, projectionNumber);
+            } else {
+                percentileGrouping.addPercentileQuery(field, percentile, projectionNumber);
+            }
         }
         return percentileGrouping;
     }
@@ -735,9 +755,10 @@ public final class IQLTranslator {
                     }
                     String regexp = getStr(right);
                     final Pattern pattern = Pattern.compile(regexp);
-                    return Collections.<Condition>singletonList(new StringPredicateCondition(Field.stringField(fieldName), new Predicate<String>() {
+                    return Collections.<Condition>singletonList(new StringPredicateCondition(Field.stringField(fieldName), new Predicate<Utf8Term>() {
                             @Override
-                            public boolean apply(String input) {
+                            public boolean apply(Utf8Term input) {
+                                // matches ASCII terms on their bytes without decoding them
                                 return pattern.matcher(input).matches();
                             }
                         },
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.sql;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ShardInfo;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.sql.ast.Expression;
+import com.indeed.imhotep.sql.ast.Op;
+import com.indeed.imhotep.sql.ast2.FromClause;
+import com.indeed.imhotep.sql.ast2.SelectStatement;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Renders a parsed select statement in a canonical form so that queries that only differ in ways that can't affect
+ * their result get the same cache key:
+ * AND conjuncts and IN lists are sorted and deduplicated, field aliases are expanded and the time range is clipped
+ * to the time covered by the shards the query runs on.
+ * The order of the projections and groupings is kept as it determines the order of the result columns.
+ * Number literals are kept verbatim: compared to a string field they are used as terms as written, so e.g. 02134
+ * and 2134 select different documents.
+ */
+public final class QueryCanonicalizer {
+    private static final Pattern FIELD_NAME_PATTERN = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+
+    private QueryCanonicalizer() {
+    }
+
+    /**
+     * Returns the canonical form of the statement executed on the given shards.
+     */
+    public static String canonicalize(SelectStatement statement, Map<String, String> aliases, Collection<ShardIdWithVersion> shards) {
+        final FromClause from = statement.from;
+        long start = from.getStart().getMillis();
+        long end = from.getEnd().getMillis();
+        // the time filter is a no-op outside of the shards so the range can be shrunk to them. time buckets are
+        // derived from the requested range though, so it has to be kept as is when grouping by time
+        if (!shards.isEmpty() && !groupsByTime(statement)) {
+            long shardsStart = Long.MAX_VALUE;
+            long shardsEnd = Long.MIN_VALUE;
+            for (ShardIdWithVersion shard : shards) {
+                final ShardInfo.DateTimeRange range = shard.getRange();
+                shardsStart = Math.min(shardsStart, range.start.getMillis());
+                shardsEnd = Math.max(shardsEnd, range.end.getMillis());
+            }
+            start = Math.max(start, shardsStart);
+            end = Math.min(end, shardsEnd);
+        }
+        return "from " + from.getDataset() + " " + start + " " + end + " " + canonicalizeWithoutTimeRange(statement, aliases);
+    }
+
+    /**
+     * Returns the canonical form of the statement leaving out the dataset and time range.
+     */
+    public static String canonicalizeWithoutTimeRange(SelectStatement statement, Map<String, String> aliases) {
+        final CanonicalMatcher matcher = new CanonicalMatcher(aliases);
+        final StringBuilder sb = new StringBuilder();
+        sb.append("select ").append(statement.select != null ? join(matcher.all(statement.select.getProjections()), ", ") : "");
+        final Expression where = statement.where != null ? statement.where.getExpression() : null;
+        sb.append(" where ").append(where != null ? where.match(matcher) : "");
+        sb.append(" group by ").append(statement.groupBy != null ? join(matcher.all(statement.groupBy.groupings), ", ") : "");
+        return sb.toString();
+    }
+
+    private static boolean groupsByTime(SelectStatement statement) {
+        if (statement.groupBy == null) {
+            return false;
+        }
+        final Expression.Matcher<Boolean> isTimeGrouping = new Expression.Matcher<Boolean>() {
+            @Override
+            protected Boolean nameExpression(String name) {
+                return "time".equals(name);
+            }
+
+            @Override
+            protected Boolean functionExpression(String name, List<Expression> args) {
+                return "time".equals(name) || "timebuckets".equals(name);
+            }
+
+            @Override
+            protected Boolean otherwise() {
+                return false;
+            }
+        };
+        for (Expression grouping : statement.groupBy.groupings) {
+            if (grouping.match(isTimeGrouping)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String join(List<String> parts, String separator) {
+        final StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+
+    private static final class CanonicalMatcher extends Expression.Matcher<String> {
+        private final Map<String, String> aliases;
+
+        private CanonicalMatcher(Map<String, String> aliases) {
+            this.aliases = aliases;
+        }
+
+        List<String> all(List<Expression> expressions) {
+            final List<String> ret = Lists.newArrayListWithCapacity(expressions.size());
+            for (Expression expression : expressions) {
+                ret.add(expression.match(this));
+            }
+            return ret;
+        }
+
+        @Override
+        protected String binaryExpression(Expression left, Op op, Expression right) {
+            switch (op) {
+                case AND: {
+                    // conjuncts are filters applied one after another so their order doesn't matter
+                    final List<Expression> conjuncts = Lists.newArrayList();
+                    addConjuncts(left, conjuncts);
+                    addConjuncts(right, conjuncts);
+                    final Set<String> sorted = Sets.newTreeSet(all(conjuncts));
+                    return "(" + join(Lists.newArrayList(sorted), " and ") + ")";
+                }
+                case IN:
+                case NOT_IN: {
+                    final List<String> values = Lists.newArrayList(Sets.newTreeSet(all(getTupleValues(right))));
+                    return "(" + left.match(this) + " " + op + " (" + join(values, ", ") + "))";
+                }
+                default:
+                    return "(" + left.match(this) + " " + op + " " + right.match(this) + ")";
+            }
+        }
+
+        private static void addConjuncts(Expression expression, final List<Expression> conjuncts) {
+            final Expression.Matcher<Boolean> addIfAnd = new Expression.Matcher<Boolean>() {
+                @Override
+                protected Boolean binaryExpression(Expression left, Op op, Expression right) {
+                    if (op != Op.AND) {
+                        return false;
+                    }
+                    addConjuncts(left, conjuncts);
+                    addConjuncts(right, conjuncts);
+                    return true;
+                }
+
+                @Override
+                protected Boolean otherwise() {
+                    return false;
+                }
+            };
+            if (!expression.match(addIfAnd)) {
+                conjuncts.add(expression);
+            }
+        }
+
+        private static List<Expression> getTupleValues(Expression expression) {
+            final List<Expression> values = expression.match(new Expression.Matcher<List<Expression>>() {
+                @Override
+                protected List<Expression> tupleExpression(List<Expression> values) {
+                    return values;
+                }
+
+                @Override
+                protected List<Expression> otherwise() {
+                    return null;
+                }
+            });
+            return values != null ? values : Collections.singletonList(expression);
+        }
+
+        @Override
+        protected String unaryExpression(Op op, Expression operand) {
+            return op + "(" + operand.match(this) + ")";
+        }
+
+        @Override
+        protected String functionExpression(String name, List<Expression> args) {
+            return name + "(" + join(all(args), ", ") + ")";
+        }
+
+        @Override
+        protected String nameExpression(String name) {
+            // aliases are normally applied to the query text before parsing, this covers statements parsed without them
+            final String alias = aliases.get(name);
+            return alias != null && FIELD_NAME_PATTERN.matcher(alias).matches() ? alias : name;
+        }
+
+        @Override
+        protected String numberExpression(String value) {
+            return value;
+        }
+
+        @Override
+        protected String stringExpression(String value) {
+            return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+        }
+
+        @Override
+        protected String tupleExpression(List<Expression> values) {
+            return "(" + join(all(values), ", ") + ")";
+        }
+
+        @Override
+        protected String bracketsExpression(String field, String content) {
+            return nameExpression(field) + "[" + content.trim().replaceAll("\\s+", " ") + "]";
+        }
+    }
+}
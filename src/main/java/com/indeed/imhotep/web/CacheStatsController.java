@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.indeed.imhotep.iql.cache.MemoryQueryCache;
+import com.indeed.imhotep.iql.cache.QueryCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Reports the counters of the in-memory query cache tier.
+ */
+@Controller
+public class CacheStatsController {
+    private final QueryCache queryCache;
+
+    @Autowired
+    public CacheStatsController(QueryCache queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    @RequestMapping("/cachestats")
+    @ResponseBody
+    public Stats handle() {
+        if (!(queryCache instanceof MemoryQueryCache)) {
+            return new Stats(false, 0, 0, 0, 0, 0, 0);
+        }
+        final MemoryQueryCache memoryCache = (MemoryQueryCache) queryCache;
+        return new Stats(true, memoryCache.getHitCount(), memoryCache.getMissCount(), memoryCache.getEvictionCount(),
+                memoryCache.getRejectionCount(), memoryCache.getEntryCount(), memoryCache.getSizeInBytes());
+    }
+
+    public static class Stats {
+        private final boolean memoryTierEnabled;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long rejections;
+        private final int entries;
+        private final long sizeInBytes;
+
+        public Stats(boolean memoryTierEnabled, long hits, long misses, long evictions, long rejections, int entries, long sizeInBytes) {
+            this.memoryTierEnabled = memoryTierEnabled;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.entries = entries;
+            this.sizeInBytes = sizeInBytes;
+        }
+
+        public boolean isMemoryTierEnabled() {
+            return memoryTierEnabled;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getRejections() {
+            return rejections;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getSizeInBytes() {
+            return sizeInBytes;
+        }
+    }
+}
@@ -15,46 +15,71 @@
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.indeed.imhotep.ez.CancellationToken;
+import com.indeed.imhotep.ez.QueryCancelledException;
+import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.QueryProgress;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Keeps track of the currently running queries.
- * All public methods on this class operating on internal data structures should be marked synchronized.
+ * Identical queries are executed once: the result of a running execution is shared with the requests for the same
+ * query hash that arrive while it is queued or running, which read the rows as they are written.
+ * The registry is kept in concurrent collections so that starting, finishing and listing queries never wait on each
+ * other or on a query being admitted.
  * @author vladimir
  */
 @Component
 public class ExecutionManager {
     private static final Logger log = Logger.getLogger(ExecutionManager.class);
-    // values are used for locking to avoid concurrent processing of identical requests
-    private final Map<String, CountDownLatch> queryToLock = Maps.newHashMap();
-    // used to limit number of concurrent queries per user
-    private final Map<String, Semaphore> userToLock = Maps.newHashMap();
-    private final Set<QueryTracker> runningQueries = Sets.newHashSet();
+    // longer than the producer can wait for admission and then execute before it writes the first row
+    private static final long SHARED_RESULT_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    private static final long SHARED_RESULT_POLL_MILLIS = 50;
+    // results of the running executions by query hash
+    private final ConcurrentMap<String, RunningResult> runningResults = new ConcurrentHashMap<String, RunningResult>();
+    private final Set<QueryTracker> runningQueries = Collections.newSetFromMap(new ConcurrentHashMap<QueryTracker, Boolean>());
+    private final AtomicLong lastQueryId = new AtomicLong();
+    // admits queries for execution, created on first use as the limits are injected after construction
+    private volatile QueryScheduler scheduler;
 
     @Value("${user.concurrent.query.limit}")
     private int maxQueriesPerUser;
+    @Value("${query.scheduler.interactive.slots:8}")
+    private int interactiveSlots = 8;
+    @Value("${query.scheduler.interactive.cost.limit:5000}")
+    private long interactiveCostLimit = 5000;
+    @Value("${query.scheduler.batch.slots:4}")
+    private int batchSlots = 4;
+    @Value("${query.scheduler.batch.cost.limit:20000}")
+    private long batchCostLimit = 20000;
 
     public ExecutionManager() {
     }
 
     @Nonnull
-    public synchronized List<QueryTracker> getRunningQueries() {
+    public List<QueryTracker> getRunningQueries() {
         return Lists.newArrayList(runningQueries);
     }
 
@@ -62,76 +87,297 @@ public class ExecutionManager {
      * Keeps track of the query that is going to be executed and makes sure that user allocated limit is not exceeded.
      * When the query execution is completed (data is in HDFS cache) or fails, the returned Query object must be closed.
      */
-    public synchronized QueryTracker queryStarted(String query, String username) throws TimeoutException {
-        final CountDownLatch releaseLock;
-        final CountDownLatch waitLockForQuery;
-        final Semaphore waitLockForUser;
-        if(queryToLock.containsKey(query)) {   // this is a duplicate query and execution will have to wait
-            waitLockForQuery = queryToLock.get(query);
-            waitLockForUser = null;
-            releaseLock = null;
-        } else {    // this is a non-duplicate query and the lock has to be released after execution is finished
-            waitLockForQuery = null;
-            waitLockForUser = getUserSemaphore(username);
-            releaseLock = new CountDownLatch(1);
-            queryToLock.put(query, releaseLock);
-        }
-        final QueryTracker newQueryTracker = new QueryTracker(username, query, waitLockForQuery, waitLockForUser, releaseLock, this);
+    public QueryTracker queryStarted(String query, String username) throws TimeoutException {
+        final QueryTracker newQueryTracker = new QueryTracker(username, query, this);
         runningQueries.add(newQueryTracker);
         return newQueryTracker;
     }
 
-    private synchronized Semaphore getUserSemaphore(String username) {
-        Semaphore semaphore = userToLock.get(username);
-        if(semaphore == null) {
-            semaphore = new Semaphore(maxQueriesPerUser, true);
-            userToLock.put(username, semaphore);
+    /**
+     * Returns the running query with the given id or null if no such query is running.
+     */
+    @Nullable
+    public QueryTracker getRunningQuery(long queryId) {
+        for (QueryTracker queryTracker : runningQueries) {
+            if (queryTracker.id == queryId) {
+                return queryTracker;
+            }
         }
-        return semaphore;
+        return null;
     }
 
-    private synchronized void release(QueryTracker q) {
-        if(q.released) {
-            return; // release called twice
+    /**
+     * Cancels the running query with the given id. Returns false if no such query is running.
+     */
+    public boolean cancel(long queryId, String reason) {
+        final QueryTracker queryTracker = getRunningQuery(queryId);
+        if (queryTracker == null) {
+            return false;
         }
-        q.released = true;
+        queryTracker.cancel(reason);
+        return true;
+    }
 
-        if(q.releaseLock != null) { // this was the original query of this type and it's done now
-            q.releaseLock.countDown();
-            queryToLock.remove(q.query);
+    /**
+     * Returns a stream over the result artifact of the queued or running execution of the query or null if there is
+     * none or nobody reads its result anymore so that it is being cancelled.
+     * The stream blocks until the rows are written and fails if the execution does. It has to be closed as the
+     * execution is cancelled once all of its readers are gone.
+     */
+    @Nullable
+    public InputStream attachToRunning(String queryHash) throws IOException {
+        final RunningResult runningResult = runningResults.get(queryHash);
+        if (runningResult == null || !runningResult.attach()) {
+            return null;
+        }
+        // the file is opened right away so that it stays readable after the producer deletes it
+        try {
+            return new SharedResultInputStream(runningResult, new FileInputStream(runningResult.file));
+        } catch (FileNotFoundException e) {
+            runningResult.release();
+            return null;    // the execution finished and deleted the file since we looked it up
+        }
+    }
+
+    /**
+     * Registers the execution of the query so that identical queries can attach to it. This is done when the query
+     * is queued so that identical queries queued after it don't execute too.
+     * Returns null if another execution of the query got registered first.
+     * The producer has to write the result artifact to the returned file, call resultWritten() once all rows are
+     * written and finishRunning() once the result is in the cache or the execution failed.
+     * @param cancellationToken cancels the execution once neither its own client nor any attached reader reads the
+     *                          result anymore
+     */
+    @Nullable
+    public RunningResult startRunning(String queryHash, CancellationToken cancellationToken) throws IOException {
+        if (runningResults.containsKey(queryHash)) {
+            return null;
         }
-        if(q.userSlotUsed && q.waitLockForUser != null) {
-            q.waitLockForUser.release();
+        final RunningResult runningResult = new RunningResult(queryHash, File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, null), cancellationToken);
+        if (runningResults.putIfAbsent(queryHash, runningResult) != null) {
+            runningResult.file.delete();
+            return null;
         }
+        return runningResult;
+    }
+
+    /**
+     * Marks the result as complete so that attached readers see its end. The execution stays registered until
+     * finishRunning() is called so that identical queries find either it or the cached result.
+     */
+    public void resultWritten(RunningResult runningResult) {
+        runningResult.finish(null);
+    }
+
+    /**
+     * Unregisters the execution, marking the result as complete if it isn't yet so that attached readers see its
+     * end or the failure.
+     * @param failure the reason the execution failed, null if it succeeded
+     */
+    public void finishRunning(RunningResult runningResult, @Nullable Throwable failure) {
+        runningResults.remove(runningResult.queryHash, runningResult);
+        runningResult.finish(failure);
+    }
+
+    QueryScheduler getScheduler() {
+        QueryScheduler result = scheduler;
+        if(result == null) {
+            synchronized (this) {
+                result = scheduler;
+                if(result == null) {
+                    result = new QueryScheduler(interactiveSlots, interactiveCostLimit, batchSlots, batchCostLimit, maxQueriesPerUser);
+                    scheduler = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private void release(QueryTracker q) {
+        if(!q.released.compareAndSet(false, true)) {
+            return; // release called twice
+        }
+
+        final QueryScheduler.Ticket ticket = q.ticket;
+        if(ticket != null) {
+            ticket.close();
+        }
+        // the query is done with its resources, a late cancel must not close them
+        q.cancellationToken.forgetAll();
 
         runningQueries.remove(q);
     }
 
+    /**
+     * Result artifact of a running execution that identical queries read while it is being written.
+     * The readers are counted, starting with the client of the execution, so that the execution is cancelled only
+     * when nobody reads its result anymore.
+     */
+    public static final class RunningResult {
+        private final String queryHash;
+        private final File file;
+        private final CancellationToken cancellationToken;
+        private boolean finished = false;
+        private Throwable failure = null;
+        private int readers = 1;
+
+        private RunningResult(String queryHash, File file, CancellationToken cancellationToken) {
+            this.queryHash = queryHash;
+            this.file = file;
+            this.cancellationToken = cancellationToken;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Adds a reader unless all readers are gone already.
+         */
+        private synchronized boolean attach() {
+            if (readers == 0) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        /**
+         * Removes a reader, the client of the execution when it disconnects or an attached reader when it closes its
+         * stream. Cancels the execution if it was the last reader and the result isn't complete.
+         * Returns true if other readers still read the result.
+         */
+        public boolean release() {
+            final boolean cancel;
+            synchronized (this) {
+                if (readers == 0) {
+                    return false;
+                }
+                readers--;
+                if (readers > 0) {
+                    return true;
+                }
+                cancel = !finished;
+            }
+            if (cancel) {
+                cancellationToken.cancel("nobody is reading the result");
+            }
+            return false;
+        }
+
+        private synchronized void finish(@Nullable Throwable failure) {
+            if (finished) {
+                return;
+            }
+            this.finished = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /**
+         * Returns true if the producer finished successfully and throws if it failed.
+         */
+        private synchronized boolean isFinished() throws IOException {
+            if (failure != null) {
+                throw new IOException("Shared execution of the query failed", failure);
+            }
+            return finished;
+        }
+
+        /**
+         * Waits for the producer to finish, at most for the given time as there is no notification for written data.
+         */
+        private synchronized void await(long timeoutMillis) throws IOException {
+            if (!finished) {
+                try {
+                    wait(timeoutMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for the shared execution of the query", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows the result file of a running execution, blocking at the end of the file until the producer writes more
+     * or finishes. Unsorted rows are written to the file as they are sent to the client of the execution so they
+     * reach the followers while the execution runs, sorted rows once they are sorted.
+     */
+    private static final class SharedResultInputStream extends InputStream {
+        private final RunningResult runningResult;
+        private final InputStream in;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private long lastProgress = System.currentTimeMillis();
+
+        private SharedResultInputStream(RunningResult runningResult, InputStream in) {
+            this.runningResult = runningResult;
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                // check the state before reading so that all data written before finishing is seen
+                final boolean finished = runningResult.isFinished();
+                final int read = in.read(b, off, len);
+                if (read > 0) {
+                    lastProgress = System.currentTimeMillis();
+                    return read;
+                }
+                if (finished) {
+                    return -1;
+                }
+                if (System.currentTimeMillis() - lastProgress > SHARED_RESULT_WAIT_MILLIS) {
+                    throw new IOException("Reached timeout (" + TimeUnit.MILLISECONDS.toMinutes(SHARED_RESULT_WAIT_MILLIS) +
+                            " min) waiting for rows of the shared execution of the query");
+                }
+                runningResult.await(SHARED_RESULT_POLL_MILLIS);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                runningResult.release();
+            }
+            in.close();
+        }
+    }
+
     /**
      * Keeps track of the query execution.
      * Must be closed when all operations relating to the query processing are complete (including HDFS cache upload).
      */
     public class QueryTracker implements Closeable {
+        private final long id = lastQueryId.incrementAndGet();
         private final String username;  // user running the query
         private final String query; // query text
-        private final CountDownLatch waitLockForQuery;  // lock to wait on before the query starts
-        private final Semaphore waitLockForUser;  // lock to wait on before the query starts
-        private final CountDownLatch releaseLock;   // lock to be released when the query is done
         private final ExecutionManager owner;
         private final DateTime startedTime = DateTime.now();
-        private boolean asynchronousRelease = false;
-        private boolean released = false;
-        private boolean userSlotUsed = false;
+        private final QueryProgress progress = new QueryProgress();
+        private final CancellationToken cancellationToken = new CancellationToken();
+        private volatile boolean asynchronousRelease = false;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile QueryScheduler.Lane lane;
+        private volatile long cost;
+        private volatile QueryScheduler.Ticket ticket;  // set once the query is admitted for execution
 
-        private QueryTracker(String username, String query, CountDownLatch waitLockForQuery, Semaphore waitLockForUser, CountDownLatch releaseLock, ExecutionManager owner) {
+        private QueryTracker(String username, String query, ExecutionManager owner) {
             this.username = username;
             this.query = query;
-            this.waitLockForQuery = waitLockForQuery;
-            this.waitLockForUser = waitLockForUser;
-            this.releaseLock = releaseLock;
             this.owner = owner;
         }
 
+        public long getId() {
+            return id;
+        }
+
         public String getUsername() {
             return username;
         }
@@ -144,38 +390,106 @@ public class ExecutionManager {
             return startedTime.toString();
         }
 
-        public void acquireLocks() throws TimeoutException {
-            waitForQueryLock();
-            waitForUserLock();
+        public String getLane() {
+            return lane != null ? lane.name() : null;
         }
 
-        private void waitForQueryLock() throws TimeoutException {
-            if(waitLockForQuery == null) {
-                return;
-            }
-            // same query is already being handled, waiting
-            try {
-                if(!waitLockForQuery.await(5, TimeUnit.MINUTES)) {
-                    log.error("Reached timeout waiting for completion of: " + query);
-                    throw new TimeoutException("Reached timeout (5 min) waiting for completion of original execution of the query");
-                }
-            } catch (InterruptedException ignored) {
-                throw new RuntimeException("Interrupted while waiting for completion of original execution of the query. You can retry.");
-            }
+        public long getCost() {
+            return cost;
         }
 
-        private void waitForUserLock() throws TimeoutException {
-            if(waitLockForUser == null) {
-                return;
+        public boolean isAdmitted() {
+            final QueryScheduler.Ticket ticket = this.ticket;
+            return ticket != null && ticket.isAdmitted();
+        }
+
+        /**
+         * Returns the counters the execution of the query updates while it runs.
+         */
+        @JsonIgnore
+        public QueryProgress getProgress() {
+            return progress;
+        }
+
+        public String getPhase() {
+            return progress.getPhase();
+        }
+
+        public long getRowsProduced() {
+            return progress.getRowsProduced();
+        }
+
+        public long getBytesStreamed() {
+            return progress.getBytesStreamed();
+        }
+
+        public long getGroupsCreated() {
+            return progress.getGroupsCreated();
+        }
+
+        public long getFtgsTermsSeen() {
+            return progress.getFtgsTermsSeen();
+        }
+
+        /**
+         * Returns the token the execution of the query polls to find out it got cancelled.
+         */
+        @JsonIgnore
+        public CancellationToken getCancellationToken() {
+            return cancellationToken;
+        }
+
+        public boolean isCancelled() {
+            return cancellationToken.isCancelled();
+        }
+
+        /**
+         * Cancels the execution of the query and closes its Imhotep session.
+         */
+        public void cancel(String reason) {
+            log.info("Cancelling query " + id + " of " + username + ": " + reason);
+            cancellationToken.cancel(reason);
+        }
+
+        /**
+         * Queues the query for admission without blocking. The listener is called on the executor once the scheduler
+         * admits the query, or with the reason it didn't: a TimeoutException after 5 minutes in the queue or a
+         * QueryCancelledException if the query was cancelled while waiting.
+         * @param client the client the user is querying through, queries are scheduled fairly per client and user
+         * @param cost estimated cost of the query as returned by IQLQuery.estimateCost()
+         */
+        public void acquireLocks(QueryScheduler.Lane lane, String client, long cost, Executor executor, final QueryScheduler.AdmissionListener listener) {
+            if(ticket != null) {
+                throw new IllegalStateException("The query is already queued for execution");
             }
+            this.lane = lane;
+            this.cost = cost;
+            progress.setPhase("Queued");
+            cancellationToken.throwIfCancelled();
+            final QueryScheduler.Ticket ticket = owner.getScheduler().acquireAsync(lane, username, client + "/" + username, cost, 1, 5, TimeUnit.MINUTES, executor,
+                    new QueryScheduler.AdmissionListener() {
+                        @Override
+                        public void admitted(QueryScheduler.Ticket ticket) {
+                            if(cancellationToken.isCancelled()) {
+                                ticket.close();
+                                listener.rejected(new QueryCancelledException(cancellationToken.getReason()));
+                            } else {
+                                listener.admitted(ticket);
+                            }
+                        }
 
-            try {
-                if(!waitLockForUser.tryAcquire(5, TimeUnit.MINUTES)) {
-                    throw new TimeoutException("Reached timeout (5 min) waiting in queue for query execution");
-                }
-                userSlotUsed = true;
-            } catch (InterruptedException ignored) {
-                throw new RuntimeException("Wait in queue for query execution was interrupted. You can retry.");
+                        @Override
+                        public void rejected(Exception reason) {
+                            listener.rejected(cancellationToken.isCancelled() ? new QueryCancelledException(cancellationToken.getReason()) : reason);
+                        }
+                    });
+            this.ticket = ticket;
+            // cancelling a waiting query takes it out of the queue
+            cancellationToken.closeOnCancel(ticket);
+            // release() sets the flag before reading the ticket so one of us sees the other and closes it.
+            // Closing a ticket twice is harmless.
+            if(released.get()) {  // closed while queueing
+                ticket.close();
             }
         }
 
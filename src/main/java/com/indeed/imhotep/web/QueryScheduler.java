@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.indeed.util.core.threads.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Admits queries for execution by weighted fair queueing.
+ * Each lane has a limit on the number of queries and on the total estimated cost of the queries executing in it.
+ * Waiting queries are tagged with a virtual finish time that grows with the cost of the queries their flow (user and
+ * client) already had admitted, so a flow sending many expensive queries doesn't hold back the others.
+ * A query that is more expensive than the cost limit on its own is admitted once its lane is empty.
+ * Queries can wait for admission blocking their thread with acquire() or without holding a thread with
+ * acquireAsync(), both kinds share the same queues.
+ * Thread safe.
+ */
+public final class QueryScheduler {
+    public enum Lane { INTERACTIVE, BATCH }
+
+    /**
+     * Gets notified when a query waiting with acquireAsync() is admitted or leaves the queue without being admitted.
+     */
+    public interface AdmissionListener {
+        void admitted(Ticket ticket);
+
+        /**
+         * @param reason TimeoutException if the query waited too long, IllegalStateException if the ticket was closed
+         */
+        void rejected(Exception reason);
+    }
+
+    // expires the queries waiting with acquireAsync()
+    private static final ScheduledThreadPoolExecutor timeoutExecutor = createTimeoutExecutor();
+
+    private final Map<Lane, LaneState> lanes = Maps.newEnumMap(Lane.class);
+    private final int maxQueriesPerUser;
+    private final Map<String, Integer> runningPerUser = Maps.newHashMap();
+    private long sequence = 0;
+
+    public QueryScheduler(int interactiveSlots, long interactiveCostLimit, int batchSlots, long batchCostLimit, int maxQueriesPerUser) {
+        lanes.put(Lane.INTERACTIVE, new LaneState(interactiveSlots, interactiveCostLimit));
+        lanes.put(Lane.BATCH, new LaneState(batchSlots, batchCostLimit));
+        this.maxQueriesPerUser = maxQueriesPerUser;
+    }
+
+    /**
+     * Blocks until the query is admitted. The returned ticket has to be closed when the query is done.
+     * @param flow identifies the party the query is scheduled fairly for, e.g. the client and user
+     * @param weight share of the lane the flow gets relative to other flows, 1 by default
+     */
+    public Ticket acquire(Lane lane, String username, String flow, long cost, double weight, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (this) {
+            final Ticket ticket = enqueue(lane, username, flow, cost, weight);
+            final LaneState laneState = ticket.lane;
+            try {
+                while (true) {
+                    admit(laneState);
+                    if (ticket.admitted) {
+                        return ticket;
+                    }
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("Reached timeout (" + unit.toSeconds(timeout) + " s) waiting in queue for query execution");
+                    }
+                    wait(remaining);
+                }
+            } finally {
+                if (!ticket.admitted) {
+                    withdraw(ticket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the query without blocking. The listener is called on the executor once the query is admitted, with the
+     * ticket that has to be closed when the query is done, or once it times out. Closing the returned ticket while
+     * the query is waiting takes it out of the queue.
+     */
+    public synchronized Ticket acquireAsync(Lane lane, String username, String flow, long cost, double weight, final long timeout, final TimeUnit unit,
+                                            Executor executor, AdmissionListener listener) {
+        final Ticket ticket = enqueue(lane, username, flow, cost, weight);
+        ticket.executor = executor;
+        ticket.listener = listener;
+        admit(ticket.lane);
+        if (!ticket.admitted) {
+            ticket.timeout = timeoutExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(ticket, "Reached timeout (" + unit.toSeconds(timeout) + " s) waiting in queue for query execution");
+                }
+            }, timeout, unit);
+        }
+        return ticket;
+    }
+
+    private Ticket enqueue(Lane lane, String username, String flow, long cost, double weight) {
+        final LaneState laneState = lanes.get(lane);
+        final Double flowFinish = laneState.flowFinishTimes.get(flow);
+        final double start = Math.max(laneState.virtualTime, flowFinish != null ? flowFinish : 0);
+        final Ticket ticket = new Ticket(laneState, username, flow, Math.max(cost, 1), start, start + Math.max(cost, 1) / weight, sequence++);
+        laneState.flowFinishTimes.put(flow, ticket.finish);
+        laneState.waiting.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Takes the waiting query out of the queue.
+     */
+    private void withdraw(Ticket ticket) {
+        final LaneState laneState = ticket.lane;
+        if (!laneState.waiting.remove(ticket)) {
+            return;
+        }
+        // give back the virtual time the query reserved so the flow isn't penalized for it
+        final Double lastFinish = laneState.flowFinishTimes.get(ticket.flow);
+        if (lastFinish != null && lastFinish == ticket.finish) {
+            laneState.flowFinishTimes.put(ticket.flow, ticket.start);
+        }
+        // the queries queued behind it may fit now
+        admit(laneState);
+        notifyAll();
+    }
+
+    private synchronized void expire(Ticket ticket, String message) {
+        if (ticket.admitted || ticket.released) {
+            return;
+        }
+        ticket.released = true;
+        withdraw(ticket);
+        notifyRejected(ticket, new TimeoutException(message));
+    }
+
+    public synchronized int getWaitingCount(Lane lane) {
+        return lanes.get(lane).waiting.size();
+    }
+
+    public synchronized int getRunningCount(Lane lane) {
+        return lanes.get(lane).running;
+    }
+
+    private void admit(LaneState laneState) {
+        boolean admitted = false;
+        for (Iterator<Ticket> iterator = laneState.waiting.iterator(); iterator.hasNext(); ) {
+            final Ticket ticket = iterator.next();
+            final Integer userRunning = runningPerUser.get(ticket.username);
+            if (userRunning != null && userRunning >= maxQueriesPerUser) {
+                // the user is at its limit, this doesn't hold back the queries of others
+                continue;
+            }
+            final boolean fits = laneState.running == 0 ||
+                    (laneState.running < laneState.slots && laneState.runningCost + ticket.cost <= laneState.costLimit);
+            if (!fits) {
+                // later tickets have to wait behind this one or expensive queries could starve
+                break;
+            }
+            iterator.remove();
+            ticket.admitted = true;
+            laneState.running++;
+            laneState.runningCost += ticket.cost;
+            laneState.virtualTime = Math.max(laneState.virtualTime, ticket.start);
+            runningPerUser.put(ticket.username, userRunning != null ? userRunning + 1 : 1);
+            admitted = true;
+            if (ticket.listener != null) {
+                notifyAdmitted(ticket);
+            }
+        }
+        if (admitted) {
+            notifyAll();
+        }
+    }
+
+    private static void notifyAdmitted(final Ticket ticket) {
+        if (ticket.timeout != null) {
+            ticket.timeout.cancel(false);
+        }
+        final AdmissionListener listener = ticket.listener;
+        ticket.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.admitted(ticket);
+            }
+        });
+    }
+
+    private static void notifyRejected(final Ticket ticket, final Exception reason) {
+        if (ticket.timeout != null) {
+            ticket.timeout.cancel(false);
+        }
+        final AdmissionListener listener = ticket.listener;
+        ticket.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.rejected(reason);
+            }
+        });
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.released) {
+            return;
+        }
+        if (!ticket.admitted) {
+            if (ticket.listener != null) {  // still waiting, give up the place in the queue
+                ticket.released = true;
+                withdraw(ticket);
+                notifyRejected(ticket, new IllegalStateException("The query left the queue before it was admitted"));
+            }
+            return;
+        }
+        ticket.released = true;
+        final LaneState laneState = ticket.lane;
+        laneState.running--;
+        laneState.runningCost -= ticket.cost;
+        final int userRunning = runningPerUser.get(ticket.username) - 1;
+        if (userRunning == 0) {
+            runningPerUser.remove(ticket.username);
+        } else {
+            runningPerUser.put(ticket.username, userRunning);
+        }
+        if (laneState.running == 0 && laneState.waiting.isEmpty()) {
+            // idle lane, start the next busy period from scratch
+            laneState.virtualTime = 0;
+            laneState.flowFinishTimes.clear();
+        }
+        // admit the queries waiting asynchronously, the user's queries in the other lane may fit now too
+        for (LaneState state : lanes.values()) {
+            admit(state);
+        }
+        notifyAll();
+    }
+
+    private static ScheduledThreadPoolExecutor createTimeoutExecutor() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("IQL-Admission-Timeout", true));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private static final class LaneState {
+        private final int slots;
+        private final long costLimit;
+        private final TreeSet<Ticket> waiting = Sets.newTreeSet(new Comparator<Ticket>() {
+            @Override
+            public int compare(Ticket a, Ticket b) {
+                final int cmp = Double.compare(a.finish, b.finish);
+                return cmp != 0 ? cmp : Longs.compare(a.sequence, b.sequence);
+            }
+        });
+        // virtual finish time of the last query queued by each flow
+        private final Map<String, Double> flowFinishTimes = Maps.newHashMap();
+        private int running = 0;
+        private long runningCost = 0;
+        private double virtualTime = 0;
+
+        private LaneState(int slots, long costLimit) {
+            this.slots = slots;
+            this.costLimit = costLimit;
+        }
+    }
+
+    public final class Ticket implements Closeable {
+        private final LaneState lane;
+        private final String username;
+        private final String flow;
+        private final long cost;
+        private final double start;
+        private final double finish;
+        private final long sequence;
+        private boolean admitted = false;
+        private boolean released = false;
+        // set for the queries waiting with acquireAsync()
+        private Executor executor = null;
+        private AdmissionListener listener = null;
+        private ScheduledFuture<?> timeout = null;
+
+        private Ticket(LaneState lane, String username, String flow, long cost, double start, double finish, long sequence) {
+            this.lane = lane;
+            this.username = username;
+            this.flow = flow;
+            this.cost = cost;
+            this.start = start;
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public String getFlow() {
+            return flow;
+        }
+
+        public boolean isAdmitted() {
+            synchronized (QueryScheduler.this) {
+                return admitted;
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
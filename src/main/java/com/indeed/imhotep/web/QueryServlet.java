@@ -24,12 +24,17 @@ import com.indeed.imhotep.client.ImhotepClient;
 import com.indeed.imhotep.client.ShardIdWithVersion;
 import com.indeed.imhotep.ez.EZImhotepSession;
 import com.indeed.imhotep.iql.GroupStats;
+import com.indeed.imhotep.iql.GroupStatsCache;
 import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.IncrementalQueryExecutor;
+import com.indeed.imhotep.iql.ResultArtifact;
 import com.indeed.imhotep.iql.cache.QueryCache;
+import com.indeed.imhotep.iql.cache.RowOffsetIndex;
 import com.indeed.imhotep.metadata.DatasetMetadata;
 import com.indeed.imhotep.metadata.FieldMetadata;
 import com.indeed.imhotep.metadata.FieldType;
 import com.indeed.imhotep.sql.IQLTranslator;
+import com.indeed.imhotep.sql.QueryCanonicalizer;
 import com.indeed.imhotep.sql.ast2.DescribeStatement;
 import com.indeed.imhotep.sql.ast2.FromClause;
 import com.indeed.imhotep.sql.ast2.GroupByClause;
@@ -60,11 +65,16 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -78,10 +88,12 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
 * @author dwahler
@@ -110,6 +122,10 @@ public class QueryServlet {
     private final QueryCache queryCache;
     private final ExecutionManager executionManager;
     private final ExecutorService executorService;
+    // handles the /query requests off the container threads
+    private final ExecutorService queryExecutor;
+    private final IncrementalQueryExecutor incrementalExecutor;
+    private final GroupStatsCache groupStatsCache;
 
     @Autowired
     public QueryServlet(ImhotepClient imhotepClient,
@@ -119,6 +135,8 @@ public class QueryServlet {
                         QueryCache queryCache,
                         ExecutionManager executionManager,
                         ExecutorService executorService,
+                        ExecutorService queryExecutor,
+                        GroupStatsCache groupStatsCache,
                         Integer rowLimit) {
         this.imhotepClient = imhotepClient;
         this.imhotepInteractiveClient = imhotepInteractiveClient;
@@ -127,67 +145,115 @@ public class QueryServlet {
         this.queryCache = queryCache;
         this.executionManager = executionManager;
         this.executorService = executorService;
+        this.queryExecutor = queryExecutor;
+        this.incrementalExecutor = new IncrementalQueryExecutor(queryCache);
+        this.groupStatsCache = groupStatsCache;
         EZImhotepSession.GROUP_LIMIT = rowLimit;
     }
 
     @RequestMapping("/query")
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp,
-                         @Nonnull @RequestParam("q") String query) throws ServletException, IOException {
-
-        final String httpUserName = getUserNameFromRequest(req);
-        final String userName = Strings.nullToEmpty(Strings.isNullOrEmpty(httpUserName) ? req.getParameter("username") : httpUserName);
-        long queryStartTimestamp = System.currentTimeMillis();
-
-        resp.setHeader("Access-Control-Allow-Origin", "*");
-        final boolean json = req.getParameter("json") != null;
-        IQLStatement parsedQuery = null;
-        SelectExecutionStats selectExecutionStats = null;
-        Throwable errorOccurred = null;
-        try {
-            if(Strings.isNullOrEmpty(req.getParameter("client")) && Strings.isNullOrEmpty(userName)) {
-                throw new IdentificationRequiredException("IQL query requests have to include parameters 'client' and 'username' for identification");
+                         @Nonnull @RequestParam("q") final String query) throws ServletException, IOException {
+        // the container thread is given back right away. queries are handled on the query executor and don't hold
+        // a thread while they wait for admission
+        final AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(0); // the execution enforces its own timeouts
+        final QueryRequest queryRequest = new QueryRequest(req, resp, query, asyncContext);
+        queryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                queryRequest.handle();
             }
-            parsedQuery = StatementParser.parse(query, metadata);
-            if(parsedQuery instanceof SelectStatement) {
-                logQueryToLog4J(query, (Strings.isNullOrEmpty(userName) ? req.getRemoteAddr() : userName), -1);
+        });
+    }
 
-                final ExecutionManager.QueryTracker queryTracker = executionManager.queryStarted(query, userName);
-                try {
-                    queryTracker.acquireLocks(); // blocks and waits if necessary
+    /**
+     * State of a /query request that is handled asynchronously. The request is finished exactly once, either by
+     * the thread that parsed it or by the thread that executed the query once it was admitted.
+     */
+    private final class QueryRequest {
+        private final HttpServletRequest req;
+        private final HttpServletResponse resp;
+        private final String query;
+        private final AsyncContext asyncContext;
+        private final long queryStartTimestamp = System.currentTimeMillis();
+        private final String userName;
+        private final boolean json;
+        private volatile IQLStatement parsedQuery = null;
+        private volatile ExecutionManager.QueryTracker queryTracker = null;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private QueryRequest(HttpServletRequest req, HttpServletResponse resp, String query, AsyncContext asyncContext) {
+            this.req = req;
+            this.resp = resp;
+            this.query = query;
+            this.asyncContext = asyncContext;
+            userName = getUserName(req);
+            json = req.getParameter("json") != null;
+        }
 
-                    queryStartTimestamp = System.currentTimeMillis();   // ignore time spent waiting
+        private void handle() {
+            resp.setHeader("Access-Control-Allow-Origin", "*");
+            try {
+                if(Strings.isNullOrEmpty(req.getParameter("client")) && Strings.isNullOrEmpty(userName)) {
+                    throw new IdentificationRequiredException("IQL query requests have to include parameters 'client' and 'username' for identification");
+                }
+                parsedQuery = StatementParser.parse(query, metadata);
+                if(parsedQuery instanceof SelectStatement) {
+                    logQueryToLog4J(query, (Strings.isNullOrEmpty(userName) ? req.getRemoteAddr() : userName), -1);
 
+                    queryTracker = executionManager.queryStarted(query, userName);
                     // actually process
                     final SelectRequestArgs selectRequestArgs = new SelectRequestArgs(req, userName);
-                    selectExecutionStats = handleSelectStatement(selectRequestArgs, resp, (SelectStatement) parsedQuery, queryTracker);
-                } finally {
-                    // this must be closed. but we may have to defer it to the async thread finishing query processing
-                    if(!queryTracker.isAsynchronousRelease()) {
-                        Closeables2.closeQuietly(queryTracker, log);
-                    }
+                    final SelectExecutionStats selectExecutionStats = handleSelectStatement(selectRequestArgs, resp, (SelectStatement) parsedQuery, queryTracker, this);
+                    if(selectExecutionStats != null) {
+                        finish(selectExecutionStats, null);
+                    }   // otherwise the query is waiting for admission and is finished after it is executed
+                } else if(parsedQuery instanceof DescribeStatement) {
+                    handleDescribeStatement(req, resp, (DescribeStatement)parsedQuery);
+                    finish(null, null);
+                } else if(parsedQuery instanceof ShowStatement) {
+                    handleShowStatement(req, resp);
+                    finish(null, null);
+                } else {
+                    throw new RuntimeException("Query parsing failed: unknown statement type");
                 }
-            } else if(parsedQuery instanceof DescribeStatement) {
-                handleDescribeStatement(req, resp, (DescribeStatement)parsedQuery);
-            } else if(parsedQuery instanceof ShowStatement) {
-                handleShowStatement(req, resp);
-            } else {
-                throw new RuntimeException("Query parsing failed: unknown statement type");
+            } catch (Throwable e) {
+                finish(null, e);
+            }
+        }
+
+        /**
+         * Reports the error if any, releases the query tracker, logs the query and completes the response.
+         */
+        private void finish(@Nullable SelectExecutionStats selectExecutionStats, @Nullable Throwable errorOccurred) {
+            if(!finished.compareAndSet(false, true)) {
+                return;
             }
-        } catch (Throwable e) {
-            final boolean progress = req.getParameter("progress") != null;
-            handleError(resp, json, e, true, progress);
-            errorOccurred = e;
-        } finally {
             try {
-                String remoteAddr = getForwardedForIPAddress(req);
-                if(remoteAddr == null) {
-                    remoteAddr = req.getRemoteAddr();
+                // this must be closed. but we may have to defer it to the async thread finishing query processing
+                if(queryTracker != null && !queryTracker.isAsynchronousRelease()) {
+                    Closeables2.closeQuietly(queryTracker, log);
                 }
-                logQuery(req, query, userName, queryStartTimestamp, parsedQuery, selectExecutionStats, errorOccurred, remoteAddr);
-            } catch (Throwable ignored) { }
+                if(errorOccurred != null) {
+                    final boolean progress = req.getParameter("progress") != null;
+                    handleError(resp, json, errorOccurred, true, progress);
+                }
+            } catch (Throwable t) {
+                log.error("Failed to report the error of the query: " + query, t);
+            } finally {
+                try {
+                    String remoteAddr = getForwardedForIPAddress(req);
+                    if(remoteAddr == null) {
+                        remoteAddr = req.getRemoteAddr();
+                    }
+                    logQuery(req, query, userName, queryStartTimestamp, parsedQuery, selectExecutionStats, errorOccurred, remoteAddr);
+                } catch (Throwable ignored) { }
+                asyncContext.complete();
+            }
         }
     }
-    
+
     /**
      * Gets the value associated with the last X-Forwarded-For header in the request. WARNING: the contract of HttpServletRequest does not assert anything about
      * the order in which the header values will be returned. I have examined the Tomcat source to establish that it does return the values in order, but this
@@ -210,6 +276,15 @@ public class QueryServlet {
         return value;
     }
 
+    /**
+     * Returns the user name from the authentication of the request, or the username parameter if there is none, or
+     * an empty string.
+     */
+    static String getUserName(final HttpServletRequest request) {
+        final String httpUserName = getUserNameFromRequest(request);
+        return Strings.nullToEmpty(Strings.isNullOrEmpty(httpUserName) ? request.getParameter("username") : httpUserName);
+    }
+
     /**
      * Gets the user name from the HTTP request if it was provided through Basic authentication.
      * 
@@ -260,15 +335,26 @@ public class QueryServlet {
         }
     }
 
-    private SelectExecutionStats handleSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp, SelectStatement parsedQuery, final ExecutionManager.QueryTracker queryTracker) throws IOException {
-        // hashing is done before calling translate so only original JParsec parsing is considered
-        final String queryForHashing = parsedQuery.toHashKeyString();
-
+    /**
+     * Serves the query from the cache or from a running execution of it, or queues it for admission.
+     * Returns null in the latter case, the request is then finished once the query is executed.
+     */
+    @Nullable
+    private SelectExecutionStats handleSelectStatement(final SelectRequestArgs args, final HttpServletResponse resp, final SelectStatement parsedQuery,
+                                                       final ExecutionManager.QueryTracker queryTracker, final QueryRequest queryRequest) throws IOException {
         final IQLQuery iqlQuery = IQLTranslator.translate(parsedQuery, args.interactive ? imhotepInteractiveClient : imhotepClient, args.imhotepUserName, metadata);
-
-        // TODO: handle requested format mismatch: e.g. cached CSV but asked for TSV shouldn't have to rerun the query
-        final String queryHash = getQueryHash(queryForHashing, iqlQuery.getShardVersionList(), args.csv);
-        final String cacheFileName = queryHash + (args.csv ? ".csv" : ".tsv");
+        if (!args.cacheReadDisabled && groupStatsCache.isEnabled()) {
+            iqlQuery.setGroupStatsCache(groupStatsCache);
+        }
+        iqlQuery.setProgress(queryTracker.getProgress());
+        iqlQuery.setCancellationToken(queryTracker.getCancellationToken());
+
+        // hashing is done on the parsed statement so only original JParsec parsing is considered
+        final Map<String, String> aliases = metadata.getDataset(parsedQuery.from.getDataset()).getAliases();
+        final String queryForHashing = QueryCanonicalizer.canonicalize(parsedQuery, aliases, iqlQuery.getShardVersionList());
+        // the cached artifact doesn't depend on the requested format, TSV or CSV is rendered from it when served
+        final String queryHash = getQueryHash(queryForHashing, iqlQuery.getShardVersionList());
+        final String cacheFileName = queryHash + ResultArtifact.FILE_EXTENSION;
         final boolean isCached = queryCache.isFileCached(cacheFileName);
 
         final QueryMetadata queryMetadata = new QueryMetadata();
@@ -317,109 +403,242 @@ public class QueryServlet {
                     log.info("Failed to load metadata cache from " + cacheFileName + METADATA_FILE_SUFFIX, e);
                 }
 
-                final InputStream cacheInputStream = queryCache.getInputStream(cacheFileName);
-                final int rowsWritten = IQLQuery.copyStream(cacheInputStream, outputStream, iqlQuery.getRowLimit(), args.progress);
+                // the copy rendered in the requested format is sent as it is stored, otherwise the artifact is rendered
+                final String resultFileName = getResultFileName(queryHash, args.csv);
+                final int rowsWritten;
+                if(!args.progress && queryCache.isFileCached(resultFileName)) {
+                    if(args.acceptsGzip && iqlQuery.getRowLimit() == Integer.MAX_VALUE &&
+                            ResultServlet.sendGzipped(queryCache, resultFileName, resp, outputStream)) {
+                        rowsWritten = 0;    // not counted, same as for uncompressed files without a row limit
+                    } else {
+                        rowsWritten = ResultServlet.sendCachedRows(queryCache, resultFileName, iqlQuery.getRowLimit(), outputStream);
+                    }
+                } else {
+                    final InputStream cacheInputStream = queryCache.getInputStream(cacheFileName);
+                    rowsWritten = IQLQuery.writeArtifactToStream(cacheInputStream, outputStream, args.csv, iqlQuery.getRowLimit(), args.progress);
+                }
                 outputStream.close();
                 return new SelectExecutionStats(isCached, rowsWritten, false, queryHash);
             }
-            final IQLQuery.WriteResults writeResults;
-            try {
-                // TODO: should we always get totals? opt out http param?
-                final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(args.progress, outputStream, true);
-                queryMetadata.addItem("IQL-Timings", executionResult.getTimings().replace('\n', '\t'), args.progress);
-                queryMetadata.addItem("IQL-Totals", Arrays.toString(executionResult.getTotals()), args.getTotals);
-
+            // an identical query that is already queued or running is followed instead of executing the query again
+            InputStream runningResultStream = args.cacheReadDisabled ? null : executionManager.attachToRunning(queryHash);
+            ExecutionManager.RunningResult registeredResult = null;
+            if (runningResultStream == null && !args.cacheWriteDisabled && !isCached) {
+                // registered before queueing so that identical queries queued after this one follow it.
+                // The artifact written for the cache is what they follow so sharing needs cache writes.
+                registeredResult = executionManager.startRunning(queryHash, queryTracker.getCancellationToken());
+                if (registeredResult == null && !args.cacheReadDisabled) {
+                    // an identical query got registered since we looked
+                    runningResultStream = executionManager.attachToRunning(queryHash);
+                }
+            }
+            if (runningResultStream != null) {
+                log.trace("Attached to the running execution of " + queryHash);
                 queryMetadata.setPendingHeaders(resp);
                 resp.setHeader("Access-Control-Expose-Headers", StringUtils.join(resp.getHeaderNames(), ", "));
-
                 if(args.progress) {
                     outputStream.println("event: header");
                     outputStream.print("data: ");
                     outputStream.print(queryMetadata.toJSON() + "\n\n");
                 }
-                final Iterator<GroupStats> groupStats = executionResult.getRows();
-                final int groupingColumns = Math.max(1, (parsedQuery.groupBy == null || parsedQuery.groupBy.groupings == null) ? 1 : parsedQuery.groupBy.groupings.size());
-                final int selectColumns = Math.max(1, (parsedQuery.select == null || parsedQuery.select.getProjections() == null) ? 1 : parsedQuery.select.getProjections().size());
-                if(!args.asynchronous) {
-                    writeResults = iqlQuery.outputResults(groupStats, outputStream, args.csv, args.progress, iqlQuery.getRowLimit(), groupingColumns, selectColumns, args.cacheWriteDisabled);
-                } else {
-                    writeResults = new IQLQuery.WriteResults(0, null, groupStats, 0);
+                final int rowsWritten = IQLQuery.writeArtifactToStream(runningResultStream, outputStream, args.csv, iqlQuery.getRowLimit(), args.progress);
+                outputStream.close();
+                return new SelectExecutionStats(false, rowsWritten, false, queryHash);
+            }
+            final ExecutionManager.RunningResult runningResult = registeredResult;
+            // the query is cancelled as soon as a write to the client fails unless identical queries read the result
+            final OutputStream clientStream = new CancelOnDisconnectOutputStream(outputStream, queryTracker, runningResult);
+            admit(args, iqlQuery, queryTracker, queryRequest, runningResult, new Callable<SelectExecutionStats>() {
+                @Override
+                public SelectExecutionStats call() throws Exception {
+                    final IQLQuery.WriteResults writeResults;
+                    try {
+                        // TODO: should we always get totals? opt out http param?
+                        final IQLQuery.ExecutionResult executionResult = executeQuery(iqlQuery, parsedQuery, args, clientStream);
+                        queryMetadata.addItem("IQL-Timings", executionResult.getTimings().replace('\n', '\t'), args.progress);
+                        queryMetadata.addItem("IQL-Totals", Arrays.toString(executionResult.getTotals()), args.getTotals);
+
+                        queryMetadata.setPendingHeaders(resp);
+                        resp.setHeader("Access-Control-Expose-Headers", StringUtils.join(resp.getHeaderNames(), ", "));
+
+                        if(args.progress) {
+                            outputStream.println("event: header");
+                            outputStream.print("data: ");
+                            outputStream.print(queryMetadata.toJSON() + "\n\n");
+                        }
+                        final Iterator<GroupStats> groupStats = executionResult.getRows();
+                        if(runningResult != null) {
+                            writeResults = iqlQuery.outputResults(groupStats, clientStream, args.csv, args.progress, iqlQuery.getRowLimit(), runningResult.getFile());
+                            // identical queries keep attaching to it until the artifact is in the cache
+                            executionManager.resultWritten(runningResult);
+                        } else {
+                            writeResults = iqlQuery.outputResults(groupStats, clientStream, args.csv, args.progress, iqlQuery.getRowLimit(), args.cacheWriteDisabled);
+                        }
+                        if (!args.cacheWriteDisabled && !isCached) {
+                            executorService.submit(new Callable<Void>() {
+                                @Override
+                                public Void call() throws Exception {
+                                    try {
+                                        try {
+                                            final OutputStream metadataCacheStream = queryCache.getOutputStream(cacheFileName + METADATA_FILE_SUFFIX);
+                                            queryMetadata.toStream(metadataCacheStream);
+                                            metadataCacheStream.close();
+                                        } catch (Exception e) {
+                                            log.warn("Failed to upload metadata cache: " + cacheFileName, e);
+                                        }
+                                        try {
+                                            uploadResultsToCache(writeResults, queryHash, args.csv, runningResult);
+                                        } catch (Exception e) {
+                                            log.warn("Failed to upload cache: " + cacheFileName, e);
+                                        }
+                                    } finally {
+                                        if(runningResult != null) {
+                                            executionManager.finishRunning(runningResult, null);
+                                        }
+                                        Closeables2.closeQuietly(queryTracker, log);
+                                    }
+                                    return null;
+                                }
+                            });
+                            queryTracker.markAsynchronousRelease(); // going to be closed asynchronously after cache is uploaded
+                        } else {
+                            if(runningResult != null) {
+                                executionManager.finishRunning(runningResult, null);
+                            }
+                            deleteTempFiles(writeResults);
+                        }
+                    } catch (Throwable t) {
+                        if(runningResult != null) {
+                            executionManager.finishRunning(runningResult, t);
+                            deleteTempFile(runningResult.getFile());
+                        }
+                        Throwables.propagateIfPossible(t, IOException.class);
+                        throw Throwables.propagate(t);
+                    } finally {
+                        Closeables2.closeQuietly(iqlQuery, log);
+                    }
+                    outputStream.close();
+                    return new SelectExecutionStats(isCached, writeResults, queryHash);
                 }
-                if (!args.cacheWriteDisabled && !isCached) {
+            });
+            return null;
+        } else {
+            // TODO: rework the async case to use the same code path as the sync case above except running under an executor
+            if (!isCached && args.cacheWriteDisabled) {
+                throw new IllegalStateException("Query cache is disabled so only synchronous calls can be served");
+            }
+
+            resp.setContentType("application/json");
+
+            final Callable<SelectExecutionStats> respondWithResultsURL = new Callable<SelectExecutionStats>() {
+                @Override
+                public SelectExecutionStats call() throws Exception {
+                    final URL baseURL = new URL(args.requestURL);
+                    final URL resultsURL = new URL(baseURL, "results/" + getResultFileName(queryHash, args.csv));
+
+                    final ObjectMapper mapper = new ObjectMapper();
+                    final ObjectNode ret = mapper.createObjectNode();
+                    ret.put("filename", resultsURL.toString());
+                    mapper.writeValue(outputStream, ret);
+                    outputStream.close();
+                    return new SelectExecutionStats(isCached, new IQLQuery.WriteResults(0, null, null, 0), queryHash);    // we don't know number of rows as it's handled asynchronously
+                }
+            };
+            if (isCached) {
+                return respondWithResultsURL.call();
+            }
+            admit(args, iqlQuery, queryTracker, queryRequest, null, new Callable<SelectExecutionStats>() {
+                @Override
+                public SelectExecutionStats call() throws Exception {
                     executorService.submit(new Callable<Void>() {
                         @Override
                         public Void call() throws Exception {
                             try {
-                                try {
-                                    final OutputStream metadataCacheStream = queryCache.getOutputStream(cacheFileName + METADATA_FILE_SUFFIX);
-                                    queryMetadata.toStream(metadataCacheStream);
-                                    metadataCacheStream.close();
-                                } catch (Exception e) {
-                                    log.warn("Failed to upload metadata cache: " + cacheFileName, e);
-                                }
-                                try {
-                                    uploadResultsToCache(writeResults, cacheFileName, args.csv);
-                                } catch (Exception e) {
-                                    log.warn("Failed to upload cache: " + cacheFileName, e);
-                                }
+                                // TODO: get totals working with the cache
+                                final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(false, null, false);
+                                final Iterator<GroupStats> groupStats = executionResult.getRows();
+
+                                final ResultArtifact.Writer cacheWriter = new ResultArtifact.Writer(queryCache.getOutputStream(cacheFileName));
+                                cacheWriter.addAll(groupStats);
+                                cacheWriter.close();    // has to be closed
+                                uploadResultCopy(queryCache.getInputStream(cacheFileName), queryHash, args.csv);
+                                return null;
                             } finally {
+                                Closeables2.closeQuietly(iqlQuery, log);
                                 Closeables2.closeQuietly(queryTracker, log);
                             }
-                            return null;
                         }
                     });
                     queryTracker.markAsynchronousRelease(); // going to be closed asynchronously after cache is uploaded
+                    return respondWithResultsURL.call();
                 }
-            } catch (ImhotepOutOfMemoryException e) {
-                throw Throwables.propagate(e);
-            } finally {
-                Closeables2.closeQuietly(iqlQuery, log);
-            }
-            outputStream.close();
-            return new SelectExecutionStats(isCached, writeResults, queryHash);
-        } else {
-            // TODO: rework the async case to use the same code path as the sync case above except running under an executor
-            if (!isCached && args.cacheWriteDisabled) {
-                throw new IllegalStateException("Query cache is disabled so only synchronous calls can be served");
-            }
+            });
+            return null;
+        }
+    }
 
-            resp.setContentType("application/json");
 
-            if (!isCached) {
-                executorService.submit(new Callable<Void>() {
-                    @Override
-                    public Void call() throws Exception {
-                        try {
-                            // TODO: get totals working with the cache
-                            final IQLQuery.ExecutionResult executionResult = iqlQuery.execute(false, null, false);
-                            final Iterator<GroupStats> groupStats = executionResult.getRows();
-
-                            final OutputStream cacheStream = queryCache.getOutputStream(cacheFileName);
-                            IQLQuery.writeRowsToStream(groupStats, cacheStream, args.csv, Integer.MAX_VALUE, false);
-                            cacheStream.close();    // has to be closed
-                            return null;
-                        } finally {
-                            Closeables2.closeQuietly(iqlQuery, log);
-                            Closeables2.closeQuietly(queryTracker, log);
-                        }
-                    }
-                });
-                queryTracker.markAsynchronousRelease(); // going to be closed asynchronously after cache is uploaded
-            }
 
-            final URL baseURL = new URL(args.requestURL);
-            final URL resultsURL = new URL(baseURL, "results/" + cacheFileName);
+    /**
+     * Queues the query for admission without holding the thread and runs the execution on the query executor once
+     * the scheduler admits the query. The request is finished with the stats the execution returns or with the
+     * error it throws or the reason the query wasn't admitted. Queries served from the cache or from a running
+     * execution don't go through admission.
+     * @param runningResult the registered execution of the query which readers attached to it follow, it fails with
+     *                      the reason if the query isn't admitted
+     */
+    private void admit(SelectRequestArgs args, final IQLQuery iqlQuery, ExecutionManager.QueryTracker queryTracker,
+                       final QueryRequest queryRequest, @Nullable final ExecutionManager.RunningResult runningResult,
+                       final Callable<SelectExecutionStats> execution) {
+        final QueryScheduler.Lane lane = args.interactive ? QueryScheduler.Lane.INTERACTIVE : QueryScheduler.Lane.BATCH;
+        try {
+            queryTracker.acquireLocks(lane, args.clientName, iqlQuery.estimateCost(), queryExecutor, new QueryScheduler.AdmissionListener() {
+                @Override
+                public void admitted(QueryScheduler.Ticket ticket) {
+                    try {
+                        queryRequest.finish(execution.call(), null);
+                    } catch (Throwable t) {
+                        queryRequest.finish(null, t);
+                    }
+                }
 
-            final ObjectMapper mapper = new ObjectMapper();
-            final ObjectNode ret = mapper.createObjectNode();
-            ret.put("filename", resultsURL.toString());
-            mapper.writeValue(outputStream, ret);
-            outputStream.close();
-            return new SelectExecutionStats(isCached, new IQLQuery.WriteResults(0, null, null, 0), queryHash);    // we don't know number of rows as it's handled asynchronously
+                @Override
+                public void rejected(Exception reason) {
+                    notAdmitted(runningResult, reason);
+                    Closeables2.closeQuietly(iqlQuery, log);
+                    queryRequest.finish(null, reason);
+                }
+            });
+        } catch (RuntimeException e) {
+            notAdmitted(runningResult, e);
+            throw e;
         }
     }
 
+    private void notAdmitted(@Nullable ExecutionManager.RunningResult runningResult, Exception reason) {
+        if(runningResult != null) {
+            executionManager.finishRunning(runningResult, reason);
+            deleteTempFile(runningResult.getFile());
+        }
+    }
 
+    /**
+     * Executes the query day by day reusing cached partial results of the days that didn't change if the query is
+     * additive and falls back to executing it over the whole range at once otherwise.
+     */
+    private IQLQuery.ExecutionResult executeQuery(IQLQuery iqlQuery, SelectStatement parsedQuery, SelectRequestArgs args, OutputStream outputStream) throws ImhotepOutOfMemoryException {
+        if (!args.cacheReadDisabled && incrementalExecutor.canExecute(iqlQuery)) {
+            // the partial results are keyed by the query without its time range
+            final String dataset = parsedQuery.from.getDataset();
+            final String partialKey = dataset + " " + QueryCanonicalizer.canonicalizeWithoutTimeRange(parsedQuery, metadata.getDataset(dataset).getAliases());
+            try {
+                return incrementalExecutor.execute(iqlQuery, partialKey, !args.cacheWriteDisabled);
+            } catch (IOException e) {
+                log.warn("Incremental execution failed, executing the whole range", e);
+            }
+        }
+        return iqlQuery.execute(args.progress, outputStream, true);
+    }
 
     private static final DateTimeFormatter yyyymmddhhmmss = DateTimeFormat.forPattern("yyyyMMddHHmmss").withZone(DateTimeZone.forOffsetHours(-6));
 
@@ -472,26 +691,97 @@ public class QueryServlet {
         return sb.toString();
     }
 
-    private void uploadResultsToCache(IQLQuery.WriteResults writeResults, String cachedFileName, boolean csv) throws IOException {
+    /**
+     * Returns the name results are served under by ResultServlet and cached under once rendered as TSV or CSV.
+     */
+    static String getResultFileName(String queryHash, boolean csv) {
+        return queryHash + (csv ? ".csv" : ".tsv");
+    }
+
+    /**
+     * Uploads the result artifact and a copy rendered in the requested format. The running execution the artifact
+     * was written for is finished as soon as the artifact is in the cache, identical queries read it from there.
+     */
+    private void uploadResultsToCache(IQLQuery.WriteResults writeResults, String queryHash, boolean csv,
+                                      @Nullable ExecutionManager.RunningResult runningResult) throws IOException {
+        final String cachedFileName = queryHash + ResultArtifact.FILE_EXTENSION;
         if(writeResults.resultCacheIterator != null) {
             // use the memory cached data
-            final OutputStream cacheStream = queryCache.getOutputStream(cachedFileName);
-            IQLQuery.writeRowsToStream(writeResults.resultCacheIterator, cacheStream, csv, Integer.MAX_VALUE, false);
-            cacheStream.close(); // has to be closed
-        } else if(writeResults.unsortedFile != null) {
-            // cache overflowed to disk so read from file
+            final ResultArtifact.Writer cacheWriter = new ResultArtifact.Writer(queryCache.getOutputStream(cachedFileName));
+            cacheWriter.addAll(writeResults.resultCacheIterator);
+            cacheWriter.close(); // has to be closed
+            uploadResultCopy(queryCache.getInputStream(cachedFileName), queryHash, csv);
+        } else if(writeResults.cacheFile != null) {
+            // results were encoded to a local file while being sent to the client
             try {
-                queryCache.writeFromFile(cachedFileName, writeResults.unsortedFile);
-            } finally {
-                if(!writeResults.unsortedFile.delete()) {
-                    log.info("Failed to delete: " + writeResults.unsortedFile.getPath());
+                queryCache.writeFromFile(cachedFileName, writeResults.cacheFile);
+                if(runningResult != null) {
+                    executionManager.finishRunning(runningResult, null);
                 }
+                if(writeResults.renderedFile != null) {
+                    // rendered together with the rows sent to the client
+                    uploadResultCopy(getResultFileName(queryHash, csv), writeResults.renderedFile, writeResults.renderedIndexFile);
+                } else {
+                    uploadResultCopy(new FileInputStream(writeResults.cacheFile), queryHash, csv);
+                }
+            } finally {
+                deleteTempFiles(writeResults);
             }
         } else {    // this should never happen
             log.warn("Results are not available to upload cache to HDFS: " + cachedFileName);
         }
     }
 
+    /**
+     * Caches the result rendered in the requested format next to its artifact together with its RowOffsetIndex so
+     * that it can be sent by byte count, by byte range or gzip compressed as it is stored without rendering the rows
+     * again. The other format is still rendered from the artifact when it is requested.
+     * The artifact stream is closed.
+     */
+    private void uploadResultCopy(InputStream artifactStream, String queryHash, boolean csv) throws IOException {
+        final String resultFileName = getResultFileName(queryHash, csv);
+        File resultFile = null;
+        File indexFile = null;
+        try {
+            resultFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, null);
+            indexFile = File.createTempFile(IQLQuery.TEMP_FILE_PREFIX, null);
+            final OutputStream resultStream = new FileOutputStream(resultFile);
+            try {
+                final RowOffsetIndex.Writer index = new RowOffsetIndex.Writer(new FileOutputStream(indexFile));
+                try {
+                    IQLQuery.renderArtifact(artifactStream, resultStream, index, csv);
+                } finally {
+                    index.close();
+                }
+            } finally {
+                resultStream.close();
+            }
+            uploadResultCopy(resultFileName, resultFile, indexFile);
+        } finally {
+            Closeables2.closeQuietly(artifactStream, log);
+            deleteTempFile(resultFile);
+            deleteTempFile(indexFile);
+        }
+    }
+
+    private void uploadResultCopy(String resultFileName, File resultFile, File indexFile) throws IOException {
+        // uploaded first so that the index is there by the time the copy shows up as cached
+        queryCache.writeFromFile(resultFileName + RowOffsetIndex.FILE_SUFFIX, indexFile);
+        queryCache.writeFromFile(resultFileName, resultFile);
+    }
+
+    private static void deleteTempFiles(IQLQuery.WriteResults writeResults) {
+        deleteTempFile(writeResults.cacheFile);
+        deleteTempFile(writeResults.renderedFile);
+        deleteTempFile(writeResults.renderedIndexFile);
+    }
+
+    private static void deleteTempFile(@Nullable File file) {
+        if(file != null && file.exists() && !file.delete()) {
+            log.info("Failed to delete: " + file.getPath());
+        }
+    }
+
     private static class SelectExecutionStats {
         public final boolean cached;
         public final int rowsWritten;
@@ -613,7 +903,7 @@ public class QueryServlet {
     /**
      * Produces a Base64 encoded SHA-1 hash of the query and the list of shard names/versions which has to be sorted.
      */
-    private String getQueryHash(String query, Collection<ShardIdWithVersion> shards, boolean csv) {
+    private String getQueryHash(String query, Collection<ShardIdWithVersion> shards) {
         final MessageDigest sha1;
         try {
             sha1 = MessageDigest.getInstance("SHA-1");
@@ -628,7 +918,6 @@ public class QueryServlet {
             for(ShardIdWithVersion shard : shards) {
                 sha1.update(shard.getShardId().getBytes(UTF8_CHARSET));
                 sha1.update(Longs.toByteArray(shard.getVersion()));
-                sha1.update(csv ? (byte)1 : 0);
             }
         }
         sha1.update(VERSION_FOR_HASHING);
@@ -802,6 +1091,71 @@ public class QueryServlet {
         log.info((timeTaken < 0 ? "+" : "-") + identification + "\t" + timeTakenStr + "\t" + query);
     }
 
+    /**
+     * Cancels the query when writing to the client fails, which is how a disconnected client shows up.
+     * If identical queries read the result of the execution it goes on for them and the rows for this client are
+     * dropped instead.
+     */
+    private static final class CancelOnDisconnectOutputStream extends FilterOutputStream {
+        private final ExecutionManager.QueryTracker queryTracker;
+        @Nullable
+        private final ExecutionManager.RunningResult runningResult;
+        private boolean disconnected = false;
+
+        private CancelOnDisconnectOutputStream(OutputStream out, ExecutionManager.QueryTracker queryTracker,
+                                               @Nullable ExecutionManager.RunningResult runningResult) {
+            super(out);
+            this.queryTracker = queryTracker;
+            this.runningResult = runningResult;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (disconnected) {
+                return;
+            }
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                disconnected(e);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (disconnected) {
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                disconnected(e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (disconnected) {
+                return;
+            }
+            try {
+                out.flush();
+            } catch (IOException e) {
+                disconnected(e);
+            }
+        }
+
+        private void disconnected(IOException e) throws IOException {
+            disconnected = true;
+            if (runningResult != null && runningResult.release()) {
+                log.info("Client of query " + queryTracker.getId() + " disconnected, still executing it for identical queries");
+                return;
+            }
+            queryTracker.cancel("client disconnected");
+            throw e;
+        }
+    }
+
     public static class IdentificationRequiredException extends RuntimeException {
         public IdentificationRequiredException(String message) {
             super(message);
@@ -820,7 +1174,9 @@ public class QueryServlet {
         public final boolean headOnly;
         public final boolean progress;
         public final boolean getTotals;
+        public final boolean acceptsGzip;
         public final String imhotepUserName;
+        public final String clientName;
         public final String requestURL;
 
         public SelectRequestArgs(HttpServletRequest req, String userName) {
@@ -835,7 +1191,8 @@ public class QueryServlet {
             headOnly = "HEAD".equals(req.getMethod()) || req.getParameter("head") != null;
             progress = req.getParameter("progress") != null;
             getTotals = req.getParameter("totals") != null;
-            final String clientName = Strings.nullToEmpty(req.getParameter("client"));
+            acceptsGzip = ResultServlet.acceptsGzip(req);
+            clientName = Strings.nullToEmpty(req.getParameter("client"));
             imhotepUserName = "IQL:" + (!Strings.isNullOrEmpty(userName) ? userName : clientName);
             requestURL = req.getRequestURL().toString();
         }
@@ -13,8 +13,11 @@
  */
  package com.indeed.imhotep.web;
 
+import com.google.common.io.ByteStreams;
 import com.indeed.imhotep.iql.IQLQuery;
+import com.indeed.imhotep.iql.ResultArtifact;
 import com.indeed.imhotep.iql.cache.QueryCache;
+import com.indeed.imhotep.iql.cache.RowOffsetIndex;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
@@ -22,10 +25,19 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
 * @author dwahler
@@ -33,6 +45,8 @@ import java.io.OutputStream;
 @Controller
 public class ResultServlet {
     private static final Logger log = Logger.getLogger(ResultServlet.class);
+    private static final Pattern BYTE_RANGE_PATTERN = Pattern.compile("bytes=(\\d{0,18})-(\\d{0,18})");
+    private static final Pattern ZERO_QUALITY_PATTERN = Pattern.compile("q\\s*=\\s*0(\\.0*)?");
     private final QueryCache queryCache;
 
     @Autowired
@@ -41,26 +55,197 @@ public class ResultServlet {
     }
 
     @RequestMapping("/results/{filename:.+}")
-    protected void doGet(final HttpServletResponse resp,
+    protected void doGet(final HttpServletRequest req,
+                         final HttpServletResponse resp,
                          @PathVariable("filename") String filename,
                          @RequestParam(required = false) String view,
+                         @RequestParam(required = false) Integer limit,
                          OutputStream outputStream) throws IOException {
         resp.setHeader("Access-Control-Allow-Origin", "*");
         final boolean csv = filename.endsWith(".csv");
         final boolean avoidFileSave = view != null;
 
+        // the result is cached rendered in the format it was queried in, the other format is rendered from its artifact
         if (!queryCache.isFileCached(filename)) {
-            resp.sendError(404);
+            final String artifactName = getArtifactName(filename);
+            if (artifactName == null || !queryCache.isFileCached(artifactName)) {
+                resp.sendError(404);
+                return;
+            }
+            setContentType(resp, avoidFileSave, csv, false);
+            IQLQuery.writeArtifactToStream(queryCache.getInputStream(artifactName), outputStream, csv, limit != null ? limit : Integer.MAX_VALUE, false);
+            outputStream.close();
             return;
         }
 
         setContentType(resp, avoidFileSave, csv, false);
-        final InputStream cacheInputStream = queryCache.getInputStream(filename);
-        IQLQuery.copyStream(cacheInputStream, outputStream, Integer.MAX_VALUE, false);
+        final File localFile = queryCache.getLocalFile(filename);
+        final String range = req.getHeader("Range");
+        if (localFile != null && range != null) {
+            // byte ranges are only served when the file is local so that its length is known upfront
+            final long length = localFile.length();
+            final long[] byteRange = parseByteRange(range, length);
+            if (byteRange != null) {
+                resp.setHeader("Accept-Ranges", "bytes");
+                if (byteRange[0] >= byteRange[1]) {
+                    resp.setHeader("Content-Range", "bytes */" + length);
+                    resp.sendError(416);
+                    return;
+                }
+                resp.setStatus(206);
+                resp.setHeader("Content-Range", "bytes " + byteRange[0] + "-" + (byteRange[1] - 1) + "/" + length);
+                resp.setHeader("Content-Length", String.valueOf(byteRange[1] - byteRange[0]));
+                sendFile(localFile, byteRange[0], byteRange[1], outputStream);
+                outputStream.close();
+                return;
+            }
+        }
+        if (localFile != null) {
+            resp.setHeader("Accept-Ranges", "bytes");
+        } else if (limit == null && acceptsGzip(req) && sendGzipped(queryCache, filename, resp, outputStream)) {
+            outputStream.close();
+            return;
+        }
+        sendCachedRows(queryCache, filename, limit != null ? limit : Integer.MAX_VALUE, outputStream);
         outputStream.close();
 
     }
 
+    /**
+     * Returns the name of the ResultArtifact a result file name like hash.tsv or hash.csv is rendered from or null
+     * if the name doesn't have one of the supported formats.
+     */
+    @Nullable
+    static String getArtifactName(String filename) {
+        if (!filename.endsWith(".tsv") && !filename.endsWith(".csv")) {
+            return null;
+        }
+        return filename.substring(0, filename.length() - 4) + ResultArtifact.FILE_EXTENSION;
+    }
+
+    /**
+     * Returns the [start, end) offsets requested by a single byte range Range header, with start >= end if the
+     * range can't be satisfied, or null if the header should be ignored.
+     */
+    @Nullable
+    static long[] parseByteRange(String range, long length) {
+        final Matcher matcher = BYTE_RANGE_PATTERN.matcher(range.trim());
+        if (!matcher.matches()) {
+            return null;    // not a single byte range
+        }
+        final String first = matcher.group(1);
+        final String last = matcher.group(2);
+        if (first.isEmpty()) {
+            if (last.isEmpty()) {
+                return null;
+            }
+            // suffix range of the last n bytes
+            return new long[] {Math.max(0, length - Long.parseLong(last)), last.equals("0") ? 0 : length};
+        }
+        final long start = Long.parseLong(first);
+        final long end = last.isEmpty() ? length : Math.min(Long.parseLong(last) + 1, length);
+        if (end <= start && end < length) {
+            return null;    // last byte before first byte makes the header invalid
+        }
+        return new long[] {start, start < length ? end : start};
+    }
+
+    /**
+     * Returns whether the Accept-Encoding header of the request allows the gzip content encoding.
+     */
+    static boolean acceptsGzip(HttpServletRequest req) {
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim()) || "*".equals(parts[0].trim())) {
+                return parts.length < 2 || !ZERO_QUALITY_PATTERN.matcher(parts[1].trim()).matches();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the whole cached file as it is stored with the gzip content encoding if the cache keeps it gzip
+     * compressed. Returns false without writing anything otherwise.
+     */
+    static boolean sendGzipped(QueryCache queryCache, String cachedFileName, HttpServletResponse resp, OutputStream outputStream) throws IOException {
+        final InputStream inputStream = queryCache.getGzipInputStream(cachedFileName);
+        if (inputStream == null) {
+            return false;
+        }
+        try {
+            resp.setHeader("Content-Encoding", "gzip");
+            resp.addHeader("Vary", "Accept-Encoding");
+            ByteStreams.copy(inputStream, outputStream);
+        } finally {
+            inputStream.close();
+        }
+        outputStream.flush();
+        return true;
+    }
+
+    /**
+     * Sends the first rowLimit rows of the cached file. If a RowOffsetIndex was cached with the file the rows are
+     * sent by byte count without looking for line ends, and if the cache keeps the file on local disk it is
+     * transferred by the file channel without going through the JVM heap.
+     * Returns the number of rows sent or 0 when not counted, same as IQLQuery.copyStream.
+     */
+    static int sendCachedRows(QueryCache queryCache, String cachedFileName, int rowLimit, OutputStream outputStream) throws IOException {
+        long end = -1;
+        int rowsSent = 0;
+        if (rowLimit > 0 && rowLimit != Integer.MAX_VALUE) {
+            final InputStream indexStream;
+            try {
+                indexStream = queryCache.getInputStream(cachedFileName + RowOffsetIndex.FILE_SUFFIX);
+            } catch (Exception e) {
+                // the result was cached without an index so the lines have to be counted
+                return IQLQuery.copyStream(queryCache.getInputStream(cachedFileName), outputStream, rowLimit, false);
+            }
+            end = RowOffsetIndex.readOffset(indexStream, rowLimit);
+            rowsSent = end >= 0 ? rowLimit : 0;  // otherwise there are fewer rows than the limit
+        }
+
+        final File localFile = queryCache.getLocalFile(cachedFileName);
+        if (localFile != null) {
+            sendFile(localFile, 0, end >= 0 ? end : localFile.length(), outputStream);
+        } else {
+            final InputStream inputStream = queryCache.getInputStream(cachedFileName);
+            try {
+                ByteStreams.copy(end >= 0 ? ByteStreams.limit(inputStream, end) : inputStream, outputStream);
+            } finally {
+                inputStream.close();
+            }
+            outputStream.flush();
+        }
+        return rowsSent;
+    }
+
+    /**
+     * Sends bytes [start, end) of the file with FileChannel.transferTo.
+     */
+    private static void sendFile(File file, long start, long end, OutputStream outputStream) throws IOException {
+        final FileInputStream inputStream = new FileInputStream(file);
+        try {
+            final FileChannel channel = inputStream.getChannel();
+            final WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+            long position = start;
+            while (position < end) {
+                final long transferred = channel.transferTo(position, end - position, outputChannel);
+                if (transferred <= 0 && position >= channel.size()) {
+                    log.warn("File shrank while being sent: " + file.getPath());
+                    break;
+                }
+                position += transferred;
+            }
+        } finally {
+            inputStream.close();
+        }
+        outputStream.flush();
+    }
+
     static void setContentType(HttpServletResponse resp, boolean avoidFileSave, boolean csv, boolean progress) {
         if(avoidFileSave) {
             resp.setContentType("text/plain");
@@ -13,11 +13,19 @@
  */
  package com.indeed.imhotep.web;
 
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.util.List;
 
 
@@ -26,7 +34,12 @@ import java.util.List;
  */
 @Controller
 public class RunningController {
+    private static final Logger log = Logger.getLogger(RunningController.class);
+
     private final ExecutionManager executionManager;
+    // comma separated users that can cancel the queries of others
+    @Value("${running.cancel.admins:}")
+    private String adminUsers = "";
 
     @Autowired
     public RunningController(ExecutionManager executionManager) {
@@ -39,6 +52,36 @@ public class RunningController {
         return new State(executionManager.getRunningQueries());
     }
 
+    /**
+     * Cancels the running query with the id listed by /running. Only the user running the query and the users
+     * listed in running.cancel.admins can cancel it, others get a 403. Responds with 404 if the query isn't running.
+     */
+    @RequestMapping(value = "/running/{id}/cancel", method = RequestMethod.POST)
+    @ResponseBody
+    public State cancel(@PathVariable("id") long id, HttpServletRequest req, HttpServletResponse resp) {
+        final ExecutionManager.QueryTracker queryTracker = executionManager.getRunningQuery(id);
+        if (queryTracker == null) {
+            resp.setStatus(404);
+        } else {
+            final String userName = QueryServlet.getUserName(req);
+            if (!canCancel(userName, queryTracker)) {
+                log.info("User '" + userName + "' at " + req.getRemoteAddr() + " isn't allowed to cancel query " + id);
+                resp.setStatus(403);
+            } else {
+                queryTracker.cancel("cancelled through /running by " + userName + " at " + req.getRemoteAddr());
+            }
+        }
+        return new State(executionManager.getRunningQueries());
+    }
+
+    private boolean canCancel(String userName, ExecutionManager.QueryTracker queryTracker) {
+        if (Strings.isNullOrEmpty(userName)) {
+            return false;
+        }
+        return userName.equals(queryTracker.getUsername()) ||
+                Splitter.on(',').trimResults().omitEmptyStrings().splitToList(adminUsers).contains(userName);
+    }
+
     public static class State {
         private List<ExecutionManager.QueryTracker> queries;
 
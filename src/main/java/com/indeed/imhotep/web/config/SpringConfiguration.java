@@ -19,6 +19,7 @@ import com.indeed.imhotep.web.ImhotepClientPinger;
 import com.indeed.util.core.threads.NamedThreadFactory;
 import com.indeed.imhotep.client.Host;
 import com.indeed.imhotep.client.ImhotepClient;
+import com.indeed.imhotep.iql.GroupStatsCache;
 import com.indeed.imhotep.iql.cache.QueryCache;
 import com.indeed.imhotep.iql.cache.QueryCacheFactory;
 import com.indeed.imhotep.web.ImhotepMetadataCache;
@@ -41,6 +42,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -57,12 +59,25 @@ public class SpringConfiguration extends WebMvcConfigurerAdapter {
     @Autowired
     Environment env;
 
+    // runs the cache uploads and the asynchronous query executions.
+    // a pool only grows past its core size when the queue is full so with a bounded queue it stayed at the core size
+    // and rejected work once the queue filled up. all threads are core threads and the queue is unbounded instead.
     @Bean(destroyMethod = "shutdown")
     public ExecutorService executorService()  {
-        return new ThreadPoolExecutor(
-                3, 10, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(100),
+        final int threads = env.getProperty("worker.threads", Integer.class, 10);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
                 new NamedThreadFactory("IQL-Worker")
         );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // handles the /query requests after the container thread is given back.
+    // queries waiting for admission don't hold a thread so the pool only grows with the number of running queries.
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService queryExecutor() {
+        return Executors.newCachedThreadPool(new NamedThreadFactory("IQL-Query", true));
     }
 
     @Bean 
@@ -70,6 +85,11 @@ public class SpringConfiguration extends WebMvcConfigurerAdapter {
         return QueryCacheFactory.newQueryCache(env);
     }
 
+    @Bean
+    GroupStatsCache groupStatsCache() {
+        return new GroupStatsCache(env.getProperty("query.cache.groupstats.entries", Integer.class, 10000));
+    }
+
     @Bean(destroyMethod = "close")
     public ImhotepClient imhotepClient() {
         if(env.getProperty("imhotep.daemons.localmode", Boolean.class, false)) {
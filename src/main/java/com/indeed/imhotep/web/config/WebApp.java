@@ -55,6 +55,7 @@ public class WebApp  extends AbstractAnnotationConfigDispatcherServletInitialize
         super.onStartup(servletContext);
 
         FilterRegistration.Dynamic noCacheFilter = servletContext.addFilter("nocache", NoCacheFilter.class);
+        noCacheFilter.setAsyncSupported(true);  // /query responses are completed asynchronously
         noCacheFilter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), false, "/*");
 
         cleanupTempFiles();
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the per-tuple FTGSCallback with the FTGSBatchCallback on the top-k and distinct workloads.
+ * Both run over the same generated FTGS so the iterator cost is shared and the difference is the cost of the
+ * callbacks: a virtual call, a stats copy and a StatReference lookup per tuple against one call per block.
+ * Run with e.g. java -cp ... com.indeed.imhotep.ez.FTGSBatchBenchmark [terms] [groups] [stats] [iterations]
+ */
+public final class FTGSBatchBenchmark {
+    public static void main(String[] args) {
+        final int numTerms = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int numGroups = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final int numStats = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        final EZImhotepSession session = new EZImhotepSession(SyntheticFTGS.session(true, numTerms, numGroups, numStats));
+        final List<Field> fields = Arrays.<Field>asList(Field.intField("field"));
+        final StatReference count = new SingleStatReference(0, "count()", session);
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            // the first iteration warms up both paths
+            final boolean report = iteration > 0;
+
+            long start = System.nanoTime();
+            final TopKTupleCallback topKTuple = new TopKTupleCallback(numStats, count);
+            session.ftgsIterate(fields, topKTuple);
+            report(report, "top-k per tuple", numTerms, numGroups, start, topKTuple.heaps.size());
+
+            start = System.nanoTime();
+            final TopKBatchCallback topKBatch = new TopKBatchCallback(numStats, count);
+            session.ftgsIterate(fields, topKBatch);
+            report(report, "top-k batched", numTerms, numGroups, start, topKBatch.heaps.size());
+
+            start = System.nanoTime();
+            final DistinctTupleCallback distinctTuple = new DistinctTupleCallback(numStats, numGroups);
+            session.ftgsIterate(fields, distinctTuple);
+            report(report, "distinct per tuple", numTerms, numGroups, start, distinctTuple.counts[1]);
+
+            start = System.nanoTime();
+            final DistinctBatchCallback distinctBatch = new DistinctBatchCallback(numGroups);
+            session.ftgsIterate(fields, distinctBatch);
+            report(report, "distinct batched", numTerms, numGroups, start, distinctBatch.counts[1]);
+        }
+    }
+
+    private static void report(boolean report, String name, int numTerms, int numGroups, long start, long checksum) {
+        final long elapsed = System.nanoTime() - start;
+        if (report) {
+            System.out.println(String.format("%-20s %,14d tuples %,8d ms %8.1f ns/tuple (%d)",
+                    name, (long) numTerms * numGroups, elapsed / 1000000, (double) elapsed / ((long) numTerms * numGroups), checksum));
+        }
+    }
+
+    private static final class TopKTupleCallback extends EZImhotepSession.FTGSCallback {
+        private final TopKHeaps heaps = new TopKHeaps(100, 0, false);
+        private final StatReference count;
+
+        private TopKTupleCallback(int numStats, StatReference count) {
+            super(numStats);
+            this.count = count;
+        }
+
+        @Override
+        protected void intTermGroup(String field, long term, int group) {
+            final TopKHeaps.Heap heap = heaps.getOrCreate(group);
+            final int slot = heap.offer(getStat(count));
+            if (slot >= 0) {
+                heap.setIntTerm(slot, term);
+            }
+        }
+
+        @Override
+        protected void stringTermGroup(String field, String term, int group) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class TopKBatchCallback extends EZImhotepSession.FTGSBatchCallback {
+        private final TopKHeaps heaps = new TopKHeaps(100, 0, false);
+        private final StatReference count;
+        private final double[] scores = new double[getBatchSize()];
+
+        private TopKBatchCallback(int numStats, StatReference count) {
+            super(numStats);
+            this.count = count;
+        }
+
+        @Override
+        protected void intTermGroups(String field, long[] terms, int[] groups, long[][] stats, int count) {
+            getStats(this.count, stats, count, scores);
+            for (int i = 0; i < count; i++) {
+                final TopKHeaps.Heap heap = heaps.getOrCreate(groups[i]);
+                final int slot = heap.offer(scores[i]);
+                if (slot >= 0) {
+                    heap.setIntTerm(slot, terms[i]);
+                }
+            }
+        }
+
+        @Override
+        protected void stringTermGroups(String field, Utf8Term[] terms, int[] groups, long[][] stats, int count) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // as before the port, the stats are copied even though they aren't read
+    private static final class DistinctTupleCallback extends EZImhotepSession.FTGSCallback {
+        private final int[] counts;
+
+        private DistinctTupleCallback(int numStats, int numGroups) {
+            super(numStats);
+            counts = new int[numGroups + 1];
+        }
+
+        @Override
+        protected void intTermGroup(String field, long term, int group) {
+            counts[group]++;
+        }
+
+        @Override
+        protected void stringTermGroup(String field, String term, int group) {
+            counts[group]++;
+        }
+    }
+
+    private static final class DistinctBatchCallback extends EZImhotepSession.FTGSBatchCallback {
+        private final int[] counts;
+
+        private DistinctBatchCallback(int numGroups) {
+            super(0);
+            counts = new int[numGroups + 1];
+        }
+
+        @Override
+        protected void intTermGroups(String field, long[] terms, int[] groups, long[][] stats, int count) {
+            for (int i = 0; i < count; i++) {
+                counts[groups[i]]++;
+            }
+        }
+
+        @Override
+        protected void stringTermGroups(String field, Utf8Term[] terms, int[] groups, long[][] stats, int count) {
+            intTermGroups(field, null, groups, stats, count);
+        }
+    }
+}
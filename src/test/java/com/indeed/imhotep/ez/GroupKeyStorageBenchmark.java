@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+
+
+/**
+ * Compares the retained heap of the group keys of a two level GROUP BY kept as a HashMap<Integer, GroupKey> of
+ * the cons-list keys the regroups used to build with the same keys kept in a GroupKeyTable.
+ * Run with a fixed heap, e.g. java -Xmx2g -cp ... com.indeed.imhotep.ez.GroupKeyStorageBenchmark [outerTerms] [innerTerms]
+ */
+public final class GroupKeyStorageBenchmark {
+    public static void main(String[] args) {
+        final int outerTerms = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int innerTerms = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final String[] outer = terms("country", outerTerms);
+        final String[] inner = terms("lang", innerTerms);
+
+        // warm up both paths before measuring
+        buildMap(outer, inner);
+        buildTable(outer, inner);
+
+        long before = usedMemory();
+        long start = System.nanoTime();
+        final Map<Integer, ConsListGroupKey> map = buildMap(outer, inner);
+        long elapsed = System.nanoTime() - start;
+        final long mapBytes = usedMemory() - before;
+        report("HashMap<Integer, GroupKey>", map.size(), mapBytes, elapsed);
+
+        before = usedMemory();
+        start = System.nanoTime();
+        final GroupKeyTable table = buildTable(outer, inner);
+        elapsed = System.nanoTime() - start;
+        final long tableBytes = usedMemory() - before;
+        report("GroupKeyTable", table.size(), tableBytes, elapsed);
+
+        // keep both structures reachable until both were measured
+        if (map.size() != table.size()) {
+            throw new AssertionError();
+        }
+    }
+
+    private static String[] terms(String prefix, int count) {
+        final String[] ret = new String[count];
+        for (int i = 0; i < count; i++) {
+            ret[i] = prefix + i;
+        }
+        return ret;
+    }
+
+    private static Map<Integer, ConsListGroupKey> buildMap(String[] outer, String[] inner) {
+        final Map<Integer, ConsListGroupKey> level1 = Maps.newHashMap();
+        for (int i = 0; i < outer.length; i++) {
+            level1.put(i + 1, ConsListGroupKey.singleton(outer[i]));
+        }
+        final Map<Integer, ConsListGroupKey> level2 = Maps.newHashMap();
+        int newGroup = 1;
+        for (int group = 1; group <= outer.length; group++) {
+            for (String term : inner) {
+                level2.put(newGroup++, level1.get(group).add(term));
+            }
+        }
+        return level2;
+    }
+
+    private static GroupKeyTable buildTable(String[] outer, String[] inner) {
+        final GroupKeyTable.Builder level1 = GroupKeyTable.root().newLevel(outer.length);
+        for (int i = 0; i < outer.length; i++) {
+            level1.add(i + 1, 1, level1.addTerm(outer[i]));
+        }
+        final GroupKeyTable parent = level1.build();
+        final GroupKeyTable.Builder level2 = parent.newLevel(outer.length * inner.length);
+        for (String term : inner) {
+            level2.addTerm(term);
+        }
+        int newGroup = 1;
+        for (int group = 1; group <= outer.length; group++) {
+            for (int i = 0; i < inner.length; i++) {
+                level2.add(newGroup++, group, i);
+            }
+        }
+        return level2.build();
+    }
+
+    /**
+     * The persistent queue of cons lists GroupKey was before it became array backed, reduced to what building the
+     * keys needs so that the baseline has the same layout.
+     */
+    private static final class ConsListGroupKey {
+        private static final ConsListGroupKey EMPTY = new ConsListGroupKey(null, null);
+
+        private final Node front;
+        private final Node back;
+
+        private ConsListGroupKey(Node front, Node back) {
+            this.front = front;
+            this.back = back;
+        }
+
+        static ConsListGroupKey singleton(Object term) {
+            return EMPTY.add(term);
+        }
+
+        ConsListGroupKey add(Object term) {
+            return new ConsListGroupKey(front, new Node(term, back));
+        }
+
+        private static final class Node {
+            private final Object head;
+            private final Node tail;
+
+            private Node(Object head, Node tail) {
+                this.head = head;
+                this.tail = tail;
+            }
+        }
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, int groups, long bytes, long nanos) {
+        System.out.println(String.format("%-28s %,10d groups %,14d bytes %8.1f bytes/group %,8d ms",
+                name, groups, bytes, (double) bytes / groups, nanos / 1000000));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.api.RawFTGSIterator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Session whose FTGS iteration returns a single generated field: terms 0 to numTerms - 1 (or "term0000000"... for
+ * a string field), each in groups 1 to numGroups, with stat s of a tuple being (s + 1) * term + group.
+ * The iterator is a RawFTGSIterator. Only getFTGSIterator() and close() are implemented.
+ */
+final class SyntheticFTGS {
+    private SyntheticFTGS() {
+    }
+
+    static ImhotepSession session(final boolean intField, final int numTerms, final int numGroups, final int numStats) {
+        return (ImhotepSession) Proxy.newProxyInstance(SyntheticFTGS.class.getClassLoader(), new Class[] {ImhotepSession.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getFTGSIterator")) {
+                    return iterator(intField, numTerms, numGroups, numStats);
+                }
+                if (method.getName().equals("close")) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    static String stringTerm(long term) {
+        return String.format("term%07d", term);
+    }
+
+    static long stat(int stat, long term, int group) {
+        return (stat + 1) * term + group;
+    }
+
+    private static FTGSIterator iterator(final boolean intField, final int numTerms, final int numGroups, final int numStats) {
+        return (FTGSIterator) Proxy.newProxyInstance(SyntheticFTGS.class.getClassLoader(), new Class[] {RawFTGSIterator.class}, new InvocationHandler() {
+            private boolean fieldDone = false;
+            private int term = -1;
+            private int group = 0;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (name.equals("nextField")) {
+                    final boolean ret = !fieldDone;
+                    fieldDone = true;
+                    return ret;
+                } else if (name.equals("fieldName")) {
+                    return "field";
+                } else if (name.equals("fieldIsIntType")) {
+                    return intField;
+                } else if (name.equals("nextTerm")) {
+                    group = 0;
+                    return ++term < numTerms;
+                } else if (name.equals("termIntVal")) {
+                    return (long) term;
+                } else if (name.equals("termStringVal")) {
+                    return stringTerm(term);
+                } else if (name.equals("termStringBytes")) {
+                    // followed by garbage as the bytes of a raw iterator are
+                    final byte[] bytes = (stringTerm(term) + "~~~").getBytes(Charsets.UTF_8);
+                    return bytes;
+                } else if (name.equals("termStringLength")) {
+                    return stringTerm(term).getBytes(Charsets.UTF_8).length;
+                } else if (name.equals("termDocFreq")) {
+                    return (long) numGroups;
+                } else if (name.equals("nextGroup")) {
+                    return ++group <= numGroups;
+                } else if (name.equals("group")) {
+                    return group;
+                } else if (name.equals("groupStats")) {
+                    final long[] stats = (long[]) args[0];
+                    for (int i = 0; i < numStats; i++) {
+                        stats[i] = stat(i, term, group);
+                    }
+                    return null;
+                } else if (name.equals("close")) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestCancellationToken {
+
+    private static class CountingCloseable implements Closeable {
+        private int closed = 0;
+
+        @Override
+        public void close() throws IOException {
+            closed++;
+        }
+    }
+
+    @Test
+    public void testCancelClosesResourcesOnce() {
+        final CancellationToken token = new CancellationToken();
+        final CountingCloseable resource = new CountingCloseable();
+        token.closeOnCancel(resource);
+        token.throwIfCancelled();
+        assertEquals(0, resource.closed);
+
+        token.cancel("first");
+        token.cancel("second");
+        assertTrue(token.isCancelled());
+        assertEquals("first", token.getReason());
+        assertEquals(1, resource.closed);
+
+        final CountingCloseable late = new CountingCloseable();
+        token.closeOnCancel(late);
+        assertEquals(1, late.closed);
+        try {
+            token.throwIfCancelled();
+            fail();
+        } catch (QueryCancelledException e) {
+            assertTrue(e.getMessage().contains("first"));
+        }
+    }
+
+    @Test
+    public void testForgottenResourcesAreNotClosed() {
+        final CancellationToken token = new CancellationToken();
+        final CountingCloseable closedByOwner = new CountingCloseable();
+        final CountingCloseable finished = new CountingCloseable();
+        token.closeOnCancel(closedByOwner);
+        token.closeOnCancel(finished);
+        token.forget(closedByOwner);
+        token.forgetAll();
+        token.cancel("after completion");
+        assertEquals(0, closedByOwner.closed);
+        assertEquals(0, finished.closed);
+    }
+
+    @Test
+    public void testFailuresAfterCancelAreTranslated() {
+        final CancellationToken token = new CancellationToken();
+        final RuntimeException failure = new IllegalStateException("session closed");
+        assertSame(failure, token.translate(failure));
+        token.cancel("client disconnected");
+        final RuntimeException translated = token.translate(failure);
+        assertTrue(translated instanceof QueryCancelledException);
+        assertSame(failure, translated.getCause());
+    }
+
+    @Test(expected = UncheckedTimeoutException.class)
+    public void testDeadline() {
+        final CancellationToken token = new CancellationToken();
+        token.setDeadline(System.currentTimeMillis() + 60000, "timeout");
+        token.throwIfCancelled();
+        token.setDeadline(System.currentTimeMillis() - 1, "timeout");
+        token.throwIfCancelled();
+    }
+}
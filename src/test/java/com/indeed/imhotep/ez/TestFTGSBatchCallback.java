@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestFTGSBatchCallback {
+
+    @Test
+    public void testBlocksCoverAllTuples() {
+        for (boolean intField : new boolean[] {true, false}) {
+            checkBlocks(intField, 7, Arrays.asList(7, 7, 7, 7, 2));
+            // each block holds exactly one term
+            checkBlocks(intField, 3, Arrays.asList(3, 3, 3, 3, 3, 3, 3, 3, 3, 3));
+        }
+    }
+
+    private static void checkBlocks(boolean intField, int batchSize, List<Integer> expectedBlockSizes) {
+        final EZImhotepSession session = new EZImhotepSession(SyntheticFTGS.session(intField, 10, 3, 2));
+        final CollectingCallback callback = new CollectingCallback(2, batchSize);
+        final Field field = intField ? Field.intField("field") : Field.stringField("field");
+        session.ftgsIterate(Arrays.asList(field), callback);
+
+        assertEquals(expectedBlockSizes, callback.blockSizes);
+        int row = 0;
+        for (long term = 0; term < 10; term++) {
+            for (int group = 1; group <= 3; group++) {
+                assertEquals(intField ? (Object) term : SyntheticFTGS.stringTerm(term), callback.terms.get(row));
+                assertEquals(group, callback.groups.get(row).intValue());
+                assertArrayEquals(new long[] {SyntheticFTGS.stat(0, term, group), SyntheticFTGS.stat(1, term, group)},
+                        callback.stats.get(row));
+                row++;
+            }
+        }
+        assertEquals(30, row);
+        assertEquals(10, session.getFtgsTermCount());
+    }
+
+    @Test
+    public void testStatReferenceValues() {
+        final long[][] stats = new long[][] {{1, 2, 3}, {4, 8, 12}};
+        final double[] values = new double[3];
+        new SingleStatReference(1, "b", null).getValues(stats, 3, values);
+        assertArrayEquals(new double[] {4, 8, 12}, values, 0);
+
+        final CompositeStatReference ratio = new CompositeStatReference(new SingleStatReference(1, "b", null), new SingleStatReference(0, "a", null));
+        final double[] ratios = new double[3];
+        ratio.getValues(stats, 2, ratios);
+        assertArrayEquals(new double[] {4, 4, 0}, ratios, 0);
+        for (int row = 0; row < 2; row++) {
+            assertEquals(ratio.getValue(new long[] {stats[0][row], stats[1][row]}), ratios[row], 0);
+        }
+    }
+
+    private static final class CollectingCallback extends EZImhotepSession.FTGSBatchCallback {
+        private final List<Integer> blockSizes = Lists.newArrayList();
+        private final List<Object> terms = Lists.newArrayList();
+        private final List<Integer> groups = Lists.newArrayList();
+        private final List<long[]> stats = Lists.newArrayList();
+        private Utf8Term lastTerm = null;
+        private String lastString = null;
+
+        private CollectingCallback(int numStats, int batchSize) {
+            super(numStats, batchSize);
+        }
+
+        @Override
+        protected void intTermGroups(String field, long[] terms, int[] groups, long[][] stats, int count) {
+            for (int i = 0; i < count; i++) {
+                this.terms.add(terms[i]);
+            }
+            collect(groups, stats, count);
+        }
+
+        @Override
+        protected void stringTermGroups(String field, Utf8Term[] terms, int[] groups, long[][] stats, int count) {
+            for (int i = 0; i < count; i++) {
+                final Utf8Term term = terms[i];
+                // rows have the same term exactly when they share the instance, also across blocks
+                if (lastTerm != null) {
+                    assertEquals(term == lastTerm, term.toString().equals(lastString));
+                }
+                lastTerm = term;
+                lastString = term.toString();
+                this.terms.add(lastString);
+            }
+            collect(groups, stats, count);
+        }
+
+        private void collect(int[] groups, long[][] stats, int count) {
+            blockSizes.add(count);
+            for (int i = 0; i < count; i++) {
+                this.groups.add(groups[i]);
+                final long[] row = new long[stats.length];
+                for (int s = 0; s < stats.length; s++) {
+                    row[s] = stats[s][i];
+                }
+                this.stats.add(row);
+            }
+        }
+    }
+}
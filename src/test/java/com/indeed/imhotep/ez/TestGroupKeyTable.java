@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestGroupKeyTable {
+
+    @Test
+    public void testRootHasSingleEmptyKey() {
+        final GroupKeyTable root = GroupKeyTable.root();
+        assertEquals(1, root.size());
+        assertEquals(0, root.depth());
+        assertTrue(root.contains(1));
+        assertEquals(GroupKey.empty(), root.get(1));
+    }
+
+    @Test
+    public void testKeysFollowParentLevels() {
+        final GroupKeyTable.Builder countries = GroupKeyTable.root().newLevel(2);
+        countries.add(1, 1, countries.addTerm("us"));
+        countries.add(2, 1, countries.addTerm("jp"));
+        final GroupKeyTable level1 = countries.build();
+
+        final GroupKeyTable.Builder langs = level1.newLevel(0);
+        final int en = langs.addTerm("en");
+        final int ja = langs.addTerm("ja");
+        langs.add(1, 1, en);
+        langs.add(2, 1, ja);
+        langs.add(3, 2, en);
+        langs.add(4, 2, ja);
+        final GroupKeyTable level2 = langs.build();
+
+        assertEquals(4, level2.size());
+        assertEquals(2, level2.depth());
+        final Object[] key = new Object[2];
+        level2.copyKey(3, key);
+        assertArrayEquals(new Object[] {"jp", "en"}, key);
+        assertEquals(GroupKey.singleton("us").add("ja"), level2.get(2));
+        assertNull(level2.get(5));
+    }
+
+    @Test
+    public void testTruncateDropsTrailingGroups() {
+        final GroupKeyTable.Builder builder = GroupKeyTable.root().newLevel(3);
+        final int term = builder.addTerm(1L);
+        for (int group = 1; group <= 3; group++) {
+            builder.add(group, 1, term);
+        }
+        builder.truncate(1);
+        final GroupKeyTable table = builder.build();
+        assertEquals(1, table.size());
+        assertTrue(table.contains(1));
+        assertFalse(table.contains(2));
+    }
+
+    @Test
+    public void testGroupKeyTailAndAdd() {
+        final GroupKey<String> key = GroupKey.<String>empty().add("a").add("b").add("c");
+        assertEquals("a", key.head());
+        assertEquals(GroupKey.singleton("b").add("c"), key.tail());
+        assertEquals(GroupKey.singleton("b").add("c").hashCode(), key.tail().hashCode());
+        assertEquals(GroupKey.singleton("c").add("d"), key.tail().tail().add("d"));
+        assertEquals(3, key.size());
+    }
+}
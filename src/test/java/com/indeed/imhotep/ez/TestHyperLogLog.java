@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestHyperLogLog {
+
+    @Test
+    public void testEstimateIsWithinErrorBounds() {
+        for (int count : new int[] {0, 10, 1000, 100000}) {
+            final HyperLogLog hll = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+            for (int i = 0; i < count; i++) {
+                hll.add(HyperLogLog.hash(i));
+                hll.add(HyperLogLog.hash(i));   // duplicates don't count
+            }
+            assertEquals(count, hll.cardinality(), count * 0.1);
+        }
+    }
+
+    @Test
+    public void testMergeEstimatesUnion() {
+        final HyperLogLog day1 = new HyperLogLog(12);
+        final HyperLogLog day2 = new HyperLogLog(12);
+        for (int i = 0; i < 20000; i++) {
+            day1.add(HyperLogLog.hash("term" + i));
+        }
+        for (int i = 10000; i < 30000; i++) {
+            day2.add(HyperLogLog.hash("term" + i));
+        }
+        day1.merge(day2);
+        assertEquals(30000, day1.cardinality(), 30000 * 0.05);
+    }
+
+    @Test
+    public void testSerializationRoundTrip() {
+        final HyperLogLog hll = new HyperLogLog(8);
+        for (int i = 0; i < 500; i++) {
+            hll.add(HyperLogLog.hash(i * 31L));
+        }
+        final HyperLogLog copy = HyperLogLog.fromBytes(hll.toBytes());
+        assertEquals(8, copy.getPrecision());
+        assertEquals(hll.cardinality(), copy.cardinality());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeRequiresSamePrecision() {
+        new HyperLogLog(8).merge(new HyperLogLog(9));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTDigest {
+
+    @Test
+    public void testQuantilesOfUniformValues() {
+        final TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+        for (int i = 1; i <= 100000; i++) {
+            digest.add(i, 1);
+        }
+        assertEquals(100000, digest.getTotalWeight(), 0);
+        assertEquals(50000, digest.quantile(0.5), 500);
+        assertEquals(99000, digest.quantile(0.99), 200);
+        assertEquals(1, digest.quantile(0), 0);
+        assertEquals(100000, digest.quantile(1), 0);
+    }
+
+    @Test
+    public void testWeightedValues() {
+        final TDigest digest = new TDigest(TDigest.DEFAULT_COMPRESSION);
+        // terms arrive in order with their document counts as FTGS delivers them
+        digest.add(10, 900);
+        digest.add(20, 90);
+        digest.add(30, 10);
+        assertEquals(10, digest.quantile(0.5), 0.5);
+        assertEquals(30, digest.quantile(1), 0);
+    }
+
+    @Test
+    public void testMergeAndSerialization() {
+        final TDigest first = new TDigest(50);
+        final TDigest second = new TDigest(50);
+        for (int i = 0; i < 10000; i++) {
+            first.add(i, 1);
+            second.add(10000 + i, 1);
+        }
+        final TDigest copy = TDigest.fromBytes(second.toBytes());
+        assertEquals(second.quantile(0.5), copy.quantile(0.5), 0);
+        first.merge(copy);
+        assertEquals(20000, first.getTotalWeight(), 0);
+        assertEquals(10000, first.quantile(0.5), 300);
+    }
+
+    @Test
+    public void testEmptyDigest() {
+        assertTrue(Double.isNaN(new TDigest(TDigest.DEFAULT_COMPRESSION).quantile(0.5)));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTopKHeaps {
+
+    @Test
+    public void testTopKeepsHighestScoresInOrder() {
+        final TopKHeaps heaps = new TopKHeaps(3, 1, false);
+        final double[] scores = {5, 1, 9, 3, 7, 2, 8};
+        for (int i = 0; i < scores.length; i++) {
+            final TopKHeaps.Heap heap = heaps.getOrCreate(1);
+            final int slot = heap.offer(scores[i]);
+            if (slot >= 0) {
+                heap.setIntTerm(slot, i);
+                heap.setStat(slot, 0, scores[i] * 10);
+            }
+        }
+        assertEquals(3, heaps.size());
+
+        final TopKHeaps.Heap heap = heaps.remove(1);
+        final int[] slots = heap.drain();
+        assertEquals(3, slots.length);
+        assertEquals(2, heap.getIntTerm(slots[0]));
+        assertEquals(6, heap.getIntTerm(slots[1]));
+        assertEquals(4, heap.getIntTerm(slots[2]));
+        assertEquals(90, heap.getStats(slots[0])[0], 0);
+        assertEquals(0, heaps.size());
+        assertEquals(0, heaps.getGroupCount());
+    }
+
+    @Test
+    public void testBottomKeepsLowestScores() {
+        final TopKHeaps heaps = new TopKHeaps(2, 0, true);
+        final String[] terms = {"e", "a", "i", "c"};
+        final double[] scores = {5, 1, 9, 3};
+        for (int i = 0; i < terms.length; i++) {
+            final TopKHeaps.Heap heap = heaps.getOrCreate(2);
+            final int slot = heap.offer(scores[i]);
+            if (slot >= 0) {
+                heap.setStringTerm(slot, terms[i]);
+            }
+        }
+        final TopKHeaps.Heap heap = heaps.get(2);
+        final int[] slots = heap.drain();
+        assertEquals("a", heap.getStringTerm(slots[0]));
+        assertEquals("c", heap.getStringTerm(slots[1]));
+    }
+
+    @Test
+    public void testGroupsAreIndependent() {
+        final TopKHeaps heaps = new TopKHeaps(1, 0, false);
+        heaps.getOrCreate(1).offer(1);
+        heaps.getOrCreate(100).offer(2);
+        assertNull(heaps.get(50));
+        assertEquals(2, heaps.getGroupCount());
+        assertEquals(1, heaps.get(100).size());
+        assertEquals(2, heaps.size());
+    }
+}
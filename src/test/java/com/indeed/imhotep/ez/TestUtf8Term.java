@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.ez;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class TestUtf8Term {
+
+    @Test
+    public void testAsciiTerm() {
+        final Utf8Term term = new Utf8Term();
+        set(term, "smartphone");
+        assertTrue(term.isAscii());
+        assertEquals(10, term.length());
+        assertEquals('p', term.charAt(5));
+        assertTrue(Pattern.compile("smart.*").matcher(term).matches());
+        assertFalse(Pattern.compile("phone").matcher(term).matches());
+        assertEquals("smartphone", term.toString());
+
+        // reusing the instance drops the decoded string
+        set(term, "tablet");
+        assertEquals("tablet", term.toString());
+        assertFalse(Pattern.compile("smart.*").matcher(term).matches());
+    }
+
+    @Test
+    public void testNonAsciiTerm() {
+        final String string = "caf\u00e9 \u65e5\u672c";
+        final Utf8Term term = new Utf8Term();
+        set(term, string);
+        assertFalse(term.isAscii());
+        assertEquals(string.length(), term.length());
+        assertEquals('\u00e9', term.charAt(3));
+        assertTrue(Pattern.compile("caf. \\p{IsHan}+").matcher(term).matches());
+        assertEquals(string, term.toString());
+    }
+
+    @Test
+    public void testEqualityAndHash() {
+        final Utf8Term term = new Utf8Term();
+        set(term, "caf\u00e9");
+        final Utf8Term copy = term.copy();
+        assertEquals(Utf8Term.of("caf\u00e9"), term);
+        assertEquals(Utf8Term.of("caf\u00e9").hashCode(), term.hashCode());
+        assertEquals(HyperLogLog.hash("caf\u00e9"), HyperLogLog.hash(term));
+
+        set(term, "cafe");
+        assertNotEquals(copy, term);
+        assertEquals("caf\u00e9", copy.toString());
+    }
+
+    // as a raw FTGS iterator hands them out, in a larger buffer
+    private static void set(Utf8Term term, String value) {
+        final byte[] bytes = value.getBytes(Charsets.UTF_8);
+        final byte[] buffer = new byte[bytes.length + 8];
+        System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+        term.set(buffer, bytes.length);
+    }
+}
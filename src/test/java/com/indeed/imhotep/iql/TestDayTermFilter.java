@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestDayTermFilter {
+    // groups 1 and 2 are the days as the metric regroup by day creates them
+    private static GroupKeyTable days() {
+        final GroupKeyTable.Builder builder = GroupKeyTable.root().newLevel(2);
+        builder.add(1, 1, builder.addTerm("day1"));
+        builder.add(2, 1, builder.addTerm("day2"));
+        return builder.build();
+    }
+
+    // every group of parent exploded with all the terms, as the exploding field groupings do
+    private static GroupKeyTable explode(GroupKeyTable parent, Object... terms) {
+        final GroupKeyTable.Builder builder = parent.newLevel(parent.size() * terms.length);
+        for (Object term : terms) {
+            builder.addTerm(term);
+        }
+        for (int group = 1; group <= parent.size(); group++) {
+            for (int i = 0; i < terms.length; i++) {
+                builder.add((group - 1) * terms.length + i + 1, group, i);
+            }
+        }
+        return builder.build();
+    }
+
+    private static List<String> toStrings(List<GroupStats> rows) {
+        final List<String> ret = Lists.newArrayList();
+        for (GroupStats row : rows) {
+            final Object[] key = new Object[row.getKeyLength()];
+            row.copyKey(key);
+            ret.add(Arrays.toString(key) + "=" + Arrays.toString(row.stats));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testEachDayOnlyHasItsTerms() {
+        final GroupKeyTable countries = explode(days(), "de", "us");
+        final DayTermFilter filter = new DayTermFilter(2);
+        // day1 only has documents in us
+        filter.addGroups(countries, new double[] {0, 0, 5, 3, 2});
+
+        // stats are a sum and the document count
+        final List<GroupStats> rows = Lists.newArrayList(
+                new GroupStats(countries, 1, "en", new double[] {0, 0}),
+                new GroupStats(countries, 1, "fr", new double[] {0, 0}),
+                new GroupStats(countries, 2, "en", new double[] {7, 5}),
+                new GroupStats(countries, 2, "fr", new double[] {0, 0}),
+                new GroupStats(countries, 3, "en", new double[] {4, 3}),
+                new GroupStats(countries, 3, "fr", new double[] {0, 0}),
+                new GroupStats(countries, 4, "en", new double[] {0, 1}),
+                new GroupStats(countries, 4, "fr", new double[] {2, 1}));
+
+        // executing the days on their own gives day1 just [us]x[en], while day2 keeps the zero row of its terms
+        assertEquals(Arrays.asList(
+                "[day1, us, en]=[7.0]",
+                "[day2, de, en]=[4.0]",
+                "[day2, de, fr]=[0.0]",
+                "[day2, us, en]=[0.0]",
+                "[day2, us, fr]=[2.0]"), toStrings(filter.filter(rows.iterator())));
+    }
+
+    @Test
+    public void testSingleGroupingDropsTermsOfOtherDays() {
+        final GroupKeyTable days = days();
+        final DayTermFilter filter = new DayTermFilter(1);
+        final List<GroupStats> rows = Lists.newArrayList(
+                new GroupStats(days, 1, 1L, new double[] {1}),
+                new GroupStats(days, 1, 2L, new double[] {0}),
+                new GroupStats(days, 2, 1L, new double[] {0}),
+                new GroupStats(days, 2, 2L, new double[] {4}));
+        assertEquals(Arrays.asList("[day1, 1]=[]", "[day2, 2]=[]"), toStrings(filter.filter(rows.iterator())));
+    }
+}
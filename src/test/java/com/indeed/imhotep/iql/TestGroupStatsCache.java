@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TestGroupStatsCache {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final GroupStatsCache cache = new GroupStatsCache(2);
+        cache.put("s", "count()", new double[] {0, 1});
+        cache.put("s", "int:a", new double[] {0, 2});
+        assertNotNull(cache.get("s", "count()"));
+        cache.put("s", "int:b", new double[] {0, 3});
+        assertNull(cache.get("s", "int:a"));
+        assertArrayEquals(new double[] {0, 1}, cache.get("s", "count()"), 0);
+        assertArrayEquals(new double[] {0, 3}, cache.get("s", "int:b"), 0);
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testStoresACopy() {
+        final GroupStatsCache cache = new GroupStatsCache(1);
+        final double[] groupStats = {0, 1};
+        cache.put("s", "count()", groupStats);
+        groupStats[1] = 5;
+        assertEquals(1, cache.get("s", "count()")[1], 0);
+    }
+
+    @Test
+    public void testSessionKeyDependsOnFiltersAndRange() {
+        final DateTime start = new DateTime(2014, 1, 1, 0, 0);
+        final DateTime end = start.plusDays(1);
+        final String key = GroupStatsCache.getSessionKey("jobsearch", start, end, "a=1", Collections.<ShardIdWithVersion>emptyList());
+        assertEquals(key, GroupStatsCache.getSessionKey("jobsearch", start, end, "a=1", Collections.<ShardIdWithVersion>emptyList()));
+        assertFalse(key.equals(GroupStatsCache.getSessionKey("jobsearch", start, end, "a=2", Collections.<ShardIdWithVersion>emptyList())));
+        assertFalse(key.equals(GroupStatsCache.getSessionKey("jobsearch", start, end.plusDays(1), "a=1", Collections.<ShardIdWithVersion>emptyList())));
+        assertFalse(new GroupStatsCache(0).isEnabled());
+    }
+}
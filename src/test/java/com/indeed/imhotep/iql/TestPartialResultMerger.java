@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.EZImhotepSession;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestPartialResultMerger {
+
+    @Test
+    public void testSumsOverlappingKeysAndFillsTheCrossProduct() {
+        final PartialResultMerger merger = new PartialResultMerger(2);
+        merger.addTotals(new double[] {3});
+        merger.add(new Object[] {"a", 1L}, 2, new double[] {1});
+        merger.add(new Object[] {"b", 2L}, 2, new double[] {2});
+        merger.addTotals(new double[] {4});
+        merger.add(new Object[] {"a", 1L}, 2, new double[] {4});
+
+        assertArrayEquals(new double[] {7}, merger.getTotals(), 0);
+        final List<String> rows = toStrings(merger.getRows());
+        assertEquals(Arrays.asList("[a, 1]=[5.0]", "[a, 2]=[0.0]", "[b, 1]=[0.0]", "[b, 2]=[2.0]"), rows);
+    }
+
+    @Test
+    public void testIntTermsAreOrderedNumerically() {
+        final PartialResultMerger merger = new PartialResultMerger(1);
+        merger.addTotals(new double[] {0});
+        merger.add(new Object[] {10L}, 1, new double[] {1});
+        merger.add(new Object[] {9L}, 1, new double[] {1});
+        assertEquals(Arrays.asList("[9]=[1.0]", "[10]=[1.0]"), toStrings(merger.getRows()));
+    }
+
+    @Test
+    public void testUngroupedQueryHasSingleRow() {
+        final PartialResultMerger merger = new PartialResultMerger(0);
+        merger.addTotals(new double[] {1, 2});
+        merger.add(new Object[0], 0, new double[] {1, 2});
+        merger.addTotals(new double[] {3, 4});
+        merger.add(new Object[0], 0, new double[] {3, 4});
+        assertEquals(Arrays.asList("[]=[4.0, 6.0]"), toStrings(merger.getRows()));
+    }
+
+    @Test
+    public void testNoRowsWithoutTerms() {
+        final PartialResultMerger merger = new PartialResultMerger(2);
+        merger.addTotals(new double[] {0});
+        assertFalse(merger.getRows().hasNext());
+    }
+
+    @Test
+    public void testUnionOfTermsIsHeldToTheGroupLimit() {
+        final int groupLimit = EZImhotepSession.GROUP_LIMIT;
+        EZImhotepSession.GROUP_LIMIT = 3;
+        try {
+            final PartialResultMerger merger = new PartialResultMerger(2);
+            merger.add(new Object[] {"a", 1L}, 2, new double[] {1});
+            merger.add(new Object[] {"a", 2L}, 2, new double[] {1});
+            merger.add(new Object[] {"a", 3L}, 2, new double[] {1});
+            try {
+                // each part has 3 rows but together they make 2 x 3
+                merger.add(new Object[] {"b", 1L}, 2, new double[] {1});
+                fail("The merged rows exceed the group limit");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Number of groups exceeds the limit"));
+            }
+        } finally {
+            EZImhotepSession.GROUP_LIMIT = groupLimit;
+        }
+    }
+
+    private static List<String> toStrings(Iterator<GroupStats> rows) {
+        final List<String> ret = Lists.newArrayList();
+        while (rows.hasNext()) {
+            final GroupStats row = rows.next();
+            final Object[] key = new Object[row.getKeyLength()];
+            row.copyKey(key);
+            ret.add(Arrays.toString(key) + "=" + Arrays.toString(row.getStats()));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import com.indeed.imhotep.iql.cache.RowOffsetIndex;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestResultArtifact {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final GroupKeyTable.Builder builder = GroupKeyTable.root().newLevel(2);
+        builder.add(1, 1, builder.addTerm("a"));
+        builder.add(2, 1, builder.addTerm(42L));
+        final GroupKeyTable groupKeys = builder.build();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ResultArtifact.Writer writer = new ResultArtifact.Writer(bytes);
+        writer.add(new GroupStats(groupKeys, 1, "t\u00e9rm", new double[] {1.5, Double.NaN}));
+        writer.add(new GroupStats(groupKeys, 2, 7L, new double[] {2}));
+        writer.add(new GroupStats(GroupKeyTable.root(), 1, new double[] {3, 4, 5}));
+        assertEquals(3, writer.getRowCount());
+        writer.close();
+
+        final ResultArtifact.Reader reader = new ResultArtifact.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertTrue(reader.next());
+        assertEquals(2, reader.getKeyLength());
+        assertEquals("a", reader.getKey()[0]);
+        assertEquals("t\u00e9rm", reader.getKey()[1]);
+        assertArrayEquals(new double[] {1.5, Double.NaN}, reader.getStats(), 0);
+
+        assertTrue(reader.next());
+        assertEquals(2, reader.getKeyLength());
+        assertEquals(42L, reader.getKey()[0]);
+        assertEquals(7L, reader.getKey()[1]);
+        assertArrayEquals(new double[] {2}, reader.getStats(), 0);
+
+        assertTrue(reader.next());
+        assertEquals(0, reader.getKeyLength());
+        assertArrayEquals(new double[] {3, 4, 5}, reader.getStats(), 0);
+
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testEmptyArtifact() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ResultArtifact.Writer(bytes).close();
+        final ResultArtifact.Reader reader = new ResultArtifact.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void testRenderWithRowIndex() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ResultArtifact.Writer writer = new ResultArtifact.Writer(bytes);
+        writer.add(new Object[] {"a", 1L}, 2, new double[] {1.5});
+        writer.add(new Object[] {"b\u00e9", 22L}, 2, new double[] {Double.NaN});
+        writer.add(new Object[] {"c"}, 1, new double[] {3, 4});
+        writer.close();
+
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        final RowOffsetIndex.Writer index = new RowOffsetIndex.Writer(indexBytes);
+        assertEquals(3, IQLQuery.renderArtifact(new ByteArrayInputStream(bytes.toByteArray()), text, index, false));
+        index.close();
+
+        final byte[] rendered = text.toByteArray();
+        assertEquals("a\t1\t1.5\nb\u00e9\t22\tNaN\nc\t3\t4\n", new String(rendered, "UTF-8"));
+        final long secondRow = "a\t1\t1.5\n".length();
+        assertEquals(0, RowOffsetIndex.readOffset(new ByteArrayInputStream(indexBytes.toByteArray()), 0));
+        assertEquals(secondRow, RowOffsetIndex.readOffset(new ByteArrayInputStream(indexBytes.toByteArray()), 1));
+        assertEquals(rendered.length, RowOffsetIndex.readOffset(new ByteArrayInputStream(indexBytes.toByteArray()), 3));
+        assertEquals(-1, RowOffsetIndex.readOffset(new ByteArrayInputStream(indexBytes.toByteArray()), 4));
+    }
+
+    @Test
+    public void testRowsAreRenderedOnceForTheClientAndTheCopy() throws IOException {
+        final GroupKeyTable groupKeys = GroupKeyTable.root();
+        final List<GroupStats> rows = Lists.newArrayList(
+                new GroupStats(groupKeys, 1, "a", new double[] {1}),
+                new GroupStats(groupKeys, 1, "b", new double[] {2}),
+                new GroupStats(groupKeys, 1, "c", new double[] {3}));
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final ByteArrayOutputStream artifact = new ByteArrayOutputStream();
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        final ResultArtifact.Writer cacheWriter = new ResultArtifact.Writer(artifact);
+        final RowOffsetIndex.Writer index = new RowOffsetIndex.Writer(indexBytes);
+        assertEquals(2, IQLQuery.writeRowsToStreams(rows.iterator(), client, cacheWriter, copy, index, false, 2, true));
+        cacheWriter.close();
+        index.close();
+
+        // the client gets the event source framing up to the row limit, the copy all rows as they are cached
+        final String clientText = new String(client.toByteArray(), "UTF-8");
+        assertTrue(clientText.contains("data: a\t1\n"));
+        assertTrue(clientText.contains("data: b\t2\n"));
+        assertFalse(clientText.contains("c\t3"));
+        assertEquals("a\t1\nb\t2\nc\t3\n", new String(copy.toByteArray(), "UTF-8"));
+        assertEquals(copy.size(), RowOffsetIndex.readOffset(new ByteArrayInputStream(indexBytes.toByteArray()), 3));
+        assertEquals(3, cacheWriter.getRowCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTextIsRejected() throws IOException {
+        new ResultArtifact.Reader(new ByteArrayInputStream("a\t1\n".getBytes("UTF-8")));
+    }
+}
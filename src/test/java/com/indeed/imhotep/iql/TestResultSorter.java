@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.GroupKey;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestResultSorter {
+
+    // groups 1..3 with keys "c", "a", "b"
+    private static GroupKeyTable createTable() {
+        final GroupKeyTable.Builder builder = GroupKeyTable.root().newLevel(3);
+        builder.add(1, 1, builder.addTerm("c"));
+        builder.add(2, 1, builder.addTerm("a"));
+        builder.add(3, 1, builder.addTerm("b"));
+        return builder.build();
+    }
+
+    private static List<GroupStats> createRows(GroupKeyTable groupKeys, int count, boolean stringTerms) {
+        final Random random = new Random(0);
+        final List<GroupStats> rows = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            final long term = random.nextInt(100) - 50;
+            rows.add(new GroupStats(groupKeys, 1 + random.nextInt(3), stringTerms ? "t" + term : (Object) term,
+                    new double[] {random.nextInt(10), i}));
+        }
+        return rows;
+    }
+
+    private static List<GroupStats> sort(List<GroupStats> rows, int runMemoryLimit) {
+        final ResultSorter sorter = new ResultSorter(runMemoryLimit);
+        try {
+            return Lists.newArrayList(sorter.sort(rows.iterator()));
+        } finally {
+            sorter.close();
+        }
+    }
+
+    private static void assertSorted(List<GroupStats> expected, List<GroupStats> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getGroupKey(), actual.get(i).getGroupKey());
+            assertArrayEquals(expected.get(i).stats, actual.get(i).stats, 0);
+        }
+    }
+
+    private static Comparator<GroupStats> comparator() {
+        return new Comparator<GroupStats>() {
+            @Override
+            public int compare(GroupStats a, GroupStats b) {
+                final Iterator<Object> keyA = a.getGroupKey().iterator();
+                final Iterator<Object> keyB = b.getGroupKey().iterator();
+                int cmp = keyA.next().toString().compareTo(keyB.next().toString());
+                if (cmp != 0) {
+                    return cmp;
+                }
+                final Object termA = keyA.next();
+                final Object termB = keyB.next();
+                cmp = termA instanceof Long ? ((Long) termA).compareTo((Long) termB) : termA.toString().compareTo(termB.toString());
+                if (cmp != 0) {
+                    return cmp;
+                }
+                return Double.compare(a.stats[0], b.stats[0]);
+            }
+        };
+    }
+
+    @Test
+    public void testSortInMemory() {
+        final List<GroupStats> rows = createRows(createTable(), 1000, false);
+        final List<GroupStats> expected = Lists.newArrayList(rows);
+        // Collections.sort is stable so ties keep their input order as in the sorter
+        Collections.sort(expected, comparator());
+        assertSorted(expected, sort(rows, 1 << 20));
+    }
+
+    @Test
+    public void testSortWithRunsOnDisk() {
+        final List<GroupStats> rows = createRows(createTable(), 20000, true);
+        final List<GroupStats> expected = Lists.newArrayList(rows);
+        Collections.sort(expected, comparator());
+        assertSorted(expected, sort(rows, 4096));
+    }
+
+    @Test
+    public void testGroupsWithoutKeySortLast() {
+        // group 2 has no key
+        final GroupKeyTable.Builder builder = GroupKeyTable.root().newLevel(3);
+        builder.add(1, 1, builder.addTerm("b"));
+        builder.add(3, 1, builder.addTerm("a"));
+        final GroupKeyTable groupKeys = builder.build();
+        final List<GroupStats> rows = Lists.newArrayList(
+                new GroupStats(groupKeys, 2, new double[] {1}),
+                new GroupStats(groupKeys, 3, new double[] {2}),
+                new GroupStats(groupKeys, 1, new double[] {3}),
+                new GroupStats(groupKeys, 2, new double[] {4}),
+                new GroupStats(groupKeys, 3, new double[] {5}));
+        final List<Integer> groups = Lists.newArrayList();
+        for (GroupStats row : sort(rows, 1 << 20)) {
+            groups.add(row.group);
+        }
+        assertEquals(Lists.newArrayList(3, 3, 1, 2, 2), groups);
+    }
+
+    @Test
+    public void testNumbersSortBeforeStrings() {
+        final GroupKeyTable groupKeys = GroupKeyTable.root();
+        final List<GroupStats> rows = Lists.newArrayList(
+                new GroupStats(groupKeys, 1, "a", new double[0]),
+                new GroupStats(groupKeys, 1, 10L, new double[0]),
+                new GroupStats(groupKeys, 1, 9L, new double[0]));
+        final List<GroupStats> sorted = sort(rows, 1 << 20);
+        assertEquals(GroupKey.singleton(9L), sorted.get(0).getGroupKey());
+        assertEquals(GroupKey.singleton(10L), sorted.get(1).getGroupKey());
+        assertEquals(GroupKey.singleton("a"), sorted.get(2).getGroupKey());
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.ez.CancellationToken;
+import com.indeed.imhotep.ez.GroupKeyTable;
+import com.indeed.imhotep.ez.QueryCancelledException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestRowPipeline {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static GroupStats createRow(int i) {
+        final Object term = i % 2 == 0 ? (Object) (long) i : "term" + i;
+        return new GroupStats(GroupKeyTable.root(), 1, term, new double[] {i, i * 0.5});
+    }
+
+    /**
+     * Produces count rows, counting how many were taken, and fails after failAfter rows.
+     */
+    private static Iterator<GroupStats> createRows(final int count, final int failAfter, final AtomicInteger produced) {
+        return new AbstractIterator<GroupStats>() {
+            @Override
+            protected GroupStats computeNext() {
+                final int i = produced.get();
+                if (i == failAfter) {
+                    throw new IllegalStateException("FTGS failed");
+                }
+                if (i == count) {
+                    return endOfData();
+                }
+                produced.incrementAndGet();
+                return createRow(i);
+            }
+        };
+    }
+
+    @Test
+    public void testRowsKeepTheirOrder() {
+        final AtomicInteger produced = new AtomicInteger();
+        final RowPipeline pipeline = new RowPipeline(createRows(10000, -1, produced), 2, 100, 1 << 20, new CancellationToken(), executor);
+        try {
+            final Iterator<GroupStats> rows = pipeline.iterator();
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(rows.hasNext());
+                final GroupStats row = rows.next();
+                assertEquals(createRow(i).getGroupKey(), row.getGroupKey());
+                assertArrayEquals(new double[] {i, i * 0.5}, row.getStats(), 0);
+            }
+            assertFalse(rows.hasNext());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testProducerIsBoundedByTheRing() throws Exception {
+        final AtomicInteger produced = new AtomicInteger();
+        // all 4 batches of the ring are filled once 40 rows are produced, the batch being read included
+        final CountDownLatch ringFilled = new CountDownLatch(1);
+        final Iterator<GroupStats> source = createRows(100000, -1, produced);
+        final Iterator<GroupStats> observed = new AbstractIterator<GroupStats>() {
+            @Override
+            protected GroupStats computeNext() {
+                if (!source.hasNext()) {
+                    return endOfData();
+                }
+                final GroupStats row = source.next();
+                if (produced.get() == 4 * 10) {
+                    ringFilled.countDown();
+                }
+                return row;
+            }
+        };
+        final RowPipeline pipeline = new RowPipeline(observed, 2, 10, 1 << 20, new CancellationToken(), executor);
+        final Iterator<GroupStats> rows = pipeline.iterator();
+        assertTrue(rows.hasNext());
+        assertTrue(ringFilled.await(10, TimeUnit.SECONDS));
+        pipeline.close();
+        // the batch being read, the filled ring and the batch being filled
+        assertTrue(produced.get() <= 5 * 10 + 1);
+        // the producer exited on close instead of draining the rest of the rows
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(produced.get() <= 5 * 10 + 1);
+    }
+
+    @Test
+    public void testProducerFailureReachesTheConsumer() {
+        final RowPipeline pipeline = new RowPipeline(createRows(1000, 250, new AtomicInteger()), 2, 100, 1 << 20, new CancellationToken(), executor);
+        final List<GroupStats> read = Lists.newArrayList();
+        try {
+            final Iterator<GroupStats> rows = pipeline.iterator();
+            while (rows.hasNext()) {
+                read.add(rows.next());
+            }
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(200, read.size());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testCancelStopsBothStages() {
+        final CancellationToken cancellationToken = new CancellationToken();
+        final AtomicInteger produced = new AtomicInteger();
+        final RowPipeline pipeline = new RowPipeline(createRows(100000, -1, produced), 2, 10, 1 << 20, cancellationToken, executor);
+        try {
+            final Iterator<GroupStats> rows = pipeline.iterator();
+            rows.next();
+            cancellationToken.cancel("test");
+            while (rows.hasNext()) {
+                rows.next();
+            }
+            fail();
+        } catch (QueryCancelledException expected) {
+            assertTrue(produced.get() < 100000);
+        } finally {
+            pipeline.close();
+        }
+    }
+}
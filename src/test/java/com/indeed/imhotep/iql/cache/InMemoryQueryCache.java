@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * QueryCache backed by a map, standing in for a remote cache in tests.
+ */
+final class InMemoryQueryCache implements QueryCache {
+    private final Map<String, byte[]> files = Maps.newHashMap();
+    int reads = 0;
+
+    String get(String name) {
+        return new String(files.get(name), Charsets.UTF_8);
+    }
+
+    void put(String name, String data) {
+        files.put(name, data.getBytes(Charsets.UTF_8));
+    }
+
+    byte[] getBytes(String name) {
+        return files.get(name);
+    }
+
+    void remove(String name) {
+        files.remove(name);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabledInConfig() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileCached(String fileName) {
+        return files.containsKey(fileName);
+    }
+
+    @Override
+    public InputStream getInputStream(String cachedFileName) throws IOException {
+        if (!files.containsKey(cachedFileName)) {
+            throw new FileNotFoundException(cachedFileName);
+        }
+        reads++;
+        return new ByteArrayInputStream(files.get(cachedFileName));
+    }
+
+    @Override
+    public InputStream getGzipInputStream(String cachedFileName) throws IOException {
+        return null;
+    }
+
+    @Override
+    public OutputStream getOutputStream(final String cachedFileName) throws IOException {
+        return new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                files.put(cachedFileName, toByteArray());
+            }
+        };
+    }
+
+    @Override
+    public void writeFromFile(String cachedFileName, File localFile) throws IOException {
+        files.put(cachedFileName, Files.toByteArray(localFile));
+    }
+
+    @Override
+    public File getLocalFile(String cachedFileName) {
+        return null;
+    }
+
+    @Override
+    public void healthcheck() throws IOException {
+    }
+}
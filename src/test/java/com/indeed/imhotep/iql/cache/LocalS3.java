@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process S3 stand-in implementing the object and multipart upload calls used by the query cache.
+ * Part uploads can be held back with a gate and made to fail to exercise the uploader.
+ */
+final class LocalS3 implements InvocationHandler {
+    final Map<String, byte[]> objects = Maps.newConcurrentMap();
+    final AtomicInteger puts = new AtomicInteger();
+    final AtomicInteger initiatedUploads = new AtomicInteger();
+    final AtomicInteger abortedUploads = new AtomicInteger();
+    final AtomicInteger partsUploading = new AtomicInteger();
+    final AtomicInteger maxPartsUploading = new AtomicInteger();
+    volatile CountDownLatch partGate = new CountDownLatch(0);
+    // counted down by every part upload before it waits for the gate
+    volatile CountDownLatch partsStarted = new CountDownLatch(0);
+    volatile int failingPartNumber = -1;
+
+    // upload id -> part number -> data
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = Maps.newConcurrentMap();
+    private final Map<String, String> uploadKeys = Maps.newConcurrentMap();
+
+    AmazonS3 client() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class[] {AmazonS3.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        if ("putObject".equals(name) && args.length == 4) {
+            objects.put((String) args[1], ByteStreams.toByteArray((InputStream) args[2]));
+            puts.incrementAndGet();
+            return new PutObjectResult();
+        } else if ("initiateMultipartUpload".equals(name)) {
+            final InitiateMultipartUploadRequest request = (InitiateMultipartUploadRequest) args[0];
+            final String uploadId = "upload" + initiatedUploads.incrementAndGet();
+            uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+            uploadKeys.put(uploadId, request.getKey());
+            final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        } else if ("uploadPart".equals(name)) {
+            return uploadPart((UploadPartRequest) args[0]);
+        } else if ("completeMultipartUpload".equals(name)) {
+            final CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) args[0];
+            final SortedMap<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int expectedPartNumber = 1;
+            for (PartETag partETag : request.getPartETags()) {
+                if (partETag.getPartNumber() != expectedPartNumber++ || !parts.containsKey(partETag.getPartNumber())) {
+                    throw new AmazonClientException("Invalid part " + partETag.getPartNumber());
+                }
+                data.write(parts.get(partETag.getPartNumber()));
+            }
+            objects.put(uploadKeys.remove(request.getUploadId()), data.toByteArray());
+            return new CompleteMultipartUploadResult();
+        } else if ("abortMultipartUpload".equals(name)) {
+            final AbortMultipartUploadRequest request = (AbortMultipartUploadRequest) args[0];
+            uploads.remove(request.getUploadId());
+            abortedUploads.incrementAndGet();
+            return null;
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private UploadPartResult uploadPart(UploadPartRequest request) throws Exception {
+        final int uploading = partsUploading.incrementAndGet();
+        try {
+            int max;
+            while ((max = maxPartsUploading.get()) < uploading && !maxPartsUploading.compareAndSet(max, uploading)) {
+                // retry
+            }
+            partsStarted.countDown();
+            partGate.await();
+            if (request.getPartNumber() == failingPartNumber) {
+                throw new AmazonClientException("Part " + request.getPartNumber() + " failed");
+            }
+            final byte[] data = ByteStreams.toByteArray(ByteStreams.limit(request.getInputStream(), request.getPartSize()));
+            uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        } finally {
+            partsUploading.decrementAndGet();
+        }
+    }
+}
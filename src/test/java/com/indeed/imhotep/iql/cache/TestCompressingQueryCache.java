@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class TestCompressingQueryCache {
+    private static final String ROWS = Strings.repeat("a\tb\t1.2345678\n", 1000);
+
+    private InMemoryQueryCache remote;
+    private CompressingQueryCache cache;
+
+    @Before
+    public void setUp() {
+        remote = new InMemoryQueryCache();
+        cache = new CompressingQueryCache(remote);
+    }
+
+    private static String toString(InputStream in) throws IOException {
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testWrittenDataIsStoredCompressed() throws IOException {
+        final OutputStream out = cache.getOutputStream("a.tsv");
+        out.write(ROWS.getBytes(Charsets.UTF_8));
+        out.close();
+
+        assertTrue(remote.getBytes("a.tsv").length < ROWS.length() / 10);
+        assertEquals(ROWS, toString(cache.getInputStream("a.tsv")));
+    }
+
+    @Test
+    public void testWriteFromFile() throws IOException {
+        final File file = File.createTempFile("iql_tmp", ".tsv");
+        try {
+            Files.write(ROWS, file, Charsets.UTF_8);
+            cache.writeFromFile("b.tsv", file);
+        } finally {
+            file.delete();
+        }
+        assertEquals(ROWS, toString(cache.getInputStream("b.tsv")));
+        assertNull(cache.getLocalFile("b.tsv"));
+    }
+
+    @Test
+    public void testUncompressedFilesAreReadAsTheyAre() throws IOException {
+        remote.put("c.tsv", "x\t1\n");
+        assertEquals("x\t1\n", toString(cache.getInputStream("c.tsv")));
+        assertNull(cache.getGzipInputStream("c.tsv"));
+        remote.put("empty.tsv", "");
+        assertEquals("", toString(cache.getInputStream("empty.tsv")));
+    }
+
+    @Test
+    public void testGzipStreamIsPassedThrough() throws IOException {
+        final OutputStream out = cache.getOutputStream("d.csv");
+        out.write(ROWS.getBytes(Charsets.UTF_8));
+        out.close();
+
+        final byte[] gzipped = ByteStreams.toByteArray(cache.getGzipInputStream("d.csv"));
+        assertArrayEquals(remote.getBytes("d.csv"), gzipped);
+        assertEquals(ROWS, toString(new GZIPInputStream(new ByteArrayInputStream(gzipped))));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestMemoryQueryCache {
+    private InMemoryQueryCache remote;
+
+    @Before
+    public void setUp() {
+        remote = new InMemoryQueryCache();
+    }
+
+    private static void write(QueryCache cache, String name, String data) throws IOException {
+        final OutputStream out = cache.getOutputStream(name);
+        out.write(data.getBytes(Charsets.UTF_8));
+        out.close();
+    }
+
+    private static String read(QueryCache cache, String name) throws IOException {
+        final InputStream in = cache.getInputStream(name);
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    // incompressible so that the compressed size is predictable
+    private static String randomData(Random random, int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('!' + random.nextInt(90)));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testWriteKeepsDataAndMetadataTogether() throws IOException {
+        final MemoryQueryCache cache = new MemoryQueryCache(remote, 100000, 1000);
+        write(cache, "a.tsv.meta", "{}");
+        write(cache, "a.tsv", "row1\nrow2\n");
+        assertEquals(1, cache.getEntryCount());
+        remote.remove("a.tsv");
+        remote.remove("a.tsv.meta");
+
+        assertTrue(cache.isFileCached("a.tsv"));
+        assertEquals("{}", read(cache, "a.tsv.meta"));
+        assertEquals("row1\nrow2\n", read(cache, "a.tsv"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testMissIsCapturedWhenReadToTheEnd() throws IOException {
+        final MemoryQueryCache cache = new MemoryQueryCache(remote, 100000, 1000);
+        remote.put("b.csv", "x,y\n");
+        assertEquals("x,y\n", read(cache, "b.csv"));
+        assertEquals(1, cache.getMissCount());
+        remote.remove("b.csv");
+        assertEquals("x,y\n", read(cache, "b.csv"));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testGzipCopyIsOnlyFetchedForEntriesNotInMemory() throws IOException {
+        final MemoryQueryCache cache = new MemoryQueryCache(new CompressingQueryCache(remote), 100000, 1000);
+        write(cache, "d.tsv", "row1\n");
+        assertNull(cache.getGzipInputStream("d.tsv"));
+        assertEquals("row1\n", read(cache, "d.tsv"));
+
+        final OutputStream out = new CompressingQueryCache(remote).getOutputStream("e.tsv");
+        out.write("row2\n".getBytes(Charsets.UTF_8));
+        out.close();
+        final InputStream gzipped = cache.getGzipInputStream("e.tsv");
+        assertNotNull(gzipped);
+        gzipped.close();
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testLargeFilesAreNotKept() throws IOException {
+        final MemoryQueryCache cache = new MemoryQueryCache(remote, 100000, 10);
+        write(cache, "c.tsv", "more than ten bytes");
+        assertEquals(0, cache.getEntryCount());
+        remote.remove("c.tsv");
+        read(cache, "c.tsv");
+    }
+
+    @Test
+    public void testPopularEntrySurvivesOneOffEntries() throws IOException {
+        final Random random = new Random(0);
+        final MemoryQueryCache cache = new MemoryQueryCache(remote, 1000, 1000);
+        final String hot = randomData(random, 300);
+        write(cache, "hot.tsv", hot);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(hot, read(cache, "hot.tsv"));
+        }
+        for (int i = 0; i < 20; i++) {
+            write(cache, "cold" + i + ".tsv", randomData(random, 300));
+        }
+        assertTrue(cache.getSizeInBytes() <= 1000);
+        assertTrue(cache.getRejectionCount() > 0);
+        assertTrue(cache.getEvictionCount() > 0);
+        remote.remove("hot.tsv");
+        assertEquals(hot, read(cache, "hot.tsv"));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class TestRowOffsetIndex {
+
+    @Test
+    public void testOffsets() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RowOffsetIndex.Writer writer = new RowOffsetIndex.Writer(out);
+        writer.addRow(10);
+        writer.addRow(5);
+        writer.addRow(7);
+        writer.close();
+        final byte[] index = out.toByteArray();
+
+        assertEquals(0, RowOffsetIndex.readOffset(new ByteArrayInputStream(index), 0));
+        assertEquals(10, RowOffsetIndex.readOffset(new ByteArrayInputStream(index), 1));
+        assertEquals(15, RowOffsetIndex.readOffset(new ByteArrayInputStream(index), 2));
+        // the row count gives the length of the data
+        assertEquals(22, RowOffsetIndex.readOffset(new ByteArrayInputStream(index), 3));
+        assertEquals(-1, RowOffsetIndex.readOffset(new ByteArrayInputStream(index), 4));
+    }
+
+    @Test
+    public void testEmptyResult() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RowOffsetIndex.Writer(out).close();
+        assertEquals(0, RowOffsetIndex.readOffset(new ByteArrayInputStream(out.toByteArray()), 0));
+        assertEquals(-1, RowOffsetIndex.readOffset(new ByteArrayInputStream(out.toByteArray()), 1));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+public class TestS3MultipartOutputStream {
+    private LocalS3 s3;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        s3 = new LocalS3();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static byte[] randomData(int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static void writeInChunks(S3MultipartOutputStream out, byte[] data, int chunkSize) throws IOException {
+        for (int off = 0; off < data.length; off += chunkSize) {
+            out.write(data, off, Math.min(chunkSize, data.length - off));
+        }
+    }
+
+    /**
+     * Waits for the writer to be parked on the semaphore of the upload slots.
+     */
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!isBlockedOnSemaphore(thread)) {
+            assertTrue("writer didn't block", System.currentTimeMillis() < deadline && thread.isAlive());
+            Thread.sleep(1);
+        }
+    }
+
+    private static boolean isBlockedOnSemaphore(Thread thread) {
+        final Object blocker = LockSupport.getBlocker(thread);
+        return thread.getState() == Thread.State.WAITING && blocker != null && blocker.getClass().getEnclosingClass() == Semaphore.class;
+    }
+
+    @Test
+    public void testSmallDataIsPutInOneRequest() throws IOException {
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "a.tsv", 16, 2, executor);
+        final byte[] data = randomData(16);
+        out.write(data);
+        out.close();
+        assertArrayEquals(data, s3.objects.get("a.tsv"));
+        assertEquals(1, s3.puts.get());
+        assertEquals(0, s3.initiatedUploads.get());
+    }
+
+    @Test
+    public void testLargeDataIsUploadedInParts() throws IOException {
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "b.tsv", 16, 2, executor);
+        final byte[] data = randomData(100);
+        writeInChunks(out, data, 7);
+        out.write(42);
+        out.close();
+        final byte[] expected = Arrays.copyOf(data, 101);
+        expected[100] = 42;
+        assertArrayEquals(expected, s3.objects.get("b.tsv"));
+        assertEquals(0, s3.puts.get());
+        assertEquals(1, s3.initiatedUploads.get());
+        assertTrue(s3.maxPartsUploading.get() <= 2);
+    }
+
+    @Test
+    public void testWriterBlocksWhilePartsAreInFlight() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        s3.partGate = gate;
+        final CountDownLatch partsStarted = new CountDownLatch(2);
+        s3.partsStarted = partsStarted;
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "c.tsv", 10, 2, executor);
+        final byte[] data = randomData(100);
+        final AtomicLong written = new AtomicLong();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int off = 0; off < data.length; off += 10) {
+                        out.write(data, off, 10);
+                        written.addAndGet(10);
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        assertTrue(partsStarted.await(10, TimeUnit.SECONDS));
+        awaitBlocked(writer);
+        // two parts uploading and one being filled
+        assertEquals(30, written.get());
+        assertEquals(2, s3.partsUploading.get());
+        gate.countDown();
+        writer.join(10000);
+        assertFalse(writer.isAlive());
+        assertArrayEquals(data, s3.objects.get("c.tsv"));
+        assertEquals(2, s3.maxPartsUploading.get());
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws Exception {
+        s3.failingPartNumber = 2;
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "d.tsv", 10, 1, executor);
+        try {
+            writeInChunks(out, randomData(100), 10);
+            out.close();
+            fail("upload should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertNull(s3.objects.get("d.tsv"));
+        assertEquals(1, s3.abortedUploads.get());
+    }
+}
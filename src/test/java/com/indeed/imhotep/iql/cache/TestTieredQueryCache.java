@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.iql.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class TestTieredQueryCache {
+    private File localDir;
+    private InMemoryQueryCache remote;
+
+    @Before
+    public void setUp() {
+        localDir = Files.createTempDir();
+        remote = new InMemoryQueryCache();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = localDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        localDir.delete();
+    }
+
+    private static void write(QueryCache cache, String name, String data) throws IOException {
+        final OutputStream out = cache.getOutputStream(name);
+        out.write(data.getBytes(Charsets.UTF_8));
+        out.close();
+    }
+
+    private static String read(QueryCache cache, String name) throws IOException {
+        final InputStream in = cache.getInputStream(name);
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testWriteThrough() throws IOException {
+        final TieredQueryCache cache = new TieredQueryCache(remote, localDir, 1000);
+        write(cache, "a.tsv", "row1\nrow2\n");
+        assertEquals("row1\nrow2\n", remote.get("a.tsv"));
+        assertNotNull(cache.getLocalFile("a.tsv"));
+        remote.remove("a.tsv");
+        assertTrue(cache.isFileCached("a.tsv"));
+        assertEquals("row1\nrow2\n", read(cache, "a.tsv"));
+    }
+
+    @Test
+    public void testPromotionOnRead() throws IOException {
+        final TieredQueryCache cache = new TieredQueryCache(remote, localDir, 1000);
+        write(remote, "b.tsv", "0123456789");
+        assertNull(cache.getLocalFile("b.tsv"));
+
+        // reading only a prefix doesn't read the rest to promote the entry
+        final InputStream in = cache.getInputStream("b.tsv");
+        assertEquals('0', in.read());
+        in.close();
+        assertEquals(1, remote.reads);
+        assertNull(cache.getLocalFile("b.tsv"));
+
+        assertEquals("0123456789", read(cache, "b.tsv"));
+        assertEquals(2, remote.reads);
+        assertNotNull(cache.getLocalFile("b.tsv"));
+        assertEquals("0123456789", read(cache, "b.tsv"));
+        assertEquals(2, remote.reads);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        final TieredQueryCache cache = new TieredQueryCache(remote, localDir, 25);
+        write(cache, "a.tsv", "0123456789");
+        write(cache, "b.tsv", "0123456789");
+        assertNotNull(cache.getLocalFile("a.tsv"));  // a is now more recent than b
+        write(cache, "c.tsv", "0123456789");
+        assertNotNull(cache.getLocalFile("a.tsv"));
+        assertNull(cache.getLocalFile("b.tsv"));
+        assertNotNull(cache.getLocalFile("c.tsv"));
+        assertEquals(20, cache.getLocalBytes());
+        assertFalse(new File(localDir, "b.tsv").exists());
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() throws IOException {
+        write(new TieredQueryCache(remote, localDir, 1000), "a.tsv", "0123456789");
+        final TieredQueryCache cache = new TieredQueryCache(remote, localDir, 1000);
+        assertNotNull(cache.getLocalFile("a.tsv"));
+        assertEquals(10, cache.getLocalBytes());
+    }
+
+    @Test
+    public void testUnsafeNamesStayRemote() throws IOException {
+        final TieredQueryCache cache = new TieredQueryCache(remote, localDir, 1000);
+        write(cache, "../a.tsv", "data");
+        assertEquals("data", remote.get("../a.tsv"));
+        assertNull(cache.getLocalFile("../a.tsv"));
+    }
+}
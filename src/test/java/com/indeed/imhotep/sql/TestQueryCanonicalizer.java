@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.sql;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.indeed.imhotep.client.ShardIdWithVersion;
+import com.indeed.imhotep.sql.ast.BinaryExpression;
+import com.indeed.imhotep.sql.ast.Expression;
+import com.indeed.imhotep.sql.ast.FunctionExpression;
+import com.indeed.imhotep.sql.ast.NameExpression;
+import com.indeed.imhotep.sql.ast.NumberExpression;
+import com.indeed.imhotep.sql.ast.Op;
+import com.indeed.imhotep.sql.ast.StringExpression;
+import com.indeed.imhotep.sql.ast.TupleExpression;
+import com.indeed.imhotep.sql.ast2.FromClause;
+import com.indeed.imhotep.sql.ast2.SelectStatement;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TestQueryCanonicalizer {
+    private static final Map<String, String> NO_ALIASES = Collections.emptyMap();
+    private static final FromClause FROM = new FromClause("jobsearch", new DateTime(2014, 1, 1, 0, 0), new DateTime(2014, 1, 2, 0, 0));
+
+    @Test
+    public void testConjunctOrderDoesNotMatter() {
+        final Expression a = eq("a", new NumberExpression("1"));
+        final Expression b = eq("b", new StringExpression("x"));
+        final Expression c = eq("c", new NumberExpression("2"));
+        final String abc = canonicalize(and(and(a, b), c));
+        assertEquals(abc, canonicalize(and(c, and(b, a))));
+        assertEquals(abc, canonicalize(and(b, and(a, and(c, a)))));
+        assertFalse(abc.equals(canonicalize(and(a, b))));
+    }
+
+    @Test
+    public void testInListOrderDoesNotMatter() {
+        final Expression in1 = new BinaryExpression(NameExpression.of("a"), Op.IN,
+                TupleExpression.of(new StringExpression("y"), new StringExpression("x")));
+        final Expression in2 = new BinaryExpression(NameExpression.of("a"), Op.IN,
+                TupleExpression.of(new StringExpression("x"), new StringExpression("y"), new StringExpression("x")));
+        assertEquals(canonicalize(in1), canonicalize(in2));
+    }
+
+    @Test
+    public void testNumberLiterals() {
+        // a number compared to a string field is used as a term as written so the literals must stay distinct
+        assertFalse(canonicalize(eq("zip", new NumberExpression("02134"))).equals(canonicalize(eq("zip", new NumberExpression("2134")))));
+        final Expression in150 = new BinaryExpression(NameExpression.of("x"), Op.IN, TupleExpression.of(new NumberExpression("1.50")));
+        final Expression in15 = new BinaryExpression(NameExpression.of("x"), Op.IN, TupleExpression.of(new NumberExpression("1.5")));
+        assertFalse(canonicalize(in150).equals(canonicalize(in15)));
+        assertFalse(canonicalize(eq("a", new NumberExpression("5"))).equals(canonicalize(eq("a", new NumberExpression("05")))));
+    }
+
+    @Test
+    public void testAliasesAreExpanded() {
+        final Map<String, String> aliases = ImmutableMap.of("q", "query");
+        final SelectStatement aliased = select(eq("q", new StringExpression("java")), NameExpression.of("q"));
+        final SelectStatement expanded = select(eq("query", new StringExpression("java")), NameExpression.of("query"));
+        assertEquals(QueryCanonicalizer.canonicalize(expanded, NO_ALIASES, Collections.<ShardIdWithVersion>emptyList()),
+                QueryCanonicalizer.canonicalize(aliased, aliases, Collections.<ShardIdWithVersion>emptyList()));
+    }
+
+    @Test
+    public void testProjectionOrderMatters() {
+        final SelectStatement ab = new SelectStatement(Lists.<Expression>newArrayList(NameExpression.of("a"), NameExpression.of("b")),
+                FROM, null, Lists.<Expression>newArrayList(), Integer.MAX_VALUE);
+        final SelectStatement ba = new SelectStatement(Lists.<Expression>newArrayList(NameExpression.of("b"), NameExpression.of("a")),
+                FROM, null, Lists.<Expression>newArrayList(), Integer.MAX_VALUE);
+        assertFalse(QueryCanonicalizer.canonicalize(ab, NO_ALIASES, Collections.<ShardIdWithVersion>emptyList())
+                .equals(QueryCanonicalizer.canonicalize(ba, NO_ALIASES, Collections.<ShardIdWithVersion>emptyList())));
+        assertEquals("select a, b where  group by time(1h)", QueryCanonicalizer.canonicalizeWithoutTimeRange(
+                new SelectStatement(Lists.<Expression>newArrayList(NameExpression.of("a"), NameExpression.of("b")), FROM, null,
+                        Lists.<Expression>newArrayList(FunctionExpression.of("time", new StringExpression("1h"))), 10), NO_ALIASES)
+                .replace("'", ""));
+    }
+
+    private static Expression eq(String field, Expression value) {
+        return new BinaryExpression(NameExpression.of(field), Op.EQ, value);
+    }
+
+    private static Expression and(Expression left, Expression right) {
+        return new BinaryExpression(left, Op.AND, right);
+    }
+
+    private static SelectStatement select(Expression where, Expression groupBy) {
+        return new SelectStatement(Lists.<Expression>newArrayList(FunctionExpression.of("count")), FROM, where,
+                Lists.newArrayList(groupBy), Integer.MAX_VALUE);
+    }
+
+    private static String canonicalize(Expression where) {
+        return QueryCanonicalizer.canonicalize(select(where, NameExpression.of("g")), NO_ALIASES, Collections.<ShardIdWithVersion>emptyList());
+    }
+}
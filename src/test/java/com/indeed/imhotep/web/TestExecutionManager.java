@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.indeed.imhotep.ez.CancellationToken;
+import com.indeed.imhotep.iql.QueryProgress;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TestExecutionManager {
+    private static final Executor CALLING_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testAttachedReaderFollowsTheProducer() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        assertNull(executionManager.attachToRunning("hash"));
+        final ExecutionManager.RunningResult runningResult = executionManager.startRunning("hash", new CancellationToken());
+        assertNotNull(runningResult);
+        assertNull(executionManager.startRunning("hash", new CancellationToken()));
+
+        final InputStream in = executionManager.attachToRunning("hash");
+        assertNotNull(in);
+        final CountDownLatch firstRowsRead = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<byte[]> read = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    final byte[] bytes = new byte[4];
+                    ByteStreams.readFully(in, bytes, 0, 3);
+                    firstRowsRead.countDown();
+                    // blocks at the end of the file until the producer writes the rest
+                    ByteStreams.readFully(in, bytes, 3, 1);
+                    assertEquals(-1, in.read());
+                    in.close();
+                    return bytes;
+                }
+            });
+            final FileOutputStream out = new FileOutputStream(runningResult.getFile());
+            out.write(new byte[] {1, 2, 3});
+            out.flush();
+            assertTrue(firstRowsRead.await(10, TimeUnit.SECONDS));
+            assertFalse(read.isDone());
+            out.write(new byte[] {4});
+            out.close();
+            executionManager.resultWritten(runningResult);
+            assertArrayEquals(new byte[] {1, 2, 3, 4}, read.get());
+            // still registered until the result is in the cache
+            assertNotNull(executionManager.attachToRunning("hash"));
+            executionManager.finishRunning(runningResult, null);
+            assertNull(executionManager.attachToRunning("hash"));
+        } finally {
+            executor.shutdown();
+            assertTrue(runningResult.getFile().delete());
+        }
+    }
+
+    @Test
+    public void testFailureIsPropagatedToReaders() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final ExecutionManager.RunningResult runningResult = executionManager.startRunning("hash", new CancellationToken());
+        final InputStream in = executionManager.attachToRunning("hash");
+        executionManager.finishRunning(runningResult, new IllegalStateException("boom"));
+        try {
+            in.read();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        } finally {
+            in.close();
+            assertTrue(runningResult.getFile().delete());
+        }
+        assertNotNull(executionManager.startRunning("hash", new CancellationToken()));
+    }
+
+    @Test
+    public void testQueuedQueryIsFollowed() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final ExecutionManager.QueryTracker leader = executionManager.queryStarted("query", "user");
+        final ExecutionManager.QueryTracker follower = executionManager.queryStarted("query", "user");
+        final ExecutionManager.QueryTracker running = executionManager.queryStarted("other", "user");
+        final QueryScheduler.Lane lane = QueryScheduler.Lane.BATCH;
+        final ExecutionManager.RunningResult runningResult = executionManager.startRunning("hash", leader.getCancellationToken());
+        try {
+            // the running query takes the whole cost limit of the batch lane so the leader waits for admission
+            final BlockingQueue<QueryScheduler.Ticket> admitted = new LinkedBlockingQueue<QueryScheduler.Ticket>();
+            final QueryScheduler.AdmissionListener listener = new QueryScheduler.AdmissionListener() {
+                @Override
+                public void admitted(QueryScheduler.Ticket ticket) {
+                    admitted.add(ticket);
+                }
+
+                @Override
+                public void rejected(Exception reason) {
+                    fail(reason.getMessage());
+                }
+            };
+            running.acquireLocks(lane, "client", 20000, CALLING_THREAD, listener);
+            assertEquals(1, admitted.size());
+            leader.acquireLocks(lane, "client", 20000, CALLING_THREAD, listener);
+            assertFalse(leader.isAdmitted());
+
+            // an identical query arriving while the leader is queued follows it instead of queueing too
+            assertNull(executionManager.startRunning("hash", follower.getCancellationToken()));
+            final InputStream in = executionManager.attachToRunning("hash");
+            assertNotNull(in);
+
+            running.close();
+            assertTrue(leader.isAdmitted());
+            final FileOutputStream out = new FileOutputStream(runningResult.getFile());
+            out.write(new byte[] {1, 2});
+            out.close();
+            executionManager.resultWritten(runningResult);
+            assertArrayEquals(new byte[] {1, 2}, ByteStreams.toByteArray(in));
+            in.close();
+        } finally {
+            executionManager.finishRunning(runningResult, null);
+            leader.close();
+            follower.close();
+            assertTrue(runningResult.getFile().delete());
+        }
+    }
+
+    @Test
+    public void testExecutionGoesOnWhileFollowersRead() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final CancellationToken cancellationToken = new CancellationToken();
+        final ExecutionManager.RunningResult runningResult = executionManager.startRunning("hash", cancellationToken);
+        try {
+            final InputStream first = executionManager.attachToRunning("hash");
+            final InputStream second = executionManager.attachToRunning("hash");
+            // a follower leaving doesn't affect the others
+            first.close();
+            first.close();
+            assertFalse(cancellationToken.isCancelled());
+            // the client of the execution disconnecting while a follower reads
+            assertTrue(runningResult.release());
+            assertFalse(cancellationToken.isCancelled());
+            // the last reader leaving cancels the execution and nobody can attach to it anymore
+            second.close();
+            assertTrue(cancellationToken.isCancelled());
+            assertNull(executionManager.attachToRunning("hash"));
+        } finally {
+            executionManager.finishRunning(runningResult, null);
+            assertTrue(runningResult.getFile().delete());
+        }
+    }
+
+    @Test
+    public void testCompleteResultIsNotCancelled() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final CancellationToken cancellationToken = new CancellationToken();
+        final ExecutionManager.RunningResult runningResult = executionManager.startRunning("hash", cancellationToken);
+        try {
+            final InputStream in = executionManager.attachToRunning("hash");
+            assertTrue(runningResult.release());
+            executionManager.resultWritten(runningResult);
+            // the result is being uploaded to the cache which has to finish even if nobody reads it
+            in.close();
+            assertFalse(cancellationToken.isCancelled());
+        } finally {
+            executionManager.finishRunning(runningResult, null);
+            assertTrue(runningResult.getFile().delete());
+        }
+    }
+
+    @Test
+    public void testUnreadExecutionIsCancelled() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final CancellationToken cancellationToken = new CancellationToken();
+        final ExecutionManager.RunningResult runningResult = executionManager.startRunning("hash", cancellationToken);
+        try {
+            assertFalse(runningResult.release());
+            assertTrue(cancellationToken.isCancelled());
+            assertNull(executionManager.attachToRunning("hash"));
+        } finally {
+            executionManager.finishRunning(runningResult, null);
+            assertTrue(runningResult.getFile().delete());
+        }
+    }
+
+    @Test
+    public void testRunningQueriesReportProgress() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final ExecutionManager.QueryTracker tracker = executionManager.queryStarted("select count() from test", "user");
+        final QueryProgress progress = tracker.getProgress();
+        progress.setPhase("FTGS");
+        progress.setGroupsCreated(5);
+        progress.getFtgsTermCounter().addAndGet(10);
+        final Iterator<String> rows = progress.countRows(Arrays.asList("a", "b").iterator());
+        while (rows.hasNext()) {
+            rows.next();
+        }
+        final OutputStream out = progress.countBytes(new ByteArrayOutputStream());
+        out.write(new byte[] {1, 2, 3});
+        out.write(4);
+
+        final List<ExecutionManager.QueryTracker> running = executionManager.getRunningQueries();
+        assertEquals(1, running.size());
+        final ExecutionManager.QueryTracker listed = running.get(0);
+        assertEquals("FTGS", listed.getPhase());
+        assertEquals(5, listed.getGroupsCreated());
+        assertEquals(10, listed.getFtgsTermsSeen());
+        assertEquals(2, listed.getRowsProduced());
+        assertEquals(4, listed.getBytesStreamed());
+
+        tracker.close();
+        tracker.close();
+        assertTrue(executionManager.getRunningQueries().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentQueriesAreTracked() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            final ExecutionManager.QueryTracker tracker = executionManager.queryStarted("query", "user");
+                            executionManager.getRunningQueries();
+                            tracker.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executionManager.getRunningQueries().isEmpty());
+    }
+
+    @Test
+    public void testCancelRunningQuery() throws Exception {
+        final ExecutionManager executionManager = new ExecutionManager();
+        final ExecutionManager.QueryTracker tracker = executionManager.queryStarted("query", "user");
+        assertFalse(executionManager.cancel(tracker.getId() + 1, "test"));
+        assertFalse(tracker.isCancelled());
+        assertTrue(executionManager.cancel(tracker.getId(), "test"));
+        assertTrue(tracker.isCancelled());
+        assertEquals("test", tracker.getCancellationToken().getReason());
+        tracker.close();
+        assertFalse(executionManager.cancel(tracker.getId(), "test"));
+    }
+}
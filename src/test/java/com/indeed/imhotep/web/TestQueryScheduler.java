@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.web;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class TestQueryScheduler {
+    private static final Executor CALLING_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testFlowsAreAdmittedFairly() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(1, 1000, 1, 1000, 10);
+        final QueryScheduler.Ticket running = acquire(scheduler, "x", 10);
+        final List<String> admitted = Collections.synchronizedList(Lists.<String>newArrayList());
+        final List<Thread> threads = Lists.newArrayList();
+        for (String user : new String[] {"x", "x", "x", "y"}) {
+            threads.add(startWaiter(scheduler, user, 10, admitted));
+            // make sure the queries are queued in order
+            waitForWaiting(scheduler, threads.size());
+        }
+        running.close();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(Lists.newArrayList("y", "x", "x", "x"), admitted.subList(0, 4));
+    }
+
+    @Test
+    public void testCostLimit() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(10, 100, 10, 100, 10);
+        final QueryScheduler.Ticket first = acquire(scheduler, "x", 60);
+        try {
+            scheduler.acquire(QueryScheduler.Lane.BATCH, "y", "y", 60, 1, 10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+        assertEquals(0, scheduler.getWaitingCount(QueryScheduler.Lane.BATCH));
+        // other lanes are independent
+        scheduler.acquire(QueryScheduler.Lane.INTERACTIVE, "y", "y", 60, 1, 10, TimeUnit.MILLISECONDS).close();
+        first.close();
+        // a query over the limit runs alone
+        acquire(scheduler, "y", 1000).close();
+    }
+
+    @Test
+    public void testUserLimitDoesNotBlockOthers() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(10, 1000, 10, 1000, 1);
+        final QueryScheduler.Ticket first = acquire(scheduler, "x", 1);
+        try {
+            scheduler.acquire(QueryScheduler.Lane.BATCH, "x", "x", 1, 1, 10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+        acquire(scheduler, "y", 1).close();
+        first.close();
+        acquire(scheduler, "x", 1).close();
+        assertEquals(0, scheduler.getRunningCount(QueryScheduler.Lane.BATCH));
+    }
+
+    @Test
+    public void testAsyncAdmission() throws Exception {
+        final QueryScheduler scheduler = new QueryScheduler(1, 1000, 1, 1000, 10);
+        final QueryScheduler.Ticket running = acquire(scheduler, "x", 10);
+        final BlockingQueue<Object> first = new LinkedBlockingQueue<Object>();
+        final BlockingQueue<Object> second = new LinkedBlockingQueue<Object>();
+        final BlockingQueue<Object> expiring = new LinkedBlockingQueue<Object>();
+        final QueryScheduler.Ticket withdrawn = acquireAsync(scheduler, "y", 10, TimeUnit.SECONDS, first);
+        acquireAsync(scheduler, "z", 10, TimeUnit.SECONDS, second);
+        acquireAsync(scheduler, "w", 10, TimeUnit.MILLISECONDS, expiring);
+        // nobody holds a thread while waiting
+        assertTrue(expiring.poll(10, TimeUnit.SECONDS) instanceof TimeoutException);
+        assertEquals(2, scheduler.getWaitingCount(QueryScheduler.Lane.BATCH));
+
+        withdrawn.close();
+        assertTrue(first.poll(10, TimeUnit.SECONDS) instanceof IllegalStateException);
+        assertEquals(1, scheduler.getWaitingCount(QueryScheduler.Lane.BATCH));
+        assertNull(second.poll(10, TimeUnit.MILLISECONDS));
+
+        running.close();
+        final Object admitted = second.poll(10, TimeUnit.SECONDS);
+        assertTrue(admitted instanceof QueryScheduler.Ticket);
+        assertTrue(((QueryScheduler.Ticket) admitted).isAdmitted());
+        assertEquals(1, scheduler.getRunningCount(QueryScheduler.Lane.BATCH));
+        ((QueryScheduler.Ticket) admitted).close();
+        assertEquals(0, scheduler.getRunningCount(QueryScheduler.Lane.BATCH));
+    }
+
+    private static QueryScheduler.Ticket acquireAsync(QueryScheduler scheduler, String user, long timeout, TimeUnit unit, final BlockingQueue<Object> results) {
+        return scheduler.acquireAsync(QueryScheduler.Lane.BATCH, user, user, 10, 1, timeout, unit, CALLING_THREAD,
+                new QueryScheduler.AdmissionListener() {
+                    @Override
+                    public void admitted(QueryScheduler.Ticket ticket) {
+                        results.add(ticket);
+                    }
+
+                    @Override
+                    public void rejected(Exception reason) {
+                        results.add(reason);
+                    }
+                });
+    }
+
+    private static QueryScheduler.Ticket acquire(QueryScheduler scheduler, String user, long cost) throws Exception {
+        return scheduler.acquire(QueryScheduler.Lane.BATCH, user, user, cost, 1, 10, TimeUnit.SECONDS);
+    }
+
+    private static Thread startWaiter(final QueryScheduler scheduler, final String user, final long cost, final List<String> admitted) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final QueryScheduler.Ticket ticket = acquire(scheduler, user, cost);
+                    admitted.add(user);
+                    ticket.close();
+                } catch (Exception e) {
+                    admitted.add(e.toString());
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaiting(QueryScheduler scheduler, int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && scheduler.getWaitingCount(QueryScheduler.Lane.BATCH) < count; i++) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, scheduler.getWaitingCount(QueryScheduler.Lane.BATCH));
+    }
+}